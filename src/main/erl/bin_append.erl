@@ -0,0 +1,40 @@
+-module(bin_append).
+-export([append_bytes/1, append_words/1, append_binaries/2, main/0]).
+
+%% Binary accumulation loops; these should run in linear time, since
+%% appending to the result of an append is done in place.
+
+append_bytes(N) -> append_bytes(N, <<>>).
+
+append_bytes(0, Acc) -> Acc;
+append_bytes(N, Acc) -> append_bytes(N-1, <<Acc/binary, (N band 255)>>).
+
+
+append_words(N) -> append_words(N, <<>>).
+
+append_words(0, Acc) -> Acc;
+append_words(N, Acc) -> append_words(N-1, <<Acc/binary, N:32, 0:16>>).
+
+
+append_binaries(N, Bin) -> append_binaries(N, Bin, <<>>).
+
+append_binaries(0, _Bin, Acc) -> Acc;
+append_binaries(N, Bin, Acc) -> append_binaries(N-1, Bin, <<Acc/binary, Bin/binary>>).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(bin_append, F, Args),
+   io:format("~w,~w,~w bytes,~w~n", [F, hd(Args), size(Res), Time]).
+
+main() ->
+    main_append(),
+    main_append(),
+    main_append().
+
+main_append() ->
+   time(append_bytes, [1000]),
+   time(append_bytes, [10000]),
+   time(append_bytes, [100000]),
+   time(append_bytes, [1000000]),
+   time(append_words, [100000]),
+   time(append_binaries, [100000, <<"0123456789abcdef">>]).
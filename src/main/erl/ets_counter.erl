@@ -0,0 +1,37 @@
+-module(ets_counter).
+-export([run/3, main/0]).
+
+%% Rate-limiter style counters: Procs processes each bump one of Keys
+%% counters N times, with a threshold that wraps the counter.
+
+run(Opts, Procs, N) ->
+    T = ets:new(?MODULE, [set, public | Opts]),
+    Keys = 16,
+    [ets:insert(T, {K, 0, 0}) || K <- lists:seq(1, Keys)],
+    Self = self(),
+    Pids = [spawn(fun() -> bump(T, P rem Keys + 1, N), Self ! {done, self()} end)
+            || P <- lists:seq(1, Procs)],
+    [receive {done, Pid} -> ok end || Pid <- Pids],
+    Total = lists:sum([C || K <- lists:seq(1, Keys), {_, _, C} <- ets:lookup(T, K)]),
+    ets:delete(T),
+    Total.
+
+bump(_T, _K, 0) -> ok;
+bump(T, K, N) ->
+    ets:update_counter(T, K, [{2, 1, 1000, 0}, {3, 1}]),
+    bump(T, K, N-1).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_counter, F, Args),
+   io:format("~w,~w,~w~n", [hd(Args), Res, Time]).
+
+main() ->
+    main_counter(),
+    main_counter(),
+    main_counter().
+
+main_counter() ->
+   time(run, [[], 1000, 100]),
+   time(run, [[{write_concurrency, true}], 1000, 100]),
+   time(run, [[{write_concurrency, true}, {decentralized_counters, true}], 1000, 100]).
@@ -0,0 +1,38 @@
+-module(ets_disk).
+-export([run/3, main/0]).
+
+%% A table on disk: N objects written and Lookups read back, then the
+%% table is deleted and opened again, which replays its log.
+
+run(File, N, Lookups) ->
+    file:delete(File),
+    T = open(File),
+    [ets:insert(T, {K, K, <<"payload">>}) || K <- lists:seq(1, N)],
+    ets:delete(T),
+    T2 = open(File),
+    Found = lookup(T2, N, Lookups, 0),
+    ets:delete(T2),
+    file:delete(File),
+    Found.
+
+open(File) ->
+    ets:new(?MODULE, [set, public, {storage, {file, File}}]).
+
+lookup(_T, _N, 0, Acc) -> Acc;
+lookup(T, N, L, Acc) ->
+    [{_, V, _}] = ets:lookup(T, L rem N + 1),
+    lookup(T, N, L-1, Acc + V).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_disk, F, Args),
+   io:format("~w,~w,~w~n", [tl(Args), Res, Time]).
+
+main() ->
+    main_disk(),
+    main_disk(),
+    main_disk().
+
+main_disk() ->
+   time(run, ["ets_disk.tab", 100000, 100000]),
+   time(run, ["ets_disk.tab", 1000000, 1000000]).
@@ -0,0 +1,32 @@
+-module(ets_index).
+-export([run/3, main/0]).
+
+%% Session table lookups by user, a non-key position: N sessions for
+%% N div 10 users, looked up by user Lookups times.
+
+run(Opts, N, Lookups) ->
+    T = ets:new(?MODULE, [set, public | Opts]),
+    [ets:insert(T, {S, S div 10, started}) || S <- lists:seq(1, N)],
+    Found = lookup(T, N div 10, Lookups, 0),
+    ets:delete(T),
+    Found.
+
+lookup(_T, _Users, 0, Acc) -> Acc;
+lookup(T, Users, L, Acc) ->
+    User = L rem Users,
+    Sessions = ets:select(T, [{{'$1', User, '_'}, [], ['$1']}]),
+    lookup(T, Users, L-1, Acc + length(Sessions)).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_index, F, Args),
+   io:format("~w,~w,~w~n", [hd(Args), Res, Time]).
+
+main() ->
+    main_index(),
+    main_index(),
+    main_index().
+
+main_index() ->
+   time(run, [[], 100000, 1000]),
+   time(run, [[{index, [2]}], 100000, 1000]).
@@ -0,0 +1,33 @@
+-module(ets_off_heap).
+-export([run/3, main/0]).
+
+%% A large table, filled with N objects and then read Lookups times at
+%% random, while garbage is made; off the heap, the collector need not
+%% trace the table.
+
+run(Opts, N, Lookups) ->
+    T = ets:new(?MODULE, [set, public | Opts]),
+    [ets:insert(T, {K, K, <<"payload">>, [K]}) || K <- lists:seq(1, N)],
+    Found = lookup(T, N, Lookups, 0),
+    ets:delete(T),
+    Found.
+
+lookup(_T, _N, 0, Acc) -> Acc;
+lookup(T, N, L, Acc) ->
+    [{_, V, _, _}] = ets:lookup(T, L rem N + 1),
+    _Garbage = lists:seq(1, 10),
+    lookup(T, N, L-1, Acc + V).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_off_heap, F, Args),
+   io:format("~w,~w,~w~n", [hd(Args), Res, Time]).
+
+main() ->
+    main_off_heap(),
+    main_off_heap(),
+    main_off_heap().
+
+main_off_heap() ->
+   time(run, [[], 1000000, 1000000]),
+   time(run, [[{storage, off_heap}], 1000000, 1000000]).
@@ -0,0 +1,36 @@
+-module(ets_ordered).
+-export([fill/2, walk/1, range/2, main/0]).
+
+%% A time-series ordered_set keyed by {Day, Seq}.  Traversal should be
+%% O(log n) per step, and a select with a bound day should only visit
+%% that day's keys.
+
+fill(Days, PerDay) ->
+    T = ets:new(?MODULE, [ordered_set, public]),
+    [ets:insert(T, {{D, S}, D*PerDay+S}) || D <- lists:seq(1, Days), S <- lists:seq(1, PerDay)],
+    T.
+
+walk(T) -> walk(T, ets:first(T), 0).
+
+walk(_T, '$end_of_table', N) -> N;
+walk(T, K, N) -> walk(T, ets:next(T, K), N+1).
+
+range(T, Day) ->
+    length(ets:select(T, [{{{Day, '_'}, '$1'}, [], ['$1']}])).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_ordered, F, Args),
+   io:format("~w,~w,~w~n", [F, Res, Time]).
+
+main() ->
+    T = fill(1000, 100),
+    main_ordered(T),
+    main_ordered(T),
+    main_ordered(T),
+    ets:delete(T).
+
+main_ordered(T) ->
+   time(walk, [T]),
+   time(range, [T, 500]),
+   time(range, [T, 1000]).
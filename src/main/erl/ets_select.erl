@@ -0,0 +1,52 @@
+-module(ets_select).
+-export([fill/1, scan/2, scan_compiled/2, run/2, chunked/3, main/0]).
+
+%% Full-table selects with guards over a set of {Id, Day, Amount}.
+%% The spec is compiled to a class once per shape, so selecting another
+%% day reuses the class of the first.
+
+fill(N) ->
+    T = ets:new(?MODULE, [set, public]),
+    [ets:insert(T, {I, I rem 365, I*7}) || I <- lists:seq(1, N)],
+    T.
+
+spec(Day) ->
+    [{{'$1', Day, '$3'}, [{'>', '$3', 1000}], [{{'$1', '$3'}}]}].
+
+scan(T, Day) ->
+    length(ets:select(T, spec(Day))).
+
+scan_compiled(T, Day) ->
+    MS = ets:match_spec_compile(spec(Day)),
+    length(ets:select(T, MS)).
+
+%% walk the whole table Limit results at a time
+chunked(T, Day, Limit) ->
+    chunked(ets:select(T, spec(Day), Limit), 0).
+
+chunked('$end_of_table', N) -> N;
+chunked({Res, Cont}, N) -> chunked(ets:select(Cont), N + length(Res)).
+
+run(Rows, Day) ->
+    MS = ets:match_spec_compile(spec(Day)),
+    length(ets:match_spec_run(Rows, MS)).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_select, F, Args),
+   io:format("~w,~w,~w~n", [F, Res, Time]).
+
+main() ->
+    T = fill(1000000),
+    Rows = [{I, I rem 365, I*7} || I <- lists:seq(1, 100000)],
+    main_select(T, Rows),
+    main_select(T, Rows),
+    main_select(T, Rows),
+    ets:delete(T).
+
+main_select(T, Rows) ->
+   time(scan, [T, 7]),
+   time(scan, [T, 100]),
+   time(scan_compiled, [T, 200]),
+   time(chunked, [T, 250, 100]),
+   time(run, [Rows, 300]).
@@ -0,0 +1,36 @@
+-module(ets_set).
+-export([insert_lookup/3, main/0]).
+
+%% Concurrent insert/lookup on a public set table.  Writers to
+%% different keys should not serialize, and lookups should not
+%% allocate beyond their result.
+
+insert_lookup(Procs, N, Opts) ->
+    T = ets:new(?MODULE, [set, public | Opts]),
+    Self = self(),
+    Pids = [spawn(fun() -> worker(T, P*N, N), Self ! {done, self()} end)
+            || P <- lists:seq(0, Procs-1)],
+    [receive {done, Pid} -> ok end || Pid <- Pids],
+    ets:delete(T).
+
+worker(_T, _Base, 0) -> ok;
+worker(T, Base, N) ->
+    ets:insert(T, {Base+N, N}),
+    [_] = ets:lookup(T, Base+N),
+    worker(T, Base, N-1).
+
+
+time(F, Args) ->
+   {Time, _Res} = timer:tc(ets_set, F, Args),
+   io:format("~w,~w,~w,~w~n", [F, hd(Args), lists:last(Args), Time]).
+
+main() ->
+    main_ets(),
+    main_ets(),
+    main_ets().
+
+main_ets() ->
+   time(insert_lookup, [1, 100000, []]),
+   time(insert_lookup, [4, 100000, []]),
+   time(insert_lookup, [4, 100000, [{write_concurrency, true}]]),
+   time(insert_lookup, [16, 100000, [{write_concurrency, true}]]).
@@ -0,0 +1,43 @@
+-module(ets_stats).
+-export([run/3, main/0]).
+
+%% P processes each do N updates to one shared counter and a lookup,
+%% and a select over the table now and then; then the table's counters
+%% say what was done to it, and how often the processes got in each
+%% other's way.
+
+run(Opts, P, N) ->
+    T = ets:new(?MODULE, [set, public | Opts]),
+    [ets:insert(T, {K, 0}) || K <- lists:seq(1, 100)],
+    Self = self(),
+    Pids = [spawn(fun() -> work(T, N), Self ! {done, self()} end)
+            || _ <- lists:seq(1, P)],
+    [receive {done, Pid} -> ok end || Pid <- Pids],
+    Info = [{I, ets:info(T, I)}
+            || I <- [lookups, inserts, scans, contention, memory]],
+    ets:delete(T),
+    Info.
+
+work(_T, 0) -> ok;
+work(T, N) ->
+    ets:update_counter(T, N rem 100 + 1, 1),
+    [_] = ets:lookup(T, N rem 100 + 1),
+    case N rem 1000 of
+        0 -> ets:select(T, [{{'_', '$1'}, [{'>', '$1', 10}], ['$1']}]);
+        _ -> ok
+    end,
+    work(T, N-1).
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_stats, F, Args),
+   io:format("~w,~w,~w~n", [hd(Args), Res, Time]).
+
+main() ->
+    main_stats(),
+    main_stats(),
+    main_stats().
+
+main_stats() ->
+   time(run, [[], 8, 100000]),
+   time(run, [[{write_concurrency, true}], 8, 100000]).
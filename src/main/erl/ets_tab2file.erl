@@ -0,0 +1,30 @@
+-module(ets_tab2file).
+-export([run/3, main/0]).
+
+%% A cache of N objects saved with tab2file and loaded back with
+%% file2tab, as a node restart would.
+
+run(Type, N, File) ->
+    T = ets:new(?MODULE, [Type, public]),
+    [ets:insert(T, {K, K, <<"cached value">>, [K]}) || K <- lists:seq(1, N)],
+    ok = ets:tab2file(T, File),
+    ets:delete(T),
+    {ok, T2} = ets:file2tab(File),
+    Size = length(ets:select(T2, [{'_', [], [true]}])),
+    ets:delete(T2),
+    file:delete(File),
+    Size.
+
+
+time(F, Args) ->
+   {Time, Res} = timer:tc(ets_tab2file, F, Args),
+   io:format("~w,~w,~w~n", [hd(Args), Res, Time]).
+
+main() ->
+    main_tab2file(),
+    main_tab2file(),
+    main_tab2file().
+
+main_tab2file() ->
+   time(run, [set, 1000000, "ets_tab2file.dat"]),
+   time(run, [bag, 1000000, "ets_tab2file.dat"]).
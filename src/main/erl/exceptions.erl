@@ -0,0 +1,55 @@
+-module(exceptions).
+-export([throw_return/2, catch_error/1, try_throw/1, main/0]).
+
+%% Exception-heavy loops.  Throws are the common non-local return idiom,
+%% and should not pay for a stack trace.
+
+%% find the first element > X in a list of N elements, returning via throw
+throw_return(N, X) -> throw_return(N, X, lists:seq(1, N), 0).
+
+throw_return(0, _X, _L, Acc) -> Acc;
+throw_return(N, X, L, Acc) ->
+    R = (catch find(X, L)),
+    throw_return(N-1, X, L, Acc+R).
+
+find(_X, []) -> 0;
+find(X, [Y|_]) when Y > X -> throw(Y);
+find(X, [_|T]) -> find(X, T).
+
+
+try_throw(N) -> try_throw(N, 0).
+
+try_throw(0, Acc) -> Acc;
+try_throw(N, Acc) ->
+    R = try deep(20, N)
+        catch throw:V -> V
+        end,
+    try_throw(N-1, Acc+R).
+
+deep(0, V) -> throw(V);
+deep(D, V) -> deep(D-1, V) + 1.
+
+
+catch_error(N) -> catch_error(N, 0).
+
+catch_error(0, Acc) -> Acc;
+catch_error(N, Acc) ->
+    R = try list_to_integer("x")
+        catch error:badarg -> 1
+        end,
+    catch_error(N-1, Acc+R).
+
+
+time(F, Args) ->
+   {Time, _Res} = timer:tc(exceptions, F, Args),
+   io:format("~w,~w,~w~n", [F, hd(Args), Time]).
+
+main() ->
+    main_exceptions(),
+    main_exceptions(),
+    main_exceptions().
+
+main_exceptions() ->
+   time(throw_return, [10000, 50]),
+   time(try_throw, [100000]),
+   time(catch_error, [100000]).
@@ -0,0 +1,35 @@
+-module(records).
+-export([update_state/1, match_state/1, main/0]).
+
+%% Record-heavy loops, in the style of a gen_server updating its state.
+%% Field updates with a known record shape should be a clone and a
+%% field store, and tag checks a class test and a reference compare.
+
+-record(state, {name, count = 0, total = 0, last, opts = [], pending = []}).
+
+update_state(N) -> update_state(N, #state{name = bench}).
+
+update_state(0, S) -> S#state.total;
+update_state(N, S = #state{count = C, total = T}) ->
+    update_state(N-1, S#state{count = C+1, total = T+N, last = N}).
+
+
+match_state(N) -> match_state(N, #state{name = bench}, 0).
+
+match_state(0, _S, Acc) -> Acc;
+match_state(N, S, Acc) when is_record(S, state) ->
+    match_state(N-1, S#state{last = N}, Acc + element(1, {S#state.count})).
+
+
+time(F, Args) ->
+   {Time, _Res} = timer:tc(records, F, Args),
+   io:format("~w,~w,~w~n", [F, hd(Args), Time]).
+
+main() ->
+    main_records(),
+    main_records(),
+    main_records().
+
+main_records() ->
+   time(update_state, [1000000]),
+   time(match_state, [1000000]).
@@ -0,0 +1,109 @@
+/** -*- tab-width: 4 -*-
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+/**
+ * Constant-time dispatch on a fixed set of atoms, keyed on
+ * {@link EAtom#index}.  Used for <code>select_val</code> on atoms; the
+ * result is a dense case number, suitable for a <code>tableswitch</code>.
+ *
+ * Atoms used together tend to be interned together, so their indexes are
+ * usually close; in that case we use a direct table.  Otherwise we fall
+ * back to a small open-addressed table.
+ */
+public final class AtomSwitch {
+
+	/** direct tables may be at most this much larger than the atom set */
+	private static final int MAX_SLACK = 16;
+
+	private final int base;
+	private final int[] direct;
+
+	private final int[] keys;
+	private final int[] cases;
+	private final int mask;
+
+	/**
+	 * @param atoms the atoms to dispatch on; <code>atoms[i]</code> gets the
+	 *        case number <code>i+1</code>.
+	 */
+	public AtomSwitch(EAtom[] atoms) {
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (EAtom a : atoms) {
+			min = Math.min(min, a.index);
+			max = Math.max(max, a.index);
+		}
+
+		if (atoms.length == 0 || max - min < 2 * atoms.length + MAX_SLACK) {
+			this.base = min;
+			this.direct = new int[atoms.length == 0 ? 0 : max - min + 1];
+			for (int i = 0; i < atoms.length; i++) {
+				direct[atoms[i].index - min] = i + 1;
+			}
+			this.keys = this.cases = null;
+			this.mask = 0;
+
+		} else {
+			int size = 2;
+			while (size < 2 * atoms.length)
+				size <<= 1;
+
+			this.base = 0;
+			this.direct = null;
+			this.keys = new int[size];
+			this.cases = new int[size];
+			this.mask = size - 1;
+
+			for (int i = 0; i < atoms.length; i++) {
+				int key = atoms[i].index;
+				int slot = key & mask;
+				while (cases[slot] != 0)
+					slot = (slot + 1) & mask;
+				keys[slot] = key;
+				cases[slot] = i + 1;
+			}
+		}
+	}
+
+	/** @return the case number of <code>val</code>, or 0 if it is not one of our atoms */
+	public int select(EObject val) {
+		EAtom am = val.testAtom();
+		if (am == null)
+			return 0;
+		return select(am);
+	}
+
+	public int select(EAtom am) {
+		int key = am.index;
+
+		if (direct != null) {
+			int i = key - base;
+			return (i >= 0 && i < direct.length) ? direct[i] : 0;
+		}
+
+		int slot = key & mask;
+		int c;
+		while ((c = cases[slot]) != 0) {
+			if (keys[slot] == key)
+				return c;
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+}
@@ -58,6 +58,13 @@ public final class EAtom extends EObject implements CharSequence {
 	private final String value;
 	public final int hash;
 
+	/**
+	 * Dense, unique number assigned when the atom is interned; atoms
+	 * interned together get neighbouring indexes.  Used by
+	 * {@link AtomSwitch} to dispatch on atoms without hashing.
+	 */
+	public final int index;
+
 	@Override
 	int compare_same(EObject rhs) {
 		return compareTo((EAtom) rhs);
@@ -65,9 +72,13 @@ public final class EAtom extends EObject implements CharSequence {
 	
 	private static ConcurrentHashMap<String, EAtom> interns = new ConcurrentHashMap<String, EAtom>();
 
-	private EAtom(String name) {
+	/** number of atoms interned so far; guarded by <code>interns</code> */
+	private static int atom_count;
+
+	private EAtom(String name, int index) {
 		this.value = name;
 		this.hash = name.hashCode();
+		this.index = index;
 	}
 
 	@Override
@@ -144,10 +155,14 @@ public final class EAtom extends EObject implements CharSequence {
 
 		EAtom res = interns.get(name);
 		if (res == null) {
-			EAtom new_val = new EAtom(name);
-			do {
-				res = interns.putIfAbsent(name, new_val);
-			} while (res == null);
+			// slow path; lock so that indexes stay dense
+			synchronized (interns) {
+				res = interns.get(name);
+				if (res == null) {
+					res = new EAtom(name, atom_count++);
+					interns.put(name, res);
+				}
+			}
 		}
 
 		return res;
@@ -94,6 +94,11 @@ public final class EBig extends EInteger {
 		return value.intValue();
 	}
 
+	/** the number of bits in the value, without the sign */
+	public int bitLength() {
+		return value.bitLength();
+	}
+
 	@Override
 	public String toString() {
 		return value.toString();
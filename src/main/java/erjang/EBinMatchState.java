@@ -178,39 +178,33 @@ public class EBinMatchState extends EPseudoTerm {
 			return null;
 		}
 
-		if (size <= 32) {
-			int value = bin.intBitsAt(offset, size);
-			if (little_endian) {
-				int i1 = (value >>> 24) & 0xff;
-				int i2 = (value >>> 16) & 0xff;
-				int i3 = (value >>> 8) & 0xff;
-				int i4 = value & 0xff;
-				
-				value = i4 << 24;
-				value |= i3 << 16;
-				value |= i2 << 8;
-				value |= i1;
-			}
-			if (signed) {
-				value = EBitString.signExtend(value, size);
-			}
-			ESmall res = new ESmall(value);
-			offset += size;
-			return res;
+		if ((offset & 7) == 0 && (size & 7) == 0 && size <= 64) {
+			return get_aligned_integer(size, signed, little_endian);
 		}
 
 		if (size <= 64) {
 			long value = bin.longBitsAt(offset, size);
 			if (little_endian) {
-				throw new Error("little endian not supported: " + flags);
-			}
-
-			if (signed) {
-				value = EBitString.signExtend(value, size);
+				if ((size & 7) == 0) {
+					value = Long.reverseBytes(value) >>> (64 - size);
+				} else if (size <= 32) {
+					int v = (int) value;
+					int i1 = (v >>> 24) & 0xff;
+					int i2 = (v >>> 16) & 0xff;
+					int i3 = (v >>> 8) & 0xff;
+					int i4 = v & 0xff;
+
+					v = i4 << 24;
+					v |= i3 << 16;
+					v |= i2 << 8;
+					v |= i1;
+					value = v & 0xffffffffL;
+				} else {
+					throw new Error("little endian not supported: " + flags);
+				}
 			}
-			EInteger res = ERT.box(value);
 			offset += size;
-			return res;
+			return make_integer(value, size, signed);
 		}
 
 		byte[] data;
@@ -255,6 +249,71 @@ public class EBinMatchState extends EPseudoTerm {
 		return ERT.box(bi);
 	}
 
+	/** Byte-aligned integer field of 8..64 bits; bounds are already checked. */
+	private EInteger get_aligned_integer(int size, boolean signed, boolean little_endian) {
+		long value = bin.bytesAt((int) (offset >>> 3), size >>> 3, little_endian);
+		offset += size;
+		return make_integer(value, size, signed);
+	}
+
+	/** @return the integer in the low <code>size</code> bits of <code>value</code> */
+	private static EInteger make_integer(long value, int size, boolean signed) {
+		if (signed) {
+			value = (value << (64 - size)) >> (64 - size);
+		} else if (value < 0) {
+			// unsigned 64-bit value with the top bit set
+			return ERT.box(new BigInteger(1, new byte[] {
+					(byte) (value >>> 56), (byte) (value >>> 48),
+					(byte) (value >>> 40), (byte) (value >>> 32),
+					(byte) (value >>> 24), (byte) (value >>> 16),
+					(byte) (value >>> 8), (byte) value }));
+		}
+
+		return ERT.box(value);
+	}
+
+	//==================== Clause-level bounds checks ====================
+	// The compiler checks the total size of a run of constant-size fields
+	// once, using bs_need, and then matches the fields with the unchecked
+	// operations below.
+
+	/** @return true if at least <code>bits</code> bits are left */
+	public boolean bs_need(int bits) {
+		return bitsLeft() >= bits;
+	}
+
+	public EInteger bs_get_integer2_unchecked(int size, int flags) {
+		if ((offset & 7) == 0 && (size & 7) == 0 && size > 0 && size <= 64) {
+			boolean little_endian = ((flags & BSF_NATIVE) == BSF_NATIVE)
+				? ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+				: ((flags & BSF_LITTLE) == BSF_LITTLE);
+			return get_aligned_integer(size, (flags & BSF_SIGNED) == BSF_SIGNED,
+					little_endian);
+		}
+		return bs_get_integer2(size, flags);
+	}
+
+	public EBitString bs_get_binary2_unchecked(int bits) {
+		EBitString result = bin.substring(offset, bits);
+		offset += bits;
+		return result;
+	}
+
+	public void bs_skip_bits2_unchecked(int bits) {
+		offset += bits;
+	}
+
+	public boolean bs_match_string_unchecked(EBitString ebs) {
+		if ((offset & 7) == 0 && ebs.isBinary()) {
+			int len = ebs.byteSize();
+			if (!bin.bytesEqual((int) (offset >>> 3), ebs, len))
+				return false;
+			offset += 8L * len;
+			return true;
+		}
+		return bs_match_string(ebs) != null;
+	}
+
 	public EBitString bs_match_string(EBitString ebs) {
 		long size = ebs.bitSize();
 
@@ -241,6 +241,36 @@ public class EBitString extends EObject {
 			return (b1 << 24) + (b2 << 16) + (b3 <<  8) +  b4;
 	}
 
+	/**
+	 * Read <code>len</code> (1..8) whole bytes as an unsigned integer.
+	 * The caller is responsible for bounds checking.
+	 */
+	public long bytesAt(int byteIndex, int len, boolean little_endian) {
+		int pos = byteOffset() + byteIndex;
+		long value = 0;
+		if (little_endian) {
+			for (int i = len - 1; i >= 0; i--) {
+				value = (value << 8) | (data[pos + i] & 0xff);
+			}
+		} else {
+			for (int i = 0; i < len; i++) {
+				value = (value << 8) | (data[pos + i] & 0xff);
+			}
+		}
+		return value;
+	}
+
+	/** Compare whole bytes; the caller is responsible for bounds checking. */
+	public boolean bytesEqual(int byteIndex, EBitString other, int len) {
+		int pos = byteOffset() + byteIndex;
+		int other_pos = other.byteOffset();
+		for (int i = 0; i < len; i++) {
+			if (data[pos + i] != other.data[other_pos + i])
+				return false;
+		}
+		return true;
+	}
+
 	public EBitString substring(long bitOff) {
 		return substring(bitOff, bitSize() - bitOff);
 	}
@@ -368,7 +398,7 @@ public class EBitString extends EObject {
 	
 	static long signExtend(long val, int bits) {
 		long r;      // resulting sign-extended number
-		long m = 1 << (bits - 1); // mask can be pre-computed if b is fixed
+		long m = 1L << (bits - 1); // mask can be pre-computed if b is fixed
 
 		// val = val & ((1 << bits) - 1);  // (Skip this if bits in x above position b are already zero.)
 		r = (val ^ m) - m;
@@ -209,12 +209,86 @@ public class EBitStringBuilder {
 		byte_pos += str.length();
 	}
 	
+	/** builder writing into the spare capacity of a writable binary */
+	private EBitStringBuilder(WritableBinary bs, int byte_pos) {
+		this.bs = bs;
+		this.data = bs.buffer.data;
+		this.byte_pos = byte_pos;
+	}
+
+	/**
+	 * The buffer behind a chain of binaries built with <code>bs_append</code>.
+	 * <code>used</code> is the size of the longest binary in the chain;
+	 * everything after that is spare capacity, and still zero.
+	 */
+	static final class Buffer {
+		final byte[] data;
+		int used;
+
+		Buffer(int capacity) {
+			this.data = new byte[capacity];
+		}
+
+		/**
+		 * Claim bytes <code>[end, end+len)</code> for appending to a binary of
+		 * size <code>end</code>.  Only the longest binary in the chain can
+		 * be appended to in place; shorter binaries stay valid as prefixes,
+		 * because no-one ever writes below <code>used</code>.
+		 */
+		synchronized boolean claim(int end, int len) {
+			if (used != end || data.length - end < len)
+				return false;
+			used = end + len;
+			return true;
+		}
+	}
+
+	/**
+	 * A binary produced by <code>bs_append</code>.  Like BEAM's writable
+	 * binaries, it has spare capacity after the end, so that appending to
+	 * it again (as in <code>&lt;&lt;Acc/binary, X&gt;&gt;</code> in a loop)
+	 * does not need to copy it.
+	 */
+	static final class WritableBinary extends EBinary {
+		final Buffer buffer;
+
+		WritableBinary(Buffer buffer, int byte_size) {
+			super(buffer.data, 0, byte_size);
+			this.buffer = buffer;
+		}
+	}
+
+	/** spare capacity for a new writable binary; same policy as BEAM */
+	private static int writable_capacity(int size) {
+		return Math.max(2 * size, 256);
+	}
+
 	/** grow a bitstring by extra_size bits, and return a string builder with position at end of original bitstring */
 	public static EBitStringBuilder bs_append(EObject str_or_builder, int extra_size, int flags)
 	{
 		EBitString ebs = str_or_builder.testBitString();
 		if (ebs == null) throw new NotImplemented();
-		
+
+		if (ebs.extra_bits == 0 && (extra_size & 7) == 0 && flags == 0
+				&& extra_size >= 0) {
+			int size = ebs.byteSize();
+			int extra = extra_size >>> 3;
+
+			if (ebs instanceof WritableBinary) {
+				Buffer buffer = ((WritableBinary) ebs).buffer;
+				if (buffer.claim(size, extra)) {
+					return new EBitStringBuilder(
+							new WritableBinary(buffer, size + extra), size);
+				}
+			}
+
+			Buffer buffer = new Buffer(writable_capacity(size + extra));
+			System.arraycopy(ebs.data, ebs.byteOffset(), buffer.data, 0, size);
+			buffer.used = size + extra;
+			return new EBitStringBuilder(
+					new WritableBinary(buffer, size + extra), size);
+		}
+
 		long bitSize = ebs.bitSize() + extra_size;
 		int size = (int) (bitSize/8);
 		int extra = (int) (bitSize % 8);
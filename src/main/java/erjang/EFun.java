@@ -18,13 +18,14 @@
 
 package erjang;
 
-import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import kilim.Pausable;
 import kilim.analysis.ClassInfo;
@@ -103,7 +104,7 @@ public abstract class EFun extends EObject implements Opcodes {
 	static final String[] PAUSABLE_EX = new String[] { Type.getType(Pausable.class).getInternalName() };
 
 
-	private static final HashMap<Method, EFun> method_fun_map = new HashMap<Method, EFun>();
+	private static final ConcurrentHashMap<Method, EFun> method_fun_map = new ConcurrentHashMap<Method, EFun>();
 
 	/* TODO: Using a central database like this to avoid duplicate
 	 * definitions is a hack, perpetrated for the sake of moving
@@ -113,9 +114,18 @@ public abstract class EFun extends EObject implements Opcodes {
 	 * Treating native functions differently in EModule loading might
 	 * be a better solution.
 	 */
-	public static synchronized EFun make(Method method) {
+	public static EFun make(Method method) {
 		EFun fun = method_fun_map.get(method);
-		if (fun==null) {
+		if (fun == null) {
+			fun = make_once(method);
+		}
+		return fun;
+	}
+
+	/** Only one thread may define the class for a method. */
+	private static synchronized EFun make_once(Method method) {
+		EFun fun = method_fun_map.get(method);
+		if (fun == null) {
 			method_fun_map.put(method, fun = do_make(method));
 		}
 		return fun;
@@ -157,8 +167,28 @@ public abstract class EFun extends EObject implements Opcodes {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
+	private static final ConcurrentHashMap<Integer, Class<? extends EFun>> fun_classes =
+		new ConcurrentHashMap<Integer, Class<? extends EFun>>();
+
 	static Class<? extends EFun> get_fun_class(int arity) {
+		Class<? extends EFun> c = fun_classes.get(arity);
+		if (c == null) {
+			c = define_fun_class(arity);
+		}
+		return c;
+	}
+
+	/** Only one thread may define the class for an arity. */
+	private static synchronized Class<? extends EFun> define_fun_class(int arity) {
+		Class<? extends EFun> c = fun_classes.get(arity);
+		if (c == null) {
+			fun_classes.put(arity, c = load_fun_class(arity));
+		}
+		return c;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends EFun> load_fun_class(int arity) {
 
 		String self_type = EFUN_TYPE.getInternalName() + arity;
 
@@ -238,71 +268,96 @@ public abstract class EFun extends EObject implements Opcodes {
 		return data;
 	}
 
-	static Map<Integer, Constructor<? extends EFun>> handlers = new HashMap<Integer, Constructor<? extends EFun>>();
+	/** Constructors of the handler classes, as <code>(EFunHandler)EFun</code>, by arity. */
+	private static final ConcurrentHashMap<Integer, MethodHandle> handlers =
+		new ConcurrentHashMap<Integer, MethodHandle>();
 
-    public static EFun get_fun_with_handler(int arity, EFunHandler handler, ClassLoader loader) {
-		Constructor<? extends EFun> h = handlers.get(arity);
+	private static final MethodType HANDLER_CONSTRUCTOR_TYPE =
+		MethodType.methodType(EFun.class, EFunHandler.class);
 
+	/**
+	 * Make a fun which calls <code>handler</code>.  There is one handler
+	 * class per arity, shared by everyone; it is defined next to
+	 * <code>EFun</code> rather than in <code>loader</code>, so that it does
+	 * not keep a module's class loader alive after the module is purged.
+	 */
+	public static EFun get_fun_with_handler(int arity, EFunHandler handler, ClassLoader loader) {
+		MethodHandle h = handlers.get(arity);
 		if (h == null) {
+			h = define_handler_class(arity);
+		}
 
-			String self_type = EFUN_TYPE.getInternalName() + "Handler" + arity;
-
-			ClassWriter cw = new ClassWriter(true);
-			String super_class_name = EFUN_TYPE.getInternalName() + arity;
-			cw.visit(Opcodes.V1_4, ACC_PUBLIC, self_type, null,
-					super_class_name, null);
+		try {
+			return (EFun) h.invokeExact(handler);
+		} catch (Throwable e) {
+			throw new Error(e);
+		}
+	}
 
-			// create handler field
-			FieldVisitor fv = cw.visitField(ACC_PRIVATE, "handler",
-					EFUNHANDLER_TYPE.getDescriptor(), null, null);
-			fv.visitEnd();
+	/** Only one thread may define the handler class for an arity. */
+	private static synchronized MethodHandle define_handler_class(int arity) {
+		MethodHandle h = handlers.get(arity);
+		if (h != null) {
+			return h;
+		}
 
-			// make constructor
-			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "("
-					+ EFUNHANDLER_TYPE.getDescriptor() + ")V", null, null);
-			mv.visitCode();
+		// make sure we have it's superclass loaded
+		get_fun_class(arity);
 
-			mv.visitVarInsn(ALOAD, 0);
-			mv
-					.visitMethodInsn(INVOKESPECIAL, super_class_name, "<init>",
-							"()V");
+		String self_type = EFUN_TYPE.getInternalName() + "Handler" + arity;
 
-			mv.visitVarInsn(ALOAD, 0);
-			mv.visitVarInsn(ALOAD, 1);
-			mv.visitFieldInsn(PUTFIELD, self_type, "handler", EFUNHANDLER_TYPE
-					.getDescriptor());
+		ClassWriter cw = new ClassWriter(true);
+		String super_class_name = EFUN_TYPE.getInternalName() + arity;
+		cw.visit(Opcodes.V1_4, ACC_PUBLIC, self_type, null,
+				super_class_name, null);
+
+		// create handler field
+		FieldVisitor fv = cw.visitField(ACC_PRIVATE, "handler",
+				EFUNHANDLER_TYPE.getDescriptor(), null, null);
+		fv.visitEnd();
+
+		// make constructor
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "("
+				+ EFUNHANDLER_TYPE.getDescriptor() + ")V", null, null);
+		mv.visitCode();
 
-			mv.visitInsn(RETURN);
-			mv.visitMaxs(3, 3);
-			mv.visitEnd();
+		mv.visitVarInsn(ALOAD, 0);
+		mv
+				.visitMethodInsn(INVOKESPECIAL, super_class_name, "<init>",
+						"()V");
 
-			// make invoke_tail method
-			CompilerVisitor.make_invoketail_method(cw, self_type, arity, 0);
-			make_invoke_method(cw, self_type, arity);
-			make_go_method(cw, self_type, arity);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitFieldInsn(PUTFIELD, self_type, "handler", EFUNHANDLER_TYPE
+				.getDescriptor());
 
-			cw.visitEnd();
-			byte[] data = cw.toByteArray();
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(3, 3);
+		mv.visitEnd();
 
-			data = weave(data);
+		// make invoke_tail method
+		CompilerVisitor.make_invoketail_method(cw, self_type, arity, 0);
+		make_invoke_method(cw, self_type, arity);
+		make_go_method(cw, self_type, arity);
 
-			Class<? extends EFun> clazz = ERT.defineClass(loader, self_type.replace('/', '.'), data, 0,
-					data.length);
+		cw.visitEnd();
+		byte[] data = cw.toByteArray();
 
-			try {
-				h = clazz.getConstructor(EFunHandler.class);
-			} catch (Exception e) {
-				throw new Error(e);
-			}
+		data = weave(data);
 
-			handlers.put(arity, h);
-		}
+		Class<? extends EFun> clazz = ERT.defineClass(EFun.class.getClassLoader(), self_type.replace('/', '.'), data, 0,
+				data.length);
 
 		try {
-			return h.newInstance(handler);
+			h = MethodHandles.publicLookup()
+				.findConstructor(clazz, MethodType.methodType(void.class, EFunHandler.class))
+				.asType(HANDLER_CONSTRUCTOR_TYPE);
 		} catch (Exception e) {
 			throw new Error(e);
 		}
+
+		handlers.put(arity, h);
+		return h;
 	}
 
 	public static byte[] weave(byte[] data) {
@@ -21,10 +21,18 @@ package erjang;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import erjang.beam.Inliner;
 
 
 public abstract class EModule {
 
+	/** Imports bound for this version of the module; unbound when it is purged. */
+	final List<EModuleManager.FunctionBinder> bound_imports =
+		Collections.synchronizedList(new ArrayList<EModuleManager.FunctionBinder>());
 
 	/** Base constructor for modules.  Will register <code>this</code> in the system. */
 	public EModule() {
@@ -32,7 +40,6 @@ public abstract class EModule {
 	}
 
 	public EModule(boolean delay_setup) {
-		// TODO: handle if there is a module of this name already!
 		if (!delay_setup) setup();
 	}
 
@@ -95,7 +102,7 @@ public abstract class EModule {
 			if (imp != null) {
 				field.setAccessible(true);
 				FunID f = new FunID(imp);
-				EModuleManager.add_import(f, new FieldBinder(field, f, module_name()));
+				EModuleManager.add_import(this, f, new FieldBinder(field, f, module_name()));
 
 				//System.out.println("N import " + f);
 
@@ -170,5 +177,38 @@ public abstract class EModule {
 		}
 	}
 
+	/**
+	 * Binds the guard of code inlined from another module: the guard is
+	 * true only while the function is bound to the version the code was
+	 * inlined from, so a reload switches the caller back to a normal call.
+	 */
+	public static class GuardBinder extends EModuleManager.FunctionBinder {
+		final Field field;
+		final FunID funID;
+		final long version;
+		final String mod;
+
+		public GuardBinder(Field field, FunID funID, long version, String mod) {
+			this.field = field;
+			field.setAccessible(true);
+			this.funID = funID;
+			this.version = version;
+			this.mod = mod;
+		}
+
+		@Override
+		public FunID getFunID() {
+			return funID;
+		}
+
+		public void bind(EFun value) throws Exception {
+			field.setBoolean(null, Inliner.is_current(funID.module, version));
+		}
+
+		public String toString() {
+			return "<GuardBinder for "+funID+" in "+mod+": "+field+">";
+		}
+	}
+
 
 }
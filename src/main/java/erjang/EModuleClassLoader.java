@@ -18,25 +18,141 @@
 
 package erjang;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
- * Each module has it's own class loader.
+ * Class loader for compiled modules.  The modules of one application
+ * share a loader, as a loader per module costs metaspace of its own.
+ * A loader holds at most one version of each module, so a reloaded
+ * module goes into a fresh loader; the loader and all its classes can
+ * be collected once every module in it has been purged.
  */
 public class EModuleClassLoader extends URLClassLoader {
 
+	/** All loaders which have not been collected yet, for statistics. */
+	private static final Set<EModuleClassLoader> all = Collections
+			.newSetFromMap(new WeakHashMap<EModuleClassLoader, Boolean>());
+
+	/** The application which the modules in this loader belong to. */
+	final String group;
+
+	/** Classes loaded for each module in this loader, by Java package name. */
+	private final Map<String, ModuleClasses> modules = new HashMap<String, ModuleClasses>();
+
+	/** Number of modules in this loader which have not been purged. */
+	private int live;
+
+	static class ModuleClasses {
+		final String module;
+		int classes;
+		long bytes;
+		boolean purged;
+
+		ModuleClasses(String module) {
+			this.module = module;
+		}
+	}
+
 	/**
 	 * @param urls
 	 */
 	public EModuleClassLoader(URL loadFrom) {
 		super(loadFrom == null ? new URL[0] : new URL[] { loadFrom },
 				EObject.class.getClassLoader());
+		this.group = "";
+	}
+
+	/**
+	 * Make an empty loader for the modules of <code>group</code>.
+	 */
+	EModuleClassLoader(String group) {
+		super(new URL[0], EObject.class.getClassLoader());
+		this.group = group;
+		synchronized (all) {
+			all.add(this);
+		}
+	}
+
+	/**
+	 * Add a module, whose classes are in <code>jar</code>.
+	 * 
+	 * @return false if this loader already has a version of the module
+	 */
+	synchronized boolean add_module(String mod, URL jar) {
+		String pkg = package_name(mod);
+		if (modules.containsKey(pkg))
+			return false;
+
+		modules.put(pkg, new ModuleClasses(mod));
+		live += 1;
+		addURL(jar);
+		return true;
+	}
+
+	/**
+	 * The module has been purged.
+	 * 
+	 * @return true if all modules in this loader have been purged
+	 */
+	boolean release(String mod) {
+		boolean dead;
+		synchronized (this) {
+			ModuleClasses mc = modules.get(package_name(mod));
+			if (mc == null || mc.purged)
+				return false;
+
+			mc.purged = true;
+			dead = (--live == 0);
+		}
+
+		if (dead) {
+			EModuleLoader.retire(this);
+		}
+		return dead;
+	}
+
+	private static String package_name(String mod) {
+		String internalName = erjang.beam.Compiler.moduleClassName(mod);
+		return internalName.substring(0, internalName.lastIndexOf('/')).replace('/', '.');
 	}
 
+	/**
+	 * @return a list of <code>{Module, Group, Classes, Bytes, loaded | purged}</code>
+	 *         for the modules in all class loaders which are still around
+	 */
+	public static ESeq module_classes() {
+		EModuleClassLoader[] loaders;
+		synchronized (all) {
+			loaders = all.toArray(new EModuleClassLoader[all.size()]);
+		}
+
+		ESeq res = ERT.NIL;
+		for (EModuleClassLoader loader : loaders) {
+			EAtom group = EAtom.intern(loader.group);
+			synchronized (loader) {
+				for (ModuleClasses mc : loader.modules.values()) {
+					res = res.cons(ETuple.make(EAtom.intern(mc.module), group,
+							ERT.box(mc.classes), ERT.box(mc.bytes),
+							mc.purged ? am_purged : am_loaded));
+				}
+			}
+		}
+		return res;
+	}
+
+	private static final EAtom am_loaded = EAtom.intern("loaded");
+	private static final EAtom am_purged = EAtom.intern("purged");
+
 	/**
 	 * @param javaName
 	 * @param classData
@@ -74,7 +190,7 @@ public class EModuleClassLoader extends URLClassLoader {
 			InputStream resource = super.getResourceAsStream(classFileName);
 
 			if (resource == null) {
-				throw new ClassNotFoundException(name, new Error("while loading "+this.getURLs()[0]));
+				throw new ClassNotFoundException(name, new Error("while loading "+group));
 			}
 			
 			try {
@@ -86,6 +202,51 @@ public class EModuleClassLoader extends URLClassLoader {
 			}
 		}
 
-		return super.findClass(name);
+		ModuleClasses mc = module_of(name);
+		if (mc == null) {
+			return super.findClass(name);
+		}
+
+		// define it here, so we know its size without opening the jar again
+		InputStream resource = super.getResourceAsStream(name.replace('.', '/') + ".class");
+		if (resource == null) {
+			throw new ClassNotFoundException(name);
+		}
+
+		byte[] data;
+		try {
+			data = read_fully(resource);
+		} catch (IOException ex) {
+			throw new ClassNotFoundException(name, ex);
+		}
+
+		Class<?> c = defineClass(name, data, 0, data.length);
+		synchronized (this) {
+			mc.classes += 1;
+			mc.bytes += data.length;
+		}
+		return c;
+	}
+
+	/** @return the module which a class belongs to, if it is in this loader */
+	private synchronized ModuleClasses module_of(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			return null;
+		return modules.get(name.substring(0, dot));
+	}
+
+	private static byte[] read_fully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
 	}
 }
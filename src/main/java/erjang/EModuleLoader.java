@@ -22,11 +22,14 @@ import erjang.beam.BeamFileData;
 import erjang.beam.BeamLoader;
 import erjang.beam.Compiler;
 import erjang.beam.EUtil;
+import erjang.beam.Inliner;
 
 import erjang.beam.loader.ErjangBeamDisLoader;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import java.io.IOException;
 import java.io.FileNotFoundException;
@@ -61,18 +64,26 @@ class EModuleLoader {
 	}
 
 	public static EModule load_module(String moduleName, File beamFile) throws IOException {
-		return load_module(moduleName, EUtil.readFile(beamFile));
+		return load_module(moduleName, EUtil.readFile(beamFile), application_name(beamFile));
+	}
+
+	public static EModule load_module(String moduleName, EBinary beamBin) throws IOException {
+		return load_module(moduleName, beamBin, application_name(beamBin));
 	}
 
 	static long acc_int_load = 0;
 	static long acc_load = 0;
-	public static EModule load_module(String moduleName, EBinary beamBin) throws IOException {
+	static EModule load_module(String moduleName, EBinary beamBin, String group) throws IOException {
 		// This is where the module creation mode is selected.
 		boolean use_interpreter = false;
 
 		long before = System.currentTimeMillis();
 		long after;
 		EModule loaded_module;
+
+		// this is the current version, as soon as it registers its exports
+		Inliner.add(EAtom.intern(moduleName), beamBin);
+
 		if (use_interpreter) {
 			BeamFileData bfd = beamParser.load(beamBin.toByteArray());
 			loaded_module = erjang.beam.interpreter.Interpreter.beamFileToEModule(bfd);
@@ -80,7 +91,7 @@ class EModuleLoader {
 		} else { // Use compiler
 			File jarFile = Compiler.compile(moduleName, beamBin, beamParser);
 			after = System.currentTimeMillis();
-			loaded_module = load_compiled_module(moduleName, jarFile.toURI().toURL());
+			loaded_module = load_compiled_module(moduleName, group, jarFile.toURI().toURL());
 		}
 
 		if (DEBUG_MODULE_LOAD) {
@@ -134,14 +145,115 @@ class EModuleLoader {
 		}
 	}
 
+	/*==================== APPLICATION GROUPING ====================*/
+
+	static final int FOR1 = 0x464f5231; // "FOR1"
+	static final int C_INF = 0x43496e66; // "CInf"
+
+	static final EAtom am_source = EAtom.intern("source");
+
+	/**
+	 * @return the application of a beam file: the name of the directory
+	 *         containing <code>ebin/</code>, without its version
+	 */
+	static String application_name(File beamFile) {
+		return application_name(beamFile.getAbsoluteFile().getParentFile(), "ebin");
+	}
+
+	/**
+	 * @return the application of a beam, found from the
+	 *         <code>{source, Path}</code> of its compilation info; or ""
+	 */
+	static String application_name(EBinary beam) {
+		try {
+			EInputStream in = new EInputStream(beam.toByteArray());
+			if (in.read4BE() != FOR1)
+				return "";
+			int end = in.read4BE() + 8;
+			in.read4BE(); // "BEAM"
+
+			while (in.getPos() + 8 <= end) {
+				int tag = in.read4BE();
+				int length = in.read4BE();
+				int start = in.getPos();
+
+				if (tag == C_INF) {
+					for (ESeq info = in.read_any().testSeq();
+						 info != null && !info.isNil();
+						 info = info.tail()) {
+						ETuple2 t = ETuple2.cast(info.head());
+						if (t != null && t.elem1 == am_source) {
+							EString path = t.elem2.testString();
+							if (path != null) {
+								return application_name(new File(path.stringValue()).getParentFile(), "src");
+							}
+						}
+					}
+					return "";
+				}
+
+				in.setPos(start + ((length + 3) & ~3));
+			}
+		} catch (IOException e) {
+			// no compilation info, then
+		}
+		return "";
+	}
+
+	private static String application_name(File dir, String sub_dir) {
+		if (dir != null && dir.getName().equals(sub_dir))
+			dir = dir.getParentFile();
+		if (dir == null)
+			return "";
+
+		// strip the version, as in stdlib-1.16.4
+		return dir.getName().replaceFirst("-[0-9][0-9.]*$", "");
+	}
+
+	/** The loader which new modules of each application go into. */
+	private static final Map<String, EModuleClassLoader> groups = new HashMap<String, EModuleClassLoader>();
+
+	/**
+	 * @return a class loader for <code>mod</code>, which holds no other
+	 *         version of it
+	 */
+	static synchronized EModuleClassLoader loader_for(String group, String mod, URL jarUrl) {
+		EModuleClassLoader loader = groups.get(group);
+		if (loader == null || !loader.add_module(mod, jarUrl)) {
+			loader = new EModuleClassLoader(group);
+			loader.add_module(mod, jarUrl);
+			groups.put(group, loader);
+		}
+		return loader;
+	}
+
+	/**
+	 * All modules in <code>loader</code> have been purged; don't add more,
+	 * and close the jars it has open.
+	 */
+	static synchronized void retire(EModuleClassLoader loader) {
+		if (groups.get(loader.group) == loader)
+			groups.remove(loader.group);
+
+		try {
+			loader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/*==================== MODULE CREATION STEP ====================*/
 
-	@SuppressWarnings("unchecked")
 	public static EModule load_compiled_module(String mod, URL jarUrl) {
+		return load_compiled_module(mod, "", jarUrl);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static EModule load_compiled_module(String mod, String group, URL jarUrl) {
 // 		System.err.println("EML| load_compiled_module: "+mod+" @ "+jarUrl);
 		String internalName = erjang.beam.Compiler.moduleClassName(mod);
 		String java_name = internalName.replace('/', '.');
-		EModuleClassLoader loader = new EModuleClassLoader(jarUrl);
+		EModuleClassLoader loader = loader_for(group, mod, jarUrl);
 		Class<? extends EModule> clazz;
 		try {
 			clazz = (Class<? extends EModule>) loader.loadClass(java_name);
@@ -30,6 +30,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import erjang.beam.Compiler;
+import erjang.beam.Inliner;
 
 import kilim.Pausable;
 
@@ -64,14 +65,6 @@ public class EModuleManager {
 		Collection<FunctionBinder> resolve_points = new HashSet<FunctionBinder>();
 		private EFun error_handler;
 
-	        private ClassLoader getModuleClassLoader() {
-		    if (defining_module != null) {
-			return defining_module.getModuleClassLoader();
-		    } else {
-			return new EModuleClassLoader(null);
-		    }
-	        }
-
 		/**
 		 * @param ref
 		 * @throws IllegalAccessException
@@ -88,6 +81,10 @@ public class EModuleManager {
 			}
 		}
 
+		synchronized void remove_import(FunctionBinder ref) {
+			resolve_points.remove(ref);
+		}
+
 		private EFun getFunction() {
 			if (resolved_value != null) {
 				return resolved_value;
@@ -147,7 +144,7 @@ public class EModuleManager {
 							}
 						}
 					},
-							 getModuleClassLoader());
+							 EFun.class.getClassLoader());
 		}
 
 		/**
@@ -165,6 +162,23 @@ public class EModuleManager {
 			}
 		}
 
+		/**
+		 * Unexport the function, if it is exported by <code>definer</code>;
+		 * calls to it go to the error handler from now on.
+		 */
+		synchronized void remove_export(EModule definer) throws Exception {
+			if (resolved_value == null || defining_module != definer)
+				return;
+
+			resolved_value = null;
+			defining_module = null;
+
+			EFun h = getFunErrorHandler();
+			for (FunctionBinder f : resolve_points) {
+				f.bind(h);
+			}
+		}
+
 		/**
 		 * @return
 		 * 
@@ -183,7 +197,10 @@ public class EModuleManager {
 
 	static class ModuleInfo {
 
-		private EModule resident;
+		private volatile EModule resident;
+
+		/** the previous version of the module, until it is purged */
+		private EModule old;
 
 		/**
 		 * @param module
@@ -204,6 +221,10 @@ public class EModuleManager {
 			info.add_import(ref);
 		}
 
+		void remove_import(FunID fun, FunctionBinder ref) {
+			get_function_info(fun).remove_import(ref);
+		}
+
 		private synchronized FunctionInfo get_function_info(FunID fun) {
 			FunctionInfo info = binding_points.get(fun);
 			if (info == null) {
@@ -223,10 +244,61 @@ public class EModuleManager {
 		}
 
 		/**
-		 * @param eModule
+		 * Make <code>eModule</code> the current version; the current
+		 * version becomes old, and the old version is purged.
+		 * 
+		 * @return the purged version, or null
 		 */
-		public void setModule(EModule eModule) {
-			this.resident = eModule;
+		public synchronized EModule setModule(EModule eModule) {
+			EModule purged = old;
+			old = resident;
+			resident = eModule;
+			return purged;
+		}
+
+		/**
+		 * Unexport the functions which the old version exported, and the
+		 * current version does not.
+		 */
+		synchronized void unexport_old() throws Exception {
+			if (old != null) {
+				for (FunctionInfo fi : binding_points.values()) {
+					fi.remove_export(old);
+				}
+			}
+		}
+
+		/**
+		 * Make the current version old, and unexport its functions.
+		 * 
+		 * @return false if there is no current version, or there already is
+		 *         an old version
+		 */
+		synchronized boolean delete() throws Exception {
+			if (resident == null || old != null)
+				return false;
+
+			old = resident;
+			resident = null;
+			for (FunctionInfo fi : binding_points.values()) {
+				fi.remove_export(old);
+			}
+			return true;
+		}
+
+		/**
+		 * Forget the old version of the module.
+		 * 
+		 * @return the purged version, or null if there was none
+		 */
+		synchronized EModule purge() {
+			EModule purged = old;
+			old = null;
+			return purged;
+		}
+
+		public boolean has_old_code() {
+			return old != null;
 		}
 
 		/**
@@ -297,6 +369,15 @@ public class EModuleManager {
 		get_module_info(fun.module).add_import(fun, ref);
 	}
 
+	/**
+	 * Bind an import of <code>importer</code>; the binding goes away when
+	 * that version of <code>importer</code> is purged.
+	 */
+	public static void add_import(EModule importer, FunID fun, FunctionBinder ref) throws Exception {
+		importer.bound_imports.add(ref);
+		add_import(fun, ref);
+	}
+
 	private static ModuleInfo get_module_info(EAtom module) {
 		ModuleInfo mi;
 		synchronized (infos) {
@@ -318,10 +399,14 @@ public class EModuleManager {
 	static void setup_module(EModule mod_inst) throws Error {
 
 		ModuleInfo module_info = get_module_info(EAtom.intern(mod_inst.module_name()));
-		module_info.setModule(mod_inst);
+		EModule purged = module_info.setModule(mod_inst);
+		if (purged != null) {
+			unbind(purged);
+		}
 
 		try {
 			mod_inst.registerImportsAndExports();
+			module_info.unexport_old();
 		} catch (Exception e) {
 			throw new Error(e);
 		}
@@ -375,6 +460,65 @@ public class EModuleManager {
 		return mi.get_exports();
 	}
 
+	/**
+	 * Drop the bindings of a purged version of a module, and release its
+	 * classes; the class loader can be collected once all the modules in
+	 * it are purged.
+	 */
+	private static void unbind(EModule purged) {
+		FunctionBinder[] refs;
+		synchronized (purged.bound_imports) {
+			refs = purged.bound_imports.toArray(new FunctionBinder[purged.bound_imports.size()]);
+			purged.bound_imports.clear();
+		}
+
+		for (FunctionBinder ref : refs) {
+			FunID fun = ref.getFunID();
+			get_module_info(fun.module).remove_import(fun, ref);
+		}
+
+		ClassLoader loader = purged.getModuleClassLoader();
+		if (loader instanceof EModuleClassLoader) {
+			((EModuleClassLoader) loader).release(purged.module_name());
+		}
+	}
+
+	/**
+	 * @param mod
+	 * @return false if there is no old code for <code>mod</code>
+	 */
+	public static boolean purge_module(EAtom mod) {
+		EModule purged = get_module_info(mod).purge();
+		if (purged == null)
+			return false;
+
+		unbind(purged);
+		return true;
+	}
+
+	/**
+	 * @param mod
+	 * @return false if there is no current code for <code>mod</code>, or
+	 *         there already is old code
+	 */
+	public static boolean delete_module(EAtom mod) throws Exception {
+		ModuleInfo mi = get_module_info(mod);
+		if (!mi.is_loaded() || mi.has_old_code())
+			return false;
+
+		// calls inlined from mod go back to the (now undefined) function
+		Inliner.remove(mod);
+		return mi.delete();
+	}
+
+	/**
+	 * @param mod
+	 * @return true if there is old code for <code>mod</code>
+	 */
+	public static boolean check_old_code(EAtom mod) {
+		return get_module_info(mod).has_old_code();
+	}
+
 	public static abstract class FunctionBinder {
 		public abstract void bind(EFun value) throws Exception;
 		public abstract FunID getFunID();
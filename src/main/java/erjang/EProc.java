@@ -88,6 +88,13 @@ public final class EProc extends ETask<EInternalPID> {
 	public EObject arg0, arg1, arg2, arg3, arg4, arg5, arg6, arg7, arg8, arg9, arg10;
 	public ErlangException last_exception;
 
+	/**
+	 * The catches and trys compiled code is in; a throw outside all of
+	 * them will end the process, so it is worth a stack trace.  Code
+	 * that is interpreted, or Java that catches, does not count here.
+	 */
+	public int catches;
+
 	private EInternalPID self;
 
 	private EPID group_leader;
@@ -447,6 +454,11 @@ public final class EProc extends ETask<EInternalPID> {
 				
 				result = am_normal;
 
+			} catch (ErlangThrow e) {
+				log.log(Level.FINE, "exiting "+self_handle(), e);
+				last_exception = e;
+				result = e.exitReason();
+
 			} catch (ErlangException e) {
 				log.log(Level.FINE, "exiting "+self_handle(), e);
 				last_exception = e;
@@ -217,10 +217,8 @@ public class ERT {
 		// compute l's offset from Integer.MIN_VALUE
 		long offset_from_int_min = longVal - (long) Integer.MIN_VALUE;
 
-		// strip sign bit
-		long unsigned_offset = offset_from_int_min & Long.MAX_VALUE;
-
-		if (unsigned_offset >= 0x100000000L) {
+		// outside [0, 2^32) also when the subtraction overflows
+		if (offset_from_int_min < 0 || offset_from_int_min >= 0x100000000L) {
 			return new EBig(longVal);
 		} else {
 			return new ESmall((int) longVal);
@@ -21,9 +21,8 @@ package erjang;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassWriter;
@@ -134,9 +133,8 @@ public abstract class ETuple extends EObject implements Cloneable /* , Indexed *
 	 * 
 	 * <pre> ETuple res = x.clone();
 	 * res.set(index, term);</pre>
-	 * TODO: it may make sense (for performance) to code generate this
-	 * specifically for each subclass.  Lets do that when it pops
-	 * up in a profiler one day.
+	 * When the index is a constant and the arity is known, the compiler
+	 * emits the clone and a direct field store instead of calling this.
 	 * 
 	 * @param index 1-based index to set
 	 * @param term value to put at index 
@@ -156,7 +154,7 @@ public abstract class ETuple extends EObject implements Cloneable /* , Indexed *
 	private static final String ETUPLE_NAME = ETUPLE_TYPE.getInternalName();
 	private static final Type ETERM_TYPE = Type.getType(EObject.class);
 
-	private static Map<Integer, ETuple> protos = new HashMap<Integer, ETuple>();
+	private static ConcurrentHashMap<Integer, ETuple> protos = new ConcurrentHashMap<Integer, ETuple>();
 
 	@SuppressWarnings("unchecked")
 	private static ETuple make_big(int size) {
@@ -166,7 +164,7 @@ public abstract class ETuple extends EObject implements Cloneable /* , Indexed *
 		if (proto == null) {
 			try {
 				Class<? extends ETuple> c = get_tuple_class(size);
-				protos.put(size, proto = c.newInstance());
+				protos.putIfAbsent(size, proto = c.newInstance());
 			} catch (Exception e) {
 				throw new RuntimeException(e);
 			}
@@ -186,7 +184,7 @@ public abstract class ETuple extends EObject implements Cloneable /* , Indexed *
 	 */
 
 	@SuppressWarnings("unchecked")
-	static public Class get_tuple_class(int num_cells) {
+	static public synchronized Class get_tuple_class(int num_cells) {
 
 		try {
 			return Class.forName(ETuple.class.getName() + num_cells);
@@ -19,9 +19,7 @@
 package erjang;
 
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,6 +59,28 @@ public abstract class ErlangException extends RuntimeException {
 		return reason;
 	}
 
+	/**
+	 * Filling in the JVM stack trace is the expensive part of throwing,
+	 * so subclasses whose trace is rarely looked at can opt out.  This is
+	 * called from the <code>Throwable</code> constructor, so it must not
+	 * depend on instance fields.
+	 */
+	protected boolean captureTrace() {
+		return true;
+	}
+
+	@Override
+	public Throwable fillInStackTrace() {
+		if (captureTrace())
+			return super.fillInStackTrace();
+		return this;
+	}
+
+	/** capture the trace after all, for a subclass that opted out */
+	protected final void captureTraceNow() {
+		super.fillInStackTrace();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -139,8 +159,9 @@ public abstract class ErlangException extends RuntimeException {
 	// the rest of this file is a big hack to reconstruct erlang traces...
 	//
 
-	static Map<StackTraceElement, ETuple3> cache = Collections
-			.synchronizedMap(new WeakHashMap<StackTraceElement, ETuple3>());
+	/** class#method -> decoded {M,F,A}, or NO_MFA if it doesn't decode */
+	static ConcurrentHashMap<String, ETuple3> cache = new ConcurrentHashMap<String, ETuple3>();
+	private static final ETuple3 NO_MFA = new ETuple3();
 
 	public ESeq getTrace() {
 		return decodeTrace(getStackTrace());
@@ -153,15 +174,17 @@ public abstract class ErlangException extends RuntimeException {
 		for (int i = st.length - 1; i > 0; i--) {
 
 			StackTraceElement st2 = st[i];
+			String key = st2.getClassName() + '#' + st2.getMethodName();
 
 			ETuple3 elem;
 
-			if ((elem = cache.get(st2)) != null) {
-				trace = trace.cons(elem);
-				continue;
+			if ((elem = cache.get(key)) == null) {
+				elem = decodeTraceElem(st2);
+				if (elem == null) elem = NO_MFA;
+				cache.put(key, elem);
 			}
 
-			if ((elem = decodeTraceElem(st2)) != null) {
+			if (elem != NO_MFA) {
 				trace = trace.cons(elem);
 			}
 
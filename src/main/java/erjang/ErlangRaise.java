@@ -48,6 +48,12 @@ public class ErlangRaise extends ErlangException {
 		}
 	}
 	
+	/** the trace is given; no need for the JVM's */
+	@Override
+	protected boolean captureTrace() {
+		return false;
+	}
+
 	@Override
 	public EAtom getExClass() {
 		return exClass;
@@ -24,8 +24,25 @@ package erjang;
  */
 public class ErlangThrow extends ErlangException {
 
+	/**
+	 * Throws are mostly used for non-local returns, and their stack trace
+	 * is almost never asked for, so we don't capture it unless
+	 * <code>erj.throw_traces</code> is set, or the throw is not inside any
+	 * catch and will end the process with <code>{nocatch, Reason}</code>.
+	 * Otherwise, <code>erlang:get_stacktrace()</code> after a throw
+	 * returns [].
+	 */
+	static final boolean THROW_TRACES = Boolean.getBoolean("erj.throw_traces");
+
+	static final EAtom am_nocatch = EAtom.intern("nocatch");
+
 	public EAtom getExClass() { return am_throw; }
 
+	@Override
+	protected boolean captureTrace() {
+		return THROW_TRACES;
+	}
+
 	/**
 	 * @param reason
 	 */
@@ -33,8 +50,27 @@ public class ErlangThrow extends ErlangException {
 		super(reason);
 	}
 
+	/**
+	 * @param reason
+	 * @param uncaught true if no compiled code will catch it
+	 */
+	public ErlangThrow(EObject reason, boolean uncaught) {
+		super(reason);
+		if (uncaught && !THROW_TRACES) {
+			captureTraceNow();
+		}
+	}
+
 	@Override
 	public EObject getCatchValue() {
 		return super.reason();
 	}
+
+	/**
+	 * @return <code>{{nocatch, Reason}, Trace}</code>, which a process
+	 *         that doesn't catch this throw exits with
+	 */
+	public EObject exitReason() {
+		return new ETuple2(new ETuple2(am_nocatch, super.reason()), getTrace());
+	}
 }
@@ -50,6 +50,13 @@ public class FunID implements Comparable<FunID> {
 		this(exp.module(), exp.fun(), exp.arity());
 	}
 
+	/**
+	 * @param inl
+	 */
+	public FunID(Inlined inl) {
+		this(inl.module(), inl.fun(), inl.arity());
+	}
+
 	@Override
 	public int hashCode() {
 		return module.hashCode() + function.hashCode() + arity;
@@ -0,0 +1,136 @@
+/** -*- tab-width: 4 -*-
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Literal terms shared by all compiled modules.
+ *
+ * The compiler gives every compound literal a key, which is its class
+ * name and its external term format.  A module's static initializer
+ * looks its literals up by key, and only builds the ones that no other
+ * module has built before.  So equal literals in different modules are
+ * the same object, and are built only once.
+ *
+ * Keys are string constants in the class files, which the JVM interns;
+ * equal keys are usually the same <code>String</code>, which makes
+ * lookups cheap.
+ *
+ * The pool holds its literals weakly.  The static fields of the modules
+ * that use a literal keep it alive; when the last of them is purged and
+ * its class loader collected, the literal goes, and its entry is
+ * dropped the next time a literal is defined.
+ */
+public final class LiteralPool {
+
+	/** Constant pool strings are limited to 64K bytes of modified UTF-8. */
+	private static final int MAX_KEY_LENGTH = 30000;
+
+	private static final ConcurrentHashMap<String, Entry> pool =
+		new ConcurrentHashMap<String, Entry>();
+
+	private static final ReferenceQueue<EObject> collected =
+		new ReferenceQueue<EObject>();
+
+	private static final class Entry extends WeakReference<EObject> {
+		final String key;
+
+		Entry(String key, EObject term) {
+			super(term, collected);
+			this.key = key;
+		}
+	}
+
+	private LiteralPool() {}
+
+	/**
+	 * @return the key for a literal, or null if it should not be pooled;
+	 *         atoms and small integers are already canonical.
+	 */
+	public static String key(EObject term) {
+		if (term instanceof EAtom || term instanceof ESmall || term.isNil())
+			return null;
+
+		EOutputStream eos = new EOutputStream();
+		try {
+			eos.write_any(term);
+		} catch (NotImplemented e) {
+			return null;
+		} catch (RuntimeException e) {
+			// not encodable; the module keeps its own copy
+			return null;
+		} catch (StackOverflowError e) {
+			return null;
+		}
+
+		byte[] data = eos.toByteArray();
+		String cname = term.getClass().getName();
+		if (cname.length() + 1 + data.length > MAX_KEY_LENGTH)
+			return null;
+
+		StringBuilder sb = new StringBuilder(cname.length() + 1 + data.length);
+		sb.append(cname).append(':');
+		for (int i = 0; i < data.length; i++) {
+			sb.append((char) (data[i] & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/** @return the pooled literal for <code>key</code>, or null */
+	public static EObject get(String key) {
+		Entry ent = pool.get(key);
+		return ent == null ? null : ent.get();
+	}
+
+	/** @return the pooled literal for <code>key</code>, which is <code>term</code> unless someone beat us to it */
+	public static EObject define(String key, EObject term) {
+		expunge();
+
+		Entry ent = new Entry(key, term);
+		while (true) {
+			Entry old = pool.putIfAbsent(key, ent);
+			if (old == null)
+				return term;
+
+			EObject res = old.get();
+			if (res != null)
+				return res;
+
+			// collected, but not yet expunged
+			if (pool.replace(key, old, ent))
+				return term;
+		}
+	}
+
+	/** drop the entries for literals that have been collected */
+	private static void expunge() {
+		Entry ent;
+		while ((ent = (Entry) collected.poll()) != null) {
+			pool.remove(ent.key, ent);
+		}
+	}
+
+	public static int size() {
+		expunge();
+		return pool.size();
+	}
+}
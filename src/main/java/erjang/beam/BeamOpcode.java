@@ -144,6 +144,10 @@ public enum BeamOpcode {
 	bs_put_utf16		(0x93),
 	bs_put_utf32		(0x94),
 	
+	// Pseudo-instructions, made by the compiler
+
+	inline_guard,
+
 	// Opcode groups
 	
 	test,
@@ -170,6 +170,21 @@ public interface BlockVisitor2 extends BlockVisitor {
 	void visitBitStringTest(BeamOpcode test, int failLabel, Arg in, Arg bits, int unit, int flags, Arg dst);
 	void visitBitStringTest(BeamOpcode test, int failLabel, Arg in, int intg);
 
+	/**
+	 * The next <code>count</code> bit string tests all match constant-size
+	 * fields from the match state <code>in</code>, <code>bits</code> bits
+	 * in total, and all fail to <code>failLabel</code>.  So the total size
+	 * can be checked once, instead of once per field.
+	 */
+	void visitBitStringRun(Arg in, int failLabel, int bits, int count);
+
+	/**
+	 * Code inlined from <code>fun</code> follows; jump to
+	 * <code>failLabel</code>, where the original call is, unless
+	 * <code>fun</code> is still the version the code was inlined from.
+	 */
+	void visitInlineGuard(ExtFun fun, long version, int failLabel);
+
 	/**
 	 * @param size
 	 * @param flags
@@ -35,6 +35,8 @@ public class BuiltInFunction {
 	public final Method method;
 	public final boolean isVirtual;
 	public final boolean isPausable;
+	/** the BIF's Erlang name, from its {@link erjang.BIF} annotation */
+	public final String erlangName;
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
@@ -62,6 +64,13 @@ public class BuiltInFunction {
 			}
 		}
 		isPausable = p;
+
+		erjang.BIF ann = m.getAnnotation(erjang.BIF.class);
+		if (ann == null || ann.name().equals("__SELFNAME__")) {
+			erlangName = m.getName();
+		} else {
+			erlangName = ann.name();
+		}
 	}
 
 	/**
@@ -24,6 +24,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -36,22 +38,36 @@ import kilim.analysis.Detector;
 import kilim.mirrors.ClassMirrorNotFoundException;
 import kilim.mirrors.Mirrors;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
 import org.objectweb.asm.util.CheckClassAdapter;
 
 import com.ericsson.otp.erlang.OtpAuthException;
 
+import erjang.EAtom;
 import erjang.EBinary;
 import erjang.EFun;
 import erjang.EObject;
 import erjang.ETuple;
+import erjang.beam.CompilerStats.Phase;
+import erjang.beam.CompilerStats.Profile;
 import erjang.beam.analysis.BeamTypeAnalysis;
+import erjang.beam.repr.ModuleRepr;
 
 import erjang.beam.loader.ErjangBeamDisLoader;
 import erjang.util.Progress;
 
 public class Compiler implements Opcodes {
+
+	/**
+	 * Set <code>erj.compiler.production</code> to skip checking the
+	 * generated classes with ASM's <code>CheckClassAdapter</code>.
+	 */
+	public static final boolean PRODUCTION = Boolean.getBoolean("erj.compiler.production");
+
 	private ClassRepo classRepo;
 
 	/**
@@ -65,21 +81,95 @@ public class Compiler implements Opcodes {
 	}
 
 	public static void compile(BeamFileData data, ClassRepo repo) throws IOException {
+		long before = System.nanoTime();
+		Profile profile = new Profile();
+
+		if (data instanceof ModuleRepr) {
+			ModuleRepr mod = (ModuleRepr) data;
+			long[] start = profile.begin();
+			int inlined = Inliner.inline(mod);
+			profile.end(Phase.INLINER, start);
+			CompilerStats.report_inlined(mod.moduleName(), inlined);
+		}
+
+		MemClassRepo out = new MemClassRepo();
+		String class_name = compile(data, out, null, profile);
+
+		// functions too big for the JIT are compiled again, in pieces
+		Map<String, Integer> huge = huge_functions(out.get(class_name));
+		if (!huge.isEmpty()) {
+			MemClassRepo split = new MemClassRepo();
+			try {
+				compile(data, split, huge, profile);
+				split.addMissing(out);
+				out = split;
+			} catch (RuntimeException e) {
+				// keep the version we have
+				e.printStackTrace();
+			} catch (Error e) {
+				// keep the version we have
+				e.printStackTrace();
+			}
+		}
+
+		CompilerStats.report(class_name, out.get(class_name));
+		CompilerStats.report_profile(class_name, profile, System.nanoTime() - before);
+		out.copyTo(repo);
+	}
+
+	/**
+	 * Methods generated besides the one for each function; the names of
+	 * functions may have '$' in them too, for that is how they are encoded.
+	 */
+	private static final Pattern GENERATED_METHOD =
+		Pattern.compile(".*\\$(call|tail|fun|split[0-9]+)$");
+
+	/** @return java name -> method size, for functions over the size limit */
+	private static Map<String, Integer> huge_functions(byte[] class_data) {
+		Map<String, Integer> res = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> ent : CompilerStats.method_sizes(
+				class_data).entrySet()) {
+			String name = ent.getKey().substring(0, ent.getKey().indexOf('('));
+			if (!GENERATED_METHOD.matcher(name).matches() && name.indexOf('<') == -1
+					&& ent.getValue() > CompilerStats.MAX_METHOD_SIZE) {
+				res.put(name, ent.getValue());
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @param split functions to split into several methods, and their size
+	 *        when not split; or <code>null</code>
+	 * @return the internal name of the module class
+	 */
+	private static String compile(BeamFileData data, ClassRepo repo,
+			Map<String, Integer> split, Profile profile) throws IOException {
 		// class writer, phase 4
 		ClassWriter cw = new ClassWriter(true);
 
-		// class checker, optional phase
-		CheckClassAdapter ca = new CheckClassAdapter(cw);
+		// class checker, optional phase; when profiling, it is run on
+		// the finished class instead, so that it can be timed by itself
+		ClassVisitor ca = cw;
+		if (!PRODUCTION && !CompilerStats.PROFILE) {
+			ca = new CheckClassAdapter(cw);
+		}
 
 		// the java bytecode generator, phase 3
 		CompilerVisitor cv = new CompilerVisitor(ca, repo);
 
 		// the type analysis, phase 2
 		BeamTypeAnalysis analysis = new BeamTypeAnalysis(cv);
+		analysis.setProfile(profile);
+		if (split != null) {
+			analysis.setSplitSizes(split);
+		}
 
 		// the module analyzer, phase 1 (not chained to phase 2)
 		ModuleAnalyzer ma = new ModuleAnalyzer();
+		long[] start = profile.begin();
 		data.accept(ma);
+		profile.end(Phase.MODULE_ANALYSIS, start);
 
 		cv.setFunInfos(ma.getFunInfos());
 
@@ -87,10 +177,21 @@ public class Compiler implements Opcodes {
 			// go!
 			data.accept(analysis);
 		} catch (Error e) {
+			if (split != null)
+				throw e;
 			e.printStackTrace();
 		}
 
+		start = profile.begin();
 		byte[] byteArray = cw.toByteArray();
+		profile.end(Phase.CODEGEN, start);
+
+		if (!PRODUCTION && CompilerStats.PROFILE) {
+			start = profile.begin();
+			new ClassReader(byteArray).accept(new CheckClassAdapter(
+					new EmptyVisitor()), false);
+			profile.end(Phase.CHECK, start);
+		}
 
 		/*
 		 // uncomment this block to emit pre-kilim code [for debugging]	
@@ -100,8 +201,10 @@ public class Compiler implements Opcodes {
 		}
 		*/
 		boolean written = false;
+		start = profile.begin();
 		ClassWeaver cwe = new ClassWeaver(byteArray, new ErjangDetector(
 				cv.getInternalClassName(), cv.non_pausable_methods));
+		profile.end(Phase.WEAVE, start);
 		for (ClassInfo ci : cwe.getClassInfos()) {
 			String name = ci.className;
 			byte[] bytes = ci.bytes;
@@ -118,6 +221,8 @@ public class Compiler implements Opcodes {
 			// no pausable functions in module!
 			repo.store(cv.getInternalClassName(), byteArray);
 		}
+
+		return cv.getInternalClassName();
 	}
 
 	public void compile(File file, BeamLoader beam_parser) throws IOException {
@@ -217,16 +322,23 @@ public class Compiler implements Opcodes {
 		out_dir.mkdirs();
 		BeamLoader beamParser = new ErjangBeamDisLoader();
 
+		// modules compiled together may inline from each other
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].endsWith(".beam")) {
+				File in = new File(args[i]);
+				if (in.isFile() && in.canRead()) {
+					Inliner.add(EAtom.intern(module_name(args[i])), EUtil.readFile(in));
+				}
+			}
+		}
+
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].endsWith(".beam")) {
 				File in = new File(args[i]);
 				if (!in.exists() || !in.isFile() || !in.canRead())
 					throw new IOException("bad permissions for " + in);
 
-				int idx = args[i].lastIndexOf('.');
-				int idx0 = args[i].lastIndexOf(File.separator);
-
-				String shortName = args[i].substring(idx0 + 1, idx);
+				String shortName = module_name(args[i]);
 
 				File out = new File(out_dir, shortName + "-"
 						+ Long.toHexString(crcFile(in)) + ".jar");
@@ -240,6 +352,14 @@ public class Compiler implements Opcodes {
 		}
 	}
 
+	/** @return the module name of a beam file name */
+	private static String module_name(String beam_file) {
+		int idx = beam_file.lastIndexOf('.');
+		int idx0 = beam_file.lastIndexOf(File.separator);
+
+		return beam_file.substring(idx0 + 1, idx);
+	}
+
 	private static long crcFile(File file) throws IOException {
 
 		CheckedInputStream cis = null;
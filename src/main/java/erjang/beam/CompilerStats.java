@@ -0,0 +1,284 @@
+/** -*- tab-width: 4 -*-
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import erjang.EAtom;
+
+/**
+ * Compile-time metrics for generated code.
+ *
+ * HotSpot refuses to JIT-compile methods whose bytecode is larger than
+ * <code>-XX:HugeMethodLimit</code> (8000 bytes by default), and no method
+ * can be larger than 64K.  This class reads the sizes back out of the
+ * generated class files, so we can see how close we are to those limits.
+ *
+ * Set the system property <code>erj.compiler.stats</code> to report the
+ * size of every generated method; methods over the limit are always
+ * reported.
+ *
+ * Set <code>erj.compiler.profile</code> to report the time and memory
+ * spent in each phase of the compiler, for every module, and in total
+ * when the VM exits.
+ */
+public class CompilerStats {
+
+	/** Same default as HotSpot's <code>HugeMethodLimit</code>. */
+	public static final int HUGE_METHOD_LIMIT = 8000;
+
+	/** Largest method we try to generate; see {@link erjang.beam.analysis.BeamTypeAnalysis}. */
+	public static final int MAX_METHOD_SIZE =
+		Integer.getInteger("erj.compiler.max_method_size", HUGE_METHOD_LIMIT);
+
+	public static final boolean REPORT = Boolean.getBoolean("erj.compiler.stats");
+
+	public static final boolean PROFILE = Boolean.getBoolean("erj.compiler.profile");
+
+	/** The phases of compiling a module, in pipeline order. */
+	public enum Phase {
+		INLINER("Inliner"),
+		MODULE_ANALYSIS("ModuleAnalyzer"),
+		TYPE_ANALYSIS("BeamTypeAnalysis"),
+		CODEGEN("CompilerVisitor"),
+		CHECK("CheckClassAdapter"),
+		WEAVE("ClassWeaver");
+
+		final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+	}
+
+	/**
+	 * Time and allocation per phase, for one module or for all modules.
+	 * A phase may run on several threads at once, so these are CPU times
+	 * summed over threads rather than elapsed time.
+	 *
+	 * Does nothing unless {@link CompilerStats#PROFILE} is set.
+	 */
+	public static class Profile {
+		private final long[] nanos = new long[Phase.values().length];
+		private final long[] bytes = new long[Phase.values().length];
+
+		/** @return a start mark for the current thread, to pass to {@link #end} */
+		public long[] begin() {
+			if (!PROFILE)
+				return null;
+			return new long[] { System.nanoTime(), allocated_bytes() };
+		}
+
+		/** Charge the time and allocation since <code>start</code> to <code>phase</code>. */
+		public void end(Phase phase, long[] start) {
+			if (start == null)
+				return;
+			long ns = System.nanoTime() - start[0];
+			long b = allocated_bytes() - start[1];
+			synchronized (this) {
+				nanos[phase.ordinal()] += ns;
+				bytes[phase.ordinal()] += b;
+			}
+		}
+
+		synchronized void add(Profile other) {
+			synchronized (other) {
+				for (int i = 0; i < nanos.length; i++) {
+					nanos[i] += other.nanos[i];
+					bytes[i] += other.bytes[i];
+				}
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (Phase p : Phase.values()) {
+				if (nanos[p.ordinal()] == 0)
+					continue;
+				if (sb.length() > 0)
+					sb.append(", ");
+				sb.append(p.label).append(' ')
+				  .append(nanos[p.ordinal()] / 1000000).append("ms/")
+				  .append(bytes[p.ordinal()] / 1024).append('K');
+			}
+			return sb.toString();
+		}
+	}
+
+	private static final Profile total = new Profile();
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/** @return bytes allocated by the current thread so far, or 0 if the VM can't tell */
+	private static long allocated_bytes() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	static {
+		if (PROFILE) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					System.err.println("[compile] total: " + total);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param class_data a class file
+	 * @return method name+descriptor -> size of the method's code in bytes,
+	 *         in class file order.  Abstract and native methods are left out.
+	 */
+	public static Map<String, Integer> method_sizes(byte[] class_data) {
+		Map<String, Integer> res = new LinkedHashMap<String, Integer>();
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(class_data));
+
+			in.readInt(); // magic
+			in.readUnsignedShort(); // minor
+			in.readUnsignedShort(); // major
+
+			int cp_count = in.readUnsignedShort();
+			String[] utf8 = new String[cp_count];
+			for (int i = 1; i < cp_count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case 1: // Utf8
+					utf8[i] = in.readUTF();
+					break;
+				case 7: case 8: case 16: case 19: case 20:
+					in.skipBytes(2);
+					break;
+				case 15:
+					in.skipBytes(3);
+					break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+					in.skipBytes(4);
+					break;
+				case 5: case 6: // Long, Double take two slots
+					in.skipBytes(8);
+					i += 1;
+					break;
+				default:
+					throw new IOException("bad constant pool tag " + tag);
+				}
+			}
+
+			in.skipBytes(6); // access, this, super
+			in.skipBytes(2 * in.readUnsignedShort()); // interfaces
+
+			int fields = in.readUnsignedShort();
+			for (int i = 0; i < fields; i++) {
+				in.skipBytes(6);
+				skip_attributes(in);
+			}
+
+			int methods = in.readUnsignedShort();
+			for (int i = 0; i < methods; i++) {
+				in.skipBytes(2);
+				String name = utf8[in.readUnsignedShort()];
+				String desc = utf8[in.readUnsignedShort()];
+
+				int attrs = in.readUnsignedShort();
+				for (int a = 0; a < attrs; a++) {
+					String attr = utf8[in.readUnsignedShort()];
+					int len = in.readInt();
+					if ("Code".equals(attr)) {
+						in.skipBytes(4); // max_stack, max_locals
+						int code_length = in.readInt();
+						res.put(name + desc, code_length);
+						in.skipBytes(len - 8);
+					} else {
+						in.skipBytes(len);
+					}
+				}
+			}
+
+		} catch (IOException e) {
+			throw new Error("cannot read class file", e);
+		}
+
+		return res;
+	}
+
+	private static void skip_attributes(DataInputStream in) throws IOException {
+		int attrs = in.readUnsignedShort();
+		for (int a = 0; a < attrs; a++) {
+			in.skipBytes(2);
+			in.skipBytes(in.readInt());
+		}
+	}
+
+	/**
+	 * Report method sizes of a generated class, as configured.
+	 *
+	 * @return the size of the largest method in the class
+	 */
+	public static int report(String class_name, byte[] class_data) {
+		int max = 0;
+		for (Map.Entry<String, Integer> ent : method_sizes(class_data).entrySet()) {
+			int size = ent.getValue();
+			max = Math.max(max, size);
+
+			if (REPORT || size > HUGE_METHOD_LIMIT) {
+				System.err.println("[method size] " + class_name + "#"
+						+ ent.getKey() + ": " + size + " bytes"
+						+ (size > HUGE_METHOD_LIMIT ? " (will not be JIT-compiled)" : ""));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Report the phase profile of compiling a module, and add it to the
+	 * total.
+	 *
+	 * @param elapsed wall-clock time for the whole module, in nanoseconds
+	 */
+	static void report_profile(String class_name, Profile profile, long elapsed) {
+		if (!PROFILE)
+			return;
+
+		total.add(profile);
+		System.err.println("[compile] " + class_name + ": " + elapsed / 1000000
+				+ "ms; " + profile);
+	}
+
+	/**
+	 * Report how many calls to other modules were inlined; see {@link Inliner}.
+	 */
+	static void report_inlined(EAtom module, int count) {
+		if (!REPORT || count == 0)
+			return;
+
+		System.err.println("[inlined] " + module + ": " + count + " calls");
+	}
+}
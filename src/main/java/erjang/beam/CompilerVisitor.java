@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +45,7 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.Method;
 
+import erjang.AtomSwitch;
 import erjang.EAtom;
 import erjang.EBinMatchState;
 import erjang.EBinary;
@@ -72,6 +74,8 @@ import erjang.ErlangException;
 import erjang.Export;
 import erjang.FunID;
 import erjang.Import;
+import erjang.Inlined;
+import erjang.LiteralPool;
 import erjang.Module;
 import erjang.NotImplemented;
 
@@ -137,6 +141,9 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 	static final Type EDOUBLE_TYPE = Type.getType(EDouble.class);
 	static final Type ENIL_TYPE = Type.getType(ENil.class);
 	static final Type EATOM_TYPE = Type.getType(EAtom.class);
+	static final Type ATOMSWITCH_TYPE = Type.getType(AtomSwitch.class);
+	static final String ATOMSWITCH_NAME = ATOMSWITCH_TYPE.getInternalName();
+	static final String LITERALPOOL_NAME = Type.getType(LiteralPool.class).getInternalName();
 	static final Type ETUPLE_TYPE = Type.getType(ETuple.class);
 	static final Type EBINARY_TYPE = Type.getType(EBinary.class);
 	static final Type EBITSTRING_TYPE = Type.getType(EBitString.class);
@@ -174,6 +181,7 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 	static final Type MODULE_ANN_TYPE = Type.getType(Module.class);
 	static final Type ERLFUN_ANN_TYPE = Type.getType(ErlFun.class);
 	static final Type IMPORT_ANN_TYPE = Type.getType(Import.class);
+	static final Type INLINED_ANN_TYPE = Type.getType(Inlined.class);
 	static final Type EXPORT_ANN_TYPE = Type.getType(Export.class);
 	private final ClassRepo classRepo;
 
@@ -228,7 +236,10 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		return module_name.getName();
 	}
 
-	Map<EObject, String> constants = new HashMap<EObject, String>();
+	Map<EObject, String> constants = new LinkedHashMap<EObject, String>();
+
+	/** static field name -> atoms of a select_val, see {@link AtomSwitch} */
+	Map<String, EAtom[]> atom_switches = new LinkedHashMap<String, EAtom[]>();
 
 	/*
 	 * (non-Javadoc)
@@ -267,6 +278,21 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			fv.visitEnd();
 		}
 
+		for (Map.Entry<String, ExtFun> ent : inlined.entrySet()) {
+			ExtFun f = ent.getValue();
+
+			FieldVisitor fv = cv.visitField(ACC_STATIC, ent.getKey(), "Z",
+					null, null);
+			AnnotationVisitor av = fv.visitAnnotation(INLINED_ANN_TYPE
+					.getDescriptor(), true);
+			av.visit("module", f.mod.getName());
+			av.visit("fun", f.fun.getName());
+			av.visit("arity", f.arity);
+			av.visit("version", inlined_versions.get(ent.getKey()));
+			av.visitEnd();
+			fv.visitEnd();
+		}
+
 		generate_classinit();
 
 		cv.visitEnd();
@@ -280,27 +306,51 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				"()V", null, null);
 		mv.visitCode();
 
-		for (Map.Entry<String, String> ent : funs.entrySet()) {
-
-			String field = ent.getKey();
-			String clazz = ent.getValue();
-
-			mv.visitTypeInsn(NEW, clazz);
-			mv.visitInsn(DUP);
-			mv.visitMethodInsn(INVOKESPECIAL, clazz, "<init>", "()V");
-
-			mv.visitFieldInsn(PUTSTATIC, self_type.getInternalName(), field,
-					"L" + funt.get(field) + ";");
-
-		}
-
 		for (Map.Entry<EObject, String> ent : constants.entrySet()) {
 
 			EObject term = ent.getKey();
-			term.emit_const(mv);
+			Type type = Type.getType(term.getClass());
+			String key = LiteralPool.key(term);
+
+			if (key == null) {
+				term.emit_const(mv);
+			} else {
+				// share with other modules; see LiteralPool
+				Label done = new Label();
+				mv.visitLdcInsn(key);
+				mv.visitMethodInsn(INVOKESTATIC, LITERALPOOL_NAME, "get",
+						"(Ljava/lang/String;)" + EOBJECT_DESC);
+				mv.visitInsn(DUP);
+				mv.visitJumpInsn(IFNONNULL, done);
+				mv.visitInsn(POP);
+				mv.visitLdcInsn(key);
+				term.emit_const(mv);
+				mv.visitMethodInsn(INVOKESTATIC, LITERALPOOL_NAME, "define",
+						"(Ljava/lang/String;" + EOBJECT_DESC + ")" + EOBJECT_DESC);
+				mv.visitLabel(done);
+				mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+			}
 			mv.visitFieldInsn(Opcodes.PUTSTATIC, self_type.getInternalName(),
-					ent.getValue(), Type.getType(term.getClass())
-							.getDescriptor());
+					ent.getValue(), type.getDescriptor());
+		}
+
+		for (Map.Entry<String, EAtom[]> ent : atom_switches.entrySet()) {
+
+			EAtom[] atoms = ent.getValue();
+			mv.visitTypeInsn(NEW, ATOMSWITCH_NAME);
+			mv.visitInsn(DUP);
+			mv.visitLdcInsn(Integer.valueOf(atoms.length));
+			mv.visitTypeInsn(ANEWARRAY, EATOM_TYPE.getInternalName());
+			for (int i = 0; i < atoms.length; i++) {
+				mv.visitInsn(DUP);
+				mv.visitLdcInsn(Integer.valueOf(i));
+				atoms[i].emit_const(mv);
+				mv.visitInsn(AASTORE);
+			}
+			mv.visitMethodInsn(INVOKESPECIAL, ATOMSWITCH_NAME, "<init>",
+					"([" + EATOM_DESC + ")V");
+			mv.visitFieldInsn(PUTSTATIC, self_type.getInternalName(),
+					ent.getKey(), ATOMSWITCH_TYPE.getDescriptor());
 		}
 
 		cv.visitField(ACC_STATIC|ACC_PRIVATE, 
@@ -370,8 +420,6 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 	}
 
 	Map<String, Integer> lambdas_xx = new TreeMap<String, Integer>();
-	Map<String, String> funs = new HashMap<String, String>();
-	Map<String, String> funt = new HashMap<String, String>();
 	Set<String> non_pausable_methods = new HashSet<String>();
 
 	class ASMFunctionAdapter implements FunctionVisitor2 {
@@ -402,9 +450,22 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		private int bit_string_save;
 		private FunInfo funInfo;
 
+		/** Parts of this function compiled into methods of their own; by label */
+		Map<Integer, SubMethod> sub_methods = new HashMap<Integer, SubMethod>();
+		List<SubMethod> all_sub_methods = new ArrayList<SubMethod>();
+		private SubMethod current_sub;
+		private MethodVisitor main_mv;
+		private Map<Integer, Label> main_labels;
+		private EXHandler main_exh;
+		private Label self_call;
+
 		Label getLabel(int i) {
 			if (i <= 0)
 				throw new Error();
+			if (current_sub != null && !current_sub.blocks.contains(i)) {
+				// the only way out of a sub method
+				return current_sub.func_info_label();
+			}
 			Label l = labels.get(i);
 			if (l == null) {
 				labels.put(i, l = new Label());
@@ -469,7 +530,27 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		 */
 		@Override
 		public void visitEnd() {
+			switch_to(null);
 			adjust_exception_handlers(null, false);
+
+			if (self_call != null) {
+				// a sub method made a self-recursive tail call;
+				// it left the arguments in the process.
+				mv.visitLabel(self_call);
+				mv.visitInsn(POP);
+				for (int i = 0; i < arity; i++) {
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitFieldInsn(GETFIELD, EPROC_NAME, "arg" + i, EOBJECT_DESC);
+					mv.visitVarInsn(ASTORE, xregs[i]);
+					mv.visitVarInsn(ALOAD, 0);
+					mv.visitInsn(ACONST_NULL);
+					mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "arg" + i, EOBJECT_DESC);
+				}
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitMethodInsn(INVOKEVIRTUAL, EPROC_NAME, "check_exit", "()V");
+				mv.visitJumpInsn(GOTO, getLabel(startLabel));
+			}
+
 			mv.visitLabel(end);
 
 			for (EXHandler h : ex_handlers) {
@@ -482,6 +563,10 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			mv.visitMaxs(20, scratch_reg + 3);
 			mv.visitEnd();
 
+			for (SubMethod sub : all_sub_methods) {
+				sub.visitEnd();
+			}
+
 			String mname = EUtil.getJavaName(fun_name, arity);
 			String outer_name = self_type.getInternalName();
 			String inner_name = "FN_" + mname;
@@ -492,10 +577,11 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 				generate_invoke_call_self();
 				generate_tail_call_self();
+				generate_fun_accessor(full_inner_name);
 
 				freevars = 0;
 
-				FieldVisitor fv = cv.visitField(ACC_STATIC | ACC_FINAL, mname,
+				FieldVisitor fv = cv.visitField(ACC_STATIC, mname,
 						"L" + EFUN_NAME + arity + ";", null, null);
 				EFun.ensure(arity);
 
@@ -512,10 +598,6 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				}
 
 				fv.visitEnd();
-
-				funs.put(mname, full_inner_name);
-				funt.put(mname, EFUN_NAME + arity);
-				EFun.ensure(arity);
 			}
 
 			cv.visitInnerClass(full_inner_name, outer_name, inner_name,
@@ -537,6 +619,220 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 		}
 
+		@Override
+		public void visitSubMethod(int[] entries, Set<Integer> blocks,
+				Type[][] x_types, Type[][] y_types, Type[][] f_types) {
+			String name = EUtil.getJavaName(fun_name, arity) + "$split"
+					+ all_sub_methods.size();
+			SubMethod sub = new SubMethod(name, entries, blocks, x_types,
+					y_types, f_types);
+			all_sub_methods.add(sub);
+			for (int label : blocks) {
+				sub_methods.put(label, sub);
+			}
+		}
+
+		/** Make code go to the main method (<code>sub == null</code>), or
+		 *  a sub method. */
+		private void switch_to(SubMethod sub) {
+			if (sub == current_sub)
+				return;
+
+			if (current_sub == null) {
+				main_mv = mv;
+				main_labels = labels;
+				main_exh = activeExceptionHandler;
+			}
+
+			if (sub == null) {
+				mv = main_mv;
+				labels = main_labels;
+				activeExceptionHandler = main_exh;
+			} else {
+				mv = sub.method;
+				labels = sub.labels;
+				activeExceptionHandler = null;
+			}
+
+			current_sub = sub;
+		}
+
+		/**
+		 * A part of the function that is compiled into a method of its own,
+		 * to keep methods small enough for the JIT.  All registers are
+		 * passed as arguments, in the same local slots as in the main
+		 * method; with more than one entry, the last argument says which.
+		 */
+		class SubMethod {
+			final String name;
+			final int[] entries;
+			final Set<Integer> blocks;
+			final Type[][] x_types, y_types, f_types;
+			final boolean[] x_int, y_int;
+			final String descriptor;
+			final MethodVisitor method;
+			final Map<Integer, Label> labels = new TreeMap<Integer, Label>();
+			private Label func_info;
+
+			SubMethod(String name, int[] entries, Set<Integer> blocks,
+					Type[][] x_types, Type[][] y_types, Type[][] f_types) {
+				this.name = name;
+				this.entries = entries;
+				this.blocks = blocks;
+				this.x_types = x_types;
+				this.y_types = y_types;
+				this.f_types = f_types;
+				this.x_int = int_slots(x_types, xregs.length);
+				this.y_int = int_slots(y_types, yregs.length);
+
+				StringBuilder sb = new StringBuilder("(").append(EPROC_DESC);
+				for (int i = 0; i < xregs.length; i++) {
+					sb.append(x_int[i] ? "I" : EOBJECT_DESC);
+				}
+				for (int i = 0; i < yregs.length; i++) {
+					sb.append(y_int[i] ? "I" : EOBJECT_DESC);
+				}
+				for (int i = 0; i < fpregs.length; i++) {
+					sb.append("D");
+				}
+				if (entries.length > 1) {
+					sb.append("I");
+				}
+				sb.append(")").append(EOBJECT_DESC);
+				this.descriptor = sb.toString();
+
+				method = cv.visitMethod(ACC_STATIC, name, descriptor, null,
+						funInfo.is_pausable ? PAUSABLE_EX : null);
+				if (!funInfo.is_pausable) {
+					non_pausable_methods.add(name);
+				}
+
+				method.visitCode();
+				visitEntries();
+			}
+
+			private boolean[] int_slots(Type[][] types, int count) {
+				boolean[] res = new boolean[count];
+				for (Type[] entry : types) {
+					for (int i = 0; i < count; i++) {
+						Type t = entry[i];
+						res[i] |= (t != null && (t.equals(Type.INT_TYPE) || t
+								.equals(Type.BOOLEAN_TYPE)));
+					}
+				}
+				return res;
+			}
+
+			int entry_index(int label) {
+				for (int i = 0; i < entries.length; i++) {
+					if (entries[i] == label)
+						return i;
+				}
+				return -1;
+			}
+
+			Label label(int i) {
+				Label l = labels.get(i);
+				if (l == null) {
+					labels.put(i, l = new Label());
+				}
+				return l;
+			}
+
+			Label func_info_label() {
+				if (func_info == null) {
+					func_info = new Label();
+				}
+				return func_info;
+			}
+
+			/** Dispatch on the entry number, and give the registers the
+			 *  types they have at that entry. */
+			private void visitEntries() {
+				Label[] casts = new Label[entries.length];
+				for (int i = 0; i < entries.length; i++) {
+					casts[i] = new Label();
+				}
+
+				if (entries.length > 1) {
+					int entry_slot = 1 + xregs.length + yregs.length + 2
+							* fpregs.length;
+					method.visitVarInsn(ILOAD, entry_slot);
+					method.visitTableSwitchInsn(0, entries.length - 1,
+							casts[entries.length - 1], casts);
+				}
+
+				for (int i = 0; i < entries.length; i++) {
+					method.visitLabel(casts[i]);
+					cast_slots(xregs, x_int, x_types[i]);
+					cast_slots(yregs, y_int, y_types[i]);
+					method.visitJumpInsn(GOTO, label(entries[i]));
+				}
+			}
+
+			private void cast_slots(int[] regs, boolean[] is_int, Type[] types) {
+				for (int i = 0; i < regs.length; i++) {
+					Type t = types[i];
+					if (is_int[i] || t == null || t.getSort() != Type.OBJECT
+							|| t.equals(EOBJECT_TYPE))
+						continue;
+					method.visitVarInsn(ALOAD, regs[i]);
+					method.visitTypeInsn(CHECKCAST, t.getInternalName());
+					method.visitVarInsn(ASTORE, regs[i]);
+				}
+			}
+
+			/** In the main method: call this method, entering at the given
+			 *  entry, and return what it returns. */
+			void visitCall(int entry) {
+				mv.visitVarInsn(ALOAD, 0);
+				load_slots(xregs, x_int, x_types[entry]);
+				load_slots(yregs, y_int, y_types[entry]);
+				for (int i = 0; i < fpregs.length; i++) {
+					if (f_types[entry][i] == null) {
+						mv.visitInsn(DCONST_0);
+					} else {
+						mv.visitVarInsn(DLOAD, fpregs[i]);
+					}
+				}
+				if (entries.length > 1) {
+					mv.visitLdcInsn(Integer.valueOf(entry));
+				}
+				mv.visitMethodInsn(INVOKESTATIC, self_type.getInternalName(),
+						name, descriptor);
+
+				if (self_call == null) {
+					self_call = new Label();
+				}
+				mv.visitInsn(DUP);
+				mv.visitJumpInsn(IFNULL, self_call);
+				mv.visitInsn(ARETURN);
+			}
+
+			private void load_slots(int[] regs, boolean[] is_int, Type[] types) {
+				for (int i = 0; i < regs.length; i++) {
+					if (types[i] == null) {
+						mv.visitInsn(is_int[i] ? ICONST_0 : ACONST_NULL);
+					} else {
+						mv.visitVarInsn(is_int[i] ? ILOAD : ALOAD, regs[i]);
+					}
+				}
+			}
+
+			void visitEnd() {
+				if (func_info != null) {
+					switch_to(this);
+					mv.visitLabel(func_info);
+					new ASMBlockVisitor(0).visitInsn(BeamOpcode.func_info,
+							new ExtFun(module_name, fun_name, arity));
+					switch_to(null);
+				}
+
+				method.visitMaxs(20, scratch_reg + 3);
+				method.visitEnd();
+			}
+		}
+
 		private void ensure_exception_handler_in_place() {
 			adjust_exception_handlers(active_beam_exh, false);
 		}
@@ -652,8 +948,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			}
 
 			mv.visitVarInsn(ALOAD, 0);
-			mv.visitFieldInsn(GETSTATIC, self_type.getInternalName(), javaName,
-					"L" + EFUN_NAME + arity + ";");
+			mv.visitMethodInsn(INVOKESTATIC, self_type.getInternalName(),
+					javaName + "$fun", "()L" + EFUN_NAME + arity + ";");
 			mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "tail", EFUN_DESCRIPTOR);
 			mv.visitFieldInsn(GETSTATIC, EPROC_NAME, "TAIL_MARKER",
 					EOBJECT_DESC);
@@ -670,6 +966,39 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			mv.visitEnd();
 		}
 
+		/**
+		 * The fun object for a function is made the first time it is
+		 * needed, so that the classes of functions that are never tail
+		 * called or exported are never loaded.  Two threads may both make
+		 * one; they are interchangeable.
+		 */
+		private void generate_fun_accessor(String fun_class) {
+			String javaName = EUtil.getJavaName(fun_name, arity);
+			String fun_desc = "L" + EFUN_NAME + arity + ";";
+			mv = cv.visitMethod(ACC_STATIC, javaName + "$fun", "()" + fun_desc,
+					null, null);
+			mv.visitCode();
+
+			Label done = new Label();
+			mv.visitFieldInsn(GETSTATIC, self_type.getInternalName(), javaName,
+					fun_desc);
+			mv.visitInsn(DUP);
+			mv.visitJumpInsn(IFNONNULL, done);
+			mv.visitInsn(POP);
+			mv.visitTypeInsn(NEW, fun_class);
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKESPECIAL, fun_class, "<init>", "()V");
+			mv.visitInsn(DUP);
+			mv.visitFieldInsn(PUTSTATIC, self_type.getInternalName(), javaName,
+					fun_desc);
+			mv.visitLabel(done);
+			mv.visitInsn(ARETURN);
+			mv.visitMaxs(2, 0);
+			mv.visitEnd();
+
+			non_pausable_methods.add(javaName + "$fun");
+		}
+
 		/**
 		 * @param xCount
 		 * @param yCount
@@ -734,6 +1063,19 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		@Override
 		public BlockVisitor visitLabeledBlock(int label) {
 
+			SubMethod sub = sub_methods.get(label);
+			if (sub != null) {
+				int entry = sub.entry_index(label);
+				if (entry != -1) {
+					// what is left at the label in the main method
+					switch_to(null);
+					adjust_exception_handlers(null, false);
+					mv.visitLabel(getLabel(label));
+					sub.visitCall(entry);
+				}
+			}
+			switch_to(sub);
+
 			Label blockLabel = getLabel(label);
 
 			mv.visitLabel(blockLabel);
@@ -989,10 +1331,40 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				}
 			}
 
+			/** number of upcoming bit string tests covered by a visitBitStringRun check */
+			private int bs_checked;
+
+			@Override
+			public void visitBitStringRun(Arg in, int failLabel, int bits, int count) {
+				push(in, EBINMATCHSTATE_TYPE);
+				push_int(bits);
+				mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+						.getInternalName(), "bs_need", "(I)Z");
+				mv.visitJumpInsn(IFEQ, getLabel(failLabel));
+				bs_checked = count;
+			}
+
+			@Override
+			public void visitInlineGuard(ExtFun fun, long version, int failLabel) {
+				mv.visitFieldInsn(GETSTATIC, self_type.getInternalName(),
+						getInlineGuard(fun, version), "Z");
+				mv.visitJumpInsn(IFEQ, getLabel(failLabel));
+			}
+
 			@Override
 			public void visitBitStringTest(BeamOpcode test, int failLabel, Arg in, EBitString bin) {
 				switch (test) {
 				case bs_match_string: {
+					if (bs_checked > 0) {
+						bs_checked -= 1;
+						push(in, EBINMATCHSTATE_TYPE);
+						push_immediate(bin, EBITSTRING_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+								.getInternalName(), "bs_match_string_unchecked", "("
+								+ EBITSTRING_TYPE.getDescriptor() + ")Z");
+						mv.visitJumpInsn(IFEQ, getLabel(failLabel));
+						return;
+					}
 					push(in, EBINMATCHSTATE_TYPE);
 					push_immediate(bin, EBITSTRING_TYPE);
 					mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
@@ -1013,6 +1385,14 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				case bs_skip_bits2: {
 					// {test,bs_skip_bits2, {f,39},
 					// [{x,1},{x,0},8,{field_flags,0}]}
+					if (bs_checked > 0) {
+						bs_checked -= 1;
+						push(in, EBINMATCHSTATE_TYPE);
+						push_int(bits.value.asInt() * unit);
+						mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+								.getInternalName(), "bs_skip_bits2_unchecked", "(I)V");
+						return;
+					}
 					push(in, EBINMATCHSTATE_TYPE);
 					push(bits, EINTEGER_TYPE);
 					push_int(unit); // TODO: Scale here instead?
@@ -1032,6 +1412,16 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 			public void visitBitStringTest(BeamOpcode test, int failLabel, Arg in, Arg bits, int unit, int flags, Arg dst) {
 				switch (test) {
 				case bs_get_binary2: {
+					if (bs_checked > 0) {
+						bs_checked -= 1;
+						push(in, EBINMATCHSTATE_TYPE);
+						push_int(bits.value.asInt() * 8);
+						mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+								.getInternalName(), "bs_get_binary2_unchecked", "(I)"
+								+ EBITSTRING_TYPE);
+						pop(dst, EBITSTRING_TYPE);
+						return;
+					}
 					push(in, EBINMATCHSTATE_TYPE);
 					push(bits, EOBJECT_TYPE); //TODO: scale by unit, handling 'all'
 					push_int(flags);
@@ -1049,6 +1439,17 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				}
 					// {test,bs_get_integer2,{f,348},[{x,3},4,{integer,32},1,{field_flags,0},{x,4}]}
 				case bs_get_integer2: {
+					if (bs_checked > 0) {
+						bs_checked -= 1;
+						push(in, EBINMATCHSTATE_TYPE);
+						push_int(bits.value.asInt() * unit);
+						push_int(flags);
+						mv.visitMethodInsn(INVOKEVIRTUAL, EBINMATCHSTATE_TYPE
+								.getInternalName(), "bs_get_integer2_unchecked", "(II)"
+								+ EINTEGER_TYPE.getDescriptor());
+						pop(dst, EOBJECT_TYPE);
+						return;
+					}
 					push(in, EBINMATCHSTATE_TYPE);
 					push(bits, Type.INT_TYPE);
 					push_int(flags);
@@ -1127,11 +1528,14 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				ensure_exception_handler_in_place();
 
 				switch (opcode) {
-				case bif0:
 				case bif1:
 				case bif2:
-
 				case gc_bif1:
+					if (emit_intrinsic(in, out, bif))
+						return;
+					// fall through
+
+				case bif0:
 				case gc_bif2:
 
 				case fadd:
@@ -1183,6 +1587,62 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				throw new Error();
 			}
 
+			/**
+			 * Emit inline code for BIFs on values of known type, where
+			 * that is no longer than the call into ErlBif.  Type tests and
+			 * atom compares are left as calls: they must produce the atom
+			 * <code>true</code> or <code>false</code>, and the branches for
+			 * that are longer than the call, which the JIT inlines anyway.
+			 * 
+			 * @return false if the BIF must be called as usual
+			 */
+			private boolean emit_intrinsic(Arg[] in, Arg out,
+					BuiltInFunction bif) {
+				String name = bif.erlangName;
+
+				if (in.length == 2 && name.equals("element")
+						&& in[0].kind == Kind.IMMEDIATE
+						&& in[0].value instanceof ESmall) {
+					int idx = in[0].value.asInt();
+					if (idx >= 1 && idx <= get_known_arity(in[1].type)) {
+						push(in[1], in[1].type);
+						mv.visitFieldInsn(GETFIELD, in[1].type.getInternalName(),
+								"elem" + idx, EOBJECT_DESC);
+						pop(out, EOBJECT_TYPE);
+						return true;
+					}
+					return false;
+				}
+
+				if (in.length == 1 && name.equals("tuple_size")) {
+					int arity = get_known_arity(in[0].type);
+					if (arity > 0) {
+						push(new Arg(ERT.box(arity)), ESMALL_TYPE);
+						pop(out, ESMALL_TYPE);
+						return true;
+					}
+					if (ETUPLE_TYPE.equals(in[0].type)) {
+						push(in[0], ETUPLE_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "arity", "()I");
+						emit_box(Type.INT_TYPE, ESMALL_TYPE);
+						pop(out, ESMALL_TYPE);
+						return true;
+					}
+					return false;
+				}
+
+				if (in.length == 1 && (name.equals("hd") || name.equals("tl"))
+						&& ECONS_TYPE.equals(in[0].type)) {
+					push(in[0], ECONS_TYPE);
+					mv.visitMethodInsn(INVOKEVIRTUAL, ECONS_TYPE.getInternalName(),
+							name.equals("hd") ? "head" : "tail", "()" + EOBJECT_DESC);
+					pop(out, EOBJECT_TYPE);
+					return true;
+				}
+
+				return false;
+			}
+
 			public void visitUnreachablePoint() {
 				mv.visitLdcInsn("Reached unreachable point.");
 				mv.visitInsn(DUP);
@@ -1195,16 +1655,29 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				case K_try:
 				case K_catch: {
 					active_beam_exh = exh;
+					count_catches(1);
 					return;
 				}
 				}
 			}
 
+			/** Keep <code>EProc.catches</code>, so throws know whether
+			 *  they are caught. */
+			private void count_catches(int delta) {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitInsn(DUP);
+				mv.visitFieldInsn(GETFIELD, EPROC_NAME, "catches", "I");
+				push_int(delta);
+				mv.visitInsn(IADD);
+				mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "catches", "I");
+			}
+
 			public void visitCatchBlockEnd(BeamOpcode opcode, Arg out, BeamExceptionHandler exh) {
 				active_beam_exh = exh.getParent();
  				adjust_exception_handlers(active_beam_exh, false);
 				switch (opcode) {
 				case try_end: {
+					count_catches(-1);
 				} break;
 
 				case catch_end: {
@@ -1227,10 +1700,12 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 					mv.visitVarInsn(ASTORE, xregs[0]);
 					mv.visitLabel(after);
+					count_catches(-1);
 				} break;
 
 				case try_case: {
 					mv.visitLabel(getExceptionHandlerLabel(exh));
+					count_catches(-1);
 
 					// Remember the exception value:
 					mv.visitInsn(DUP);
@@ -1462,6 +1937,14 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 						mv.visitVarInsn(ILOAD, var_index(value));
 					} else {
 						mv.visitVarInsn(ALOAD, var_index(value));
+						if (current_sub != null && value.kind == Kind.Y
+								&& t != null && !t.equals(EOBJECT_TYPE)
+								&& t.getSort() == Type.OBJECT) {
+							// a sub method gets its y registers as
+							// arguments, which are plain EObject again
+							// when kilim resumes it
+							mv.visitTypeInsn(CHECKCAST, t.getInternalName());
+						}
 					}
 				} else if (value.kind == Kind.F) {
 					mv.visitVarInsn(DLOAD, var_index(value));
@@ -1755,8 +2238,17 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					return;
 				} else if (opcode == BeamOpcode.set_tuple_element) {
 
+					int known_arity = get_known_arity(out.type);
+					if (known_arity >= pos+1) {
+						push(out, out.type);
+						push(val, EOBJECT_TYPE);
+						mv.visitFieldInsn(PUTFIELD, out.type.getInternalName(),
+								"elem" + (pos + 1), EOBJECT_DESC);
+						return;
+					}
+
 					push(out, out.type);
-					if (get_known_arity(out.type) < 0)
+					if (known_arity < 0)
 						mv.visitTypeInsn(CHECKCAST, ETUPLE_NAME);
 					push_int(pos + 1);
 					push(val, val.type);
@@ -2328,7 +2820,56 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 
 					sort(ivals, label);
 
-					mv.visitLookupSwitchInsn(getLabel(failLabel), ivals, label);
+					int min = ivals[0], max = ivals[ivals.length - 1];
+					if ((long) max - min < 2L * ivals.length + 8) {
+						// dense; use a jump table
+						Label[] table = new Label[max - min + 1];
+						Arrays.fill(table, getLabel(failLabel));
+						for (int i = 0; i < ivals.length; i++) {
+							table[ivals[i] - min] = label[i];
+						}
+						mv.visitTableSwitchInsn(min, max, getLabel(failLabel), table);
+					} else {
+						mv.visitLookupSwitchInsn(getLabel(failLabel), ivals, label);
+					}
+					return;
+				}
+
+				boolean all_atoms = true;
+				for (int i = 0; i < values.length; i++) {
+					if (!(values[i].value instanceof EAtom)) {
+						all_atoms = false;
+						break;
+					}
+				}
+
+				if (all_atoms) {
+					// dispatch on the atom index; see AtomSwitch
+					EAtom[] atoms = new EAtom[values.length];
+					Label[] label = new Label[values.length];
+					for (int i = 0; i < values.length; i++) {
+						atoms[i] = (EAtom) values[i].value;
+						label[i] = getLabel(targets[i]);
+					}
+
+					String field = "switch_" + atom_switches.size();
+					atom_switches.put(field, atoms);
+					cv.visitField(ACC_STATIC | ACC_PRIVATE, field,
+							ATOMSWITCH_TYPE.getDescriptor(), null, null);
+
+					mv.visitFieldInsn(GETSTATIC, self_type.getInternalName(),
+							field, ATOMSWITCH_TYPE.getDescriptor());
+					if (in.type != null && in.type.equals(EATOM_TYPE)) {
+						push(in, EATOM_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, ATOMSWITCH_NAME,
+								"select", "(" + EATOM_DESC + ")I");
+					} else {
+						push(in, EOBJECT_TYPE);
+						mv.visitMethodInsn(INVOKEVIRTUAL, ATOMSWITCH_NAME,
+								"select", "(" + EOBJECT_DESC + ")I");
+					}
+					mv.visitTableSwitchInsn(1, values.length,
+							getLabel(failLabel), label);
 					return;
 				}
 
@@ -2563,6 +3104,21 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				if (isExternal) {
 					BuiltInFunction bif = null;
 
+					// setelement/3 on a tuple of known arity returns a
+					// copy of the same class, which the analysis relies on
+					Type copy_type = null;
+					if (isSetelement(fun) && get_known_arity(args[1].type) > 0) {
+						copy_type = args[1].type;
+						if (visitSetelement(args, copy_type)) {
+							if (is_tail) {
+								mv.visitInsn(ARETURN);
+							} else {
+								mv.visitVarInsn(ASTORE, xregs[0]);
+							}
+							return;
+						}
+					}
+
 					bif = BIFUtil.getMethod(fun.mod.getName(),
 							fun.fun.getName(), args, false, false);
 
@@ -2628,6 +3184,8 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					if (is_tail || isExitFunc(fun)) {
 						mv.visitInsn(ARETURN);
 					} else {
+						if (copy_type != null)
+							mv.visitTypeInsn(CHECKCAST, copy_type.getInternalName());
 						mv.visitVarInsn(ASTORE, xregs[0]);
 					}
 
@@ -2637,6 +3195,20 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 					if (is_tail && fun.arity == ASMFunctionAdapter.this.arity
 							&& fun.fun == ASMFunctionAdapter.this.fun_name) {
 
+						if (current_sub != null) {
+							// leave the arguments in the process, and let
+							// the main method do the jump.
+							for (int i = 0; i < args.length; i++) {
+								mv.visitVarInsn(ALOAD, 0);
+								push(args[i], EOBJECT_TYPE);
+								mv.visitFieldInsn(PUTFIELD, EPROC_NAME, "arg" + i,
+										EOBJECT_DESC);
+							}
+							mv.visitInsn(ACONST_NULL);
+							mv.visitInsn(ARETURN);
+							return;
+						}
+
 						mv.visitVarInsn(ALOAD, 0);
 						mv.visitMethodInsn(INVOKEVIRTUAL, EPROC_NAME,
 								"check_exit", "()V");
@@ -2670,6 +3242,38 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 				}
 			}
 
+			/**
+			 * Record update with a constant index: clone the tuple and
+			 * store into the field directly, rather than going through
+			 * the setelement BIF and the virtual <code>set</code> switch.
+			 * 
+			 * @return false if the index is not a constant in range
+			 */
+			private boolean visitSetelement(Arg[] args, Type tuple_type) {
+				if (args[0].kind != Kind.IMMEDIATE
+						|| !(args[0].value instanceof ESmall))
+					return false;
+
+				int index = ((ESmall) args[0].value).value;
+				if (index < 1 || index > get_known_arity(tuple_type))
+					return false;
+
+				push(args[1], tuple_type);
+				mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "clone", "()"
+						+ ETUPLE_DESC);
+				mv.visitTypeInsn(CHECKCAST, tuple_type.getInternalName());
+				mv.visitInsn(DUP);
+				push(args[2], EOBJECT_TYPE);
+				mv.visitFieldInsn(PUTFIELD, tuple_type.getInternalName(),
+						"elem" + index, EOBJECT_DESC);
+				return true;
+			}
+
+			private boolean isSetelement(ExtFun fun) {
+				return fun.mod == ERLANG_ATOM && fun.fun == SETELEMENT_ATOM
+						&& fun.arity == 3;
+			}
+
 			/**
 			 * @param fun
 			 * @return
@@ -2735,6 +3339,24 @@ public class CompilerVisitor implements ModuleVisitor, Opcodes {
 		return name;
 	}
 
+	Map<String, ExtFun> inlined = new HashMap<String, ExtFun>();
+	Map<String, Long> inlined_versions = new HashMap<String, Long>();
+
+	/**
+	 * @return the name of the field guarding code inlined from
+	 *         <code>fun</code>, as of <code>version</code>
+	 */
+	public String getInlineGuard(ExtFun fun, long version) {
+
+		String name = "inlined__" + EUtil.getJavaName(fun);
+		if (!inlined.containsKey(name)) {
+			inlined.put(name, fun);
+			inlined_versions.put(name, version);
+		}
+
+		return name;
+	}
+
 	/**
 	 * @param fun
 	 * @param arity
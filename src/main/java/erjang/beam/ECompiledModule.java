@@ -22,19 +22,29 @@ import erjang.EModule;
 import erjang.EModuleManager;
 import erjang.ENative;
 import erjang.EFun;
+import erjang.EFunHandler;
 import erjang.FunID;
 import erjang.EObject;
 import erjang.EProc;
 import erjang.Export;
 import erjang.Import;
+import erjang.Inlined;
 import erjang.BIF;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 
+import kilim.Pausable;
+
 public abstract class ECompiledModule extends EModule {
 
+	/**
+	 * Set <code>erj.lazy_load</code> to export a stub for each function,
+	 * which loads the function's class when it is first called.  In most
+	 * modules only a few of the exported functions are ever used.
+	 */
+	static final boolean LAZY_LOAD = Boolean.getBoolean("erj.lazy_load");
 
         public ClassLoader getModuleClassLoader() {
 	    return this.getClass().getClassLoader();
@@ -57,7 +67,7 @@ public abstract class ECompiledModule extends EModule {
 			if (imp != null) {
 				FunID f = new FunID(imp);
 
-				EModuleManager.add_import(f, new FieldBinder(field, f, module_name()));
+				EModuleManager.add_import(this, f, new FieldBinder(field, f, module_name()));
 
 				// System.out.println("  import " + f
 				// + (resolved ? "resolved" : ""));
@@ -65,21 +75,26 @@ public abstract class ECompiledModule extends EModule {
 				continue;
 			}
 
+			Inlined inl = field.getAnnotation(Inlined.class);
+			if (inl != null) {
+				FunID f = new FunID(inl);
+
+				EModuleManager.add_import(this, f, new GuardBinder(field, f, inl.version(), module_name()));
+
+				continue;
+			}
+
 			Export exp = field.getAnnotation(Export.class);
 			if (exp != null) {
-				field.setAccessible(true);
+				FunID f = new FunID(exp);
 				EFun value;
-				try {
-					value = (EFun) field.get(null);
-				} catch (Exception e) {
-					throw new Error(e);
+				if (LAZY_LOAD) {
+					value = new LazyExport(this, f, field).stub;
+				} else {
+					value = export_value(field);
 				}
 
-				if (value == null)
-					throw new Error("field " + field + " not initialized");
-
-				FunID f;
-				EModuleManager.add_export(this, f = new FunID(exp), value);
+				EModuleManager.add_export(this, f, value);
 
 				// System.out.println("  export " + f);
 
@@ -95,4 +110,60 @@ public abstract class ECompiledModule extends EModule {
 		load_native_bifs();
 	}
 
+	/**
+	 * @return the fun object of an exported function; it is made on demand
+	 *         by the method <code><i>field</i>$fun</code>.
+	 */
+	EFun export_value(Field field) {
+		try {
+			field.setAccessible(true);
+			EFun value = (EFun) field.get(null);
+			if (value == null) {
+				Method make = getClass().getDeclaredMethod(
+						field.getName() + "$fun");
+				make.setAccessible(true);
+				value = (EFun) make.invoke(null);
+			}
+			return value;
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Exported in place of a function; the real fun object is made when
+	 * it is first called, and the stub passes each call on to it.  The
+	 * stub stays exported, so that <code>fun M:F/A</code> is the same fun
+	 * before and after the first call.
+	 */
+	static class LazyExport implements EFunHandler {
+		private final ECompiledModule module;
+		private final Field field;
+		final EFun stub;
+		private volatile EFun value;
+
+		LazyExport(ECompiledModule module, FunID fun, Field field) {
+			this.module = module;
+			this.field = field;
+			this.stub = EFun.get_fun_with_handler(fun.arity, this,
+					module.getModuleClassLoader());
+		}
+
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return resolve().invoke(proc, args);
+		}
+
+		EFun resolve() {
+			EFun f = value;
+			if (f == null) {
+				synchronized (this) {
+					f = value;
+					if (f == null) {
+						value = f = module.export_value(field);
+					}
+				}
+			}
+			return f;
+		}
+	}
 }
@@ -19,6 +19,10 @@
 
 package erjang.beam;
 
+import java.util.Set;
+
+import org.objectweb.asm.Type;
+
 /**
  * 
  */
@@ -26,5 +30,20 @@ public interface FunctionVisitor2 extends FunctionVisitor {
 
 	public void visitMaxs(int x_count, int y_count, int fp_count,
 			boolean isTailRecursive);
-	
+
+	/**
+	 * Compile the blocks in <code>labels</code> into a method of their own.
+	 * Called after {@link #visitMaxs}, before the first block is visited.
+	 * 
+	 * @param entries the labels in <code>labels</code> that are reached from
+	 *        outside the set; all other control flow stays within the set,
+	 *        except for jumps to the function's <code>func_info</code>.
+	 * @param x_types for each entry, the types of the x registers at that entry
+	 *        (<code>null</code> for undefined registers).
+	 * @param y_types for each entry, the types of the y registers, by stack position.
+	 * @param f_types for each entry, the types of the float registers.
+	 */
+	public void visitSubMethod(int[] entries, Set<Integer> labels,
+			Type[][] x_types, Type[][] y_types, Type[][] f_types);
+
 }
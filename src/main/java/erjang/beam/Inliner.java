@@ -0,0 +1,476 @@
+/** -*- tab-width: 4 -*-
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import erjang.EAtom;
+import erjang.EBinary;
+import erjang.FunID;
+import erjang.beam.loader.ErjangBeamDisLoader;
+import erjang.beam.repr.ExtFun;
+import erjang.beam.repr.FunctionInfo;
+import erjang.beam.repr.FunctionRepr;
+import erjang.beam.repr.Insn;
+import erjang.beam.repr.ModuleRepr;
+import erjang.beam.repr.Operands.DestinationOperand;
+import erjang.beam.repr.Operands.Label;
+import erjang.beam.repr.Operands.SourceOperand;
+
+/**
+ * Inlines small exported functions into callers in other modules.
+ *
+ * Calls to other modules go through the import binding, so the JIT cannot
+ * see through them.  When the callee is a few straight-line instructions
+ * of pure code - a record accessor, or a wrapper around a BIF - we copy
+ * its BEAM code into the caller, before the type analysis.
+ *
+ * The inlined code depends on the version (beam CRC) of the module it came
+ * from, and is guarded by a static boolean in the caller, annotated with
+ * {@link erjang.Inlined}.  The guard is bound like an import, so it is
+ * recomputed whenever <code>EModuleManager.add_export</code> rebinds the
+ * function; it is true only while the function is bound to the version
+ * the code was inlined from.  Otherwise the caller takes the original
+ * call, which is kept as the slow path.
+ *
+ * Callees must already be loaded; the module loader adds every beam it
+ * loads.  Set <code>erj.compiler.inline_size</code> to 0 to turn
+ * inlining off.
+ */
+public class Inliner {
+
+	/** Largest function body we inline, in instructions */
+	public static final int MAX_SIZE =
+		Integer.getInteger("erj.compiler.inline_size", 8);
+
+	/** labels are 16 bits in the type analysis */
+	private static final int MAX_LABEL = 0xffff;
+
+	private static final Set<BeamOpcode> PURE_TESTS = Collections.unmodifiableSet(
+		new HashSet<BeamOpcode>(Arrays.asList(
+			BeamOpcode.is_integer, BeamOpcode.is_float, BeamOpcode.is_number,
+			BeamOpcode.is_atom, BeamOpcode.is_pid, BeamOpcode.is_reference,
+			BeamOpcode.is_port, BeamOpcode.is_nil, BeamOpcode.is_binary,
+			BeamOpcode.is_list, BeamOpcode.is_nonempty_list,
+			BeamOpcode.is_tuple, BeamOpcode.is_function,
+			BeamOpcode.is_boolean, BeamOpcode.is_bitstr,
+			BeamOpcode.test_arity,
+			BeamOpcode.is_lt, BeamOpcode.is_ge, BeamOpcode.is_eq,
+			BeamOpcode.is_ne, BeamOpcode.is_eq_exact, BeamOpcode.is_ne_exact)));
+
+	/** erlang BIFs without side effects, which do not depend on the process */
+	private static final Set<String> PURE_BIFS = Collections.unmodifiableSet(
+		new HashSet<String>(Arrays.asList(
+			"element/2", "hd/1", "tl/1", "size/1", "tuple_size/1",
+			"byte_size/1", "bit_size/1", "length/1",
+			"abs/1", "float/1", "trunc/1", "round/1",
+			"+/2", "-/2", "*/2", "//2", "div/2", "rem/2", "-/1", "+/1",
+			"band/2", "bor/2", "bxor/2", "bsl/2", "bsr/2", "bnot/1",
+			"==/2", "/=/2", "=:=/2", "=/=/2", "</2", ">/2", "=</2", ">=/2",
+			"not/1", "and/2", "or/2", "xor/2",
+			"is_atom/1", "is_binary/1", "is_bitstring/1", "is_boolean/1",
+			"is_float/1", "is_function/1", "is_integer/1", "is_list/1",
+			"is_number/1", "is_pid/1", "is_port/1", "is_reference/1",
+			"is_tuple/1")));
+
+	/** instructions that end a block; others fall through to the next label */
+	private static final Set<BeamOpcode> ENDS_BLOCK = Collections.unmodifiableSet(
+		EnumSet.of(BeamOpcode.K_return, BeamOpcode.if_end, BeamOpcode.badmatch,
+			BeamOpcode.case_end, BeamOpcode.call_last, BeamOpcode.call_only,
+			BeamOpcode.call_ext_last, BeamOpcode.call_ext_only,
+			BeamOpcode.func_info, BeamOpcode.apply_last, BeamOpcode.wait,
+			BeamOpcode.select_tuple_arity, BeamOpcode.select_val,
+			BeamOpcode.jump));
+
+	private static final EAtom am_erlang = EAtom.intern("erlang");
+
+	private static final Map<EAtom, Callee> modules =
+		new ConcurrentHashMap<EAtom, Callee>();
+
+	/** A module we may inline from */
+	private static class Callee {
+		final long version;
+		private SoftReference<EBinary> beam;
+		private Map<FunID, List<Insn>> candidates;
+
+		Callee(long version, EBinary beam) {
+			this.version = version;
+			this.beam = new SoftReference<EBinary>(beam);
+		}
+
+		/** The beam is parsed when we first inline from it; if memory is
+		 *  short by then, we just don't. */
+		synchronized Map<FunID, List<Insn>> candidates() {
+			if (candidates == null) {
+				EBinary data = beam.get();
+				beam = null;
+
+				candidates = Collections.emptyMap();
+				if (data != null) {
+					try {
+						candidates = find_candidates((ModuleRepr)
+								new ErjangBeamDisLoader().load(data.getByteArray()));
+					} catch (IOException e) {
+						// nothing to inline, then
+					}
+				}
+			}
+			return candidates;
+		}
+	}
+
+	/**
+	 * Make a module's exported functions available for inlining; its beam
+	 * becomes the current version of the module.  Must be called before
+	 * the module registers its exports.
+	 */
+	public static void add(EAtom module, EBinary beam) {
+		modules.put(module, new Callee(beam.crc(), beam));
+	}
+
+	/** Forget a deleted module; code inlined from it is no longer current. */
+	public static void remove(EAtom module) {
+		modules.remove(module);
+	}
+
+	/** @return true if <code>version</code> is the current version of <code>module</code> */
+	public static boolean is_current(EAtom module, long version) {
+		Callee c = modules.get(module);
+		return c != null && c.version == version;
+	}
+
+	/**
+	 * Inline calls to small functions in other modules, in place.
+	 *
+	 * <pre>
+	 *     call_ext F               inline_guard Slow F Version
+	 *     ...                      (body of F, failing to Slow)
+	 *                       ==&gt;   jump Cont
+	 *                              label Slow
+	 *                              call_ext F
+	 *                              label Cont
+	 *                              ...
+	 * </pre>
+	 *
+	 * Tail calls return after the body instead.  Blocks fall through to
+	 * the next label number, so <code>Cont</code> is <code>Slow+1</code>,
+	 * and the code after it jumps to the label it used to fall through to.
+	 *
+	 * @return the number of calls inlined
+	 */
+	public static int inline(ModuleRepr mod) {
+		if (MAX_SIZE <= 0 || modules.isEmpty())
+			return 0;
+
+		int next_label = max_label(mod) + 1;
+		int count = 0;
+
+		for (FunctionRepr fun : mod.functions()) {
+			List<Insn> body = fun.body();
+			List<Insn> out = null;
+			boolean moved = false;
+
+			for (int i = 0; i < body.size(); i++) {
+				Insn insn = body.get(i);
+
+				// the rest of a block we have moved to a new label
+				// cannot fall through to the next label any more
+				if (moved && insn.opcode() == BeamOpcode.label) {
+					if (!ENDS_BLOCK.contains(out.get(out.size() - 1).opcode()))
+						out.add(new Insn.L(BeamOpcode.jump, new Label(((Insn.I) insn).i1)));
+					moved = false;
+				}
+
+				Callee callee = null;
+				List<Insn> code = null;
+				switch (insn.opcode()) {
+				case call_ext:
+				case call_ext_only:
+				case call_ext_last: {
+					ExtFun target = ((Insn.IE) insn).ext_fun;
+					if (target.mod != mod.moduleName()
+							&& next_label + 2 <= MAX_LABEL
+							&& (callee = modules.get(target.mod)) != null) {
+						code = callee.candidates().get(
+								new FunID(target.mod, target.fun, target.arity));
+					}
+				}
+				}
+
+				if (code == null) {
+					if (out != null)
+						out.add(insn);
+					continue;
+				}
+
+				if (out == null)
+					out = new ArrayList<Insn>(body.subList(0, i));
+
+				ExtFun target = ((Insn.IE) insn).ext_fun;
+				Label slow = new Label(next_label++);
+
+				out.add(new Insn.InlineGuard(slow, target, callee.version));
+				for (Insn ci : code) {
+					out.add(relabel(ci, slow));
+				}
+
+				switch (insn.opcode()) {
+				case call_ext: {
+					Label cont = new Label(next_label++);
+					out.add(new Insn.L(BeamOpcode.jump, cont));
+					out.add(new Insn.I(BeamOpcode.label, slow.nr));
+					out.add(insn);
+					out.add(new Insn.I(BeamOpcode.label, cont.nr));
+					break;
+				}
+				case call_ext_last:
+					out.add(new Insn.I(BeamOpcode.deallocate, ((Insn.IEI) insn).i3));
+					// fall through
+				default:
+					out.add(new Insn(BeamOpcode.K_return));
+					out.add(new Insn.I(BeamOpcode.label, slow.nr));
+					out.add(insn);
+				}
+
+				moved = true;
+				count += 1;
+			}
+
+			if (out != null)
+				fun.setBody(out);
+		}
+
+		return count;
+	}
+
+	private static int max_label(ModuleRepr mod) {
+		int max = 0;
+		for (FunctionRepr fun : mod.functions()) {
+			for (Insn insn : fun.body()) {
+				if (insn.opcode() == BeamOpcode.label)
+					max = Math.max(max, ((Insn.I) insn).i1);
+			}
+		}
+		return max;
+	}
+
+	/** @return a copy of <code>insn</code> that fails to <code>fail</code> */
+	private static Insn relabel(Insn insn, Label fail) {
+		if (insn instanceof Insn.LDI) {
+			Insn.LDI i = (Insn.LDI) insn;
+			return new Insn.LDI(i.opcode(), fail, i.dest, i.i, true);
+		} else if (insn instanceof Insn.LD) {
+			Insn.LD i = (Insn.LD) insn;
+			return new Insn.LD(i.opcode(), fail, i.dest, true);
+		} else if (insn instanceof Insn.LSS) {
+			Insn.LSS i = (Insn.LSS) insn;
+			return new Insn.LSS(i.opcode(), fail, i.src1, i.src2, true);
+		} else if (insn instanceof Insn.Bif) {
+			Insn.Bif i = (Insn.Bif) insn;
+			if (i.label == null)
+				return insn;
+			switch (i.args.length) {
+			case 0: return new Insn.Bif(i.opcode(), fail, i.ext_fun, i.dest);
+			case 1: return new Insn.Bif(i.opcode(), fail, i.ext_fun, i.args[0], i.dest);
+			default: return new Insn.Bif(i.opcode(), fail, i.ext_fun, i.args[0], i.args[1], i.dest);
+			}
+		} else if (insn instanceof Insn.GcBif) {
+			Insn.GcBif i = (Insn.GcBif) insn;
+			if (i.label == null)
+				return insn;
+			if (i.args.length == 1)
+				return new Insn.GcBif(i.opcode(), fail, i.ext_fun, i.i, i.args[0], i.dest);
+			return new Insn.GcBif(i.opcode(), fail, i.ext_fun, i.i, i.args[0], i.args[1], i.dest);
+		}
+		return insn;
+	}
+
+	//==================== Finding candidates ====================
+
+	private static Map<FunID, List<Insn>> find_candidates(ModuleRepr mod) {
+		Map<FunID, List<Insn>> res = new HashMap<FunID, List<Insn>>();
+
+		// native BIFs replace some exports after the module is loaded
+		try {
+			Class.forName("erjang.m." + mod.moduleName().getName() + ".Native",
+					false, Inliner.class.getClassLoader());
+			return res;
+		} catch (ClassNotFoundException e) {
+			// good
+		}
+
+		Set<FunID> exported = new HashSet<FunID>();
+		for (FunctionInfo exp : mod.exports()) {
+			exported.add(new FunID(mod.moduleName(), exp.fun, exp.arity));
+		}
+
+		for (FunctionRepr fun : mod.functions()) {
+			FunctionInfo sig = fun.signature();
+			FunID id = new FunID(mod.moduleName(), sig.fun, sig.arity);
+			if (!exported.contains(id))
+				continue;
+
+			List<Insn> code = inline_body(fun.body(), sig.arity);
+			if (code != null)
+				res.put(id, code);
+		}
+
+		return res;
+	}
+
+	/**
+	 * A function can be inlined if it is <code>label L1, func_info,
+	 * label L2</code> followed by a few straight-line instructions and
+	 * <code>return</code>.  It must not touch the stack, call anything,
+	 * or fail anywhere but to <code>L1</code>.  When it fails, the caller
+	 * makes the original call instead, so nothing may fail after the
+	 * arguments have been overwritten.
+	 *
+	 * @return the body without its <code>return</code>, or null
+	 */
+	private static List<Insn> inline_body(List<Insn> body, int arity) {
+		int size = body.size();
+		if (size < 4 || size - 4 > MAX_SIZE
+				|| body.get(0).opcode() != BeamOpcode.label
+				|| body.get(1).opcode() != BeamOpcode.func_info
+				|| body.get(2).opcode() != BeamOpcode.label
+				|| body.get(size - 1).opcode() != BeamOpcode.K_return)
+			return null;
+
+		int entry = ((Insn.I) body.get(0)).i1;
+		List<Insn> code = body.subList(3, size - 1);
+		boolean args_written = false;
+
+		for (Insn insn : code) {
+			Label fail = null;
+			DestinationOperand[] dests;
+
+			switch (insn.opcode()) {
+			case move: {
+				Insn.SD i = (Insn.SD) insn;
+				if (!source_ok(i.src)) return null;
+				dests = new DestinationOperand[] { i.dest };
+				break;
+			}
+			case get_tuple_element: {
+				Insn.SID i = (Insn.SID) insn;
+				if (!source_ok(i.src)) return null;
+				dests = new DestinationOperand[] { i.dest };
+				break;
+			}
+			case get_list: {
+				Insn.SDD i = (Insn.SDD) insn;
+				if (!source_ok(i.src)) return null;
+				dests = new DestinationOperand[] { i.dest1, i.dest2 };
+				break;
+			}
+			case put_list: {
+				Insn.SSD i = (Insn.SSD) insn;
+				if (!source_ok(i.src1) || !source_ok(i.src2)) return null;
+				dests = new DestinationOperand[] { i.dest };
+				break;
+			}
+			case put_tuple:
+				dests = new DestinationOperand[] { ((Insn.ID) insn).dest };
+				break;
+			case put:
+				if (!source_ok(((Insn.S) insn).src)) return null;
+				dests = new DestinationOperand[0];
+				break;
+			case test_heap:
+				// registers above the live count are dead from here on
+				if (((Insn.WI) insn).i2 < arity) args_written = true;
+				dests = new DestinationOperand[0];
+				break;
+
+			case bif0:
+			case bif1:
+			case bif2: {
+				Insn.Bif i = (Insn.Bif) insn;
+				if (!pure_bif(i.ext_fun)) return null;
+				for (SourceOperand src : i.args)
+					if (!source_ok(src)) return null;
+				fail = i.label;
+				dests = new DestinationOperand[] { i.dest };
+				break;
+			}
+			case gc_bif1:
+			case gc_bif2: {
+				Insn.GcBif i = (Insn.GcBif) insn;
+				if (!pure_bif(i.ext_fun)) return null;
+				for (SourceOperand src : i.args)
+					if (!source_ok(src)) return null;
+				if (i.i < arity) args_written = true;
+				fail = i.label;
+				dests = new DestinationOperand[] { i.dest };
+				break;
+			}
+
+			default:
+				if (!PURE_TESTS.contains(insn.opcode()))
+					return null;
+				if (insn instanceof Insn.LSS) {
+					Insn.LSS i = (Insn.LSS) insn;
+					if (!i.is_test || !source_ok(i.src1) || !source_ok(i.src2))
+						return null;
+				} else if (insn instanceof Insn.LD && !(insn instanceof Insn.LDS)) {
+					Insn.LD i = (Insn.LD) insn;
+					if (!i.is_test || !source_ok(i.dest))
+						return null;
+				} else {
+					return null;
+				}
+				fail = ((Insn.L) insn).label;
+				dests = new DestinationOperand[0];
+			}
+
+			if (fail != null && (fail.nr != entry || args_written))
+				return null;
+
+			for (DestinationOperand dest : dests) {
+				if (dest.testXReg() == null)
+					return null;
+				if (dest.testXReg().nr < arity)
+					args_written = true;
+			}
+		}
+
+		return new ArrayList<Insn>(code);
+	}
+
+	private static boolean source_ok(SourceOperand src) {
+		return src.testYReg() == null && src.testFReg() == null;
+	}
+
+	private static boolean pure_bif(ExtFun fun) {
+		return fun.mod == am_erlang
+			&& PURE_BIFS.contains(fun.fun.getName() + "/" + fun.arity);
+	}
+}
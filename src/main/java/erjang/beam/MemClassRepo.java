@@ -0,0 +1,62 @@
+/** -*- tab-width: 4 -*-
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps generated classes in memory, so the compiler can look at them
+ * before they are written to the real repository.
+ */
+public class MemClassRepo implements ClassRepo {
+
+	private final Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+
+	@Override
+	public void store(String internal_name, byte[] data) throws IOException {
+		classes.put(internal_name, data);
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	public byte[] get(String internal_name) {
+		return classes.get(internal_name);
+	}
+
+	/** Add the classes from <code>other</code> that are not here.  The
+	 *  weaver generates its state classes only the first time they are needed. */
+	public void addMissing(MemClassRepo other) {
+		for (Map.Entry<String, byte[]> ent : other.classes.entrySet()) {
+			if (!classes.containsKey(ent.getKey())) {
+				classes.put(ent.getKey(), ent.getValue());
+			}
+		}
+	}
+
+	/** Store all classes in <code>repo</code>, in the order they were generated. */
+	public void copyTo(ClassRepo repo) throws IOException {
+		for (Map.Entry<String, byte[]> ent : classes.entrySet()) {
+			repo.store(ent.getKey(), ent.getValue());
+		}
+	}
+}
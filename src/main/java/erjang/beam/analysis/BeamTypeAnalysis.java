@@ -20,6 +20,7 @@ package erjang.beam.analysis;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +29,11 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.objectweb.asm.Type;
 
@@ -63,6 +69,10 @@ import erjang.beam.BeamExceptionHandler;
 import erjang.beam.BlockVisitor;
 import erjang.beam.BlockVisitor2;
 import erjang.beam.BuiltInFunction;
+import erjang.beam.CompilerStats;
+import erjang.beam.CompilerStats.Phase;
+import erjang.beam.CompilerStats.Profile;
+import erjang.beam.EUtil;
 import erjang.beam.ExtFunc;
 import erjang.beam.FunctionAdapter;
 import erjang.beam.FunctionVisitor;
@@ -113,6 +123,100 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 	private List<FV> functions = new ArrayList<FV>();
 
+	/** java name -> size of the generated method, for functions to split. */
+	private Map<String, Integer> split_sizes = Collections.emptyMap();
+
+	/**
+	 * Ask for the given functions to be split into several methods, so that
+	 * each of them stays below {@link CompilerStats#MAX_METHOD_SIZE}.
+	 * 
+	 * @param sizes java method name -> size of the method when not split
+	 */
+	public void setSplitSizes(Map<String, Integer> sizes) {
+		this.split_sizes = sizes;
+	}
+
+	private Profile profile = new Profile();
+
+	/** Charge the time spent in this phase, and in code generation, to <code>profile</code>. */
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Number of threads used to analyze the functions of a module.  The
+	 * analysis of one function does not depend on any other, so they are
+	 * analyzed in parallel once the whole module has been read; code is
+	 * then generated for them in order, on the calling thread.  Not
+	 * final, so that tests can compare with single-threaded output.
+	 */
+	static int THREADS = Integer.getInteger("erj.compiler.threads",
+			Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService analysis_pool;
+
+	private static synchronized ExecutorService analysis_pool() {
+		if (analysis_pool == null) {
+			analysis_pool = Executors.newFixedThreadPool(THREADS,
+					new ThreadFactory() {
+						int count = 0;
+
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "erjang-compiler-"
+									+ (++count));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return analysis_pool;
+	}
+
+	@Override
+	public void visitEnd() {
+		analyze_functions();
+
+		long[] start = profile.begin();
+		for (FV f : functions) {
+			f.function_visit_end();
+		}
+		super.visitEnd();
+		profile.end(Phase.CODEGEN, start);
+	}
+
+	private void analyze_functions() {
+		if (THREADS <= 1 || functions.size() < 2) {
+			for (FV f : functions) {
+				f.analyze_function();
+			}
+			return;
+		}
+
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (final FV f : functions) {
+			results.add(analysis_pool().submit(new Runnable() {
+				public void run() {
+					f.analyze_function();
+				}
+			}));
+		}
+
+		for (Future<?> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				throw new Error(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error)
+					throw (Error) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new Error(cause);
+			}
+		}
+	}
+
 	@Override
 	public FunctionVisitor visitFunction(EAtom name, int arity, int startLabel) {
 		FV f = new FV(super.visitFunction(name, arity, startLabel), name,
@@ -121,6 +225,9 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 		return f;
 	}
 
+	/** Regions smaller than this (in instructions) are not worth a method call. */
+	static final int MIN_SPLIT_SIZE = 8;
+
 	class FV extends FunctionAdapter implements BeamFunction {
 
 		BasicBlock makeBasicBlock(int label, int index) {
@@ -222,6 +329,11 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 		@Override
 		public void visitEnd() {
+			// analyzed with the rest of the module, see BeamTypeAnalysis.visitEnd
+		}
+
+		void analyze_function() {
+			long[] start = profile.begin();
 
 			if (this.name.getName().equals("load")) {
 				dump();
@@ -278,15 +390,15 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				this.dump();
 			}
 
-			function_visit_end();
-
+			profile.end(Phase.TYPE_ANALYSIS, start);
 		}
 
-		private void function_visit_end() {
+		void function_visit_end() {
 
 			if (fv instanceof FunctionVisitor2) {
 				((FunctionVisitor2) fv).visitMaxs(this.max_xreg,
 						this.max_stack, this.max_freg, this.is_tail_recursive);
+				split_function((FunctionVisitor2) fv);
 			}
 
 			for (LabeledBlock block : this.lbs.values()) {
@@ -309,6 +421,284 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 			super.fv.visitEnd();
 		}
 
+		/**
+		 * Find parts of this function that can live in methods of their own,
+		 * until what is left is small enough.  A part is a set of blocks
+		 * closed under the successor relation of the basic blocks, with a
+		 * single entry label: so control never comes back from it, and the
+		 * call to its method can simply return what the method returns.
+		 */
+		private void split_function(FunctionVisitor2 fv) {
+			Integer size = split_sizes.get(EUtil.getJavaName(name, arity));
+			if (size == null || size <= CompilerStats.MAX_METHOD_SIZE)
+				return;
+
+			// all registers are passed as arguments; at most 255 slots.
+			if (1 + max_xreg + max_stack + 2 * max_freg + 1 > 255)
+				return;
+
+			int total = 0;
+			for (LabeledBlock lb : lbs.values()) {
+				if (!lb.isDeadCode())
+					total += lb.insns.size();
+			}
+			if (total == 0)
+				return;
+
+			// budget, in instructions, for each method we generate
+			int budget = (int) ((long) total
+					* (CompilerStats.MAX_METHOD_SIZE * 3 / 4) / size);
+
+			Map<Integer, Set<Integer>> succ = new TreeMap<Integer, Set<Integer>>();
+			Map<Integer, Set<Integer>> pred = new TreeMap<Integer, Set<Integer>>();
+			for (BasicBlock bb : bbs.values()) {
+				for (BasicBlock s : bb.succ) {
+					if (s.label == bb.label)
+						continue;
+					add_edge(succ, bb.label, s.label);
+					add_edge(pred, s.label, bb.label);
+				}
+			}
+
+			List<SortedSet<Integer>> candidates = new ArrayList<SortedSet<Integer>>();
+			for (LabeledBlock lb : lbs.values()) {
+				SortedSet<Integer> region = split_region(lb.block_label, succ,
+						pred, budget);
+				if (region != null && region_size(region) >= MIN_SPLIT_SIZE)
+					candidates.add(region);
+			}
+
+			Collections.sort(candidates, new Comparator<SortedSet<Integer>>() {
+				@Override
+				public int compare(SortedSet<Integer> o1, SortedSet<Integer> o2) {
+					return region_size(o2) - region_size(o1);
+				}
+			});
+
+			// regions with a single entry are either nested or disjoint;
+			// take the biggest ones until the rest fits.
+			Set<Integer> taken = new HashSet<Integer>();
+			TreeMap<Integer, SortedSet<Integer>> chosen = new TreeMap<Integer, SortedSet<Integer>>();
+			int left = total;
+			for (SortedSet<Integer> region : candidates) {
+				if (left <= budget)
+					break;
+				if (Collections.disjoint(region, taken)) {
+					taken.addAll(region);
+					chosen.put(entry_of(region, pred), region);
+					left -= region_size(region);
+				}
+			}
+
+			if (chosen.isEmpty())
+				return;
+
+			// pack the regions into as few methods as possible
+			List<Integer> group = new ArrayList<Integer>();
+			Set<Integer> group_labels = new TreeSet<Integer>();
+			int group_size = 0;
+			for (Map.Entry<Integer, SortedSet<Integer>> ent : chosen.entrySet()) {
+				int size_of = region_size(ent.getValue());
+				if (!group.isEmpty()
+						&& (group_size + size_of > budget || !compatible(group, ent.getKey()))) {
+					visit_sub_method(fv, group, group_labels);
+					group = new ArrayList<Integer>();
+					group_labels = new TreeSet<Integer>();
+					group_size = 0;
+				}
+				group.add(ent.getKey());
+				group_labels.addAll(ent.getValue());
+				group_size += size_of;
+			}
+			visit_sub_method(fv, group, group_labels);
+		}
+
+		private void add_edge(Map<Integer, Set<Integer>> edges, int from, int to) {
+			Set<Integer> set = edges.get(from);
+			if (set == null) {
+				edges.put(from, set = new TreeSet<Integer>());
+			}
+			set.add(to);
+		}
+
+		private int entry_of(SortedSet<Integer> region, Map<Integer, Set<Integer>> pred) {
+			for (int label : region) {
+				Set<Integer> from = pred.get(label);
+				if (from != null && !region.containsAll(from))
+					return label;
+			}
+			throw new Error("region without entry: " + region);
+		}
+
+		/**
+		 * @return the labels reachable from <code>entry</code>, if that is a
+		 *         region we can split off; or <code>null</code>.
+		 */
+		private SortedSet<Integer> split_region(int entry,
+				Map<Integer, Set<Integer>> succ, Map<Integer, Set<Integer>> pred,
+				int budget) {
+			if (!can_split(lbs.get(entry)) || !can_pass(lbs.get(entry).initial))
+				return null;
+			Set<Integer> entry_pred = pred.get(entry);
+			if (entry_pred == null || entry_pred.isEmpty())
+				return null;
+
+			SortedSet<Integer> region = new TreeSet<Integer>();
+			List<Integer> work = new ArrayList<Integer>();
+			work.add(entry);
+			int size = 0;
+			while (!work.isEmpty()) {
+				int label = work.remove(work.size() - 1);
+				if (!region.add(label))
+					continue;
+
+				LabeledBlock lb = lbs.get(label);
+				if (!can_split(lb))
+					return null;
+				size += lb.insns.size();
+				if (size > budget)
+					return null;
+
+				Set<Integer> next = succ.get(label);
+				if (next == null)
+					continue;
+				for (int n : next) {
+					// the code for func_info can be repeated
+					// in the new method; no need to go there.
+					if (!is_func_info(lbs.get(n)))
+						work.add(n);
+				}
+			}
+
+			for (int label : region) {
+				if (label == entry)
+					continue;
+				if (!region.containsAll(pred.get(label)))
+					return null;
+			}
+
+			if (region.containsAll(entry_pred))
+				return null;
+
+			return region;
+		}
+
+		private boolean can_split(LabeledBlock lb) {
+			if (lb == null || lb.isDeadCode())
+				return false;
+			if (lb.block_label == startLabel)
+				return false;
+			if (lb.initial.exh != null
+					|| blocks_with_ambiguous_exh.containsKey(lb.block_label))
+				return false;
+
+			for (Insn insn : lb.insns) {
+				switch (insn.opcode()) {
+				case func_info:
+				case K_try:
+				case K_catch:
+				case try_end:
+				case try_case:
+				case catch_end:
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/** Registers are passed as objects or ints; but nothing else. */
+		private boolean can_pass(TypeMap map) {
+			for (Type t : x_types(map)) {
+				if (t != null && t.getSort() != Type.OBJECT && !is_int(t))
+					return false;
+			}
+			for (Type t : y_types(map)) {
+				if (t != null && t.getSort() != Type.OBJECT && !is_int(t))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean is_func_info(LabeledBlock lb) {
+			return lb != null && !lb.insns.isEmpty()
+					&& lb.insns.get(0).opcode() == BeamOpcode.func_info;
+		}
+
+		private int region_size(Set<Integer> region) {
+			int size = 0;
+			for (int label : region) {
+				size += lbs.get(label).insns.size();
+			}
+			return size;
+		}
+
+		/** Can <code>entry</code> share a method with the entries in <code>group</code>?
+		 *  Only if no register is an int in one and an object in another. */
+		private boolean compatible(List<Integer> group, int entry) {
+			Type[] xe = x_types(lbs.get(entry).initial);
+			Type[] ye = y_types(lbs.get(entry).initial);
+			for (int other : group) {
+				if (!compatible(xe, x_types(lbs.get(other).initial))
+						|| !compatible(ye, y_types(lbs.get(other).initial)))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean compatible(Type[] t1, Type[] t2) {
+			for (int i = 0; i < t1.length; i++) {
+				if (t1[i] != null && t2[i] != null
+						&& is_int(t1[i]) != is_int(t2[i]))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean is_int(Type t) {
+			return t.equals(Type.INT_TYPE) || t.equals(Type.BOOLEAN_TYPE);
+		}
+
+		private void visit_sub_method(FunctionVisitor2 fv, List<Integer> entries,
+				Set<Integer> labels) {
+			int[] entry_labels = new int[entries.size()];
+			Type[][] x = new Type[entries.size()][];
+			Type[][] y = new Type[entries.size()][];
+			Type[][] f = new Type[entries.size()][];
+			for (int i = 0; i < entry_labels.length; i++) {
+				TypeMap map = lbs.get(entries.get(i)).initial;
+				entry_labels[i] = entries.get(i);
+				x[i] = x_types(map);
+				y[i] = y_types(map);
+				f[i] = f_types(map);
+			}
+			fv.visitSubMethod(entry_labels, labels, x, y, f);
+		}
+
+		private Type[] x_types(TypeMap map) {
+			Type[] res = new Type[max_xreg];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = map.getx(i);
+			}
+			return res;
+		}
+
+		private Type[] y_types(TypeMap map) {
+			Type[] res = new Type[max_stack];
+			for (int pos = 0; pos < map.stacksize && pos < res.length; pos++) {
+				res[pos] = map.gety(map.stacksize - pos - 1);
+			}
+			return res;
+		}
+
+		private Type[] f_types(TypeMap map) {
+			Type[] res = new Type[max_freg];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = map.getf(i);
+			}
+			return res;
+		}
+
 		private void function_visit_end_aux(LabeledBlock block, int ext_label, BeamExceptionHandler exh) {
 			BlockVisitor vis = super.fv.visitLabeledBlock(ext_label);
 			try {
@@ -380,6 +770,9 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 			boolean last = false;
 			TypeMap[] map;
 
+			/** index of the last insn in the current run of bit string tests */
+			private int bs_run_end;
+
 			public LabeledBlock(int label) {
 				this.block_label = label;
 				initial = null;
@@ -419,6 +812,7 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 			private void accept_2(BlockVisitor2 vis, BeamExceptionHandler exh) {
 				int tuple_pos = 0;
 				Arg tuple_reg = null;
+				bs_run_end = -1;
 
 				vis.visitBegin(exh);
 
@@ -593,6 +987,8 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					case bs_get_integer2:
 					case bs_get_float2:
 					case bs_get_binary2:
+						// pseudo:
+					case inline_guard:
 						accept_2_test(vis, (Insn.L)insn_, insn_idx);
 						break;
 
@@ -1015,6 +1411,11 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				} else
 					throw new Error("unexpected in do_call: "+insn);
 
+				if (is_external && is_setelement(fun)) {
+					Arg index = constant_x0(insn_idx);
+					if (index != null) args[0] = index;
+				}
+
 				vis.visitCall(fun, args, is_tail, is_external);
 			}
 
@@ -1023,6 +1424,10 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				int failLabel = decode_labelref(insn_.label, this.map[insn_idx].exh);
 				BeamOpcode test = insn_.opcode();
 
+				if (insn_idx > bs_run_end && bs_const_bits(insn_) >= 0) {
+					visit_bs_run(vis, insn_idx, failLabel);
+				}
+
 				if (insn_ instanceof Insn.LD) { // Handle simple type tests:
 					Insn.LD insn = (Insn.LD)insn_;
 					Arg arg = src_arg(insn_idx, insn.dest);
@@ -1125,6 +1530,12 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 										   insn.i4);
 					break;
 				}
+
+				case inline_guard: {
+					Insn.InlineGuard insn = (Insn.InlineGuard) insn_;
+					vis.visitInlineGuard(insn.ext_fun, insn.version, failLabel);
+					break;
+				}
 				default:
 					throw new Error("unhandled test: " + insn_.toSymbolic() +
 									" at index " + insn_idx +
@@ -1133,6 +1544,69 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 
 			}
 
+			/**
+			 * Find the run of constant-size bit string tests starting at
+			 * <code>insn_idx</code> that read from the same match state and
+			 * share a fail label, and tell the visitor about it.
+			 */
+			private void visit_bs_run(BlockVisitor2 vis, int insn_idx, int failLabel) {
+				Arg in = src_arg(insn_idx, ((Insn.LD) insns.get(insn_idx)).dest);
+				long total = 0;
+				int end = insn_idx;
+
+				for (int i = insn_idx; i < insns.size(); i++) {
+					long bits = bs_const_bits(insns.get(i));
+					if (bits < 0) break;
+					Insn.L insn = (Insn.L) insns.get(i);
+					if (!in.equals(src_arg(i, ((Insn.LD) insn).dest))
+						|| decode_labelref(insn.label, map[i].exh) != failLabel)
+						break;
+					total += bits;
+					end = i;
+				}
+
+				bs_run_end = end;
+				if (end > insn_idx && total <= Integer.MAX_VALUE) {
+					vis.visitBitStringRun(in, failLabel, (int) total,
+										  end - insn_idx + 1);
+				}
+			}
+
+			/**
+			 * @return the number of bits matched by a bit string test of
+			 *         constant size, or -1
+			 */
+			private long bs_const_bits(Insn insn_) {
+				switch (insn_.opcode()) {
+				case bs_get_integer2: {
+					Insn.LDISIID insn = (Insn.LDISIID) insn_;
+					Operands.Int size = insn.src4.testInt();
+					if (size == null) return -1;
+					long bits = (long) size.value * insn.i5;
+					return (bits > 0 && bits <= 64) ? bits : -1;
+				}
+				case bs_get_binary2: {
+					// bs_get_binary2 always counts in bytes
+					Insn.LDISIID insn = (Insn.LDISIID) insn_;
+					Operands.Int size = insn.src4.testInt();
+					if (size == null || insn.i5 != 8 || size.value < 0) return -1;
+					return size.value * 8L;
+				}
+				case bs_skip_bits2: {
+					Insn.LDSII insn = (Insn.LDSII) insn_;
+					Operands.Int size = insn.src3.testInt();
+					if (size == null || size.value < 0) return -1;
+					return (long) size.value * insn.i4;
+				}
+				case bs_match_string: {
+					Insn.LDBi insn = (Insn.LDBi) insn_;
+					return insn.bin.value.bitSize();
+				}
+				default:
+					return -1;
+				}
+			}
+
 			/**
 			 * @param insn_idx
 			 * @param array
@@ -1543,6 +2017,8 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					case bs_get_integer2:
 					case bs_get_float2:
 					case bs_get_binary2:
+						// pseudo:
+					case inline_guard:
 					{
 						try {
 							current = analyze_test(current, (Insn.L)insn_, insn_idx);
@@ -1792,7 +2268,14 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 						Insn.I insn = (Insn.I) insn_;
 						int argCount = insn.i1;
 						current.touchx(0, argCount);
-						current = current.setx(0, EOBJECT_TYPE);
+						Type result = EOBJECT_TYPE;
+						if (insn instanceof Insn.IE
+								&& is_setelement(((Insn.IE) insn).ext_fun)
+								&& known_tuple_type(current.getx(1))) {
+							// a copy of the same tuple class
+							result = current.getx(1);
+						}
+						current = current.setx(0, result);
 						continue next_insn;
 					}
 
@@ -1985,6 +2468,38 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 				}
 			}
 
+			/**
+			 * Record updates load a constant index into x0 just before
+			 * calling setelement/3; find it so that the call can store
+			 * straight into the field.
+			 * 
+			 * @return the integer moved into x0 by the moves right
+			 *         before <code>insn_idx</code>, or null
+			 */
+			private Arg constant_x0(int insn_idx) {
+				for (int i = insn_idx - 1; i >= 0; i--) {
+					Insn insn = insns.get(i);
+					BeamOpcode op = insn.opcode();
+					if (op == BeamOpcode.init || op == BeamOpcode.trim)
+						continue; // only touch y registers
+					if (op != BeamOpcode.move)
+						return null;
+
+					Insn.SD move = (Insn.SD) insn;
+					if (move.dest instanceof Operands.XReg
+							&& ((Operands.XReg) move.dest).nr == 0) {
+						return move.src instanceof Operands.Int
+							? src_arg(i, move.src) : null;
+					}
+				}
+				return null;
+			}
+
+			boolean is_setelement(ExtFun fun) {
+				return fun.mod == ERLANG_ATOM && fun.fun == SETELEMENT_ATOM
+					&& fun.arity == 3;
+			}
+
 			boolean is_exceptional_call(Insn insn) {
 				BeamOpcode opcode = insn.opcode();
 				if (opcode == BeamOpcode.call_ext) {
@@ -2091,6 +2606,10 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 					return current;
 				}
 
+				case inline_guard:
+					// reads no registers
+					return current;
+
 				case bs_start_match2: {
 					Insn.LDIID insn = (Insn.LDIID) insn_;
 					checkArg(current, insn.dest);
@@ -2237,6 +2756,15 @@ public class BeamTypeAnalysis extends ModuleAdapter {
 			}
 
 
+			/** @return true for ETuple1, ETuple2, ... */
+			private boolean known_tuple_type(Type type) {
+				if (type == null) return false;
+				String in = type.getInternalName();
+				String pfx = ETUPLE_TYPE.getInternalName();
+				return in.startsWith(pfx) && in.length() > pfx.length()
+					&& !in.equals(pfx + "0");
+			}
+
 			private Type getTupleType(int arity) {
 
 				ETuple.get_tuple_class(arity);
@@ -32,7 +32,7 @@ my %TYPES_DECODE =
 my %TYPES_ENCODE =
 (
  'c' => "encodeLiteral(#)",
- 'x' => "#.nr",
+ 'x' => "encodeXReg(#.nr)",
  'y' => "#.nr",
  'I' => "#",
  'L' => "encodeLabel(#.nr)",
@@ -65,6 +65,8 @@ my @METAS = ('GET', 'SET', 'GOTO', 'TABLEJUMP', 'GET_PC');
 my $enum_code  = "";
 my $interp_code = "";
 my $encoder_code = "";
+my $super_encoder_code = "";
+my %super_prefixes = ();
 my $enum_count = 0;
 
 sub reverse_map {
@@ -148,11 +150,11 @@ sub process_instruction_rec {
 		    $encoder_code .= $eindent if ($first_bt);
 		    if (exists $PRIMITIVE_TYPES{$base_type}) {
 			$encoder_code .= "/*Prim: $base_type*/";
-			$encoder_code .= "\t$opClass typed_$arg = ($opClass)typed_insn.$arg_src_name;\n";
+			$encoder_code .= "\t$opClass typed_$arg = ($opClass)$arg_src_name;\n";
 		    } else {
 			$encoder_code .= "/*Nonprim: $base_type*/";
-			$encoder_code .= "if (typed_insn.$arg_src_name instanceof $opClass) {\n";
-			$encoder_code .= $eindent."\t$opClass typed_$arg = ($opClass)typed_insn.$arg_src_name;\n";
+			$encoder_code .= "if ($arg_src_name instanceof $opClass) {\n";
+			$encoder_code .= $eindent."\t$opClass typed_$arg = ($opClass)$arg_src_name;\n";
 		    }
 		    my $encoding_exp_code = subst($TYPES_ENCODE{$base_type},
 						  "typed_$arg");
@@ -162,7 +164,7 @@ sub process_instruction_rec {
 		    my $decl = "int _$arg = code[pc++];\n\t\t";
 		    $new_code_acc .= $decl;
 		} else {
-		    $encoder_code .= "if (typed_insn.$arg_src_name == null) {\n";
+		    $encoder_code .= "if ($arg_src_name == null) {\n";
 		}
 
 		# Setup args for recursive call:
@@ -180,7 +182,7 @@ sub process_instruction_rec {
 		}
 		$first_bt = 0;
 	    }
-	    $encoder_code .= "throw new Error(\"Unrecognized operand: \"+typed_insn.$arg_src_name);\n";
+	    $encoder_code .= "throw new Error(\"Unrecognized operand: \"+$arg_src_name);\n";
 	}
     } else {
 #	$enum_code .= "$insname,\n";
@@ -226,8 +228,13 @@ sub process_instruction {
 				   $code_acc, $varmap);
 }
 
+sub class_name {
+    my ($cls) = @_;
+    return ($cls eq 'Insn') ? $cls : "Insn.$cls";
+}
+
 sub parse() {
-    my $cur_ins_class;
+    my @cur_ins_classes;
     my @cls_arg_names_ = ();
     my @cls_arg_types = ();
     $_ = <>; do {{
@@ -235,17 +242,22 @@ sub parse() {
 	s/\#.*//;
 	if (/^$/) {
 	    next;
-	} elsif (/^%class (\w+)\(([^\)]*)\)$/) {
-	    $cur_ins_class = $1;
-	    $cur_ins_class = "Insn.$cur_ins_class" unless ($cur_ins_class eq 'Insn');
-	    my $tmp = $2;
+	} elsif (/^%(class|super) ([\w ]+)\(([^\)]*)\)$/) {
+	    # "%class C(fields)" describes one instruction of class C;
+	    # "%super C1 C2(fields1 | fields2)" describes a superinstruction,
+	    # which is a pair of instructions of classes C1 and C2.
+	    @cur_ins_classes = map {class_name($_)} split(/\s+/, $2);
+	    die "Bad class count ($_)" unless (scalar @cur_ins_classes == ($1 eq 'super' ? 2 : 1));
+	    my $tmp = $3;
+	    my $insn_var = "typed_insn";
 	    @cls_arg_names = @cls_arg_types = ();
 	    for my $arg (split(/\s+/, $tmp)) {
+		if ($arg eq '|') {$insn_var = "typed_insn2"; next;}
 		die "Bad class field syntax ($tmp)" unless ($arg =~ /^([\w.\[\]]+):(\w\d?),?$/);
-		push(@cls_arg_names, $1);
+		push(@cls_arg_names, "$insn_var.$1");
 		push(@cls_arg_types, $2);
 	    }
-	} elsif (/^(\w+)\s*([\w\s]*):(.*)$/) {
+	} elsif (/^(\w+)\s*([\w\s]*):(.*)$/ && scalar @cur_ins_classes == 1) {
 	    my $insname = $1;
 	    my $directives = $3;
 	    my @args = split(/\s+/, $2);
@@ -255,13 +267,36 @@ sub parse() {
 	    my $action = <>; chomp $action;
 	    die unless ($action =~ /^\s/);
 	    $action =~ s/^\s+//;
+	    my $cur_ins_class = $cur_ins_classes[0];
 	    $encoder_code .= "case $insname: {\n".
 		"\t$cur_ins_class typed_insn = ($cur_ins_class) insn;\n";
 	    process_instruction($insname, $directives,
 				\%argmap, \@cls_arg_names, \@cls_arg_types,
 				$action);
 	    $encoder_code .= "\n} break;\n";
-	    $enum_count = int($enum_count/100+1)*100;# DEBUG
+	} elsif (/^(\w+)\+(\w+)\s*([\w\s]*):\s*$/ && scalar @cur_ins_classes == 2) {
+	    my ($ins1, $ins2) = ($1, $2);
+	    my $insname = "${ins1}__${ins2}";
+	    my @args = split(/\s+/, $3);
+	    my %argmap = reverse_map(@args);
+	    die "Bad arg count" unless (scalar @args == scalar @cls_arg_names);
+
+	    my $action = <>; chomp $action;
+	    die unless ($action =~ /^\s/);
+	    $action =~ s/^\s+//;
+	    my ($cls1, $cls2) = @cur_ins_classes;
+
+	    # Generate into the superinstruction encoder instead:
+	    my $saved_encoder_code = $encoder_code;
+	    $encoder_code = "if (insn.opcode() == BeamOpcode.$ins1 && insn2.opcode() == BeamOpcode.$ins2) {\n".
+		"\t$cls1 typed_insn = ($cls1) insn;\n".
+		"\t$cls2 typed_insn2 = ($cls2) insn2;\n";
+	    process_instruction($insname, '',
+				\%argmap, \@cls_arg_names, \@cls_arg_types,
+				$action);
+	    $super_encoder_code .= $encoder_code . "\nreturn true;\n}\n";
+	    $encoder_code = $saved_encoder_code;
+	    $super_prefixes{$ins1} = 1;
 	} else {
 	    die "Does not understand this line:\n\t$_\n";
 	}
@@ -287,7 +322,10 @@ sub writeFile($$) {
 sub emit {
     my $encoder_template = readFile("Interpreter.template");
     $enum_code .= "\tpublic static final short MAX_OPCODE = $enum_count;\n";
+    my $prefix_code = join('', map {"case $_:\n"} sort keys %super_prefixes);
     my $subst_map = {'ENCODE' => $encoder_code,
+		     'ENCODE_SUPER' => $super_encoder_code,
+		     'SUPER_PREFIXES' => $prefix_code,
 		     'ENUM' => $enum_code,
 		     'INTERPRET' => $interp_code};
     writeFile("Interpreter.java", multi_subst($encoder_template,$subst_map));
@@ -77,7 +77,7 @@ get_list src h t:
 
 %class SID(src:S i:I dest:D)
 get_tuple_element src pos dst:
-	System.err.println("DB| get_tuple_element: "+GET(src)+", "+GET(pos)); SET(dst, ((ETuple)GET(src)).elm(1+GET(pos)));
+	SET(dst, ((ETuple)GET(src)).elm(1+GET(pos)));
 
 %class ID(i1:I dest:D)
 put_tuple size dst: encoder_side_effect(tuple_pos=0;)
@@ -189,12 +189,12 @@ call_last keep lbl dealloc:
 
 %class Bif(ext_fun:E dest:D label:L0)
 bif0 bif dest onFail:
-	{System.err.println("INTP| invoking bif0 "+GET(bif)); EObject tmp = GET(bif).invoke(proc, new EObject[]{}); if (tmp==null) GOTO(onFail); SET(dest, tmp);}
+	{if (DEBUG) System.err.println("INTP| invoking bif0 "+GET(bif)); EObject tmp = GET(bif).invoke(proc, new EObject[]{}); if (tmp==null) GOTO(onFail); SET(dest, tmp);}
 
 %class GcBif(ext_fun:E args[0]:S args[1]:S dest:D label:L)
 
 gc_bif2 bif arg1 arg2 dest onFail:
-	{System.err.println("INTP| invoking bif "+GET(bif)+" with "+GET(arg1)+","+GET(arg2)); EObject tmp = GET(bif).invoke(proc, new EObject[]{GET(arg1), GET(arg2)}); if (tmp==null) GOTO(onFail); SET(dest, tmp);}
+	{if (DEBUG) System.err.println("INTP| invoking bif "+GET(bif)+" with "+GET(arg1)+","+GET(arg2)); EObject tmp = GET(bif).invoke(proc, new EObject[]{GET(arg1), GET(arg2)}); if (tmp==null) GOTO(onFail); SET(dest, tmp);}
 # TODO: Streamline these calls - e.g. cast to EFun2 instead of creating array
 
 
@@ -233,3 +233,46 @@ bs_test_tail2 failLabel src bits_left:
 #exh = GET(lbl);
 
 ##########==========       FLOATING-POINT    	  ==========##########
+
+##########==========     SUPERINSTRUCTIONS    	  ==========##########
+# Common pairs of instructions, encoded as one.  Actions must end in
+# their only GOTO, as GOTO does not leave the action.
+
+%super SD SD(src:S dest:D | src:S dest:D)
+move+move src1 dst1 src2 dst2:
+	SET(dst1, GET(src1)); SET(dst2, GET(src2));
+
+%super SID SID(src:S i:I dest:D | src:S i:I dest:D)
+get_tuple_element+get_tuple_element src1 pos1 dst1 src2 pos2 dst2:
+	SET(dst1, ((ETuple)GET(src1)).elm(1+GET(pos1))); SET(dst2, ((ETuple)GET(src2)).elm(1+GET(pos2)));
+
+%super SD IL(src:S dest:D | i1:I label:L)
+move+call src dst keep lbl:
+	SET(dst, GET(src)); proc.stack=stack; proc.sp=sp; reg[0] = invoke(proc, reg, GET(keep), GET_PC(lbl));
+
+move+call_only src dst _keep lbl:
+	SET(dst, GET(src)); GOTO(lbl);
+
+%super SD ILI(src:S dest:D | i1:I label:L i3:I)
+move+call_last src dst _keep lbl dealloc:
+	SET(dst, GET(src)); sp -= GET(dealloc); GOTO(lbl);
+
+%super SD Insn(src:S dest:D |)
+move+K_return src dst:
+	SET(dst, GET(src)); if (true) return reg[0];
+
+%super I Insn(i1:I |)
+deallocate+K_return _slots:
+	if (true) return reg[0];
+
+%super LD LDI(label:L dest:D | label:L dest:D i:I)
+is_tuple+test_arity lbl1 arg1 lbl2 arg2 arity:
+	if (GET(arg1).testTuple() == null) GOTO(lbl1); else if (GET(arg2).testTuple() == null || ((ETuple)GET(arg2)).arity() != GET(arity)) GOTO(lbl2);
+
+%super LDI SID(label:L dest:D i:I | src:S i:I dest:D)
+test_arity+get_tuple_element lbl arg arity src pos dst:
+	if (GET(arg).testTuple() == null || ((ETuple)GET(arg)).arity() != GET(arity)) GOTO(lbl); else SET(dst, ((ETuple)GET(src)).elm(1+GET(pos)));
+
+%super LD SDD(label:L dest:D | src:S dest1:D dest2:D)
+is_nonempty_list+get_list lbl arg src h t:
+	{ECons cons = GET(arg).testNonEmptyList(); if (cons == null) GOTO(lbl); else {cons = GET(src).testNonEmptyList(); SET(h, cons.head()); SET(t, cons.tail());}}
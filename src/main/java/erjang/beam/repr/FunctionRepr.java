@@ -41,6 +41,10 @@ public class FunctionRepr {
 		this.body = body;
 	}
 
+	public FunctionInfo signature() {return sig;}
+	public List<Insn> body() {return body;}
+	public void setBody(List<Insn> body) {this.body = body;}
+
 	//==================== Visitation ====================
 	public void accept(ModuleVisitor mv) {
 		FunctionVisitor fv =
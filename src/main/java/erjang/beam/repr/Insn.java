@@ -1046,4 +1046,22 @@ public class Insn implements BeamInstruction {
 							   dest.toSymbolic());
 		}
 	}
+
+	//============================================================
+
+	public static class InlineGuard extends L { // 'inline_guard'
+		public final ExtFun ext_fun;
+		public final long version;
+		public InlineGuard(Label label, ExtFun ext_fun, long version) {
+			super(BeamOpcode.inline_guard, label);
+			this.ext_fun = ext_fun;
+			this.version = version;
+		}
+		public ETuple toSymbolic() {
+			return ETuple.make(opcode.symbol,
+							   label.toSymbolic(),
+							   ext_fun.toSymbolic(),
+							   ERT.box(version));
+		}
+	}
 }
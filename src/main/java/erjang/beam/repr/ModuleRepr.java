@@ -52,6 +52,10 @@ public class ModuleRepr implements BeamFileData {
 		this.functions = functions;
 	}
 
+	public EAtom moduleName() {return moduleName;}
+	public FunctionInfo[] exports() {return exports;}
+	public FunctionRepr[] functions() {return functions;}
+
 	public void accept(ModuleVisitor v) {
 		v.visitModule(moduleName);
 
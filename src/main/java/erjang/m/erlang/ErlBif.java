@@ -84,6 +84,7 @@ public class ErlBif {
 	private static EAtom am_reductions = EAtom.intern("reductions");
 	private static EAtom am_garbage_collection = EAtom.intern("garbage_collection");
 	private static EAtom am_runtime = EAtom.intern("runtime");
+	private static EAtom am_not_purged = EAtom.intern("not_purged");
 	
 	@BIF
 	static EObject apply(EProc proc, EObject fun, EObject args) throws Pausable {
@@ -325,8 +326,8 @@ public class ErlBif {
 
 	@BIF(name="throw")
 	@ErlFun(export = true)
-	static public EObject throw_ex(EObject reason) {
-		throw new ErlangThrow(reason);
+	static public EObject throw_ex(EProc proc, EObject reason) {
+		throw new ErlangThrow(reason, proc.catches == 0);
 	}
 
 	@BIF
@@ -1348,6 +1349,10 @@ public class ErlBif {
 		if (mod == null || bin == null)
 			throw ERT.badarg();
 
+		// the old code must be purged first, for there can be only one
+		if (EModuleManager.check_old_code(mod))
+			return new ETuple2(ERT.am_error, am_not_purged);
+
 		try {
 			ERT.load_module(mod, bin);
 		} catch (ErlangException e) {
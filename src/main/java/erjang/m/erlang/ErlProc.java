@@ -33,6 +33,7 @@ import erjang.EAtom;
 import erjang.ECons;
 import erjang.EFun;
 import erjang.EHandle;
+import erjang.EModuleClassLoader;
 import erjang.EModuleManager;
 import erjang.EObject;
 import erjang.EPID;
@@ -389,6 +390,7 @@ public class ErlProc {
 	
 	
 	static EAtom am_allocator = EAtom.intern("allocator");
+	static EAtom am_module_classes = EAtom.intern("module_classes");
 	static EAtom am_heap_type = EAtom.intern("heap_type");
 	static EAtom am_shared = EAtom.intern("shared");
 
@@ -441,6 +443,9 @@ public class ErlProc {
 			
 			return res;
 
+		} else if (type == am_module_classes) {
+			return EModuleClassLoader.module_classes();
+
 		} else if (type == am_allocator) {
 			return am_jvm;			
 			
@@ -524,10 +529,37 @@ public class ErlProc {
 	
 	@BIF
 	public static EAtom purge_module(EObject mod_arg) {
+		EAtom mod = mod_arg.testAtom();
 		
-		log.log(Level.FINE, "purge_module not implemented (" + mod_arg + ")");
+		if (mod == null || !EModuleManager.purge_module(mod)) {
+			throw ERT.badarg(mod_arg);
+		}
 
 		return ERT.TRUE;
 	}
 	
+	@BIF
+	public static EAtom delete_module(EObject mod_arg) throws Exception {
+		EAtom mod = mod_arg.testAtom();
+		
+		if (mod == null || EModuleManager.check_old_code(mod)) {
+			throw ERT.badarg(mod_arg);
+		}
+		
+		if (!EModuleManager.module_loaded(mod)) {
+			return am_undefined;
+		}
+
+		return EModuleManager.delete_module(mod) ? ERT.TRUE : am_undefined;
+	}
+	
+	@BIF
+	public static EAtom check_old_code(EObject mod_arg) {
+		EAtom mod = mod_arg.testAtom();
+		
+		if (mod == null) { throw ERT.badarg(mod_arg); }
+		
+		return ERT.box(EModuleManager.check_old_code(mod));
+	}
+	
 }
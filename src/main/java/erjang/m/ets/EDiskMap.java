@@ -0,0 +1,194 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import erjang.EObject;
+import erjang.EString;
+import erjang.ETuple2;
+import erjang.ErlangError;
+
+/**
+ * An {@link EOffHeapMap} whose log is a file, mapped into memory a
+ * segment at a time; so a table on it outlives the node.  Removals are
+ * logged too, and opening the file replays the log up to the first
+ * record that was not completely written.
+ *
+ * Writers hold the map's one lock whatever the table's options, for
+ * there is one log to append to.
+ *
+ * Compaction writes the live objects to a new file, which then takes
+ * the place of the old one; a crash before that leaves the old one as
+ * it was.  A segment is forced to disk once the log has gone past it,
+ * and all of them when the table is deleted.
+ */
+final class EDiskMap extends EOffHeapMap {
+
+	private final File file;
+	private final File compact_file;
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private FileLock file_lock;
+	private long file_length;
+
+	/** the file being compacted away */
+	private RandomAccessFile old_raf;
+
+	/** @throws ErlangError if the file cannot be opened, or is in use */
+	EDiskMap(File file) {
+		this.file = file.getAbsoluteFile();
+		this.compact_file = new File(this.file.getPath() + ".compact");
+
+		try {
+			compact_file.delete();
+			open(file);
+			recover();
+		} catch (IOException e) {
+			close();
+			throw new ErlangError(e);
+		}
+	}
+
+	private void open(File f) throws IOException {
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		try {
+			file_lock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			file_lock = null;
+		}
+		if (file_lock == null) {
+			raf.close();
+			throw new IOException("in use: " + f);
+		}
+	}
+
+	private void recover() throws IOException {
+		long length = channel.size();
+		long off = 0;
+
+		while (off + HEADER <= length) {
+			// the segments are as long as they were when the log was written,
+			// so the last one takes up again where it was cut off
+			ByteBuffer head = ByteBuffer.allocate(HEADER);
+			channel.read(head, off);
+			long first = (long) HEADER + Math.max(0, head.getInt(0)) + Math.max(0, head.getInt(4));
+			int seg_length = next_segment_size((int) Math.min(first, length - off));
+
+			MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE, off, seg_length);
+			off += seg_length;
+			if (!recover(seg)) {
+				// clear what is left of the broken record, and drop the rest
+				for (int i = seg.position(); i < seg.limit(); i++) {
+					seg.put(i, (byte) 0);
+				}
+				break;
+			}
+		}
+
+		if (off < length) {
+			channel.truncate(off);
+		}
+		file_length = off;
+	}
+
+	@Override
+	ByteBuffer new_segment(int length) {
+		try {
+			if (!segments().isEmpty()) {
+				((MappedByteBuffer) segments().get(segments().size() - 1)).force();
+			}
+			MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_WRITE, file_length, length);
+			file_length += length;
+			return seg;
+		} catch (IOException e) {
+			throw new ErlangError(e);
+		}
+	}
+
+	@Override
+	void log_remove(long addr) {
+		append(new Row(read_key(addr)));
+	}
+
+	@Override
+	void compacting() {
+		try {
+			old_raf = raf;
+			raf = new RandomAccessFile(compact_file, "rw");
+			raf.setLength(0);
+			channel = raf.getChannel();
+			file_length = 0;
+		} catch (IOException e) {
+			throw new ErlangError(e);
+		}
+	}
+
+	@Override
+	void compacted() {
+		try {
+			for (ByteBuffer seg : segments()) {
+				((MappedByteBuffer) seg).force();
+			}
+			Files.move(compact_file.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			// the lock goes with the file it was on
+			file_lock = channel.lock();
+			old_raf.close();
+			old_raf = null;
+		} catch (IOException e) {
+			throw new ErlangError(e);
+		}
+	}
+
+	@Override
+	public EObject storage() {
+		return new ETuple2(Native.am_file, EString.fromString(file.getPath()));
+	}
+
+	/** force the log to disk, and let go of the file */
+	void close() {
+		lock.writeLock().lock();
+		try {
+			for (ByteBuffer seg : segments()) {
+				((MappedByteBuffer) seg).force();
+			}
+			if (raf != null) {
+				raf.close();
+				raf = null;
+			}
+		} catch (IOException e) {
+			// the table is gone anyway
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
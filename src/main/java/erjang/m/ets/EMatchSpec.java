@@ -18,6 +18,7 @@
 
 package erjang.m.ets;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -27,8 +28,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
-import javax.swing.event.ListSelectionEvent;
-
 import erjang.EAtom;
 import erjang.EBitString;
 import erjang.ECons;
@@ -42,7 +41,10 @@ import erjang.ERef;
 import erjang.ESeq;
 import erjang.ETuple;
 import erjang.ETuple3;
+import erjang.ErlangError;
 import erjang.NotImplemented;
+import erjang.beam.BIFUtil;
+import erjang.beam.BuiltInFunction;
 
 /**
  * Base class for a parsed match_spec.
@@ -168,14 +170,56 @@ public class EMatchSpec extends EPseudoTerm {
 
 	private final MatchFunction[] funs;
 
+	/**
+	 * A spec is compiled when it runs over its second object; one that
+	 * meets one object only, like a select on a bound key, is not worth
+	 * it.  Racing threads may both compile, which is harmless.
+	 */
+	private static final int COMPILE_AFTER = 2;
+
+	/** the spec compiled to a class, or null if it is interpreted, or not yet compiled */
+	private EMatchSpecCompiler.Compiled compiled;
+	private int runs;
+
 	static abstract class Pattern extends ETermPattern {
-		// that's it.
+
+		/**
+		 * Where <code>term</code> is in term order, relative to the terms
+		 * this pattern can match; those are contiguous in term order, or
+		 * the pattern says 0 for all of them.
+		 * 
+		 * @return &lt;0 if term is below all the terms this pattern can
+		 *         match, &gt;0 if above, or 0
+		 */
+		int range_compare(EObject term) {
+			return 0;
+		}
+
+		/** @return true if all the terms this pattern matches compare equal */
+		boolean is_point() {
+			return false;
+		}
+	}
+
+	/**
+	 * Compare <code>elem</code> to a pattern for one of the parts of a term,
+	 * in term order; the pattern for the next part matters only if this one
+	 * is a point.
+	 * 
+	 * @return the result of {@link Pattern#range_compare}, or null to go on
+	 *         to the next part
+	 */
+	private static Integer range_compare_part(Pattern p, EObject elem) {
+		int cmp = p.range_compare(elem);
+		if (cmp != 0 || !p.is_point())
+			return cmp;
+		return null;
 	}
 
 	/** matches when a value is == */
 	static class EqualsPattern extends Pattern {
 
-		private final EObject value;
+		final EObject value;
 
 		/**
 		 * @param part
@@ -218,6 +262,15 @@ public class EMatchSpec extends EPseudoTerm {
 			return num.compareTo(value) == 0;
 		}
 
+		@Override
+		int range_compare(EObject term) {
+			return term.compareTo(value);
+		}
+
+		@Override
+		boolean is_point() {
+			return true;
+		}
 	}
 
 	static abstract class Expr {
@@ -355,8 +408,10 @@ public class EMatchSpec extends EPseudoTerm {
 				return ctx.value;
 			} else if (idx0 == EXPR_ALL_VARS) {
 				ESeq res = ERT.NIL;
-				for (int i = 0; i < ctx.vars.length; i++) {
-					res = res.cons(ctx.vars[idx0]);
+				for (int i = ctx.vars.length - 1; i >= 0; i--) {
+					if (ctx.vars[i] != null) {
+						res = res.cons(ctx.vars[i]);
+					}
 				}
 				return res;
 			} else {
@@ -373,9 +428,9 @@ public class EMatchSpec extends EPseudoTerm {
 	 */
 	static class MatchFunction {
 
-		private final Pattern head;
-		private final GuardCall[] cond;
-		private final Expr[] body;
+		final Pattern head;
+		final GuardCall[] cond;
+		final Expr[] body;
 		private final int nvars;
 
 		public MatchFunction(Pattern head, GuardCall[] cond, Expr[] body,
@@ -391,13 +446,12 @@ public class EMatchSpec extends EPseudoTerm {
 		 *            is the list of previous matches
 		 * @param value
 		 *            is the value to match
-		 * @return (cons <code>result</code> prev) if value matches; otherwise
-		 *         prev
+		 * @return the result of the body if value matches; otherwise null
 		 * */
 		EObject match(EObject value) {
 			EMatchContext ctx = new EMatchContext(nvars, value);
 			if (!value.match(head, ctx)) {
-				return ERT.FALSE;
+				return null;
 			}
 
 			// exception during condition evaluation
@@ -405,10 +459,10 @@ public class EMatchSpec extends EPseudoTerm {
 			try {
 				for (int i = 0; i < cond.length; i++) {
 					if (!cond[i].test(ctx))
-						return ERT.FALSE;
+						return null;
 				}
 			} catch (Exception e) {
-				return ERT.FALSE;
+				return null;
 			}
 
 			EObject out = value;
@@ -447,39 +501,73 @@ public class EMatchSpec extends EPseudoTerm {
 			}
 		}
 
-		/**
-		 * @param ctx
-		 * @return
-		 */
-		public boolean test(EMatchContext ctx) {
-			EObject[] vals = new EObject[args.length];
-			for (int i = 0; i < vals.length; i++) {
-				vals[i] = args[i].eval(ctx);
-			}
+		/** the BIF that implements the guard, found when it is first evaluated */
+		private BuiltInFunction bif;
 
-			// for debug output
-			List<EObject> aa = new ArrayList<EObject>();
-			for (int i = 0; i < vals.length; i++) {
-				aa.add(vals[i]);
-			}
-			throw new NotImplemented("GuardCall:test " + guard + " " + aa);
+		public boolean test(EMatchContext ctx) {
+			return eval(ctx) == ERT.TRUE;
 		}
 
 		public static final GuardCall[] EMPTY_ARR = new GuardCall[0];
 
+		/**
+		 * As the compiled spec does: the BIF the guard is compiled to is
+		 * called, and when it fails, or throws, so does this.
+		 */
 		@Override
 		public EObject eval(EMatchContext ctx) {
-			EObject[] vals = new EObject[args.length];
+			if (guard == am_andalso || guard == am_orelse) {
+				// evaluate until one says what the result is
+				EAtom go_on = guard == am_andalso ? ERT.TRUE : ERT.FALSE;
+				EObject val = go_on;
+				for (int i = 0; i < args.length; i++) {
+					val = args[i].eval(ctx);
+					if (val != go_on) {
+						if (i == args.length - 1 || val == ERT.TRUE || val == ERT.FALSE)
+							return val;
+						throw ERT.badarg(val);
+					}
+				}
+				return val;
+			}
+
+			Object[] vals = new Object[args.length];
 			for (int i = 0; i < vals.length; i++) {
 				vals[i] = args[i].eval(ctx);
 			}
 
-			// for debug output
-			List<EObject> aa = new ArrayList<EObject>();
-			for (int i = 0; i < vals.length; i++) {
-				aa.add(vals[i]);
+			BuiltInFunction b = bif;
+			if (b == null) {
+				b = BIFUtil.getMethod("erlang", guard.getName(), args.length, true, false);
+				if (b == null)
+					b = BIFUtil.getMethod("erlang", guard.getName(), args.length, false, false);
+				if (b == null)
+					throw ERT.badarg(guard);
+				bif = b;
 			}
-			throw new NotImplemented("GuardCall:eval " + guard + " " + aa);
+
+			Object res;
+			try {
+				if (b.isVirtual) {
+					Object[] rest = new Object[vals.length - 1];
+					System.arraycopy(vals, 1, rest, 0, rest.length);
+					res = b.javaMethod.invoke(vals[0], rest);
+				} else {
+					res = b.javaMethod.invoke(null, vals);
+				}
+			} catch (InvocationTargetException e) {
+				throw new ErlangError(guard, e.getCause());
+			} catch (IllegalAccessException e) {
+				throw new ErlangError(guard, e);
+			}
+
+			if (res instanceof Boolean) {
+				return ERT.box(((Boolean) res).booleanValue());
+			}
+			// guard BIFs return null when they fail
+			if (res == null)
+				throw ERT.badarg(guard);
+			return (EObject) res;
 		}
 	}
 
@@ -515,13 +603,7 @@ public class EMatchSpec extends EPseudoTerm {
 				max = Math.max(max, i);
 			}
 
-			for (int i = 0; i < max + 1; i++) {
-				if (!bound.contains(i)) {
-					throw new IllegalStateException("variable " + i
-							+ " not bound in match head");
-				}
-			}
-
+			// variables need not be numbered from $0 without gaps
 			return max + 1;
 		}
 
@@ -635,7 +717,7 @@ public class EMatchSpec extends EPseudoTerm {
 	 * @return
 	 */
 	private static Expr parse_ExprMatchVariable(EAtom am, ParseContext ctx) {
-		assert is_match_var(am);
+		assert is_expr_match_var(am);
 
 		return new MatchVarExpr(am, ctx);
 	}
@@ -725,6 +807,35 @@ public class EMatchSpec extends EPseudoTerm {
 			}
 			return true;
 		}
+
+		@Override
+		int range_compare(EObject term) {
+			ETuple t = term.testTuple();
+			if (t == null) {
+				// any tuple will do, as term is not one
+				return term.compareTo(ETuple.make(elems.length));
+			}
+
+			// tuples are ordered by size first, then by elements
+			if (t.arity() != elems.length)
+				return t.arity() < elems.length ? -1 : 1;
+
+			for (int idx0 = 0; idx0 < elems.length; idx0++) {
+				Integer cmp = range_compare_part(elems[idx0], t.elm(idx0 + 1));
+				if (cmp != null)
+					return cmp;
+			}
+			return 0;
+		}
+
+		@Override
+		boolean is_point() {
+			for (Pattern p : elems) {
+				if (!p.is_point())
+					return false;
+			}
+			return true;
+		}
 	}
 
 	static class NilPattern extends Pattern {
@@ -734,6 +845,16 @@ public class EMatchSpec extends EPseudoTerm {
 		public boolean match(ECons c, EMatchContext r) {
 			return c.isNil();
 		}
+
+		@Override
+		int range_compare(EObject term) {
+			return term.compareTo(ERT.NIL);
+		}
+
+		@Override
+		boolean is_point() {
+			return true;
+		}
 	}
 
 	static class ConsPattern extends Pattern {
@@ -750,6 +871,25 @@ public class EMatchSpec extends EPseudoTerm {
 				return false;
 			return c.head().match(head_p, r) && c.tail().match(tail_p, r);
 		}
+
+		@Override
+		int range_compare(EObject term) {
+			ECons c = term.testNonEmptyList();
+			if (c == null) {
+				// any non-empty list will do, as term is not one
+				return term.compareTo(ERT.NIL.cons(ERT.NIL));
+			}
+
+			Integer cmp = range_compare_part(head_p, c.head());
+			if (cmp != null)
+				return cmp;
+			return tail_p.range_compare(c.tail());
+		}
+
+		@Override
+		boolean is_point() {
+			return head_p.is_point() && tail_p.is_point();
+		}
 	}
 
 	/**
@@ -818,39 +958,42 @@ public class EMatchSpec extends EPseudoTerm {
 			ctx.bind(this, idx0);
 		}
 
+		/** a repeated variable must match the same term */
+		private boolean bind(EObject value, EMatchContext r) {
+			EObject old = r.vars[idx0];
+			if (old == null) {
+				r.vars[idx0] = value;
+				return true;
+			}
+			return old.equalsExactly(value);
+		}
+
 		public boolean match(ETuple t, EMatchContext r) {
-			r.vars[idx0] = t;
-			return true;
+			return bind(t, r);
 		}
 
 		public boolean match(ENumber n, EMatchContext r) {
-			r.vars[idx0] = n;
-			return true;
+			return bind(n, r);
 		}
 
 		public boolean match(EAtom a, EMatchContext r) {
-			r.vars[idx0] = a;
-			return true;
+			return bind(a, r);
 		}
 
 		public boolean match(ECons c, EMatchContext r) {
-			r.vars[idx0] = c;
-			return true;
+			return bind(c, r);
 		}
 
 		public boolean match(EPID p, EMatchContext r) {
-			r.vars[idx0] = p;
-			return true;
+			return bind(p, r);
 		}
 
 		public boolean match(EPort p, EMatchContext r) {
-			r.vars[idx0] = p;
-			return true;
+			return bind(p, r);
 		}
 
 		public boolean match(EBitString bs, EMatchContext r) {
-			r.vars[idx0] = bs;
-			return true;
+			return bind(bs, r);
 		}
 	}
 
@@ -890,7 +1033,8 @@ public class EMatchSpec extends EPseudoTerm {
 		if (this.funs.length == 1) {
 			if (funs[0].head instanceof TuplePattern) {
 				TuplePattern tp = (TuplePattern) funs[0].head;
-				if (tp.elems[keypos1 - 1] instanceof EqualsPattern) {
+				if (keypos1 <= tp.elems.length
+						&& tp.elems[keypos1 - 1] instanceof EqualsPattern) {
 					EqualsPattern ep = (EqualsPattern) tp.elems[keypos1 - 1];
 					return ep.value;
 				}
@@ -923,14 +1067,64 @@ public class EMatchSpec extends EPseudoTerm {
 	 * @return
 	 */
 	public boolean match(EObject candidate) {
+		return run(candidate) == ERT.TRUE;
+	}
+
+	/**
+	 * @param candidate
+	 * @return the result of the first match function whose head and guard
+	 *         match <code>candidate</code>, or null if none do
+	 */
+	public EObject run(EObject candidate) {
+		EMatchSpecCompiler.Compiled c = compiled;
+		if (c == null && runs < COMPILE_AFTER && ++runs == COMPILE_AFTER) {
+			c = compiled();
+		}
+		if (c != null) {
+			return c.run(candidate);
+		}
+		return interpret(candidate);
+	}
+
+	/** @return the spec compiled now if it was not yet, or null if it is interpreted */
+	EMatchSpecCompiler.Compiled compiled() {
+		if (compiled == null) {
+			compiled = EMatchSpecCompiler.compile(funs);
+		}
+		return compiled;
+	}
+
+	/** {@link #run} by walking the parse tree */
+	EObject interpret(EObject candidate) {
 		for (int i = 0; i < funs.length; i++) {
 			EObject val = funs[i].match(candidate);
-			if (val == ERT.TRUE) {
-				return true;
+			if (val != null) {
+				return val;
 			}
 		}
 
-		return false;
+		return null;
+	}
+
+	/**
+	 * If there is one match function, and its head is a tuple, return the
+	 * pattern for the element at keypos.  Keys outside its range cannot
+	 * match, which lets an ordered table skip them.
+	 * 
+	 * @param keypos1
+	 * @return the key pattern, or null
+	 */
+	Pattern getKeyPattern(int keypos1) {
+		if (this.funs.length == 1) {
+			if (funs[0].head instanceof TuplePattern) {
+				TuplePattern tp = (TuplePattern) funs[0].head;
+				if (keypos1 <= tp.elems.length) {
+					return tp.elems[keypos1 - 1];
+				}
+			}
+		}
+
+		return null;
 	}
 
 	/**
@@ -0,0 +1,712 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import erjang.EAtom;
+import erjang.ECons;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ETuple;
+import erjang.beam.BIFUtil;
+import erjang.beam.BuiltInFunction;
+
+/**
+ * Compiles a parsed match spec to a class, whose <code>run</code> method
+ * does what {@link EMatchSpec#run} does by walking the parse tree.
+ *
+ * The constants in a spec are not compiled in; the class reads them from
+ * an array.  So specs that differ only in their constants, like the same
+ * select for another key, share a class; classes are cached by the shape
+ * of the spec.  Each class has a class loader of its own, so it can be
+ * unloaded once it drops out of the cache and no spec uses it.
+ *
+ * Specs with action calls, or guards that are not pure BIFs (like
+ * <code>self()</code>), are not compiled; they stay interpreted.  That
+ * is cached by shape too, so they are found out once.
+ */
+class EMatchSpecCompiler implements Opcodes {
+
+	/** Base class of the compiled specs. */
+	public static abstract class Compiled {
+		protected final EObject[] consts;
+
+		protected Compiled(EObject[] consts) {
+			this.consts = consts;
+		}
+
+		/**
+		 * @return the result of the first clause that matches
+		 *         <code>candidate</code>, or null if none do
+		 */
+		public abstract EObject run(EObject candidate);
+	}
+
+	/** Thrown while compiling a spec that must be interpreted; it has no stack trace */
+	@SuppressWarnings("serial")
+	private static class NotCompilable extends Exception {
+		NotCompilable(String what) {
+			super(what, null, false, false);
+		}
+	}
+
+	private static final int MAX_CACHED_CLASSES = 256;
+
+	/** what the cache holds for a shape that is interpreted */
+	private static final Object INTERPRETED = new Object();
+
+	/**
+	 * From the shape of a spec to the constructor of its class, or to
+	 * {@link #INTERPRETED}.  When it is full, some shape makes room.
+	 */
+	private static final ConcurrentHashMap<String, Object> cache =
+		new ConcurrentHashMap<String, Object>();
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	static final class SpecClassLoader extends ClassLoader {
+		SpecClassLoader() {
+			super(EMatchSpecCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] data) {
+			return defineClass(name, data, 0, data.length);
+		}
+	}
+
+	static final String COMPILED_NAME = Type.getInternalName(Compiled.class);
+	static final String EOBJECT_NAME = Type.getInternalName(EObject.class);
+	static final String EOBJECT_DESC = Type.getDescriptor(EObject.class);
+	static final String EOBJECT_ARR_DESC = Type.getDescriptor(EObject[].class);
+	static final String ETUPLE_NAME = Type.getInternalName(ETuple.class);
+	static final String ECONS_NAME = Type.getInternalName(ECons.class);
+	static final String ESEQ_NAME = Type.getInternalName(ESeq.class);
+	static final String ESEQ_DESC = Type.getDescriptor(ESeq.class);
+	static final String ERT_NAME = Type.getInternalName(ERT.class);
+	static final String EATOM_DESC = Type.getDescriptor(EAtom.class);
+	static final Type EPROC_TYPE = Type.getType(EProc.class);
+
+	/**
+	 * @return the compiled spec, or null if it must be interpreted
+	 */
+	@SuppressWarnings("unchecked")
+	static Compiled compile(EMatchSpec.MatchFunction[] funs) {
+		EMatchSpecCompiler c = new EMatchSpecCompiler(funs);
+		String key = c.shape();
+		Object cons = cache.get(key);
+		if (cons == null) {
+			cons = c.compilable ? c.define_or_interpret() : INTERPRETED;
+			if (cache.size() >= MAX_CACHED_CLASSES) {
+				Iterator<String> it = cache.keySet().iterator();
+				if (it.hasNext()) {
+					cache.remove(it.next());
+				}
+			}
+			Object raced = cache.putIfAbsent(key, cons);
+			if (raced != null) {
+				cons = raced;
+			}
+		}
+
+		if (cons == INTERPRETED) {
+			return null;
+		}
+		try {
+			return ((Constructor<? extends Compiled>) cons).newInstance(
+					(Object) c.consts.toArray(new EObject[c.consts.size()]));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** @return the constructor of the spec's class, or {@link #INTERPRETED} */
+	private Object define_or_interpret() {
+		try {
+			return define();
+		} catch (NotCompilable e) {
+			return INTERPRETED;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private final EMatchSpec.MatchFunction[] funs;
+
+	/** the constants, in the order {@link #shape} meets them */
+	private final List<EObject> consts = new ArrayList<EObject>();
+	private final Map<Object, Integer> const_index = new IdentityHashMap<Object, Integer>();
+
+	/** false once {@link #shape} has met something that cannot be compiled */
+	private boolean compilable = true;
+
+	private EMatchSpecCompiler(EMatchSpec.MatchFunction[] funs) {
+		this.funs = funs;
+	}
+
+	//
+	// The shape of a spec is a string which describes all of it but
+	// the constants; specs with the same shape compile to the same code.
+	// What cannot be compiled is a '?', for those specs are interpreted
+	// whatever it is.
+	//
+
+	private void not_compilable(StringBuilder sb) {
+		sb.append('?');
+		compilable = false;
+	}
+
+	private String shape() {
+		StringBuilder sb = new StringBuilder();
+		for (EMatchSpec.MatchFunction fun : funs) {
+			shape(sb, fun.head);
+			sb.append(" when ");
+			for (EMatchSpec.GuardCall g : fun.cond) {
+				shape(sb, g);
+				sb.append(',');
+			}
+			sb.append(" -> ");
+			for (EMatchSpec.Expr e : fun.body) {
+				shape(sb, e);
+				sb.append(',');
+			}
+			sb.append(';');
+		}
+		return sb.toString();
+	}
+
+	private int constant(Object node, EObject value) {
+		int idx = consts.size();
+		consts.add(value);
+		const_index.put(node, idx);
+		return idx;
+	}
+
+	private void shape(StringBuilder sb, EMatchSpec.Pattern p) {
+		if (p instanceof EMatchSpec.AnyPattern) {
+			sb.append('_');
+		} else if (p instanceof EMatchSpec.MatchVariable) {
+			sb.append('$').append(((EMatchSpec.MatchVariable) p).idx0);
+		} else if (p instanceof EMatchSpec.NilPattern) {
+			sb.append("[]");
+		} else if (p instanceof EMatchSpec.EqualsPattern) {
+			EObject value = ((EMatchSpec.EqualsPattern) p).value;
+			sb.append(value instanceof EAtom ? 'a' : 'k');
+			constant(p, value);
+		} else if (p instanceof EMatchSpec.TuplePattern) {
+			EMatchSpec.Pattern[] elems = ((EMatchSpec.TuplePattern) p).elems;
+			sb.append('{').append(elems.length).append(':');
+			for (EMatchSpec.Pattern elem : elems) {
+				shape(sb, elem);
+				sb.append(',');
+			}
+			sb.append('}');
+		} else if (p instanceof EMatchSpec.ConsPattern) {
+			EMatchSpec.ConsPattern cp = (EMatchSpec.ConsPattern) p;
+			sb.append('[');
+			shape(sb, cp.head_p);
+			sb.append('|');
+			shape(sb, cp.tail_p);
+			sb.append(']');
+		} else {
+			not_compilable(sb);
+		}
+	}
+
+	private void shape(StringBuilder sb, EMatchSpec.Expr e) {
+		if (e instanceof EMatchSpec.ConstantExpr) {
+			sb.append('k');
+			constant(e, ((EMatchSpec.ConstantExpr) e).term);
+		} else if (e instanceof EMatchSpec.MatchVarExpr) {
+			sb.append('$').append(((EMatchSpec.MatchVarExpr) e).idx0);
+		} else if (e instanceof EMatchSpec.TupleConstruct) {
+			EMatchSpec.Expr[] elems = ((EMatchSpec.TupleConstruct) e).elems;
+			sb.append('{').append(elems.length).append(':');
+			for (EMatchSpec.Expr elem : elems) {
+				shape(sb, elem);
+				sb.append(',');
+			}
+			sb.append('}');
+		} else if (e instanceof EMatchSpec.ConsConstruct) {
+			EMatchSpec.ConsConstruct cc = (EMatchSpec.ConsConstruct) e;
+			sb.append('[');
+			shape(sb, cc.head_expr);
+			sb.append('|');
+			shape(sb, cc.tail_expr);
+			sb.append(']');
+		} else if (e instanceof EMatchSpec.GuardCall) {
+			EMatchSpec.GuardCall g = (EMatchSpec.GuardCall) e;
+			sb.append('(').append(g.guard.getName()).append('/').append(g.args.length).append(':');
+			for (EMatchSpec.Expr arg : g.args) {
+				shape(sb, arg);
+				sb.append(',');
+			}
+			sb.append(')');
+		} else {
+			not_compilable(sb);
+		}
+	}
+
+	/** @return the BIF that implements a guard function */
+	private static BuiltInFunction guard_bif(EMatchSpec.GuardCall g) throws NotCompilable {
+		String name = g.guard.getName();
+		int arity = g.args.length;
+
+		BuiltInFunction bif = BIFUtil.getMethod("erlang", name, arity, true, false);
+		if (bif == null)
+			bif = BIFUtil.getMethod("erlang", name, arity, false, false);
+
+		if (bif == null || bif.isPausable)
+			throw new NotCompilable("guard " + name + "/" + arity);
+
+		Type[] args = bif.getArgumentTypes();
+		for (Type arg : args) {
+			if (arg.getSort() != Type.OBJECT || arg.equals(EPROC_TYPE))
+				throw new NotCompilable("guard " + name + "/" + arity);
+		}
+
+		Type ret = bif.getReturnType();
+		if (ret.getSort() != Type.OBJECT && ret != Type.BOOLEAN_TYPE)
+			throw new NotCompilable("guard " + name + "/" + arity);
+
+		return bif;
+	}
+
+	//
+	// Code generation.  Each clause is a method, which returns the
+	// result of the clause or null.  Values are kept in locals, so the
+	// stack is empty whenever the code jumps.
+	//
+
+	private MethodVisitor mv;
+	private String self_type;
+
+	/** the local holding each bound match variable */
+	private Map<Integer, Integer> var_slot;
+	private int next_slot;
+
+	private Constructor<? extends Compiled> define() throws Exception {
+		self_type = "erjang/m/ets/EMatchSpec$Compiled" + counter.incrementAndGet();
+
+		ClassWriter cw = new ClassWriter(true);
+		cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, self_type, null,
+				COMPILED_NAME, null);
+
+		mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(" + EOBJECT_ARR_DESC + ")V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESPECIAL, COMPILED_NAME, "<init>", "(" + EOBJECT_ARR_DESC + ")V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(2, 2);
+		mv.visitEnd();
+
+		String run_desc = "(" + EOBJECT_DESC + ")" + EOBJECT_DESC;
+		mv = cw.visitMethod(ACC_PUBLIC, "run", run_desc, null, null);
+		mv.visitCode();
+		for (int i = 0; i < funs.length; i++) {
+			Label next = new Label();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, self_type, "clause" + i, run_desc);
+			mv.visitInsn(DUP);
+			mv.visitJumpInsn(IFNULL, next);
+			mv.visitInsn(ARETURN);
+			mv.visitLabel(next);
+			mv.visitInsn(POP);
+		}
+		mv.visitInsn(ACONST_NULL);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(3, 2);
+		mv.visitEnd();
+
+		for (int i = 0; i < funs.length; i++) {
+			mv = cw.visitMethod(ACC_PRIVATE, "clause" + i, run_desc, null, null);
+			mv.visitCode();
+			compile_clause(funs[i]);
+			mv.visitMaxs(10, next_slot);
+			mv.visitEnd();
+		}
+
+		cw.visitEnd();
+		byte[] data = cw.toByteArray();
+
+		Class<?> c = new SpecClassLoader().define(self_type.replace('/', '.'), data);
+		return c.asSubclass(Compiled.class).getConstructor(EObject[].class);
+	}
+
+	private void compile_clause(EMatchSpec.MatchFunction fun) throws NotCompilable {
+		var_slot = new TreeMap<Integer, Integer>();
+		next_slot = 2;
+
+		Label fail = new Label();
+		compile_match(fun.head, 1, fail);
+
+		if (fun.cond.length > 0) {
+			// an exception in a guard fails the clause
+			Label start = new Label(), end = new Label(), handler = new Label();
+			mv.visitLabel(start);
+			for (EMatchSpec.GuardCall g : fun.cond) {
+				int slot = compile_expr(g, fail);
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitFieldInsn(GETSTATIC, ERT_NAME, "TRUE", EATOM_DESC);
+				mv.visitJumpInsn(IF_ACMPNE, fail);
+			}
+			mv.visitLabel(end);
+			Label body = new Label();
+			mv.visitJumpInsn(GOTO, body);
+			mv.visitLabel(handler);
+			mv.visitInsn(POP);
+			mv.visitJumpInsn(GOTO, fail);
+			mv.visitTryCatchBlock(start, end, handler, "java/lang/Exception");
+			mv.visitLabel(body);
+		}
+
+		if (fun.body.length == 0) {
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitInsn(ARETURN);
+		} else {
+			// an exception in the body makes the result 'EXIT'
+			Label start = new Label(), end = new Label(), handler = new Label();
+			Label exit = new Label();
+			mv.visitLabel(start);
+			int slot = 1;
+			for (EMatchSpec.Expr e : fun.body) {
+				slot = compile_expr(e, exit);
+			}
+			mv.visitVarInsn(ALOAD, slot);
+			mv.visitLabel(end);
+			mv.visitInsn(ARETURN);
+			mv.visitLabel(handler);
+			mv.visitInsn(POP);
+			mv.visitLabel(exit);
+			mv.visitFieldInsn(GETSTATIC, ERT_NAME, "am_EXIT", EATOM_DESC);
+			mv.visitInsn(ARETURN);
+			mv.visitTryCatchBlock(start, end, handler, "java/lang/Exception");
+		}
+
+		mv.visitLabel(fail);
+		mv.visitInsn(ACONST_NULL);
+		mv.visitInsn(ARETURN);
+	}
+
+	private int new_slot() {
+		return next_slot++;
+	}
+
+	private void load_const(Object node) {
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, COMPILED_NAME, "consts", EOBJECT_ARR_DESC);
+		push_int(const_index.get(node));
+		mv.visitInsn(AALOAD);
+	}
+
+	private void push_int(int i) {
+		if (i >= -1 && i <= 5) {
+			mv.visitInsn(ICONST_0 + i);
+		} else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, i);
+		} else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, i);
+		} else {
+			mv.visitLdcInsn(Integer.valueOf(i));
+		}
+	}
+
+	/** Match the value in local <code>slot</code>, or jump to <code>fail</code> */
+	private void compile_match(EMatchSpec.Pattern p, int slot, Label fail)
+			throws NotCompilable {
+
+		if (p instanceof EMatchSpec.AnyPattern) {
+			return;
+
+		} else if (p instanceof EMatchSpec.MatchVariable) {
+			int idx0 = ((EMatchSpec.MatchVariable) p).idx0;
+			Integer var = var_slot.get(idx0);
+			if (var == null) {
+				var_slot.put(idx0, slot);
+			} else {
+				// a repeated variable must match the same term
+				mv.visitVarInsn(ALOAD, var);
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "equalsExactly",
+						"(" + EOBJECT_DESC + ")Z");
+				mv.visitJumpInsn(IFEQ, fail);
+			}
+
+		} else if (p instanceof EMatchSpec.NilPattern) {
+			mv.visitVarInsn(ALOAD, slot);
+			mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "isNil", "()Z");
+			mv.visitJumpInsn(IFEQ, fail);
+
+		} else if (p instanceof EMatchSpec.EqualsPattern) {
+			if (((EMatchSpec.EqualsPattern) p).value instanceof EAtom) {
+				// atoms are unique
+				mv.visitVarInsn(ALOAD, slot);
+				load_const(p);
+				mv.visitJumpInsn(IF_ACMPNE, fail);
+			} else {
+				mv.visitVarInsn(ALOAD, slot);
+				load_const(p);
+				mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "compareTo",
+						"(" + EOBJECT_DESC + ")I");
+				mv.visitJumpInsn(IFNE, fail);
+			}
+
+		} else if (p instanceof EMatchSpec.TuplePattern) {
+			compile_tuple_match(((EMatchSpec.TuplePattern) p).elems, slot, fail);
+
+		} else if (p instanceof EMatchSpec.ConsPattern) {
+			EMatchSpec.ConsPattern cp = (EMatchSpec.ConsPattern) p;
+			int cons = new_slot();
+			mv.visitVarInsn(ALOAD, slot);
+			mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "testNonEmptyList",
+					"()L" + ECONS_NAME + ";");
+			mv.visitVarInsn(ASTORE, cons);
+			mv.visitVarInsn(ALOAD, cons);
+			mv.visitJumpInsn(IFNULL, fail);
+
+			int head = new_slot(), tail = new_slot();
+			mv.visitVarInsn(ALOAD, cons);
+			mv.visitMethodInsn(INVOKEVIRTUAL, ECONS_NAME, "head", "()" + EOBJECT_DESC);
+			mv.visitVarInsn(ASTORE, head);
+			mv.visitVarInsn(ALOAD, cons);
+			mv.visitMethodInsn(INVOKEVIRTUAL, ECONS_NAME, "tail", "()" + EOBJECT_DESC);
+			mv.visitVarInsn(ASTORE, tail);
+
+			compile_match(cp.head_p, head, fail);
+			compile_match(cp.tail_p, tail, fail);
+
+		} else {
+			throw new NotCompilable("pattern " + p);
+		}
+	}
+
+	/**
+	 * Tuples are nearly always an ETupleN, whose elements are fields;
+	 * other tuples take the slow way through elm().
+	 */
+	private void compile_tuple_match(EMatchSpec.Pattern[] elems, int slot, Label fail)
+			throws NotCompilable {
+		int arity = elems.length;
+		ETuple.get_tuple_class(arity);
+		String tuple_type = ETUPLE_NAME + arity;
+
+		int[] elem_slot = new int[arity];
+		for (int i = 0; i < arity; i++) {
+			if (!(elems[i] instanceof EMatchSpec.AnyPattern))
+				elem_slot[i] = new_slot();
+		}
+
+		Label slow = new Label(), join = new Label();
+		int tuple = new_slot();
+
+		mv.visitVarInsn(ALOAD, slot);
+		mv.visitTypeInsn(INSTANCEOF, tuple_type);
+		mv.visitJumpInsn(IFEQ, slow);
+		mv.visitVarInsn(ALOAD, slot);
+		mv.visitTypeInsn(CHECKCAST, tuple_type);
+		mv.visitVarInsn(ASTORE, tuple);
+		for (int i = 0; i < arity; i++) {
+			if (elem_slot[i] == 0)
+				continue;
+			mv.visitVarInsn(ALOAD, tuple);
+			mv.visitFieldInsn(GETFIELD, tuple_type, "elem" + (i + 1), EOBJECT_DESC);
+			mv.visitVarInsn(ASTORE, elem_slot[i]);
+		}
+		mv.visitJumpInsn(GOTO, join);
+
+		mv.visitLabel(slow);
+		int any_tuple = new_slot();
+		mv.visitVarInsn(ALOAD, slot);
+		mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "testTuple", "()L" + ETUPLE_NAME + ";");
+		mv.visitVarInsn(ASTORE, any_tuple);
+		mv.visitVarInsn(ALOAD, any_tuple);
+		mv.visitJumpInsn(IFNULL, fail);
+		mv.visitVarInsn(ALOAD, any_tuple);
+		mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "arity", "()I");
+		push_int(arity);
+		mv.visitJumpInsn(IF_ICMPNE, fail);
+		for (int i = 0; i < arity; i++) {
+			if (elem_slot[i] == 0)
+				continue;
+			mv.visitVarInsn(ALOAD, any_tuple);
+			push_int(i + 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, ETUPLE_NAME, "elm", "(I)" + EOBJECT_DESC);
+			mv.visitVarInsn(ASTORE, elem_slot[i]);
+		}
+
+		mv.visitLabel(join);
+		for (int i = 0; i < arity; i++) {
+			if (elem_slot[i] != 0)
+				compile_match(elems[i], elem_slot[i], fail);
+		}
+	}
+
+	/**
+	 * Evaluate an expression into a local.  A guard BIF that fails
+	 * jumps to <code>fail</code>.
+	 *
+	 * @return the local holding the value
+	 */
+	private int compile_expr(EMatchSpec.Expr e, Label fail) throws NotCompilable {
+
+		if (e instanceof EMatchSpec.ConstantExpr) {
+			int slot = new_slot();
+			load_const(e);
+			mv.visitVarInsn(ASTORE, slot);
+			return slot;
+
+		} else if (e instanceof EMatchSpec.MatchVarExpr) {
+			int idx0 = ((EMatchSpec.MatchVarExpr) e).idx0;
+			if (idx0 == EMatchSpec.MatchVarExpr.EXPR_ENTIRE_MATCH) {
+				return 1;
+			} else if (idx0 == EMatchSpec.MatchVarExpr.EXPR_ALL_VARS) {
+				// the bound variables, in order
+				List<Integer> vars = new ArrayList<Integer>(var_slot.values());
+				int slot = new_slot();
+				mv.visitFieldInsn(GETSTATIC, ERT_NAME, "NIL", Type.getDescriptor(erjang.ENil.class));
+				for (int i = vars.size() - 1; i >= 0; i--) {
+					mv.visitVarInsn(ALOAD, vars.get(i));
+					mv.visitMethodInsn(INVOKEVIRTUAL, ESEQ_NAME, "cons",
+							"(" + EOBJECT_DESC + ")" + ESEQ_DESC);
+				}
+				mv.visitVarInsn(ASTORE, slot);
+				return slot;
+			} else {
+				Integer slot = var_slot.get(idx0);
+				if (slot == null)
+					throw new NotCompilable("unbound $" + idx0);
+				return slot;
+			}
+
+		} else if (e instanceof EMatchSpec.TupleConstruct) {
+			EMatchSpec.Expr[] elems = ((EMatchSpec.TupleConstruct) e).elems;
+			int[] elem_slot = new int[elems.length];
+			for (int i = 0; i < elems.length; i++) {
+				elem_slot[i] = compile_expr(elems[i], fail);
+			}
+
+			ETuple.get_tuple_class(elems.length);
+			String tuple_type = ETUPLE_NAME + elems.length;
+			int slot = new_slot();
+			mv.visitTypeInsn(NEW, tuple_type);
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKESPECIAL, tuple_type, "<init>", "()V");
+			for (int i = 0; i < elems.length; i++) {
+				mv.visitInsn(DUP);
+				mv.visitVarInsn(ALOAD, elem_slot[i]);
+				mv.visitFieldInsn(PUTFIELD, tuple_type, "elem" + (i + 1), EOBJECT_DESC);
+			}
+			mv.visitVarInsn(ASTORE, slot);
+			return slot;
+
+		} else if (e instanceof EMatchSpec.ConsConstruct) {
+			EMatchSpec.ConsConstruct cc = (EMatchSpec.ConsConstruct) e;
+			int head = compile_expr(cc.head_expr, fail);
+			int tail = compile_expr(cc.tail_expr, fail);
+			int slot = new_slot();
+			mv.visitVarInsn(ALOAD, tail);
+			mv.visitVarInsn(ALOAD, head);
+			mv.visitMethodInsn(INVOKEVIRTUAL, EOBJECT_NAME, "cons",
+					"(" + EOBJECT_DESC + ")L" + ECONS_NAME + ";");
+			mv.visitVarInsn(ASTORE, slot);
+			return slot;
+
+		} else if (e instanceof EMatchSpec.GuardCall) {
+			return compile_guard((EMatchSpec.GuardCall) e, fail);
+
+		} else {
+			throw new NotCompilable("expression " + e);
+		}
+	}
+
+	private int compile_guard(EMatchSpec.GuardCall g, Label fail) throws NotCompilable {
+
+		if (g.guard == EMatchSpec.am_andalso || g.guard == EMatchSpec.am_orelse) {
+			if (g.args.length != 2)
+				throw new NotCompilable("guard " + g.guard);
+
+			// the second argument is evaluated only if the first is
+			// true (for andalso) or false (for orelse)
+			String go_on = g.guard == EMatchSpec.am_andalso ? "TRUE" : "FALSE";
+			String stop = g.guard == EMatchSpec.am_andalso ? "FALSE" : "TRUE";
+
+			int slot = new_slot();
+			Label done = new Label();
+			int first = compile_expr(g.args[0], fail);
+			mv.visitVarInsn(ALOAD, first);
+			mv.visitVarInsn(ASTORE, slot);
+			mv.visitVarInsn(ALOAD, first);
+			mv.visitFieldInsn(GETSTATIC, ERT_NAME, stop, EATOM_DESC);
+			mv.visitJumpInsn(IF_ACMPEQ, done);
+			mv.visitVarInsn(ALOAD, first);
+			mv.visitFieldInsn(GETSTATIC, ERT_NAME, go_on, EATOM_DESC);
+			mv.visitJumpInsn(IF_ACMPNE, fail);
+			int second = compile_expr(g.args[1], fail);
+			mv.visitVarInsn(ALOAD, second);
+			mv.visitVarInsn(ASTORE, slot);
+			mv.visitLabel(done);
+			return slot;
+		}
+
+		BuiltInFunction bif = guard_bif(g);
+
+		int[] arg_slot = new int[g.args.length];
+		for (int i = 0; i < g.args.length; i++) {
+			arg_slot[i] = compile_expr(g.args[i], fail);
+		}
+
+		Type[] arg_types = bif.getArgumentTypes();
+		int slot = new_slot();
+		for (int i = 0; i < arg_slot.length; i++) {
+			mv.visitVarInsn(ALOAD, arg_slot[i]);
+			Type type = (bif.isVirtual ? (i == 0 ? bif.owner : arg_types[i - 1]) : arg_types[i]);
+			if (!type.getInternalName().equals(EOBJECT_NAME))
+				mv.visitTypeInsn(CHECKCAST, type.getInternalName());
+		}
+		mv.visitMethodInsn(bif.isVirtual ? INVOKEVIRTUAL : INVOKESTATIC,
+				bif.owner.getInternalName(), bif.getName(), bif.getDescriptor());
+		if (bif.getReturnType() == Type.BOOLEAN_TYPE) {
+			mv.visitMethodInsn(INVOKESTATIC, ERT_NAME, "guard", "(Z)" + EATOM_DESC);
+		}
+		mv.visitVarInsn(ASTORE, slot);
+
+		// guard BIFs return null when they fail
+		mv.visitVarInsn(ALOAD, slot);
+		mv.visitJumpInsn(IFNULL, fail);
+		return slot;
+	}
+}
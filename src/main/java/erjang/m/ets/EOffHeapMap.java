@@ -0,0 +1,703 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import erjang.EAtom;
+import erjang.EInputStream;
+import erjang.EObject;
+import erjang.EOutputStream;
+import erjang.ERT;
+import erjang.ETuple;
+import erjang.ErlangError;
+import erjang.NotImplemented;
+
+/**
+ * A map from key to tuple that keeps its objects off the Java heap, in
+ * external term format, so the garbage collector does not trace them.
+ *
+ * Objects are appended to direct buffer segments; a slot table, also
+ * off the heap, maps the hash of a key to where its object is.  An
+ * object is decoded on each read, but a small cache on the heap keeps
+ * the last object read from each group of slots.  Space left by removed
+ * objects is reclaimed by compacting, once it is more than half of it.
+ *
+ * Readers share, and writers hold, a read-write lock, which is one for
+ * the whole map; a table with <code>write_concurrency</code> stripes
+ * its objects over several maps instead, in an {@link EStripedMap}.
+ * Iterators are weakly consistent, but a rehash while one is walking
+ * may make it skip or repeat objects.
+ *
+ * The first segment is small, and each one after it twice as long as
+ * the one before, up to {@link #SEGMENT_SIZE}; or as long as the object
+ * that begins it, if that is longer.
+ *
+ * The segments form a log of records, each a header of key length,
+ * value length and checksum followed by the encoded key and value.  A
+ * subclass may keep them somewhere else, and log removals too, as
+ * {@link EDiskMap} does.
+ */
+class EOffHeapMap extends AbstractMap<EObject, ETuple> implements EStorageMap {
+
+	static final EAtom am_system_limit = EAtom.intern("system_limit");
+
+	static final int FIRST_SEGMENT_SIZE = 1 << 16;
+	static final int SEGMENT_SIZE = 1 << 24;
+	static final int HEADER = 12;
+	private static final int SLOT_SIZE = 16;
+	private static final int MAX_SLOTS = 1 << 26;
+	private static final int CACHE_SIZE = 1 << 12;
+
+	/** slot address of a removed object, which probes go past */
+	private static final long REMOVED = -1;
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** a slot is the address of an object and the hash of its key */
+	private ByteBuffer slots;
+	private int capacity;
+	private int used;
+	private int size;
+
+	/** an address is the segment number plus one, and the offset in it */
+	private ArrayList<ByteBuffer> segments;
+	private long garbage;
+	private long live;
+
+	private volatile Cached[] cache;
+
+	static final class Cached {
+		final long addr;
+		final EObject key;
+		final ETuple value;
+
+		Cached(long addr, EObject key, ETuple value) {
+			this.addr = addr;
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/** an object encoded, ready to store; without a value, its removal */
+	static final class Row {
+		final int hash;
+		final byte[] key;
+		final byte[] value;
+
+		Row(EObject key, ETuple value) {
+			this.hash = hash(key);
+			this.key = encode(key);
+			this.value = encode(value);
+		}
+
+		Row(byte[] key) {
+			this.hash = 0;
+			this.key = key;
+			this.value = null;
+		}
+
+		int length() {
+			return HEADER + key.length + (value == null ? 0 : value.length);
+		}
+
+		int checksum() {
+			CRC32 crc = new CRC32();
+			crc.update(key);
+			if (value != null) {
+				crc.update(value);
+			}
+			return (int) crc.getValue();
+		}
+	}
+
+	EOffHeapMap() {
+		reset();
+	}
+
+	void reset() {
+		capacity = 1 << 10;
+		slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+		used = 0;
+		size = 0;
+		segments = new ArrayList<ByteBuffer>();
+		garbage = 0;
+		live = 0;
+		cache = new Cached[CACHE_SIZE];
+	}
+
+	static int hash(EObject key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/** @throws ErlangError badarg if <code>obj</code> holds a term that cannot be encoded, like a fun */
+	static byte[] encode(EObject obj) {
+		EOutputStream out = new EOutputStream(64);
+		try {
+			out.write_any(obj);
+		} catch (NotImplemented e) {
+			throw ERT.badarg(obj);
+		}
+		return out.toByteArray();
+	}
+
+	static EObject decode(byte[] data) {
+		try {
+			return new EInputStream(data).read_any();
+		} catch (IOException e) {
+			throw new ErlangError(e);
+		}
+	}
+
+	//
+	// Storage.  The caller holds the lock.
+	//
+
+	/** @return a new segment of <code>length</code> bytes, for the log to go on in */
+	ByteBuffer new_segment(int length) {
+		return ByteBuffer.allocateDirect(length);
+	}
+
+	/** log the removal of the object at <code>addr</code>, if the log is kept */
+	void log_remove(long addr) {
+	}
+
+	/** compaction is about to write the live objects to new segments */
+	void compacting() {
+	}
+
+	/** compaction has written the live objects */
+	void compacted() {
+	}
+
+	public EObject storage() {
+		return Native.am_off_heap;
+	}
+
+	/**
+	 * @return the length of the segment to go after the last one, if it
+	 *         is to begin with a record of <code>length</code> bytes
+	 */
+	int next_segment_size(int length) {
+		int size = segments.isEmpty() ? FIRST_SEGMENT_SIZE
+			: (int) Math.min(SEGMENT_SIZE, 2L * segments.get(segments.size() - 1).capacity());
+		return Math.max(size, length);
+	}
+
+	private ByteBuffer segment(long addr) {
+		return segments.get((int) (addr >>> 32) - 1);
+	}
+
+	byte[] read_key(long addr) {
+		ByteBuffer seg = segment(addr).duplicate();
+		int off = (int) addr;
+		byte[] res = new byte[seg.getInt(off)];
+		seg.position(off + HEADER);
+		seg.get(res);
+		return res;
+	}
+
+	private byte[] read_value(long addr) {
+		ByteBuffer seg = segment(addr).duplicate();
+		int off = (int) addr;
+		byte[] res = new byte[seg.getInt(off + 4)];
+		seg.position(off + HEADER + seg.getInt(off));
+		seg.get(res);
+		return res;
+	}
+
+	private static int row_length(ByteBuffer seg, int off) {
+		return HEADER + seg.getInt(off) + Math.max(0, seg.getInt(off + 4));
+	}
+
+	private int row_length(long addr) {
+		return row_length(segment(addr), (int) addr);
+	}
+
+	long append(Row row) {
+		int length = row.length();
+		ByteBuffer seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (seg == null || seg.remaining() < length) {
+			seg = new_segment(next_segment_size(length));
+			segments.add(seg);
+		}
+
+		// the key length goes last, for a record is there once it is not 0
+		int off = seg.position();
+		seg.position(off + HEADER);
+		seg.put(row.key);
+		if (row.value != null) {
+			seg.put(row.value);
+		}
+		seg.putInt(off + 4, row.value == null ? -1 : row.value.length);
+		seg.putInt(off + 8, row.checksum());
+		seg.putInt(off, row.key.length);
+
+		if (row.value == null) {
+			garbage += length;
+		} else {
+			live += length;
+		}
+		return ((long) segments.size() << 32) | off;
+	}
+
+	/**
+	 * Take on a segment of a log written before, and replay its records
+	 * until the first that is missing or broken.
+	 *
+	 * @return true if the log may go on in another segment
+	 */
+	boolean recover(ByteBuffer seg) {
+		segments.add(seg);
+		long segno = segments.size();
+
+		int off = 0;
+		while (off + HEADER <= seg.limit()) {
+			int key_length = seg.getInt(off);
+			int value_length = seg.getInt(off + 4);
+			if (key_length <= 0 || value_length < -1
+					|| off + (long) row_length(seg, off) > seg.limit()) {
+				break;
+			}
+
+			ByteBuffer data = seg.duplicate();
+			data.position(off + HEADER);
+			byte[] key = new byte[key_length];
+			data.get(key);
+			byte[] value = value_length < 0 ? null : new byte[value_length];
+			if (value != null) {
+				data.get(value);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(key);
+			if (value != null) {
+				crc.update(value);
+			}
+			if ((int) crc.getValue() != seg.getInt(off + 8)) {
+				break;
+			}
+
+			replay(decode(key), ((long) segno << 32) | off, value == null);
+			off += row_length(seg, off);
+		}
+
+		seg.position(off);
+		if (off + HEADER <= seg.limit() && seg.getInt(off) != 0) {
+			// a broken record ends the log
+			return false;
+		}
+		return true;
+	}
+
+	private void replay(EObject key, long addr, boolean removal) {
+		int hash = hash(key);
+		int slot = find(key, hash);
+		int length = row_length(addr);
+
+		if (removal) {
+			garbage += length;
+			if (slot >= 0) {
+				long old = addr(slot);
+				set_slot(slot, REMOVED, 0);
+				release(old);
+				size -= 1;
+			}
+			return;
+		}
+
+		live += length;
+		if (slot >= 0) {
+			long old = addr(slot);
+			set_slot(slot, addr, hash);
+			release(old);
+			return;
+		}
+
+		if ((used + 1) * 4L > capacity * 3L) {
+			rehash();
+		}
+		slot = free_slot(hash);
+		if (addr(slot) == 0) {
+			used += 1;
+		}
+		set_slot(slot, addr, hash);
+		size += 1;
+	}
+
+	private void release(long addr) {
+		int length = row_length(addr);
+		live -= length;
+		garbage += length;
+	}
+
+	private long addr(int slot) {
+		return slots.getLong(slot * SLOT_SIZE);
+	}
+
+	private void set_slot(int slot, long addr, int hash) {
+		slots.putLong(slot * SLOT_SIZE, addr);
+		slots.putInt(slot * SLOT_SIZE + 8, hash);
+	}
+
+	/** @return the object at <code>addr</code>, from the cache if it is there */
+	private Cached load(int slot, long addr) {
+		Cached[] cache = this.cache;
+		Cached c = cache[slot & (CACHE_SIZE - 1)];
+		if (c != null && c.addr == addr) {
+			return c;
+		}
+
+		c = new Cached(addr, decode(read_key(addr)), (ETuple) decode(read_value(addr)));
+		cache[slot & (CACHE_SIZE - 1)] = c;
+		return c;
+	}
+
+	/** @return the slot of <code>key</code>, or -1 */
+	private int find(EObject key, int hash) {
+		int mask = capacity - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			long addr = addr(slot);
+			if (addr == 0) {
+				return -1;
+			}
+			if (addr != REMOVED
+					&& slots.getInt(slot * SLOT_SIZE + 8) == hash
+					&& key.equals(load(slot, addr).key)) {
+				return slot;
+			}
+		}
+	}
+
+	/** @return an empty slot for a key not in the map */
+	private int free_slot(int hash) {
+		int mask = capacity - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			long addr = addr(slot);
+			if (addr == 0 || addr == REMOVED) {
+				return slot;
+			}
+		}
+	}
+
+	private ETuple get_locked(EObject key) {
+		int slot = find(key, hash(key));
+		return slot < 0 ? null : load(slot, addr(slot)).value;
+	}
+
+	private ETuple put_locked(EObject key, Row row) {
+		int slot = find(key, row.hash);
+		if (slot >= 0) {
+			long old = addr(slot);
+			ETuple res = load(slot, old).value;
+			set_slot(slot, append(row), row.hash);
+			release(old);
+			compact_if_needed();
+			return res;
+		}
+
+		if ((used + 1) * 4L > capacity * 3L) {
+			rehash();
+		}
+		slot = free_slot(row.hash);
+		if (addr(slot) == 0) {
+			used += 1;
+		}
+		set_slot(slot, append(row), row.hash);
+		size += 1;
+		return null;
+	}
+
+	private ETuple remove_locked(int slot) {
+		long addr = addr(slot);
+		ETuple res = load(slot, addr).value;
+		log_remove(addr);
+		set_slot(slot, REMOVED, 0);
+		release(addr);
+		size -= 1;
+		compact_if_needed();
+		return res;
+	}
+
+	/** grow the slot table, or clear it of removed slots */
+	private void rehash() {
+		int new_capacity = (size + 1) * 2L > capacity ? capacity * 2 : capacity;
+		if (new_capacity > MAX_SLOTS) {
+			throw new ErlangError(am_system_limit);
+		}
+
+		ByteBuffer old = slots;
+		int old_capacity = capacity;
+		slots = ByteBuffer.allocateDirect(new_capacity * SLOT_SIZE);
+		capacity = new_capacity;
+		used = size;
+
+		for (int i = 0; i < old_capacity; i++) {
+			long addr = old.getLong(i * SLOT_SIZE);
+			if (addr != 0 && addr != REMOVED) {
+				int hash = old.getInt(i * SLOT_SIZE + 8);
+				set_slot(free_slot(hash), addr, hash);
+			}
+		}
+		cache = new Cached[CACHE_SIZE];
+	}
+
+	/** copy the live objects to new segments, once half the space is garbage */
+	private void compact_if_needed() {
+		if (garbage < FIRST_SEGMENT_SIZE || garbage < live) {
+			return;
+		}
+
+		compacting();
+		ArrayList<ByteBuffer> old = segments;
+		segments = new ArrayList<ByteBuffer>();
+		ByteBuffer seg = null;
+		for (int i = 0; i < capacity; i++) {
+			long addr = addr(i);
+			if (addr == 0 || addr == REMOVED) {
+				continue;
+			}
+
+			ByteBuffer from = old.get((int) (addr >>> 32) - 1).duplicate();
+			from.position((int) addr);
+			ByteBuffer src = from.slice();
+			int length = row_length(src, 0);
+			src.limit(length);
+
+			if (seg == null || seg.remaining() < length) {
+				seg = new_segment(next_segment_size(length));
+				segments.add(seg);
+			}
+			slots.putLong(i * SLOT_SIZE, ((long) segments.size() << 32) | seg.position());
+			seg.put(src);
+		}
+
+		garbage = 0;
+		cache = new Cached[CACHE_SIZE];
+		compacted();
+	}
+
+	/** the segments of the log, oldest first; the caller holds the lock */
+	ArrayList<ByteBuffer> segments() {
+		return segments;
+	}
+
+	/** @return the bytes the objects and slots take, garbage included */
+	public long memory() {
+		lock.readLock().lock();
+		try {
+			long res = (long) capacity * SLOT_SIZE;
+			for (ByteBuffer seg : segments) {
+				res += seg.capacity();
+			}
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//
+	// The map
+	//
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ETuple get(Object key) {
+		lock.readLock().lock();
+		try {
+			return get_locked((EObject) key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public ETuple put(EObject key, ETuple value) {
+		Row row = new Row(key, value);
+		lock.writeLock().lock();
+		try {
+			return put_locked(key, row);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public ETuple putIfAbsent(EObject key, ETuple value) {
+		Row row = new Row(key, value);
+		lock.writeLock().lock();
+		try {
+			ETuple res = get_locked(key);
+			if (res == null) {
+				put_locked(key, row);
+			}
+			return res;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean replace(EObject key, ETuple old, ETuple value) {
+		Row row = new Row(key, value);
+		lock.writeLock().lock();
+		try {
+			ETuple now = get_locked(key);
+			if (now == null || !now.equalsExactly(old)) {
+				return false;
+			}
+			put_locked(key, row);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public ETuple replace(EObject key, ETuple value) {
+		Row row = new Row(key, value);
+		lock.writeLock().lock();
+		try {
+			return get_locked(key) == null ? null : put_locked(key, row);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ETuple remove(Object key) {
+		EObject k = (EObject) key;
+		lock.writeLock().lock();
+		try {
+			int slot = find(k, hash(k));
+			return slot < 0 ? null : remove_locked(slot);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean remove(Object key, Object value) {
+		EObject k = (EObject) key;
+		lock.writeLock().lock();
+		try {
+			int slot = find(k, hash(k));
+			if (slot < 0 || !load(slot, addr(slot)).value.equalsExactly((EObject) value)) {
+				return false;
+			}
+			remove_locked(slot);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			compacting();
+			reset();
+			compacted();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<EObject, ETuple>> entrySet() {
+		return new AbstractSet<Map.Entry<EObject, ETuple>>() {
+			@Override
+			public Iterator<Map.Entry<EObject, ETuple>> iterator() {
+				return new Iter();
+			}
+
+			@Override
+			public int size() {
+				return EOffHeapMap.this.size();
+			}
+		};
+	}
+
+	/** walks the slot table, one slot at a time */
+	final class Iter implements Iterator<Map.Entry<EObject, ETuple>> {
+		private int slot = 0;
+		private Cached next;
+		private Cached last;
+
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+
+			lock.readLock().lock();
+			try {
+				for (; slot < capacity; slot++) {
+					long addr = addr(slot);
+					if (addr != 0 && addr != REMOVED) {
+						next = load(slot, addr);
+						slot += 1;
+						return true;
+					}
+				}
+				return false;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		public Map.Entry<EObject, ETuple> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = null;
+			return new AbstractMap.SimpleImmutableEntry<EObject, ETuple>(last.key, last.value);
+		}
+
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			EOffHeapMap.this.remove(last.key, last.value);
+			last = null;
+		}
+	}
+}
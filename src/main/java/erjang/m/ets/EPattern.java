@@ -337,7 +337,7 @@ public class EPattern {
 	 */
 	public EObject getKey(int keypos1) {
 		if (keypos1 < 1 || keypos1 > matcher.elems.length) {
-			throw new IllegalStateException();
+			return null;
 		}
 		ETermPattern m = matcher.elems[keypos1-1];
 		if (m instanceof ValuePattern) {
@@ -357,7 +357,7 @@ public class EPattern {
 		EMatchContext res = new EMatchContext(out_length, val);
 		
 		if (matcher.match(val, res)) {
-			out = out.cons(ETuple.make(res.vars));
+			out = out.cons(EList.make((Object[])res.vars));
 		}
 		
 		return out;	
@@ -0,0 +1,46 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import erjang.EPseudoTerm;
+
+/**
+ * The continuation of a chunked select, match or match_object.  It
+ * says where in the table the last chunk stopped; what a position is
+ * depends on the kind of table.
+ */
+final class ESelectContinuation extends EPseudoTerm {
+
+	final ETable table;
+	final EMatchSpec matcher;
+	final int limit;
+	final Object pos;
+
+	ESelectContinuation(ETable table, EMatchSpec matcher, int limit, Object pos) {
+		this.table = table;
+		this.matcher = matcher;
+		this.limit = limit;
+		this.pos = pos;
+	}
+
+	@Override
+	public String toString() {
+		return "#Continuation<" + table.tid + ">";
+	}
+}
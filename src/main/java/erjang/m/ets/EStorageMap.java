@@ -0,0 +1,37 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.concurrent.ConcurrentMap;
+
+import erjang.EObject;
+import erjang.ETuple;
+
+/**
+ * A map that keeps the objects of a table somewhere else than on the
+ * Java heap, and knows how much room they take there.
+ */
+interface EStorageMap extends ConcurrentMap<EObject, ETuple> {
+
+	/** @return the bytes the objects take, garbage included */
+	long memory();
+
+	/** @return what info says the table's storage is */
+	EObject storage();
+}
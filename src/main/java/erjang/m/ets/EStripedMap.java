@@ -0,0 +1,163 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import erjang.EObject;
+import erjang.ETuple;
+
+/**
+ * An off-heap map in stripes, each an {@link EOffHeapMap} with a lock
+ * of its own, for a table with <code>write_concurrency</code>; so that
+ * writers to keys in different stripes do not wait for each other.
+ * Iterators walk one stripe after the other.
+ */
+final class EStripedMap extends AbstractMap<EObject, ETuple> implements EStorageMap {
+
+	private final EOffHeapMap[] stripes;
+	private final int shift;
+
+	/** @param n the number of stripes, a power of two */
+	EStripedMap(int n) {
+		stripes = new EOffHeapMap[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new EOffHeapMap();
+		}
+		shift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	/** the stripe goes by the high bits, for each stripe's slots go by the low ones */
+	private EOffHeapMap stripe(Object key) {
+		if (stripes.length == 1) {
+			return stripes[0];
+		}
+		return stripes[(EOffHeapMap.hash((EObject) key) * 0x9E3779B9) >>> shift];
+	}
+
+	public long memory() {
+		long res = 0;
+		for (EOffHeapMap stripe : stripes) {
+			res += stripe.memory();
+		}
+		return res;
+	}
+
+	public EObject storage() {
+		return Native.am_off_heap;
+	}
+
+	@Override
+	public int size() {
+		int res = 0;
+		for (EOffHeapMap stripe : stripes) {
+			res += stripe.size();
+		}
+		return res;
+	}
+
+	@Override
+	public ETuple get(Object key) {
+		return stripe(key).get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return stripe(key).containsKey(key);
+	}
+
+	@Override
+	public ETuple put(EObject key, ETuple value) {
+		return stripe(key).put(key, value);
+	}
+
+	public ETuple putIfAbsent(EObject key, ETuple value) {
+		return stripe(key).putIfAbsent(key, value);
+	}
+
+	public boolean replace(EObject key, ETuple old, ETuple value) {
+		return stripe(key).replace(key, old, value);
+	}
+
+	public ETuple replace(EObject key, ETuple value) {
+		return stripe(key).replace(key, value);
+	}
+
+	@Override
+	public ETuple remove(Object key) {
+		return stripe(key).remove(key);
+	}
+
+	public boolean remove(Object key, Object value) {
+		return stripe(key).remove(key, value);
+	}
+
+	@Override
+	public void clear() {
+		for (EOffHeapMap stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<EObject, ETuple>> entrySet() {
+		return new AbstractSet<Map.Entry<EObject, ETuple>>() {
+			@Override
+			public Iterator<Map.Entry<EObject, ETuple>> iterator() {
+				return new Iter();
+			}
+
+			@Override
+			public int size() {
+				return EStripedMap.this.size();
+			}
+		};
+	}
+
+	final class Iter implements Iterator<Map.Entry<EObject, ETuple>> {
+		private int stripe = 0;
+		private Iterator<Map.Entry<EObject, ETuple>> it = stripes[0].entrySet().iterator();
+
+		public boolean hasNext() {
+			while (!it.hasNext()) {
+				if (stripe + 1 == stripes.length) {
+					return false;
+				}
+				it = stripes[++stripe].entrySet().iterator();
+			}
+			return true;
+		}
+
+		public Map.Entry<EObject, ETuple> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return it.next();
+		}
+
+		public void remove() {
+			it.remove();
+		}
+	}
+}
@@ -19,7 +19,9 @@
 package erjang.m.ets;
 
 import java.lang.ref.WeakReference;
+import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import clojure.lang.APersistentMap;
 import clojure.lang.IPersistentMap;
@@ -40,11 +42,11 @@ import erjang.ExitHook;
 import erjang.NotImplemented;
 
 /**
- * Abstract super class for an ETS table.  We implement ETS by using
- * Clojure's persistent data types.  
+ * Abstract super class for an ETS table.  Sets are implemented with
+ * concurrent maps, and bags with Clojure's persistent data types.
  * 
- * set:           PersistentHashMap [key, value]
- * ordered_set:   PersistentTreeMap [key, value]
+ * set:           ConcurrentHashMap [key, value]
+ * ordered_set:   ConcurrentSkipListMap [key, value]
  * bag			  PersistentHashMap [key, PersistentSet [value]]
  * duplicate_bag: PersistentHashMap [key, PersistentList [value]]
  * 
@@ -65,6 +67,33 @@ abstract class ETable implements ExitHook {
 	protected final APersistentMap empty;
 	private Ref mapRef;
 
+	final ETableStats stats = new ETableStats();
+
+	/** the walks first/next are on, by the key each got to last */
+	private final ConcurrentHashMap<EObject, Cursor> cursors =
+		new ConcurrentHashMap<EObject, Cursor>();
+
+	/** more walks than this, and the ones not done are given up */
+	private static final int MAX_CURSORS = 16;
+
+	/** a walk over the keys, which next/2 goes on with */
+	private static final class Cursor {
+		final Iterator<EObject> keys;
+
+		/** another walk that got to the same key */
+		Cursor same;
+
+		Cursor(Iterator<EObject> keys) {
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * @param map
+	 *            the initial contents on the STM; or null for a table which
+	 *            keeps its contents itself, and overrides every operation
+	 *            that uses the STM
+	 */
 	ETable(EProc owner, EAtom type, EInteger tid, EAtom aname, EAtom access, int keypos,
 			boolean is_named, EPID heir_pid, EObject heir_data, APersistentMap map) {
 		this.type = type;
@@ -76,10 +105,12 @@ abstract class ETable implements ExitHook {
 		this.keypos1 = keypos;
 		this.heirPID = heir_pid;
 		this.heirData = heir_data;
-		try {
-			this.mapRef = new Ref(map);
-		} catch (Exception e) {
-			throw new ErlangError(am_stm);
+		if (map != null) {
+			try {
+				this.mapRef = new Ref(map);
+			} catch (Exception e) {
+				throw new ErlangError(am_stm);
+			}
 		}
 		empty = map;
 		owner.add_exit_hook(this);
@@ -90,11 +121,19 @@ abstract class ETable implements ExitHook {
 	 */
 	public static ETable allocate(EProc proc, EInteger tid, EAtom aname,
 			EAtom type, EAtom access, int keypos, boolean write_concurrency,
-			boolean is_named, EPID heir_pid, EObject heir_data) {
+			boolean read_concurrency, boolean decentralized_counters,
+			int[] index, EObject storage, boolean is_named, EPID heir_pid, EObject heir_data) {
 
-		if (type == Native.am_set || type == Native.am_ordered_set) {
+		if (type == Native.am_set) {
 			return new ETableSet(proc, type, tid, aname, access, keypos,
-					write_concurrency, is_named, heir_pid, heir_data);
+					write_concurrency, read_concurrency, decentralized_counters,
+					index, storage, is_named, heir_pid, heir_data);
+		}
+
+		if (type == Native.am_ordered_set) {
+			return new ETableOrderedSet(proc, type, tid, aname, access, keypos,
+					write_concurrency, read_concurrency, decentralized_counters,
+					index, is_named, heir_pid, heir_data);
 		}
 
 		if (type == Native.am_bag || type == Native.am_duplicate_bag) {
@@ -104,7 +143,8 @@ abstract class ETable implements ExitHook {
 
 		throw new NotImplemented("ets type=" + type + "; access=" + access
 				+ "; keypos=" + keypos + "; write_concurrency="
-				+ write_concurrency + "; heir_pid=" + heir_pid);
+				+ write_concurrency + "; read_concurrency="
+				+ read_concurrency + "; heir_pid=" + heir_pid);
 	}
 
 	/**
@@ -135,19 +175,65 @@ abstract class ETable implements ExitHook {
 		return o.self_handle();
 	}
 
+	/** the items of info/1, in the order it has them */
+	private static final EAtom[] INFO = {
+		Native.am_memory, Native.am_id, Native.am_protection, Native.am_keypos,
+		Native.am_type, Native.am_named_table, Native.am_node, Native.am_size,
+		Native.am_name, Native.am_heir, Native.am_owner, Native.am_lookups,
+		Native.am_inserts, Native.am_deletes, Native.am_scans, Native.am_contention
+	};
+
 	ESeq info() {
-		ESeq res = ERT.NIL;
+		return info(ERT.NIL, INFO);
+	}
 
-		res = res.cons(new ETuple2(Native.am_owner, owner_pid()));
-		res = res.cons(new ETuple2(Native.am_heir, heirPID));
-		res = res.cons(new ETuple2(Native.am_name, aname));
-		res = res.cons(new ETuple2(Native.am_size, ERT.box(size())));
-		res = res.cons(new ETuple2(Native.am_node, ERT.getLocalNode().node()));
-		res = res.cons(new ETuple2(Native.am_named_table, ERT.box(is_named)));
-		res = res.cons(new ETuple2(Native.am_type, type));
-		res = res.cons(new ETuple2(Native.am_keypos, ERT.box(keypos1)));
-		res = res.cons(new ETuple2(Native.am_protection, access));
+	/** @return <code>res</code>, with <code>{Item, Value}</code> for each of <code>items</code> in front */
+	ESeq info(ESeq res, EAtom[] items) {
+		for (int i = items.length - 1; i >= 0; i--) {
+			res = res.cons(new ETuple2(items[i], info(items[i])));
+		}
+		return res;
+	}
+
+	/** @return the value of one item of info/1, or null if there is no such item */
+	EObject info(EAtom item) {
+		if (item == Native.am_owner) {
+			return owner_pid();
+		} else if (item == Native.am_heir) {
+			return heirPID == null ? Native.am_none : heirPID;
+		} else if (item == Native.am_name) {
+			return aname;
+		} else if (item == Native.am_size) {
+			return ERT.box(size());
+		} else if (item == Native.am_node) {
+			return ERT.getLocalNode().node();
+		} else if (item == Native.am_named_table) {
+			return ERT.box(is_named);
+		} else if (item == Native.am_type) {
+			return type;
+		} else if (item == Native.am_keypos) {
+			return ERT.box(keypos1);
+		} else if (item == Native.am_protection) {
+			return access;
+		} else if (item == Native.am_id) {
+			return tid;
+		} else if (item == Native.am_memory) {
+			return ERT.box(memory());
+		} else {
+			return stats.info(item);
+		}
+	}
 
+	/**
+	 * @return the words the objects take, as {@link ETableStats#words}
+	 *         counts them, and the entries they are in.  This walks the
+	 *         table; tables that keep count do better.
+	 */
+	long memory() {
+		long res = 0;
+		for (Iterator<ETuple> it = objects(); it.hasNext(); ) {
+			res += ETableStats.ENTRY_WORDS + ETableStats.words(it.next());
+		}
 		return res;
 	}
 
@@ -196,13 +282,24 @@ abstract class ETable implements ExitHook {
 		
 	}
 	
+	/** run <code>run</code> in a transaction, counting the retries as contention */
 	@SuppressWarnings("unchecked")
-	<X> X in_tx(Callable<X> run) {
+	<X> X in_tx(final Callable<X> run) {
+		final int[] tries = new int[1];
 		try {
-			return (X) LockingTransaction.runInTransaction(run);
+			return (X) LockingTransaction.runInTransaction(new Callable<X>() {
+				public X call() throws Exception {
+					tries[0] += 1;
+					return run.call();
+				}
+			});
 		} catch (Exception e) {
 			// STM Failure
 			throw new ErlangError(am_stm);
+		} finally {
+			if (tries[0] > 1) {
+				stats.contention.add(tries[0] - 1);
+			}
 		}
 	}
 	
@@ -213,9 +310,11 @@ abstract class ETable implements ExitHook {
 
 	protected abstract void insert_many(ESeq values);
 
-	protected abstract void insert_new_one(ETuple value);
+	/** @return false, and insert nothing, if there is an object with the key */
+	protected abstract boolean insert_new_one(ETuple value);
 
-	protected abstract void insert_new_many(ESeq values);
+	/** @return false, and insert nothing, if there is an object with any of the keys */
+	protected abstract boolean insert_new_many(ESeq values);
 
 	protected abstract EObject lookup(EObject key);
 
@@ -225,6 +324,110 @@ abstract class ETable implements ExitHook {
 
 	protected abstract EInteger select_delete(EMatchSpec matcher);
 
+	/** @return the results of <code>matcher</code> for the matching objects */
+	protected abstract ESeq select(EMatchSpec matcher);
+
+	/**
+	 * Run <code>matcher</code> over the objects from <code>pos</code> on,
+	 * until it has <code>limit</code> results.
+	 * 
+	 * @param pos where the previous chunk stopped, or null for the start
+	 * @return the chunk, as made by {@link #chunk}
+	 */
+	abstract EObject select(EMatchSpec matcher, int limit, Object pos);
+
+	/**
+	 * @param pos where the next chunk starts, or null if there is none
+	 * @return <code>{Results, Continuation}</code>, or
+	 *         <code>'$end_of_table'</code> if there are no results
+	 */
+	EObject chunk(ESeq results, EMatchSpec matcher, int limit, Object pos) {
+		if (results.isNil()) {
+			return Native.am_$end_of_table;
+		}
+
+		EObject cont = pos == null ? Native.am_$end_of_table
+				: new ESelectContinuation(this, matcher, limit, pos);
+		return new ETuple2(results, cont);
+	}
+
+	/** @return the keys of the table, in the order that first/next walk them */
+	protected abstract Iterable<EObject> keys();
+
+	/**
+	 * @return the objects of the table, for tab2file.  Walking them does
+	 * not block writers.
+	 */
+	abstract Iterator<ETuple> objects();
+
+	/** @return the options to create a table like this one with */
+	ESeq options() {
+		ESeq res = ERT.NIL;
+		if (is_named) {
+			res = res.cons(Native.am_named_table);
+		}
+		res = res.cons(new ETuple2(Native.am_keypos, ERT.box(keypos1)));
+		res = res.cons(access);
+		res = res.cons(type);
+		return res;
+	}
+
+	/** @return the first key, or <code>'$end_of_table'</code> */
+	EObject first() {
+		return step(new Cursor(keys().iterator()));
+	}
+
+	/**
+	 * A walk from {@link #first} goes on from where it got to, like a
+	 * fixed table, even if that key has since been deleted.  Any other
+	 * key is looked for from the start; tables with an order do better.
+	 * 
+	 * @return the key after <code>key</code>, or <code>'$end_of_table'</code>;
+	 *         or null if <code>key</code> is not in the table
+	 */
+	EObject next(EObject key) {
+		Cursor c = cursors.remove(key);
+		if (c != null) {
+			if (c.same != null) {
+				cursors.put(key, c.same);
+				c.same = null;
+			}
+			return step(c);
+		}
+
+		c = new Cursor(keys().iterator());
+		while (c.keys.hasNext()) {
+			if (c.keys.next().equals(key)) {
+				return step(c);
+			}
+		}
+		return null;
+	}
+
+	/** @return the next key of the walk, which is left there for next/2 */
+	private EObject step(Cursor c) {
+		if (!c.keys.hasNext()) {
+			return Native.am_$end_of_table;
+		}
+
+		EObject key = c.keys.next();
+		if (cursors.size() >= MAX_CURSORS) {
+			cursors.clear();
+		}
+		c.same = cursors.put(key, c);
+		return key;
+	}
+
+	/** for tables without an order, the last key is the first */
+	EObject last() {
+		return first();
+	}
+
+	/** for tables without an order, the previous key is the next */
+	EObject prev(EObject key) {
+		return next(key);
+	}
+
 	protected void delete_all_objects() {
 		in_tx(new WithMap<Object>() {
 
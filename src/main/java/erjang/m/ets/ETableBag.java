@@ -18,8 +18,12 @@
 
 package erjang.m.ets;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
+import clojure.lang.IMapEntry;
 import clojure.lang.IPersistentCollection;
 import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentSet;
@@ -109,13 +113,39 @@ public class ETableBag extends ETable {
 	}
 
 	@Override
-	protected void insert_new_many(ESeq values) {
-		throw new NotImplemented();
+	protected boolean insert_new_many(final ESeq values) {
+		for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+			if (seq.head().testTuple() == null) throw ERT.badarg(values);
+		}
+
+		return in_tx(new WithMap<Boolean>() {
+			@Override
+			protected Boolean run(IPersistentMap map) {
+				for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+					if (map.containsKey(get_key((ETuple) seq.head()))) {
+						return false;
+					}
+				}
+
+				int count = 0;
+				for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+					ETuple value = (ETuple) seq.head();
+					EObject key = get_key(value);
+					IPersistentCollection c = 
+						(IPersistentCollection) map.valAt(key, empty());
+					map = map.assoc(key, c.cons(value));
+					count += 1;
+				}
+				sizeRef.set(count + (Integer)sizeRef.deref());
+				set(map);
+				return true;
+			}
+		});
 	}
 
 	@Override
-	protected void insert_new_one(ETuple value) {
-		throw new NotImplemented();
+	protected boolean insert_new_one(ETuple value) {
+		return insert_new_many(ERT.NIL.cons(value));
 	}
 
 	@Override
@@ -139,7 +169,7 @@ public class ETableBag extends ETable {
 	@Override
 	protected EObject lookup(EObject key) {
 		IPersistentMap ipm = deref();
-		IPersistentCollection set = (IPersistentCollection) ipm.valAt(key);
+		IPersistentCollection set = (IPersistentCollection) ipm.valAt(key, empty());
 		ESeq res = ERT.NIL;
 		for(ISeq s = set.seq(); s != null; s = s.next())
 		{
@@ -179,6 +209,17 @@ public class ETableBag extends ETable {
 		});
 	}
 
+	/** @return the objects in <code>coll</code> that match, prepended to <code>vals</code> */
+	private static ESeq matching(EMatchSpec matcher, ESeq vals, IPersistentCollection coll) {
+		for (ISeq values = coll.seq(); values != null; values = values.next()) {
+			ETuple val = (ETuple) values.first();
+			if (matcher.match(val)) {
+				vals = vals.cons(val);
+			}
+		}
+		return vals;
+	}
+
 	@Override
 	protected EInteger select_delete(final EMatchSpec matcher) {
 
@@ -192,11 +233,15 @@ public class ETableBag extends ETable {
 				EObject key = matcher.getTupleKey(keypos1);
 				
 				if (key == null) {
-					vals = matcher.matching_values_bag(vals, (Map<EObject, java.util.Collection <ETuple>>) map);
+					stats.scans.increment();
+					for (ISeq entries = map.seq(); entries != null; entries = entries.next()) {
+						IMapEntry ent = (IMapEntry) entries.first();
+						vals = matching(matcher, vals, (IPersistentCollection) ent.val());
+					}
 				} else {
-					ETuple candidate = (ETuple) map.valAt(key);
-					if (candidate != null && matcher.match(candidate)) {
-						vals = vals.cons(key);
+					IPersistentCollection coll = (IPersistentCollection) map.valAt(key);
+					if (coll != null) {
+						vals = matching(matcher, vals, coll);
 					}
 				}
 				
@@ -257,5 +302,131 @@ public class ETableBag extends ETable {
 		});
 	}
 
+	@Override
+	protected ESeq select(EMatchSpec matcher) {
+		ESeq res = ERT.NIL;
+
+		EObject key = matcher.getTupleKey(keypos1);
+		if (key != null) {
+			IPersistentCollection coll = (IPersistentCollection) deref().valAt(key);
+			return coll == null ? res : select(matcher, res, coll.seq());
+		}
+
+		stats.scans.increment();
+		for (ISeq entries = deref().seq(); entries != null; entries = entries.next()) {
+			IMapEntry ent = (IMapEntry) entries.first();
+			res = select(matcher, res, ((IPersistentCollection) ent.val()).seq());
+		}
 
+		return res;
+	}
+
+	/** @return the results for <code>values</code>, prepended to <code>res</code> */
+	private static ESeq select(EMatchSpec matcher, ESeq res, ISeq values) {
+		for (; values != null; values = values.next()) {
+			EObject val = matcher.run((EObject) values.first());
+			if (val != null) {
+				res = res.cons(val);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Where a chunked select stopped, in the snapshot of the table it
+	 * started on: the entries not yet visited, and the objects not yet
+	 * visited under the current key.
+	 */
+	static final class Position {
+		final ISeq entries;
+		final ISeq values;
+
+		Position(ISeq entries, ISeq values) {
+			this.entries = entries;
+			this.values = values;
+		}
+	}
+
+	@Override
+	EObject select(EMatchSpec matcher, int limit, Object pos) {
+		ISeq entries, values;
+		EObject key;
+		if (pos == null && (key = matcher.getTupleKey(keypos1)) != null) {
+			// only the objects under the key
+			IPersistentCollection coll = (IPersistentCollection) deref().valAt(key);
+			entries = null;
+			values = coll == null ? null : coll.seq();
+		} else if (pos == null) {
+			stats.scans.increment();
+			entries = deref().seq();
+			values = null;
+		} else {
+			entries = ((Position) pos).entries;
+			values = ((Position) pos).values;
+		}
+
+		ESeq res = ERT.NIL;
+		int count = 0;
+		while (true) {
+			while (values == null) {
+				if (entries == null) {
+					return chunk(res, matcher, limit, null);
+				}
+				IMapEntry ent = (IMapEntry) entries.first();
+				values = ((IPersistentCollection) ent.val()).seq();
+				entries = entries.next();
+			}
+
+			EObject val = matcher.run((EObject) values.first());
+			values = values.next();
+			if (val != null) {
+				res = res.cons(val);
+				if (++count == limit) {
+					Position next = (entries == null && values == null) ? null
+							: new Position(entries, values);
+					return chunk(res, matcher, limit, next);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected Iterable<EObject> keys() {
+		return ((Map<EObject, ?>) deref()).keySet();
+	}
+
+	/** the objects in a snapshot of the table */
+	@Override
+	Iterator<ETuple> objects() {
+		final ISeq snapshot = deref().seq();
+
+		return new Iterator<ETuple>() {
+			ISeq entries = snapshot;
+			ISeq values = null;
+
+			public boolean hasNext() {
+				while (values == null) {
+					if (entries == null) {
+						return false;
+					}
+					values = ((IPersistentCollection) ((IMapEntry) entries.first()).val()).seq();
+					entries = entries.next();
+				}
+				return true;
+			}
+
+			public ETuple next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ETuple res = (ETuple) values.first();
+				values = values.next();
+				return res;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
 }
@@ -0,0 +1,263 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import erjang.EAtom;
+import erjang.EInputStream;
+import erjang.EObject;
+import erjang.EOutputStream;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ETuple;
+import erjang.ETuple2;
+import erjang.ErlangError;
+
+/**
+ * The file format of tab2file and file2tab: a header that says how to
+ * create the table, then blocks of objects in external term format,
+ * each compressed on its own, then the number of objects.  No block
+ * holds more than <code>BLOCK_SIZE</code> bytes; an object too big for
+ * one goes on in the next, and <code>more</code> is 1 in all blocks of a
+ * run but the last, which ends with the last object it holds.
+ *
+ * <pre>
+ *   "ERJETS" 0 2
+ *   int length, {Name, Options}
+ *   { int length, int compressed length, byte more, deflated objects } ...
+ *   int 0, long count
+ * </pre>
+ */
+final class ETableFile {
+
+	private static final byte[] MAGIC = { 'E', 'R', 'J', 'E', 'T', 'S', 0, 2 };
+	private static final int BLOCK_SIZE = 1 << 16;
+
+	/** more than deflate ever makes of <code>BLOCK_SIZE</code> bytes */
+	private static final int MAX_COMPRESSED = BLOCK_SIZE + BLOCK_SIZE / 8 + 64;
+
+	/** the file is not one of ours, or is cut short */
+	static final class BadFile extends IOException {
+		BadFile(String message) {
+			super(message);
+		}
+	}
+
+	/** write the objects of <code>table</code> to <code>file</code> */
+	static void write(ETable table, File file, boolean sync) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BLOCK_SIZE));
+			out.write(MAGIC);
+			write_header(out, encode(new ETuple2(table.aname, table.options())));
+
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			EOutputStream block = new EOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+			long count = 0;
+			for (Iterator<ETuple> it = table.objects(); it.hasNext(); ) {
+				block.write_any(it.next());
+				count += 1;
+				if (block.size() >= BLOCK_SIZE) {
+					write_blocks(out, block.toByteArray(), deflater);
+					block.reset();
+				}
+			}
+			if (block.size() > 0) {
+				write_blocks(out, block.toByteArray(), deflater);
+			}
+			deflater.end();
+
+			out.writeInt(0);
+			out.writeLong(count);
+			out.flush();
+			if (sync) {
+				fos.getFD().sync();
+			}
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static byte[] encode(EObject term) {
+		EOutputStream out = new EOutputStream();
+		out.write_any(term);
+		return out.toByteArray();
+	}
+
+	/** the header is written as it is */
+	private static void write_header(DataOutputStream out, byte[] data)
+			throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	/** write whole objects, in as many blocks of at most BLOCK_SIZE as they need */
+	private static void write_blocks(DataOutputStream out, byte[] data, Deflater deflater)
+			throws IOException {
+		byte[] buf = new byte[MAX_COMPRESSED];
+		for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+			int n = Math.min(BLOCK_SIZE, data.length - off);
+
+			deflater.reset();
+			deflater.setInput(data, off, n);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == buf.length) {
+					throw new IOException("block does not deflate");
+				}
+				length += deflater.deflate(buf, length, buf.length - length);
+			}
+
+			out.writeInt(n);
+			out.writeInt(length);
+			out.writeBoolean(off + n < data.length);
+			out.write(buf, 0, length);
+		}
+	}
+
+	/**
+	 * Create a table as the header of <code>file</code> says, owned by
+	 * <code>proc</code>, and insert the objects in it a block at a time.
+	 *
+	 * @return the name or tid of the new table
+	 * @throws ErlangError badarg if the table cannot be created
+	 */
+	static EObject read(EProc proc, File file, boolean verify) throws IOException {
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), BLOCK_SIZE));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new BadFile("not a table file");
+			}
+
+			int header_length = in.readInt();
+			if (header_length < 0 || header_length > BLOCK_SIZE) {
+				throw new BadFile("bad header");
+			}
+			byte[] header = new byte[header_length];
+			in.readFully(header);
+			ETuple2 spec = ETuple2.cast(new EInputStream(header).read_any());
+			EAtom name;
+			ESeq options;
+			if (spec == null || (name = spec.elem1.testAtom()) == null
+					|| (options = spec.elem2.testSeq()) == null) {
+				throw new BadFile("bad header");
+			}
+
+			EObject tab = Native.new$(proc, name, options);
+			ETable table = Native.resolve(proc, tab, true);
+			try {
+				load(table, in, verify);
+			} catch (IOException e) {
+				table.delete();
+				throw e;
+			} catch (RuntimeException e) {
+				table.delete();
+				throw new BadFile(e.toString());
+			}
+			return tab;
+		} catch (EOFException e) {
+			throw new BadFile("cut short");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void load(ETable table, DataInputStream in, boolean verify)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			long count = 0;
+			byte[] compressed = new byte[MAX_COMPRESSED];
+
+			// the objects of a run of blocks; it grows only as they are read
+			byte[] buf = new byte[BLOCK_SIZE];
+			int used = 0;
+
+			for (int length = in.readInt(); length != 0; length = in.readInt()) {
+				int compressed_length = in.readInt();
+				if (length < 0 || length > BLOCK_SIZE
+						|| compressed_length < 0 || compressed_length > MAX_COMPRESSED) {
+					throw new BadFile("bad block");
+				}
+				boolean more = in.readBoolean();
+				in.readFully(compressed, 0, compressed_length);
+
+				if (buf.length - used < length) {
+					buf = Arrays.copyOf(buf, Math.max(buf.length * 2, used + length));
+				}
+
+				inflater.reset();
+				inflater.setInput(compressed, 0, compressed_length);
+				try {
+					if (inflater.inflate(buf, used, length) != length) {
+						throw new BadFile("short block");
+					}
+				} catch (DataFormatException e) {
+					throw new BadFile(e.getMessage());
+				}
+				used += length;
+				if (more) {
+					continue;
+				}
+
+				ESeq objects = ERT.NIL;
+				EInputStream objs = new EInputStream(buf, 0, used, 0);
+				while (objs.available() > 0) {
+					objects = objects.cons(objs.read_any());
+					count += 1;
+				}
+				table.insert_many(objects.reverse());
+
+				used = 0;
+				if (buf.length > BLOCK_SIZE) {
+					buf = new byte[BLOCK_SIZE];
+				}
+			}
+
+			if (used != 0) {
+				throw new BadFile("cut short");
+			}
+
+			if (in.readLong() != count && verify) {
+				throw new BadFile("wrong count");
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+}
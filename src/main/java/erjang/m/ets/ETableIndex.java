@@ -0,0 +1,114 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import erjang.EObject;
+import erjang.ETuple;
+
+/**
+ * A secondary index on one position of a set table, from the value at
+ * that position to the keys of the objects that have it.  Values are
+ * looked up exactly, as keys are.
+ *
+ * The table adds an object to the index before it stores it, and
+ * removes it after; so the index may list a key whose object no longer
+ * has the value, but never misses one that does.  Users must check the
+ * objects they find.
+ */
+final class ETableIndex {
+
+	final int pos1;
+
+	private final ConcurrentHashMap<EObject, Set<EObject>> keys =
+		new ConcurrentHashMap<EObject, Set<EObject>>();
+
+	ETableIndex(int pos1) {
+		this.pos1 = pos1;
+	}
+
+	/** @return the indexed value of <code>obj</code>, or null if it is too short */
+	EObject value(ETuple obj) {
+		return pos1 <= obj.arity() ? obj.elm(pos1) : null;
+	}
+
+	void add(EObject key, ETuple obj) {
+		EObject value = value(obj);
+		if (value == null)
+			return;
+
+		while (true) {
+			Set<EObject> set = keys.get(value);
+			if (set == null) {
+				Set<EObject> fresh = new HashSet<EObject>();
+				set = keys.putIfAbsent(value, fresh);
+				if (set == null) {
+					set = fresh;
+				}
+			}
+
+			synchronized (set) {
+				// unless it was emptied and dropped meanwhile
+				if (keys.get(value) == set) {
+					set.add(key);
+					return;
+				}
+			}
+		}
+	}
+
+	/** remove <code>key</code> under the value <code>obj</code> has */
+	void remove(EObject key, ETuple obj) {
+		EObject value = value(obj);
+		if (value == null)
+			return;
+
+		Set<EObject> set = keys.get(value);
+		if (set == null)
+			return;
+
+		synchronized (set) {
+			set.remove(key);
+			if (set.isEmpty()) {
+				keys.remove(value, set);
+			}
+		}
+	}
+
+	/** @return the keys of the objects that may have <code>value</code> */
+	Collection<EObject> lookup(EObject value) {
+		Set<EObject> set = keys.get(value);
+		if (set == null)
+			return Collections.emptyList();
+
+		synchronized (set) {
+			return new ArrayList<EObject>(set);
+		}
+	}
+
+	void clear() {
+		keys.clear();
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2009 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package erjang.m.ets;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import erjang.EAtom;
+import erjang.EInteger;
+import erjang.EObject;
+import erjang.EPID;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ETuple;
+
+/**
+ * An <code>ordered_set</code> table, on a concurrent skip list ordered
+ * by term order.  It is a set table in all but order, so first, last,
+ * next and prev take O(log n).  A select whose key pattern is partly
+ * bound only visits the keys in the range the pattern can match; one
+ * that binds an indexed position instead visits the keys the index
+ * lists, in order.
+ */
+public class ETableOrderedSet extends ETableSet {
+
+	final ConcurrentNavigableMap<EObject, ETuple> sorted;
+
+	ETableOrderedSet(EProc owner, EAtom type, EInteger tid, EAtom aname, EAtom access, int keypos,
+			boolean write_concurrency, boolean read_concurrency, boolean decentralized_counters,
+			int[] index, boolean is_named, EPID heirPID, EObject heirData) {
+		this(owner, type, tid, aname, access, keypos, write_concurrency,
+				read_concurrency, decentralized_counters, index, is_named, heirPID, heirData,
+				new ConcurrentSkipListMap<EObject, ETuple>(KEY_ORDER));
+	}
+
+	private ETableOrderedSet(EProc owner, EAtom type, EInteger tid, EAtom aname, EAtom access, int keypos,
+			boolean write_concurrency, boolean read_concurrency, boolean decentralized_counters,
+			int[] index, boolean is_named, EPID heirPID, EObject heirData,
+			ConcurrentNavigableMap<EObject, ETuple> sorted) {
+		super(owner, type, tid, aname, access, keypos, write_concurrency,
+				read_concurrency, decentralized_counters, index, is_named, heirPID, heirData, sorted);
+		this.sorted = sorted;
+	}
+
+	/**
+	 * A bound on the keys a pattern can match, which sorts just below
+	 * (or above) all of them.  It is only ever looked up, never stored.
+	 */
+	static final class KeyBound extends EObject {
+		final EMatchSpec.Pattern pattern;
+		final boolean low;
+
+		KeyBound(EMatchSpec.Pattern pattern, boolean low) {
+			this.pattern = pattern;
+			this.low = low;
+		}
+
+		int compare_key(EObject key) {
+			int cmp = pattern.range_compare(key);
+			if (low) {
+				return cmp < 0 ? 1 : -1;
+			} else {
+				return cmp > 0 ? -1 : 1;
+			}
+		}
+	}
+
+	/** Term order, extended with key bounds. */
+	static final Comparator<EObject> KEY_ORDER = new Comparator<EObject>() {
+		public int compare(EObject o1, EObject o2) {
+			if (o1 instanceof KeyBound) {
+				if (o2 instanceof KeyBound) {
+					return ((KeyBound) o1).low ? -1 : 1;
+				}
+				return ((KeyBound) o1).compare_key(o2);
+			} else if (o2 instanceof KeyBound) {
+				return -((KeyBound) o2).compare_key(o1);
+			}
+			return o1.compareTo(o2);
+		}
+	};
+
+	/** @return the range of keys a match spec can match */
+	private ConcurrentNavigableMap<EObject, ETuple> key_range(EMatchSpec matcher) {
+		EMatchSpec.Pattern key = matcher.getKeyPattern(keypos1);
+		if (key == null || key instanceof EMatchSpec.AnyPattern
+				|| key instanceof EMatchSpec.MatchVariable) {
+			// a key that can be anything is the whole table
+			return sorted;
+		}
+		return sorted.subMap(new KeyBound(key, true), new KeyBound(key, false));
+	}
+
+	/** @return the part of the table a match spec can match */
+	private NavigableMap<EObject, ETuple> range(EMatchSpec matcher) {
+		ConcurrentNavigableMap<EObject, ETuple> range = key_range(matcher);
+		if (range != sorted) {
+			return range;
+		}
+
+		List<ETuple> candidates = indexed(matcher);
+		return candidates == null ? sorted : in_order(candidates);
+	}
+
+	/** @return the objects an index found, by key */
+	private NavigableMap<EObject, ETuple> in_order(List<ETuple> candidates) {
+		NavigableMap<EObject, ETuple> res = new TreeMap<EObject, ETuple>(KEY_ORDER);
+		for (ETuple candidate : candidates) {
+			res.put(get_key(candidate), candidate);
+		}
+		return res;
+	}
+
+	@Override
+	public ESeq match(EPattern matcher) {
+		if (matcher.getKey(keypos1) != null) {
+			return super.match(matcher);
+		}
+
+		List<ETuple> candidates = indexed(matcher);
+		NavigableMap<EObject, ETuple> objs = candidates == null ? sorted : in_order(candidates);
+		if (objs == sorted) {
+			stats.scans.increment();
+		}
+
+		// walk backwards, so the result comes out in key order
+		return matcher.match(ERT.NIL, objs.descendingMap());
+	}
+
+	@Override
+	protected ESeq select(EMatchSpec matcher) {
+		ESeq res = ERT.NIL;
+		NavigableMap<EObject, ETuple> objs = range(matcher);
+		if (objs == sorted) {
+			stats.scans.increment();
+		}
+
+		// walk backwards, so the result comes out in key order
+		for (ETuple candidate : objs.descendingMap().values()) {
+			EObject val = matcher.run(candidate);
+			if (val != null) {
+				res = res.cons(val);
+			}
+		}
+
+		return res;
+	}
+
+	/** the position of a chunked select is the last key it visited */
+	@Override
+	EObject select(EMatchSpec matcher, int limit, Object pos) {
+		NavigableMap<EObject, ETuple> objs = range(matcher);
+		if (pos != null) {
+			objs = objs.tailMap((EObject) pos, false);
+		} else if (objs == sorted) {
+			stats.scans.increment();
+		}
+
+		ESeq res = ERT.NIL;
+		int count = 0;
+		for (Map.Entry<EObject, ETuple> ent : objs.entrySet()) {
+			EObject val = matcher.run(ent.getValue());
+			if (val != null) {
+				res = res.cons(val);
+				if (++count == limit) {
+					return chunk(res.reverse(), matcher, limit, ent.getKey());
+				}
+			}
+		}
+
+		return chunk(res.reverse(), matcher, limit, null);
+	}
+
+	@Override
+	public EInteger select_delete(EMatchSpec matcher) {
+		return select_delete(matcher, key_range(matcher));
+	}
+
+	@Override
+	EObject first() {
+		Map.Entry<EObject, ETuple> ent = sorted.firstEntry();
+		return ent == null ? Native.am_$end_of_table : ent.getKey();
+	}
+
+	@Override
+	EObject last() {
+		Map.Entry<EObject, ETuple> ent = sorted.lastEntry();
+		return ent == null ? Native.am_$end_of_table : ent.getKey();
+	}
+
+	/** the key need not be in the table */
+	@Override
+	EObject next(EObject key) {
+		EObject next = sorted.higherKey(key);
+		return next == null ? Native.am_$end_of_table : next;
+	}
+
+	/** the key need not be in the table */
+	@Override
+	EObject prev(EObject key) {
+		EObject prev = sorted.lowerKey(key);
+		return prev == null ? Native.am_$end_of_table : prev;
+	}
+}
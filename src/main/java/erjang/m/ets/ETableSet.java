@@ -6,7 +6,7 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *  
+ *
  *     http://www.apache.org/licenses/LICENSE-2.0
  *
  * Unless required by applicable law or agreed to in writing, software
@@ -19,11 +19,18 @@
 
 package erjang.m.ets;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import clojure.lang.IPersistentMap;
-import clojure.lang.PersistentHashMap;
-import clojure.lang.PersistentTreeMap;
 import erjang.EAtom;
 import erjang.EInteger;
 import erjang.EObject;
@@ -31,175 +38,771 @@ import erjang.EPID;
 import erjang.EProc;
 import erjang.ERT;
 import erjang.ESeq;
+import erjang.ESmall;
+import erjang.EString;
 import erjang.ETuple;
+import erjang.ETuple2;
 
 /**
- * 
+ * A <code>set</code> table, on a concurrent map from key to tuple.
+ *
+ * Reads take no lock, and see each write to a key atomically.  Writes
+ * to a single key take the key's lock, which writers share if the table
+ * has <code>write_concurrency</code>, and otherwise hold one at a time.
+ * Writes to several keys lock the whole table, which excludes all other
+ * writers, so they are atomic with respect to other writes.
+ *
+ * Writers that share a lock still count themselves in and out of it.
+ * With <code>decentralized_counters</code>, the lock is striped by key,
+ * so writers to different keys mostly count on different locks.
+ *
+ * A table may have secondary indexes on other positions, which select
+ * and match use when their pattern binds an indexed position.  Writers
+ * to one key of an indexed table do not share its lock, so each key's
+ * index entries are updated by one writer at a time.
+ *
+ * A table created with <code>{storage, off_heap}</code> keeps its
+ * objects in an {@link EOffHeapMap}, out of reach of the collector, or
+ * with <code>write_concurrency</code> in several, one for each lock
+ * stripe; one created with <code>{storage, {file, Path}}</code> keeps
+ * them in an {@link EDiskMap}, which a later table on the same file
+ * recovers, and whose writers go one at a time.
  */
 public class ETableSet extends ETable {
 
+	final ConcurrentMap<EObject, ETuple> map;
+
+	final boolean write_concurrency;
+	final boolean read_concurrency;
+	final boolean decentralized_counters;
+
+	/** the secondary indexes, or null */
+	final ETableIndex[] indexes;
+
+	/** the words the objects take, kept as they come and go; or null if the map knows */
+	private final LongAdder words;
+
+	/** a writer to one key takes {@link #key_lock}, a writer to many all of the write locks */
+	private final ReentrantReadWriteLock[] locks;
+
+	private static final int LOCK_STRIPES =
+		Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+	ETableSet(EProc owner, EAtom type, EInteger tid, EAtom aname, EAtom access, int keypos,
+			boolean write_concurrency, boolean read_concurrency, boolean decentralized_counters,
+			int[] index, EObject storage, boolean is_named, EPID heirPID, EObject heirData) {
+		this(owner, type, tid, aname, access, keypos, write_concurrency,
+				read_concurrency, decentralized_counters, index, is_named, heirPID, heirData,
+				storage_map(storage, write_concurrency));
+	}
+
+	/** @return a map that keeps its objects where <code>storage</code> says */
+	private static ConcurrentMap<EObject, ETuple> storage_map(EObject storage, boolean write_concurrency) {
+		ETuple2 file;
+		if (storage == Native.am_off_heap) {
+			return write_concurrency ? new EStripedMap(LOCK_STRIPES) : new EOffHeapMap();
+		} else if ((file = ETuple2.cast(storage)) != null) {
+			return new EDiskMap(new File(((EString) file.elem2).stringValue()));
+		} else {
+			return new ConcurrentHashMap<EObject, ETuple>();
+		}
+	}
+
 	ETableSet(EProc owner, EAtom type, EInteger tid, EAtom aname, EAtom access, int keypos,
-			boolean write_concurrency, boolean is_named, EPID heirPID, EObject heirData) {
-		super(owner, type, tid, aname, access, keypos, 
-				is_named, heirPID, heirData, 
-				type == Native.am_set 
-						? PersistentHashMap.EMPTY 
-						: PersistentTreeMap.EMPTY);
-		
-		
+			boolean write_concurrency, boolean read_concurrency, boolean decentralized_counters,
+			int[] index, boolean is_named, EPID heirPID, EObject heirData,
+			ConcurrentMap<EObject, ETuple> map) {
+		super(owner, type, tid, aname, access, keypos,
+				is_named, heirPID, heirData, null);
+		this.map = map;
+		this.write_concurrency = write_concurrency;
+		this.read_concurrency = read_concurrency;
+		this.decentralized_counters = decentralized_counters;
+		this.words = map instanceof EStorageMap ? null : new LongAdder();
+
+		if (index == null || index.length == 0) {
+			this.indexes = null;
+		} else {
+			this.indexes = new ETableIndex[index.length];
+			for (int i = 0; i < index.length; i++) {
+				indexes[i] = new ETableIndex(index[i]);
+			}
+
+			// a table on disk comes back with the objects it had
+			for (Map.Entry<EObject, ETuple> ent : map.entrySet()) {
+				for (ETableIndex idx : indexes) {
+					idx.add(ent.getKey(), ent.getValue());
+				}
+			}
+		}
+
+		int stripes = (write_concurrency && (decentralized_counters || indexes != null))
+			? LOCK_STRIPES : 1;
+		this.locks = new ReentrantReadWriteLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/** @return the lock to take to write the object at <code>key</code> */
+	private Lock key_lock(EObject key) {
+		if (!write_concurrency) {
+			return locks[0].writeLock();
+		}
+		int h = key.hashCode();
+		ReentrantReadWriteLock lock = locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+		return indexes == null ? lock.readLock() : lock.writeLock();
+	}
+
+	/** @return the lock for <code>key</code>, taken; waiting for it counts as contention */
+	private Lock lock_key(EObject key) {
+		Lock lock = key_lock(key);
+		if (!lock.tryLock()) {
+			stats.contention.increment();
+			lock.lock();
+		}
+		return lock;
+	}
+
+	//
+	// All writes to the map go through these, which keep the indexes.
+	// The caller holds the key's lock or the table's.
+	//
+
+	private void put(EObject key, ETuple value) {
+		if (indexes == null) {
+			count(map.put(key, value), value);
+			return;
+		}
+
+		for (ETableIndex idx : indexes) {
+			idx.add(key, value);
+		}
+		ETuple old = map.put(key, value);
+		count(old, value);
+		if (old != null) {
+			unindex(key, old, value);
+		}
+	}
+
+	/** @return true if there was no object at <code>key</code> */
+	private boolean put_new(EObject key, ETuple value) {
+		if (indexes == null) {
+			if (map.putIfAbsent(key, value) != null) {
+				return false;
+			}
+			count(null, value);
+			return true;
+		}
+
+		// no one else writes this key
+		if (map.containsKey(key)) {
+			return false;
+		}
+		put(key, value);
+		return true;
+	}
+
+	/** @return true if the object at <code>key</code> was <code>old</code> */
+	private boolean replace(EObject key, ETuple old, ETuple value) {
+		if (indexes == null) {
+			if (!map.replace(key, old, value)) {
+				return false;
+			}
+			count(old, value);
+			return true;
+		}
+
+		ETuple now = map.get(key);
+		if (now != old && (now == null || !now.equalsExactly(old))) {
+			return false;
+		}
+		put(key, value);
+		return true;
+	}
+
+	private void remove(EObject key) {
+		ETuple old = map.remove(key);
+		count(old, null);
+		if (old != null && indexes != null) {
+			unindex(key, old, null);
+		}
+	}
+
+	/** keep {@link #words} as <code>now</code> takes the place of <code>old</code>; either may be null */
+	private void count(ETuple old, ETuple now) {
+		if (words != null) {
+			long delta = 0;
+			if (old != null) {
+				delta -= ETableStats.words(old);
+			}
+			if (now != null) {
+				delta += ETableStats.words(now);
+			}
+			words.add(delta);
+		}
 	}
-	
+
+	/** remove the index entries <code>old</code> has, and <code>now</code> does not */
+	private void unindex(EObject key, ETuple old, ETuple now) {
+		for (ETableIndex idx : indexes) {
+			EObject value = idx.value(old);
+			EObject now_value = now == null ? null : idx.value(now);
+			if (value != null && (now_value == null || !value.equals(now_value))) {
+				idx.remove(key, old);
+			}
+		}
+	}
+
+	/**
+	 * @return the objects that may match, if the pattern binds an
+	 * indexed position; or null if it binds none
+	 */
+	List<ETuple> indexed(EMatchSpec matcher) {
+		for (int i = 0; indexes != null && i < indexes.length; i++) {
+			EObject value = matcher.getTupleKey(indexes[i].pos1);
+			if (value != null) {
+				return index_lookup(indexes[i], value);
+			}
+		}
+		return null;
+	}
+
+	/** @see #indexed(EMatchSpec) */
+	List<ETuple> indexed(EPattern matcher) {
+		for (int i = 0; indexes != null && i < indexes.length; i++) {
+			EObject value = matcher.getKey(indexes[i].pos1);
+			if (value != null) {
+				return index_lookup(indexes[i], value);
+			}
+		}
+		return null;
+	}
+
+	private List<ETuple> index_lookup(ETableIndex idx, EObject value) {
+		List<ETuple> res = new ArrayList<ETuple>();
+		for (EObject key : idx.lookup(value)) {
+			ETuple obj = map.get(key);
+			if (obj != null) {
+				res.add(obj);
+			}
+		}
+		return res;
+	}
+
+	private void lock_table() {
+		for (int i = 0; i < locks.length; i++) {
+			Lock lock = locks[i].writeLock();
+			if (!lock.tryLock()) {
+				stats.contention.increment();
+				lock.lock();
+			}
+		}
+	}
+
+	private void unlock_table() {
+		for (int i = locks.length - 1; i >= 0; i--) {
+			locks[i].writeLock().unlock();
+		}
+	}
+
 	@Override
 	int size() {
-		return deref().count();
+		return map.size();
 	}
 
+	/** a map off the heap knows what it takes; the others are counted as they change */
 	@Override
-	protected void insert_one(final ETuple value) {
-		in_tx(new WithMap<Object>() {
-			@Override
-			protected Object run(IPersistentMap map) {
-				set(map.assoc(get_key(value), value));
-				return null;
+	long memory() {
+		if (words == null) {
+			return ((EStorageMap) map).memory() / 8;
+		}
+		return words.sum() + (long) map.size() * ETableStats.ENTRY_WORDS;
+	}
+
+	/** the items of info/1 that only these tables have */
+	private static final EAtom[] SET_INFO = {
+		Native.am_storage, Native.am_index, Native.am_decentralized_counters,
+		Native.am_read_concurrency, Native.am_write_concurrency
+	};
+
+	@Override
+	ESeq info() {
+		return info(super.info(), SET_INFO);
+	}
+
+	@Override
+	EObject info(EAtom item) {
+		if (item == Native.am_write_concurrency) {
+			return ERT.box(write_concurrency);
+		} else if (item == Native.am_read_concurrency) {
+			return ERT.box(read_concurrency);
+		} else if (item == Native.am_decentralized_counters) {
+			return ERT.box(decentralized_counters);
+		} else if (item == Native.am_index) {
+			ESeq index = ERT.NIL;
+			for (int i = indexes == null ? -1 : indexes.length - 1; i >= 0; i--) {
+				index = index.cons(ERT.box(indexes[i].pos1));
 			}
-		});
+			return index;
+		} else if (item == Native.am_storage) {
+			return map instanceof EStorageMap ? ((EStorageMap) map).storage() : Native.am_heap;
+		} else {
+			return super.info(item);
+		}
+	}
+
+	/** @return the tuples in <code>values</code>; badarg if there are others */
+	private static ESeq check_tuples(ESeq values) {
+		for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+			if (seq.head().testTuple() == null) throw ERT.badarg(values);
+		}
+		return values;
 	}
 
 	@Override
-	protected void insert_many(final ESeq values) {
-		in_tx(new WithMap<Object>() {
-			@Override
-			protected Object run(IPersistentMap map) {		
-				for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
-					ETuple value = values.head().testTuple();
-					if (value == null) throw ERT.badarg(values);
-					map = map.assoc(get_key(value), value);
-				}
-				set(map);
-				return null;
-			}});
+	protected void insert_one(ETuple value) {
+		EObject key = get_key(value);
+		Lock key_lock = lock_key(key);
+		try {
+			put(key, value);
+		} finally {
+			key_lock.unlock();
+		}
 	}
-	
+
+	@Override
+	protected void insert_many(ESeq values) {
+		check_tuples(values);
+
+		lock_table();
+		try {
+			for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+				ETuple value = seq.head().testTuple();
+				put(get_key(value), value);
+			}
+		} finally {
+			unlock_table();
+		}
+	}
+
 	@Override
 	protected EObject lookup(EObject key) {
-		ESeq res = ERT.NIL;
-		
-		// no need to run in_tx if we're only reading
-		EObject val = (EObject) deref().valAt(key);
+		ETuple val = map.get(key);
 		if (val != null) {
-			return res.cons(val);
+			return ERT.NIL.cons(val);
 		} else {
-			return res;
+			return ERT.NIL;
 		}
 	}
 
 	@Override
-	protected void insert_new_many(final ESeq values) {	
-		in_tx(new WithMap<Object>() {
-			@Override
-			protected Object run(IPersistentMap map) {
-				for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
-					ETuple value = values.head().testTuple();
-					if (value == null) throw ERT.badarg(values);
-					EObject key = get_key(value);
-					if (!map.containsKey(key)) {
-						map = map.assoc(key, value);
-					}
+	protected boolean insert_new_many(ESeq values) {
+		check_tuples(values);
+
+		lock_table();
+		try {
+			for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+				if (map.containsKey(get_key((ETuple) seq.head()))) {
+					return false;
 				}
-	
-				set(map);
-				return null;
 			}
-	});
-}
+			for (ESeq seq = values; !seq.isNil(); seq = seq.tail()) {
+				ETuple value = (ETuple) seq.head();
+				put(get_key(value), value);
+			}
+			return true;
+		} finally {
+			unlock_table();
+		}
+	}
 
 	@Override
-	protected void insert_new_one(final ETuple value) {
-		final EObject key = get_key(value);
-		if (!deref().containsKey(key)) {
-			in_tx(new WithMap<Object>() {
-				@Override
-				protected Object run(IPersistentMap map) {
-					if (!map.containsKey(key)) {
-						set(map.assoc(key, value));
+	protected boolean insert_new_one(ETuple value) {
+		EObject key = get_key(value);
+		if (map.containsKey(key))
+			return false;
+
+		Lock key_lock = lock_key(key);
+		try {
+			return put_new(key, value);
+		} finally {
+			key_lock.unlock();
+		}
+	}
+
+	/** One <code>{Pos, Incr, Threshold, SetValue}</code> of an update_counter */
+	static final class CounterOp {
+		final int pos;
+		final EInteger incr;
+		final EInteger threshold;
+		final EInteger set_value;
+
+		private CounterOp(int pos, EInteger incr, EInteger threshold, EInteger set_value) {
+			this.pos = pos;
+			this.incr = incr;
+			this.threshold = threshold;
+			this.set_value = set_value;
+		}
+
+		/**
+		 * @param op is <code>Incr</code>, <code>{Pos, Incr}</code> or
+		 *        <code>{Pos, Incr, Threshold, SetValue}</code>
+		 * @return the op, or null if it is not one
+		 */
+		static CounterOp parse(EObject op, int default_pos) {
+			EInteger incr = op.testInteger();
+			if (incr != null) {
+				return new CounterOp(default_pos, incr, null, null);
+			}
+
+			ETuple t = op.testTuple();
+			ESmall pos;
+			if (t == null || (t.arity() != 2 && t.arity() != 4)
+					|| (pos = t.elm(1).testSmall()) == null
+					|| (incr = t.elm(2).testInteger()) == null) {
+				return null;
+			}
+
+			if (t.arity() == 2) {
+				return new CounterOp(pos.value, incr, null, null);
+			}
+
+			EInteger threshold = t.elm(3).testInteger();
+			EInteger set_value = t.elm(4).testInteger();
+			if (threshold == null || set_value == null) {
+				return null;
+			}
+			return new CounterOp(pos.value, incr, threshold, set_value);
+		}
+
+		EInteger apply(EInteger value) {
+			EInteger res = value.add(incr).testInteger();
+			if (threshold != null) {
+				boolean up = incr.compareTo(ESmall.ZERO) >= 0;
+				if (up ? res.compareTo(threshold) > 0 : res.compareTo(threshold) < 0) {
+					res = set_value;
+				}
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Update the counters in the object at <code>key</code>.  The new
+	 * object replaces the old one by compare-and-set, so concurrent
+	 * updates to the same key retry rather than block each other.
+	 * 
+	 * @param init is inserted first if there is no object, or null
+	 * @return the new values, or null if the update is not valid
+	 */
+	EObject update_counter(EObject key, CounterOp[] ops, boolean one, ETuple init) {
+		Lock key_lock = lock_key(key);
+		try {
+			while (true) {
+				ETuple old = map.get(key);
+				ETuple value = old;
+				if (value == null) {
+					if (init == null || init.arity() < keypos1)
+						return null;
+					value = init.setelement(keypos1, key);
+				} else {
+					value = value.clone();
+				}
+
+				for (CounterOp op : ops) {
+					if (op.pos < 1 || op.pos > value.arity() || op.pos == keypos1
+							|| value.elm(op.pos).testInteger() == null) {
+						return null;
+					}
+				}
+
+				// apply in order, as the same position may come twice
+				EInteger[] vals = new EInteger[ops.length];
+				for (int i = 0; i < ops.length; i++) {
+					vals[i] = ops[i].apply(value.elm(ops[i].pos).testInteger());
+					value.set(ops[i].pos, vals[i]);
+				}
+
+				boolean done = (old == null)
+					? put_new(key, value)
+					: replace(key, old, value);
+				if (!done) {
+					stats.contention.increment();
+				}
+
+				if (done) {
+					if (one) {
+						return vals[0];
+					}
+					ESeq res = ERT.NIL;
+					for (int i = vals.length - 1; i >= 0; i--) {
+						res = res.cons(vals[i]);
 					}
-					return null;
+					return res;
 				}
-			});
+			}
+		} finally {
+			key_lock.unlock();
 		}
 	}
-	
+
 	@Override
-	public ESeq match(EPattern matcher) {		
-		IPersistentMap map = deref();
+	public ESeq match(EPattern matcher) {
 		ESeq res = ERT.NIL;
-		
+
 		EObject key = matcher.getKey(keypos1);
-		if (key == null) {
+		List<ETuple> candidates;
+		if (key == null && (candidates = indexed(matcher)) != null) {
+			for (ETuple candidate : candidates) {
+				res = matcher.match(res, candidate);
+			}
+		} else if (key == null) {
+			stats.scans.increment();
 			res = matcher.match(res, (Map<EObject, ETuple>) map);
 		} else {
-			ETuple candidate = (ETuple) map.valAt(key);
+			ETuple candidate = map.get(key);
 			if (candidate != null) {
 				res =  matcher.match(res, candidate);
 			}
 		}
-		
+
 		return res;
 	}
 
 	@Override
-	protected void delete(final EObject key) {
-		in_tx(new WithMap<Object>() {
-			@Override
-				protected Object run(IPersistentMap map) {
-			    try {
-					map = map.without(key);
-			    } catch (Exception e) {
-					// should not happen!
-					throw new Error(e);
-			    }
-			    set(map);
-			    return null;
+	protected ESeq select(EMatchSpec matcher) {
+		ESeq res = ERT.NIL;
+
+		EObject key = matcher.getTupleKey(keypos1);
+		if (key == null) {
+			Collection<ETuple> candidates = indexed(matcher);
+			if (candidates == null) {
+				stats.scans.increment();
+				candidates = map.values();
+			}
+			for (ETuple candidate : candidates) {
+				EObject val = matcher.run(candidate);
+				if (val != null) {
+					res = res.cons(val);
+				}
 			}
-		});
+		} else {
+			ETuple candidate = map.get(key);
+			EObject val;
+			if (candidate != null && (val = matcher.run(candidate)) != null) {
+				res = res.cons(val);
+			}
+		}
+
+		return res;
+	}
+
+	/**
+	 * Where a chunked select stopped.  It holds on to the map's iterator,
+	 * which goes on from there; but a continuation may be used more than
+	 * once, and the later uses walk a new iterator to the same place.
+	 */
+	static final class Position {
+		private Iterator<ETuple> it;
+		final int seen;
+
+		Position(Iterator<ETuple> it, int seen) {
+			this.it = it;
+			this.seen = seen;
+		}
+
+		synchronized Iterator<ETuple> resume(Map<EObject, ETuple> map) {
+			Iterator<ETuple> res = it;
+			if (res == null) {
+				res = map.values().iterator();
+				for (int i = 0; i < seen && res.hasNext(); i++) {
+					res.next();
+				}
+			}
+			it = null;
+			return res;
+		}
+	}
+
+	/**
+	 * Where a chunked select on an index stopped: the objects the index
+	 * found at the start, and how many of them it has visited.
+	 */
+	static final class IndexPosition {
+		final List<ETuple> candidates;
+		final int seen;
+
+		IndexPosition(List<ETuple> candidates, int seen) {
+			this.candidates = candidates;
+			this.seen = seen;
+		}
 	}
 
 	@Override
-	public EInteger select_delete(final EMatchSpec matcher) {		
-		int delete_count = in_tx(new WithMap<Integer>() {
+	EObject select(EMatchSpec matcher, int limit, Object pos) {
+		if (matcher.getTupleKey(keypos1) != null) {
+			// there is one object at most
+			return chunk(select(matcher), matcher, limit, null);
+		}
 
-			@Override
-			protected Integer run(IPersistentMap map) {
-				ESeq vals = ERT.NIL;
-				
-				EObject key = matcher.getTupleKey(keypos1);
-				
-				if (key == null) {
-					vals = matcher.matching_values_set(vals, (Map<EObject, ETuple>) map);
-				} else {
-					ETuple candidate = (ETuple) map.valAt(key);
-					if (candidate != null && matcher.match(candidate)) {
-						vals = vals.cons(key);
+		List<ETuple> candidates = pos == null ? indexed(matcher) : null;
+		if (candidates != null) {
+			return select(matcher, limit, new IndexPosition(candidates, 0));
+		} else if (pos instanceof IndexPosition) {
+			return select(matcher, limit, (IndexPosition) pos);
+		}
+
+		Position start = (Position) pos;
+		if (start == null) {
+			stats.scans.increment();
+		}
+		Iterator<ETuple> it = start == null ? map.values().iterator() : start.resume(map);
+		int seen = start == null ? 0 : start.seen;
+
+		ESeq res = ERT.NIL;
+		int count = 0;
+		while (it.hasNext()) {
+			EObject val = matcher.run(it.next());
+			seen += 1;
+			if (val != null) {
+				res = res.cons(val);
+				if (++count == limit && it.hasNext()) {
+					return chunk(res, matcher, limit, new Position(it, seen));
+				}
+			}
+		}
+
+		return chunk(res, matcher, limit, null);
+	}
+
+	private EObject select(EMatchSpec matcher, int limit, IndexPosition start) {
+		List<ETuple> candidates = start.candidates;
+
+		ESeq res = ERT.NIL;
+		int count = 0;
+		for (int i = start.seen; i < candidates.size(); i++) {
+			EObject val = matcher.run(candidates.get(i));
+			if (val != null) {
+				res = res.cons(val);
+				if (++count == limit && i + 1 < candidates.size()) {
+					return chunk(res, matcher, limit, new IndexPosition(candidates, i + 1));
+				}
+			}
+		}
+
+		return chunk(res, matcher, limit, null);
+	}
+
+	/** weakly consistent: each object is seen as it was at some point of the walk */
+	@Override
+	Iterator<ETuple> objects() {
+		return map.values().iterator();
+	}
+
+	/** a table on disk is loaded on the heap, for the file is its own */
+	@Override
+	ESeq options() {
+		ESeq res = super.options();
+		res = res.cons(new ETuple2(Native.am_write_concurrency, ERT.box(write_concurrency)));
+		res = res.cons(new ETuple2(Native.am_read_concurrency, ERT.box(read_concurrency)));
+		res = res.cons(new ETuple2(Native.am_decentralized_counters, ERT.box(decentralized_counters)));
+		ESeq index = ERT.NIL;
+		for (int i = indexes == null ? -1 : indexes.length - 1; i >= 0; i--) {
+			index = index.cons(ERT.box(indexes[i].pos1));
+		}
+		res = res.cons(new ETuple2(Native.am_index, index));
+		if (map instanceof EStorageMap && !(map instanceof EDiskMap)) {
+			res = res.cons(new ETuple2(Native.am_storage, Native.am_off_heap));
+		}
+		return res;
+	}
+
+	@Override
+	void delete() {
+		super.delete();
+		if (map instanceof EDiskMap) {
+			((EDiskMap) map).close();
+		}
+	}
+
+	@Override
+	protected Iterable<EObject> keys() {
+		return map.keySet();
+	}
+
+	@Override
+	protected void delete(EObject key) {
+		Lock key_lock = lock_key(key);
+		try {
+			remove(key);
+		} finally {
+			key_lock.unlock();
+		}
+	}
+
+	@Override
+	public EInteger select_delete(EMatchSpec matcher) {
+		return select_delete(matcher, map);
+	}
+
+	/** Delete the matching objects in <code>in</code>, which is a view of the table. */
+	EInteger select_delete(EMatchSpec matcher, Map<EObject, ETuple> in) {
+		int count = 0;
+
+		lock_table();
+		try {
+			EObject key = matcher.getTupleKey(keypos1);
+			List<ETuple> candidates;
+			if (key == null && (candidates = indexed(matcher)) != null) {
+				for (ETuple candidate : candidates) {
+					if (matcher.match(candidate)) {
+						remove(get_key(candidate));
+						count += 1;
 					}
 				}
-				
-				int count = 0;
-				for (; !vals.isNil(); vals = vals.tail()) {
-					try {
-						ETuple val = (ETuple) vals.head();
-						key = val.elm(keypos1);
-						map = map.without(key);
-					} catch (Exception e) {
-						// should not happen!
-						throw new Error(e);
+			} else if (key == null) {
+				if (in == map) {
+					stats.scans.increment();
+				}
+				for (Iterator<Map.Entry<EObject, ETuple>> it = in.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<EObject, ETuple> ent = it.next();
+					if (matcher.match(ent.getValue())) {
+						it.remove();
+						count(ent.getValue(), null);
+						if (indexes != null) {
+							unindex(ent.getKey(), ent.getValue(), null);
+						}
+						count += 1;
 					}
+				}
+			} else {
+				ETuple candidate = map.get(key);
+				if (candidate != null && matcher.match(candidate)) {
+					remove(key);
 					count += 1;
 				}
-				
-				set(map);
-				return count;
-			}});
-		
-		return ERT.box(delete_count);
+			}
+		} finally {
+			unlock_table();
+		}
+
+		return ERT.box(count);
+	}
+
+	@Override
+	protected void delete_all_objects() {
+		lock_table();
+		try {
+			map.clear();
+			if (words != null) {
+				words.reset();
+			}
+			for (int i = 0; indexes != null && i < indexes.length; i++) {
+				indexes[i].clear();
+			}
+		} finally {
+			unlock_table();
+		}
 	}
 }
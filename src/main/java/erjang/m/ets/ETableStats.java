@@ -0,0 +1,154 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import erjang.EAtom;
+import erjang.EBig;
+import erjang.EBitString;
+import erjang.ECons;
+import erjang.EDouble;
+import erjang.EFun;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ERef;
+import erjang.ESmall;
+import erjang.EString;
+import erjang.ETuple;
+
+/**
+ * What has been done to one table, for ets:info and the ETS MXBean.
+ * The counters are striped, so counting costs next to nothing when
+ * many processes use the table; and they are read without stopping
+ * anyone, so a reading may be a little behind.
+ *
+ * <ul>
+ * <li>lookups: lookup/2</li>
+ * <li>inserts: insert/2, insert_new/2 and update_counter</li>
+ * <li>deletes: delete/1,2, select_delete/2 and delete_all_objects/1</li>
+ * <li>scans: matches and selects that walk the whole table, because
+ *     they bind neither the key nor an indexed position</li>
+ * <li>contention: waits for a lock someone else had, and counter
+ *     updates that lost a race, on set tables; retried transactions
+ *     on bags</li>
+ * </ul>
+ */
+final class ETableStats {
+
+	/**
+	 * The words a map entry takes besides the object: the entry and its
+	 * share of the buckets, on a 64-bit JVM.
+	 */
+	static final int ENTRY_WORDS = 5;
+
+	final LongAdder lookups = new LongAdder();
+	final LongAdder inserts = new LongAdder();
+	final LongAdder deletes = new LongAdder();
+	final LongAdder scans = new LongAdder();
+	final LongAdder contention = new LongAdder();
+
+	/** @return the count for <code>item</code>, or null if it is not one of these */
+	EObject info(EAtom item) {
+		LongAdder counter;
+		if (item == Native.am_lookups) {
+			counter = lookups;
+		} else if (item == Native.am_inserts) {
+			counter = inserts;
+		} else if (item == Native.am_deletes) {
+			counter = deletes;
+		} else if (item == Native.am_scans) {
+			counter = scans;
+		} else if (item == Native.am_contention) {
+			counter = contention;
+		} else {
+			return null;
+		}
+		return ERT.box(counter.sum());
+	}
+
+	/** register {@link ETablesMXBean}; a node that cannot goes without */
+	static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new ETablesMXBean() {
+				public Table[] getTables() {
+					ArrayList<Table> res = new ArrayList<Table>();
+					for (ETable table : Native.tid_to_table.values()) {
+						res.add(new Table(table));
+					}
+					return res.toArray(new Table[res.size()]);
+				}
+			}, new ObjectName("erjang:type=ets"));
+		} catch (JMException e) {
+			// already there, or not wanted
+		} catch (SecurityException e) {
+			// not allowed
+		}
+	}
+
+	/**
+	 * @return the words <code>term</code> would take on an Erlang heap, as
+	 *         erts_debug:flat_size/1 counts them; but binaries are counted
+	 *         with their bytes, for here the table holds on to them
+	 */
+	static long words(EObject term) {
+		long res = 0;
+
+		// walk lists along, and everything else down
+		while (true) {
+			ETuple t;
+			ECons c;
+			if (term instanceof ESmall || term instanceof EAtom) {
+				return res;
+			} else if ((t = term.testTuple()) != null) {
+				res += 1 + t.arity();
+				for (int i = 1; i <= t.arity(); i++) {
+					res += words(t.elm(i));
+				}
+				return res;
+			} else if (term.isNil()) {
+				return res;
+			} else if (term instanceof EString) {
+				return res + 2L * ((EString) term).length();
+			} else if ((c = term.testCons()) != null) {
+				res += 2 + words(c.head());
+				term = c.tail();
+			} else if (term instanceof EBitString) {
+				int bytes = ((EBitString) term).totalByteSize();
+				return res + (bytes <= 64 ? 2 : 6) + (bytes + 7) / 8;
+			} else if (term instanceof EDouble) {
+				return res + 2;
+			} else if (term instanceof EBig) {
+				return res + 1 + (((EBig) term).bitLength() + 63) / 64;
+			} else if (term instanceof ERef) {
+				return res + 4;
+			} else if (term instanceof EFun) {
+				return res + 6;
+			} else {
+				// atoms, small integers, [], pids and ports are immediate
+				return res;
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+/**
+ * The ETS tables of the node, as <code>erjang:type=ets</code> on the
+ * platform MBean server; so that a JMX console can sort them by what
+ * is done to them, and show which ones hold everyone else up.
+ */
+public interface ETablesMXBean {
+
+	/** One table, as it was when it was read */
+	public static final class Table {
+		private final String name;
+		private final long id;
+		private final String type;
+		private final String protection;
+		private final long size;
+		private final long memory;
+		private final long lookups;
+		private final long inserts;
+		private final long deletes;
+		private final long scans;
+		private final long contention;
+
+		Table(ETable table) {
+			this.name = table.aname.getName();
+			this.id = table.tid.longValue();
+			this.type = table.type.getName();
+			this.protection = table.access.getName();
+			this.size = table.size();
+			this.memory = table.memory();
+			this.lookups = table.stats.lookups.sum();
+			this.inserts = table.stats.inserts.sum();
+			this.deletes = table.stats.deletes.sum();
+			this.scans = table.stats.scans.sum();
+			this.contention = table.stats.contention.sum();
+		}
+
+		public String getName() { return name; }
+		public long getId() { return id; }
+		public String getType() { return type; }
+		public String getProtection() { return protection; }
+		public long getSize() { return size; }
+		/** in words */
+		public long getMemory() { return memory; }
+		public long getLookups() { return lookups; }
+		public long getInserts() { return inserts; }
+		public long getDeletes() { return deletes; }
+		public long getScans() { return scans; }
+		public long getContention() { return contention; }
+	}
+
+	Table[] getTables();
+}
@@ -18,6 +18,9 @@
 
 package erjang.m.ets;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -32,9 +35,11 @@ import erjang.EProc;
 import erjang.ERT;
 import erjang.ESeq;
 import erjang.ESmall;
+import erjang.EString;
 import erjang.ETuple;
 import erjang.ETuple2;
 import erjang.ETuple3;
+import erjang.ErlangError;
 import erjang.NotImplemented;
 
 /**
@@ -47,6 +52,8 @@ public class Native extends ENative {
 
 	/** The atom <code>'$end_of_table'</code> */
 	public static final EAtom am_$end_of_table = EAtom.intern("$end_of_table");
+	public static final EAtom am_$$ = EAtom.intern("$$");
+	public static final EAtom am_$_ = EAtom.intern("$_");
 
 	public static final EAtom am_set = EAtom.intern("set");
 	public static final EAtom am_ordered_set = EAtom.intern("ordered_set");
@@ -66,9 +73,34 @@ public class Native extends ENative {
 	public static final EAtom am_named_table = EAtom.intern("named_table");
 	public static final EAtom am_write_concurrency = EAtom
 			.intern("write_concurrency");
+	public static final EAtom am_decentralized_counters = EAtom
+			.intern("decentralized_counters");
+	public static final EAtom am_index = EAtom.intern("index");
+	public static final EAtom am_storage = EAtom.intern("storage");
+	public static final EAtom am_heap = EAtom.intern("heap");
+	public static final EAtom am_off_heap = EAtom.intern("off_heap");
+	public static final EAtom am_file = EAtom.intern("file");
+	public static final EAtom am_sync = EAtom.intern("sync");
+	public static final EAtom am_extended_info = EAtom.intern("extended_info");
+	public static final EAtom am_verify = EAtom.intern("verify");
+	public static final EAtom am_badfile = EAtom.intern("badfile");
+	public static final EAtom am_cannot_create_table = EAtom.intern("cannot_create_table");
+	public static final EAtom am_file_error = EAtom.intern("file_error");
+	public static final EAtom am_enoent = EAtom.intern("enoent");
+	public static final EAtom am_eacces = EAtom.intern("eacces");
+	public static final EAtom am_eio = EAtom.intern("eio");
+	public static final EAtom am_read_concurrency = EAtom
+			.intern("read_concurrency");
 	public static final EAtom am_type = EAtom.intern("type");
 	public static final EAtom am_none = EAtom.intern("none");
 	public static final EAtom am_protection = EAtom.intern("protection");
+	public static final EAtom am_id = EAtom.intern("id");
+	public static final EAtom am_memory = EAtom.intern("memory");
+	public static final EAtom am_lookups = EAtom.intern("lookups");
+	public static final EAtom am_inserts = EAtom.intern("inserts");
+	public static final EAtom am_deletes = EAtom.intern("deletes");
+	public static final EAtom am_scans = EAtom.intern("scans");
+	public static final EAtom am_contention = EAtom.intern("contention");
 
 	static AtomicLong next_tid = new AtomicLong(1);
 
@@ -78,6 +110,10 @@ public class Native extends ENative {
 	/** maps a TID to the corresponding table */
 	static Map<EInteger, ETable> tid_to_table = new ConcurrentHashMap<EInteger, ETable>();
 
+	static {
+		ETableStats.register();
+	}
+
 	/**
 	 * Implements <a
 	 * href="http://www.erlang.org/doc/man/ets.html#new-2">ets:new/2</a>.
@@ -115,6 +151,10 @@ public class Native extends ENative {
 		EAtom access = am_protected;
 		int keypos = 1;
 		boolean write_concurrency = false;
+		boolean read_concurrency = false;
+		boolean decentralized_counters = false;
+		ESeq index = ERT.NIL;
+		EObject storage = am_heap;
 		EPID heir_pid = null;
 		EObject heir_data = null;
 		boolean is_named = false;
@@ -125,6 +165,8 @@ public class Native extends ENative {
 			EAtom atom;
 			ETuple2 t2;
 			ETuple3 t3;
+			ETuple2 file;
+			EString path;
 			if ((atom = option.testAtom()) != null) {
 				if (atom == am_bag || atom == am_duplicate_bag
 						|| atom == am_set || atom == am_ordered_set) {
@@ -151,6 +193,25 @@ public class Native extends ENative {
 				} else if (t2.elem1 == am_write_concurrency) {
 					write_concurrency = (t2.elem2 == ERT.TRUE);
 					continue;
+				} else if (t2.elem1 == am_read_concurrency) {
+					read_concurrency = (t2.elem2 == ERT.TRUE);
+					continue;
+				} else if (t2.elem1 == am_decentralized_counters) {
+					decentralized_counters = (t2.elem2 == ERT.TRUE);
+					continue;
+				} else if (t2.elem1 == am_index
+						&& ((index = t2.elem2.testSeq()) != null)) {
+					continue;
+				} else if (t2.elem1 == am_storage
+						&& (t2.elem2 == am_heap || t2.elem2 == am_off_heap)) {
+					storage = t2.elem2;
+					continue;
+				} else if (t2.elem1 == am_storage
+						&& (file = ETuple2.cast(t2.elem2)) != null
+						&& file.elem1 == am_file
+						&& (path = file.elem2.testString()) != null) {
+					storage = new ETuple2(am_file, path);
+					continue;
 				}
 			} else if ((t3 = ETuple3.cast(option)) != null) {
 				if (t3.elem1 == am_heir
@@ -163,10 +224,37 @@ public class Native extends ENative {
 			throw ERT.badarg(name, options);
 		}
 
+		// indexes are on other positions of set tables
+		int[] index_pos = new int[index.length()];
+		for (int i = 0; !index.isNil(); index = index.tail(), i++) {
+			ESmall pos = index.head().testSmall();
+			if (pos == null || pos.value < 1 || pos.value == keypos
+					|| type == am_bag || type == am_duplicate_bag) {
+				throw ERT.badarg(name, options);
+			}
+			index_pos[i] = pos.value;
+		}
+
+		if (is_named && name_to_tid.containsKey(aname)) {
+			throw ERT.badarg(name, options);
+		}
+
+		// only set tables can be off the heap, or on disk, for now
+		if (storage != am_heap && type != am_set) {
+			throw ERT.badarg(name, options);
+		}
+
 		EInteger tid = ERT.box(next_tid.incrementAndGet());
 
-		ETable table = ETable.allocate(self, tid, aname, type, access, keypos,
-				write_concurrency, is_named, heir_pid, heir_data);
+		ETable table;
+		try {
+			table = ETable.allocate(self, tid, aname, type, access, keypos,
+					write_concurrency, read_concurrency, decentralized_counters,
+					index_pos, storage, is_named, heir_pid, heir_data);
+		} catch (ErlangError e) {
+			// the file could not be opened, or is in use
+			throw ERT.badarg(name, options);
+		}
 
 
 		tid_to_table.put(tid, table);
@@ -180,9 +268,21 @@ public class Native extends ENative {
 	}
 
 	/** used internally to resolve a tid|name */
-	private static ETable resolve(EProc caller, EObject nameOrTid,
+	static ETable resolve(EProc caller, EObject nameOrTid,
 			boolean write_access) {
 
+		ETable table = find(nameOrTid);
+
+		if (table != null && table.allow_access(caller, write_access)) {
+			return table;
+		} else {
+			return null;
+		}
+	}
+
+	/** @return the table a tid|name names, whoever may use it; or null */
+	private static ETable find(EObject nameOrTid) {
+
 		EInteger tid = null;
 		EAtom name;
 		if ((name = nameOrTid.testAtom()) != null) {
@@ -195,13 +295,7 @@ public class Native extends ENative {
 
 		if (tid == null) { return null; }
 		
-		ETable table = tid_to_table.get(tid);
-
-		if (table != null && table.allow_access(caller, write_access)) {
-			return table;
-		} else {
-			return null;
-		}
+		return tid_to_table.get(tid);
 	}
 
 	/*
@@ -232,6 +326,7 @@ public class Native extends ENative {
 		} else {
 			table.insert_many(more);
 		}
+		table.stats.inserts.increment();
 		
 		return ERT.TRUE;
 	}
@@ -245,6 +340,7 @@ public class Native extends ENative {
 		}
 
 		table.delete(key);
+		table.stats.deletes.increment();
 
 		return ERT.TRUE;
 	}
@@ -259,6 +355,7 @@ public class Native extends ENative {
 			throw ERT.badarg(tab, key);
 		}
 
+		table.stats.lookups.increment();
 		return table.lookup(key);
 	}
 
@@ -274,13 +371,14 @@ public class Native extends ENative {
 			throw ERT.badarg(tab, oneOrMore);
 		}
 
-		if (one != null) {
-			table.insert_new_one(one);
-		} else {
-			table.insert_new_many(more);
+		boolean inserted = one != null
+			? table.insert_new_one(one)
+			: table.insert_new_many(more);
+		if (inserted) {
+			table.stats.inserts.increment();
 		}
 		
-		return ERT.TRUE;
+		return ERT.box(inserted);
 	}
 
 	@BIF
@@ -290,6 +388,7 @@ public class Native extends ENative {
 		if (table == null) { throw ERT.badarg(nameOrTid); }
 		
 		table.delete();
+		table.stats.deletes.increment();
 
 		return ERT.TRUE;
 	}
@@ -313,6 +412,7 @@ public class Native extends ENative {
 		
 		EMatchSpec matcher = EMatchSpec.compile(lspec);
 		
+		table.stats.deletes.increment();
 		return table.select_delete(matcher);
 	}
 	
@@ -320,6 +420,7 @@ public class Native extends ENative {
 		ETable table = resolve(caller, nameOrTid, true);
 		if (table == null) throw ERT.badarg(nameOrTid);
 		table.delete_all_objects();
+		table.stats.deletes.increment();
 		return ERT.TRUE;
 	}
 	
@@ -334,56 +435,158 @@ public class Native extends ENative {
 		return ERT.box(spec instanceof EMatchSpec);
 	}
 	
-	@BIF static public EObject prev(EObject obj, EObject obj2) {
-		throw new NotImplemented(); 
+	@BIF static public EObject first(EProc caller, EObject nameOrTid) {
+		ETable table = resolve(caller, nameOrTid, false);
+		if (table == null) throw ERT.badarg(nameOrTid);
+		return table.first();
 	}
 
-	@BIF static public EObject first(EObject obj) {
-		throw new NotImplemented(); 
+	@BIF static public EObject last(EProc caller, EObject nameOrTid) {
+		ETable table = resolve(caller, nameOrTid, false);
+		if (table == null) throw ERT.badarg(nameOrTid);
+		return table.last();
 	}
 
-	@BIF static public EObject last(EObject obj) {
-		throw new NotImplemented(); 
+	@BIF static public EObject next(EProc caller, EObject nameOrTid, EObject key) {
+		ETable table = resolve(caller, nameOrTid, false);
+		EObject next;
+		if (table == null || (next = table.next(key)) == null) 
+			throw ERT.badarg(nameOrTid, key);
+		return next;
+	}
+
+	@BIF static public EObject prev(EProc caller, EObject nameOrTid, EObject key) {
+		ETable table = resolve(caller, nameOrTid, false);
+		EObject prev;
+		if (table == null || (prev = table.prev(key)) == null) 
+			throw ERT.badarg(nameOrTid, key);
+		return prev;
 	}
 
 	@BIF static public EObject all() {
 		throw new NotImplemented(); 
 	}
 
-	@BIF static public EObject match_object(EObject obj, EObject obj2) {
-		throw new NotImplemented(); 
+	@BIF static public EObject match_object(EProc caller, EObject nameOrTid, EObject pattern) {
+		ETable table = resolve(caller, nameOrTid, false);
+		if (table == null) throw ERT.badarg(nameOrTid, pattern);
+
+		return table.select(pattern_spec(pattern, am_$_));
 	}
 
-	@BIF static public EObject next(EObject obj, EObject obj2) {
-		throw new NotImplemented(); 
+	@BIF static public EObject match_object(EProc caller, EObject nameOrTid, EObject pattern, EObject limit) {
+		return select(caller, nameOrTid, pattern_spec(pattern, am_$_), limit);
+	}
+
+	@BIF static public EObject match_object(EProc caller, EObject cont) {
+		return select(caller, cont);
+	}
+
+	@BIF static public EObject match(EProc caller, EObject nameOrTid, EObject pattern, EObject limit) {
+		return select(caller, nameOrTid, pattern_spec(pattern, am_$$), limit);
+	}
+
+	@BIF static public EObject match(EProc caller, EObject cont) {
+		return select(caller, cont);
+	}
+
+	/** @return the match spec <code>[{Pattern, [], [Body]}]</code> */
+	private static EMatchSpec pattern_spec(EObject pattern, EAtom body) {
+		return EMatchSpec.compile(ERT.NIL.cons(ETuple.make(pattern, ERT.NIL, ERT.NIL.cons(body))));
 	}
 
 	@BIF static public EObject safe_fixtable(EObject obj, EObject obj2) {
 		throw new NotImplemented(); 
 	}
 
-	@BIF static public EObject select(EObject obj1) {
-		throw new NotImplemented(); 
+	/** the next chunk of a select/3, match/3 or match_object/3 */
+	@BIF static public EObject select(EProc caller, EObject cont) {
+		if (cont == am_$end_of_table)
+			return am_$end_of_table;
+
+		if (!(cont instanceof ESelectContinuation))
+			throw ERT.badarg(cont);
+
+		ESelectContinuation c = (ESelectContinuation) cont;
+		ETable table = resolve(caller, c.table.tid, false);
+		if (table != c.table) throw ERT.badarg(cont);
+
+		return table.select(c.matcher, c.limit, c.pos);
 	}
 
-	@BIF static public EObject select(EObject obj1, EObject obj2) {
-		throw new NotImplemented(); 
+	@BIF static public EObject select(EProc caller, EObject nameOrTid, EObject spec) {
+		ETable table = resolve(caller, nameOrTid, false);
+		EMatchSpec matcher = match_spec(spec);
+		if (table == null || matcher == null) throw ERT.badarg(nameOrTid, spec);
+		
+		return table.select(matcher);
 	}
 
-	@BIF static public EObject select(EObject obj1, EObject obj2, EObject obj3) {
-		throw new NotImplemented(); 
+	/** @return a match spec, compiled by match_spec_compile/1 or not; or null */
+	private static EMatchSpec match_spec(EObject spec) {
+		if (spec instanceof EMatchSpec) 
+			return (EMatchSpec) spec;
+		ESeq lspec = spec.testSeq();
+		if (lspec == null) 
+			return null;
+		return EMatchSpec.compile(lspec);
 	}
 
-	@BIF static public EObject match_spec_run_r(EObject obj1, EObject obj2, EObject obj3) {
-		throw new NotImplemented(); 
+	/** @return at most <code>limit</code> results, and the continuation for the rest */
+	@BIF static public EObject select(EProc caller, EObject nameOrTid, EObject spec, EObject limit) {
+		ETable table = resolve(caller, nameOrTid, false);
+		EMatchSpec matcher = match_spec(spec);
+		ESmall n = limit.testSmall();
+		if (table == null || matcher == null || n == null || n.value < 1)
+			throw ERT.badarg(nameOrTid, spec, limit);
+
+		return table.select(matcher, n.value, null);
 	}
 
-	@BIF static public EObject info(EObject obj) {
-		throw new NotImplemented(); 
+	/** the results of a compiled spec on each of <code>list</code>, in reverse order, prepended to <code>acc</code> */
+	@BIF static public EObject match_spec_run_r(EObject list, EObject spec, EObject acc) {
+		ESeq seq = list.testSeq();
+		ESeq res = acc.testSeq();
+		if (seq == null || res == null || !(spec instanceof EMatchSpec))
+			throw ERT.badarg(list, spec, acc);
+
+		EMatchSpec matcher = (EMatchSpec) spec;
+		for (; !seq.isNil(); seq = seq.tail()) {
+			EObject val = matcher.run(seq.head());
+			if (val != null) {
+				res = res.cons(val);
+			}
+		}
+
+		return res;
 	}
 
-	@BIF static public EObject info(EObject obj1, EObject obj2) {
-		throw new NotImplemented(); 
+	/** @return <code>[{Item, Value}]</code>, or <code>undefined</code> if there is no such table */
+	@BIF static public EObject info(EObject nameOrTid) {
+		if (nameOrTid.testAtom() == null && nameOrTid.testInteger() == null)
+			throw ERT.badarg(nameOrTid);
+
+		ETable table = find(nameOrTid);
+		if (table == null) 
+			return ERT.am_undefined;
+		return table.info();
+	}
+
+	/** @return the value of one item of info/1, or <code>undefined</code> if there is no such table */
+	@BIF static public EObject info(EObject nameOrTid, EObject item) {
+		if ((nameOrTid.testAtom() == null && nameOrTid.testInteger() == null)
+				|| item.testAtom() == null)
+			throw ERT.badarg(nameOrTid, item);
+
+		ETable table = find(nameOrTid);
+		if (table == null) 
+			return ERT.am_undefined;
+
+		EObject res = table.info((EAtom) item);
+		if (res == null) {
+			throw ERT.badarg(nameOrTid, item);
+		}
+		return res;
 	}
 
 	/** this is not documented anywhere, but referenced from the module global */
@@ -397,8 +600,120 @@ public class Native extends ENative {
 	}
 
 	/** this is not documented anywhere, but referenced from the module global */
-	@BIF static public EObject update_counter(EObject obj1, EObject obj2, EObject obj3) {
-		throw new NotImplemented(); 
+	@BIF static public EObject update_counter(EProc caller, EObject nameOrTid, EObject key, EObject op) {
+		return update_counter(caller, nameOrTid, key, op, null);
+	}
+
+	@BIF static public EObject update_counter(EProc caller, EObject nameOrTid, EObject key, EObject op, EObject init) {
+		ETable table = resolve(caller, nameOrTid, true);
+		ETuple init_tuple = init == null ? null : init.testTuple();
+		if (table == null || !(table instanceof ETableSet) || (init != null && init_tuple == null))
+			throw ERT.badarg(nameOrTid, key, op);
+
+		int default_pos = table.keypos1 + 1;
+		ETableSet.CounterOp[] ops;
+		ESeq list = op.testSeq();
+		if (list != null) {
+			ops = new ETableSet.CounterOp[list.length()];
+			for (int i = 0; i < ops.length; i++, list = list.tail()) {
+				ops[i] = ETableSet.CounterOp.parse(list.head(), default_pos);
+				if (ops[i] == null) throw ERT.badarg(nameOrTid, key, op);
+			}
+		} else {
+			ETableSet.CounterOp one = ETableSet.CounterOp.parse(op, default_pos);
+			if (one == null) throw ERT.badarg(nameOrTid, key, op);
+			ops = new ETableSet.CounterOp[] { one };
+		}
+
+		EObject res = ((ETableSet) table).update_counter(key, ops, list == null, init_tuple);
+		if (res == null) throw ERT.badarg(nameOrTid, key, op);
+		table.stats.inserts.increment();
+		return res;
+	}
+
+	/** @return the file a file name names, or null */
+	private static File filename(EObject name) {
+		EString str;
+		EAtom atom;
+		if ((str = name.testString()) != null) {
+			return new File(str.stringValue());
+		} else if ((atom = name.testAtom()) != null) {
+			return new File(atom.getName());
+		}
+		return null;
+	}
+
+	private static EObject file_error(File file, IOException e) {
+		EAtom posix = !(e instanceof FileNotFoundException) ? am_eio
+				: file.exists() ? am_eacces : am_enoent;
+		return new ETuple2(ERT.am_error,
+				ETuple.make(am_file_error, EString.fromString(file.getPath()), posix));
+	}
+
+	/**
+	 * tab2file and file2tab use a file format of their own, that
+	 * {@link ETableFile} describes, rather than disk_log's.
+	 */
+	@BIF static public EObject tab2file(EProc caller, EObject nameOrTid, EObject filename) {
+		return tab2file(caller, nameOrTid, filename, ERT.NIL);
+	}
+
+	@BIF static public EObject tab2file(EProc caller, EObject nameOrTid, EObject filename, EObject options) {
+		ETable table = resolve(caller, nameOrTid, false);
+		File file = filename(filename);
+		ESeq opts = options.testSeq();
+		if (table == null || file == null || opts == null)
+			throw ERT.badarg(nameOrTid, filename, options);
+
+		boolean sync = false;
+		for (; !opts.isNil(); opts = opts.tail()) {
+			ETuple2 opt = ETuple2.cast(opts.head());
+			if (opt != null && opt.elem1 == am_sync) {
+				sync = (opt.elem2 == ERT.TRUE);
+			} else if (opt != null && opt.elem1 == am_extended_info) {
+				// the object count is always written
+			} else {
+				throw ERT.badarg(nameOrTid, filename, options);
+			}
+		}
+
+		try {
+			ETableFile.write(table, file, sync);
+			return ERT.am_ok;
+		} catch (IOException e) {
+			return file_error(file, e);
+		}
+	}
+
+	@BIF static public EObject file2tab(EProc caller, EObject filename) {
+		return file2tab(caller, filename, ERT.NIL);
+	}
+
+	@BIF static public EObject file2tab(EProc caller, EObject filename, EObject options) {
+		File file = filename(filename);
+		ESeq opts = options.testSeq();
+		if (file == null || opts == null)
+			throw ERT.badarg(filename, options);
+
+		boolean verify = false;
+		for (; !opts.isNil(); opts = opts.tail()) {
+			ETuple2 opt = ETuple2.cast(opts.head());
+			if (opt != null && opt.elem1 == am_verify) {
+				verify = (opt.elem2 == ERT.TRUE);
+			} else {
+				throw ERT.badarg(filename, options);
+			}
+		}
+
+		try {
+			return new ETuple2(ERT.am_ok, ETableFile.read(caller, file, verify));
+		} catch (ETableFile.BadFile e) {
+			return new ETuple2(ERT.am_error, am_badfile);
+		} catch (IOException e) {
+			return file_error(file, e);
+		} catch (ErlangError e) {
+			return new ETuple2(ERT.am_error, am_cannot_create_table);
+		}
 	}
 
 
@@ -0,0 +1,61 @@
+-module(atom_switch_tests).
+
+-export([test/0]).
+
+%% Dispatch on atoms, whether their indexes are close together or
+%% spread out, and on dense and sparse integers; and values that are
+%% none of the cases.
+
+test() ->
+    Values = [alpha, beta, gamma, delta, epsilon, zeta, eta, theta,
+	      iota, kappa, lambda, mu, ok, error, true, false, undefined,
+	      list_to_atom("made_" ++ "at_runtime"), list_to_atom("beta"),
+	      '', 'with space', 0, 1, 5, -3, 1000, 123456789012345678901234567890,
+	      2.0, "alpha", [alpha], {alpha}, <<"alpha">>],
+    [{V, greek(V), common(V), mixed(V), dense(V), sparse(V)} || V <- Values].
+
+%% atoms of this module, interned together
+greek(alpha) -> 1;
+greek(beta) -> 2;
+greek(gamma) -> 3;
+greek(delta) -> 4;
+greek(epsilon) -> 5;
+greek(zeta) -> 6;
+greek(eta) -> 7;
+greek(theta) -> 8;
+greek(iota) -> 9;
+greek(kappa) -> 10;
+greek(lambda) -> 11;
+greek(mu) -> 12;
+greek(_) -> none.
+
+%% atoms interned long before this module, next to ones of it
+common(ok) -> ok;
+common(error) -> error;
+common(true) -> true;
+common(false) -> false;
+common(undefined) -> undefined;
+common(mu) -> mu;
+common('') -> empty;
+common(_) -> none.
+
+%% atoms and other values together
+mixed(alpha) -> atom;
+mixed(1) -> integer;
+mixed(2.0) -> float;
+mixed([]) -> nil;
+mixed(_) -> none.
+
+dense(0) -> zero;
+dense(1) -> one;
+dense(2) -> two;
+dense(3) -> three;
+dense(4) -> four;
+dense(5) -> five;
+dense(_) -> none.
+
+sparse(-3) -> minus_three;
+sparse(5) -> five;
+sparse(1000) -> thousand;
+sparse(123456789012345678901234567890) -> big;
+sparse(_) -> none.
@@ -0,0 +1,82 @@
+-module(bin_append_tests).
+
+-export([test/0]).
+
+%% Appending to a binary may write into spare room after it; the
+%% binaries that share that room must not see it.  And a binary made
+%% by appending is a binary like any other.
+
+test() ->
+    [shared_prefix(),
+     shared_prefix_deep(),
+     append_to_older(),
+     as_binary(acc(300)),
+     sent(acc(1000)),
+     bits(acc(5))].
+
+%% <<1, 2, ..., N>> (mod 256), one byte at a time
+acc(N) -> acc(N, <<>>).
+
+acc(0, Acc) -> Acc;
+acc(N, Acc) -> acc(N - 1, <<Acc/binary, (N rem 256)>>).
+
+shared_prefix() ->
+    X = acc(10),
+    A = <<X/binary, 1>>,
+    B = <<X/binary, 2>>,
+    [X, A, B, byte_size(X), byte_size(A), byte_size(B)].
+
+%% both go on growing, from the same start
+shared_prefix_deep() ->
+    X = acc(100),
+    A = acc(50, X),
+    B = acc(20, <<X/binary, "b">>),
+    A2 = <<A/binary, "a">>,
+    [X =:= acc(100), byte_size(A2), byte_size(B),
+     prefix(A2, 100) =:= X, prefix(B, 100) =:= X,
+     lists:last(binary_to_list(A)), lists:nth(101, binary_to_list(B)),
+     lists:sum(binary_to_list(A2))].
+
+prefix(B, N) ->
+    <<P:N/binary, _/binary>> = B,
+    P.
+
+%% an older, shorter binary appended to after a longer one
+append_to_older() ->
+    X = acc(8),
+    Y = <<X/binary, "yy">>,
+    Z = <<X/binary, "z">>,
+    Y2 = <<Y/binary, "more">>,
+    [X, Y, Z, Y2].
+
+as_binary(B) ->
+    {L, R} = split_binary(B, 100),
+    <<First, Second:16, Rest/binary>> = B,
+    [byte_size(L), byte_size(R), First, Second, byte_size(Rest),
+     B =:= <<L/binary, R/binary>>,
+     binary_to_term(term_to_binary(B)) =:= B,
+     list_to_binary([B, B]) =:= <<B/binary, B/binary>>,
+     erlang:phash2(B) =:= erlang:phash2(list_to_binary(binary_to_list(B))),
+     size(<<B/binary, B/binary>>)].
+
+sent(B) ->
+    Self = self(),
+    Pid = spawn(fun() ->
+			receive {From, Bin} ->
+				From ! {self(), <<Bin/binary, "back">>, Bin}
+			end
+		end),
+    Pid ! {Self, B},
+    receive
+	{Pid, Back, Same} ->
+	    [Same =:= B, byte_size(Back), prefix(Back, byte_size(B)) =:= B,
+	     <<B/binary, "here">> =/= Back]
+    after 1000 -> timeout
+    end.
+
+%% appends that are not whole bytes take the copying path
+bits(B) ->
+    X = <<B/binary, 1:3>>,
+    Y = <<X/bitstring, 2:5>>,
+    Z = <<B/binary, 7:3>>,
+    [bit_size(X), Y, Z, B].
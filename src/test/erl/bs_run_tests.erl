@@ -0,0 +1,54 @@
+-module(bs_run_tests).
+
+-compile(export_all).
+
+%% Runs of constant-size fields are checked once (bs_need) and then
+%% matched without further bounds checks; aligned integer fields take
+%% a shortcut.  These cover both, and fields that are not aligned.
+
+main() ->
+    io:format("~p\n", [test()]).
+
+test() ->
+    Bin = <<16#ff, 16#80, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff,
+	    16#ff, 16#ff, 16#7f, 1, 2, 3, 4, 5, 6, 7, 8, 9, "xy",
+	    (list_to_binary(lists:seq(200, 230)))/binary>>,
+    [header(<<1, 2:16, 3:32, "xy", 4:64, 5>>),
+     header(<<1, 2:16, 3:32, "xz", 4:64, 5>>),
+     header(<<1, 2:16, 3:32, "xy", 4:64>>),
+     header(<<1, 2:16>>),
+     [fields(Bin, Skip) || Skip <- lists:seq(0, 17)],
+     [little(Bin, Skip) || Skip <- [0, 1, 7, 8, 9, 15, 16]],
+     top_bit(<<16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff>>),
+     top_bit(<<16#80, 0, 0, 0, 0, 0, 0, 0>>),
+     top_bit(<<16#7f, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff, 16#ff>>)].
+
+%% one size check for the first clause; if it fails, or the string
+%% does not match, the next clause runs
+header(<<A, B:16, C:32/little, "xy", D:64, E>>) -> {run, A, B, C, D, E};
+header(<<A, B:16, _:32, "xz", _/binary>>) -> {other, A, B};
+header(<<A, _/bitstring>>) -> {short, A};
+header(_) -> none.
+
+fields(Bin, Skip) ->
+    <<_:Skip, A:8, B:16, C:24, D:32, E:40, F:48, G:56, H:64, _/bitstring>> = Bin,
+    <<_:Skip, SA:8/signed, SB:16/signed, SC:24/signed, SD:32/signed,
+      SE:40/signed, SF:48/signed, SG:56/signed, SH:64/signed, _/bitstring>> = Bin,
+    <<_:Skip, X:3, Y:33, Z:61, _/bitstring>> = Bin,
+    {Skip, [A, B, C, D, E, F, G, H], [SA, SB, SC, SD, SE, SF, SG, SH], [X, Y, Z]}.
+
+%% little-endian fields of more than 32 bits, aligned and not
+little(Bin, Skip) ->
+    <<_:Skip, A:40/little, B:48/little, C:64/little, _/bitstring>> = Bin,
+    <<_:Skip, D:16/little, E:24/little, F:64/little-signed, _/bitstring>> = Bin,
+    {Skip, [A, B, C], [D, E, F]}.
+
+%% unsigned 32- and 64-bit values with the top bit set are positive
+top_bit(Bin) ->
+    <<A:64, _/binary>> = Bin,
+    <<B:32, _/binary>> = Bin,
+    <<C:64/little, _/binary>> = Bin,
+    <<_:1, D:32, _/bitstring>> = <<Bin/binary, 0>>,
+    <<_:3, E:64, _/bitstring>> = <<Bin/binary, 0>>,
+    <<F:64/signed, _/binary>> = Bin,
+    [A, B, C, D, E, F, A > 0, B > 0].
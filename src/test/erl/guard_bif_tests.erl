@@ -0,0 +1,77 @@
+-module(guard_bif_tests).
+
+-export([test/0]).
+
+%% Guard BIFs in guards and in bodies, on values whose type the
+%% compiler knows and on values it does not.  element/2, tuple_size/1,
+%% hd/1 and tl/1 are inlined when the type is known.
+
+test() ->
+    Values = [a, true, 1, 1.5, [], [x], "str", {}, {p, q}, {p, q, r},
+	      <<1>>, <<1:3>>, self(), make_ref(), fun test/0],
+    [[{guard_type(V), body_type(V), atom_compare(V)} || V <- Values],
+     [safe(fun() -> first(V) end) || V <- Values],
+     [safe(fun() -> size_of(V) end) || V <- Values],
+     [safe(fun() -> head_tail(V) end) || V <- Values],
+     [guard_size(V) || V <- Values],
+     [guard_head(V) || V <- Values],
+     known({p, q, r}),
+     known_list([1, 2, 3]),
+     updated({rec, 1, 2})].
+
+guard_type(V) when is_atom(V), is_boolean(V) -> boolean;
+guard_type(V) when is_atom(V) -> atom;
+guard_type(V) when is_integer(V) -> integer;
+guard_type(V) when is_float(V) -> float;
+guard_type(V) when is_list(V) -> list;
+guard_type(V) when is_tuple(V) -> tuple;
+guard_type(V) when is_binary(V) -> binary;
+guard_type(V) when is_bitstring(V) -> bitstring;
+guard_type(V) when is_pid(V) -> pid;
+guard_type(V) when is_reference(V) -> reference;
+guard_type(V) when is_function(V) -> function;
+guard_type(_) -> other.
+
+%% the same tests, as values
+body_type(V) ->
+    [is_atom(V), is_boolean(V), is_integer(V), is_float(V), is_number(V),
+     is_list(V), is_tuple(V), is_binary(V), is_bitstring(V), is_pid(V),
+     is_port(V), is_reference(V), is_function(V)].
+
+atom_compare(V) ->
+    {V =:= a, V =/= a, a =:= V, V =:= true,
+     (is_atom(V) andalso V =:= a) orelse V =:= []}.
+
+first(V) -> element(1, V).
+
+size_of(V) -> tuple_size(V).
+
+head_tail(V) -> {hd(V), tl(V)}.
+
+guard_size(V) when tuple_size(V) > 1 -> {big, tuple_size(V)};
+guard_size(V) when tuple_size(V) >= 0 -> small;
+guard_size(_) -> not_tuple.
+
+guard_head(V) when hd(V) =:= x -> x_first;
+guard_head(V) when is_list(tl(V)) -> proper;
+guard_head(_) -> other.
+
+%% the arity is known here, so these need no type test
+known({_, _, _} = T) ->
+    {element(1, T), element(3, T), tuple_size(T),
+     safe(fun() -> element(4, T) end)}.
+
+known_list([_ | _] = L) ->
+    {hd(L), tl(L), hd(tl(L))}.
+
+%% an updated record keeps its arity
+updated({rec, _, _} = R) ->
+    R1 = setelement(2, R, one),
+    {element(2, R1), element(3, R1), tuple_size(R1), R}.
+
+%% errors without their stack traces, which differ from the emulator's
+safe(F) ->
+    try F() catch Class:Reason -> {Class, reason(Reason)} end.
+
+reason({Reason, _Where}) -> Reason;
+reason(Reason) -> Reason.
@@ -0,0 +1,63 @@
+-module(inline_reload_tests).
+
+-export([test/0]).
+
+%% A caller compiled while a small callee is loaded may inline it; once
+%% the callee is reloaded with other code, or deleted, the caller must
+%% see that, without being loaded again itself.
+
+test() ->
+    load(callee(v1, 1)),
+    load(caller()),
+    Before = run(),
+
+    load(callee(v2, 2)),
+    Reloaded = run(),
+
+    code:purge(inline_callee),
+    code:delete(inline_callee),
+    code:purge(inline_callee),
+    Deleted = (catch inline_caller:call(x)),
+
+    code:delete(inline_caller),
+    code:purge(inline_caller),
+    [Before, Reloaded, undef(Deleted)].
+
+run() ->
+    {inline_caller:call(x), inline_caller:tail(y)}.
+
+load(Forms) ->
+    {ok, Mod, Bin} = compile:forms(Forms, [binary]),
+    {module, Mod} = code:load_binary(Mod, atom_to_list(Mod) ++ ".erl", Bin).
+
+undef({'EXIT', {undef, _}}) -> undef;
+undef(Other) -> Other.
+
+%% inline_callee:value(X) -> {Tag, X}.
+%% inline_callee:pick(T) -> element(Pos, T).
+callee(Tag, Pos) ->
+    [{attribute, 1, module, inline_callee},
+     {attribute, 2, export, [{value, 1}, {pick, 1}]},
+     {function, 3, value, 1,
+      [{clause, 3, [{var, 3, 'X'}], [],
+	[{tuple, 3, [{atom, 3, Tag}, {var, 3, 'X'}]}]}]},
+     {function, 4, pick, 1,
+      [{clause, 4, [{var, 4, 'T'}], [],
+	[{call, 4, {atom, 4, element}, [{integer, 4, Pos}, {var, 4, 'T'}]}]}]}].
+
+%% inline_caller:call(X) -> {inline_callee:value(X), inline_callee:pick({a, b})}.
+%% inline_caller:tail(X) -> inline_callee:value(X).
+caller() ->
+    [{attribute, 1, module, inline_caller},
+     {attribute, 2, export, [{call, 1}, {tail, 1}]},
+     {function, 3, call, 1,
+      [{clause, 3, [{var, 3, 'X'}], [],
+	[{tuple, 3,
+	  [{call, 3, {remote, 3, {atom, 3, inline_callee}, {atom, 3, value}},
+	    [{var, 3, 'X'}]},
+	   {call, 3, {remote, 3, {atom, 3, inline_callee}, {atom, 3, pick}},
+	    [{tuple, 3, [{atom, 3, a}, {atom, 3, b}]}]}]}]}]},
+     {function, 4, tail, 1,
+      [{clause, 4, [{var, 4, 'X'}], [],
+	[{call, 4, {remote, 4, {atom, 4, inline_callee}, {atom, 4, value}},
+	  [{var, 4, 'X'}]}]}]}].
@@ -0,0 +1,57 @@
+-module(lazy_export_tests).
+
+-export([test/0, one/1, two/2, never_called/0, tail/1, counter/1, late/0]).
+
+%% Exported functions are made on first use: through a remote call,
+%% apply, an external fun, or a tail call; and whichever comes first,
+%% they are the same function after.  With -Derj.lazy_load=true, each
+%% export starts out as a stub, and a fun taken before the first call
+%% must still equal one taken after it; LazyLoadTests runs this so.
+
+test() ->
+    Exported = erlang:function_exported(?MODULE, never_called, 0),
+    F1 = fun ?MODULE:one/1,
+    F2 = fun ?MODULE:one/1,
+    [Exported,
+     F1 =:= F2,
+     F1(1),
+     ?MODULE:one(2),
+     apply(?MODULE, two, [3, 4]),
+     erlang:apply(fun ?MODULE:two/2, [5, 6]),
+     ?MODULE:tail(7),
+     lists:map(fun ?MODULE:one/1, [8, 9]),
+     in_parallel(),
+     erlang:function_exported(?MODULE, one, 1),
+     erlang:function_exported(?MODULE, not_there, 0),
+     undef(catch ?MODULE:not_there()),
+     before_and_after()].
+
+undef({'EXIT', {undef, _}}) -> undef;
+undef(Other) -> Other.
+
+one(X) -> {one, X}.
+
+two(X, Y) -> {two, X, Y}.
+
+never_called() -> never.
+
+tail(X) -> ?MODULE:one(X + 1).
+
+%% many processes make the first call at once
+counter(N) -> N + 1.
+
+in_parallel() ->
+    Self = self(),
+    Pids = [spawn(fun() -> Self ! {self(), ?MODULE:counter(I)} end)
+	    || I <- lists:seq(1, 20)],
+    lists:sum([receive {Pid, R} -> R end || Pid <- Pids]).
+
+%% late/0 is not called before this
+late() -> late.
+
+before_and_after() ->
+    Before = fun ?MODULE:late/0,
+    First = ?MODULE:late(),
+    After = fun ?MODULE:late/0,
+    [First, Before =:= After, Before == After, Before(), After(),
+     lists:usort([Before, After]) =:= [After]].
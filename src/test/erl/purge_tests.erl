@@ -0,0 +1,47 @@
+-module(purge_tests).
+
+-export([test/0]).
+
+%% Old code: loading a new version of a module makes the current one
+%% old, until it is purged; deleting a module makes it old too.  And
+%% the new version does not export what the old one did.
+
+-define(M, purge_victim).
+
+test() ->
+    Before = [erlang:module_loaded(?M), erlang:check_old_code(?M),
+	      erlang:delete_module(?M)],
+
+    {module, ?M} = erlang:load_module(?M, victim(v1, [gone])),
+    Loaded = [erlang:module_loaded(?M), erlang:check_old_code(?M),
+	      ?M:value(), ?M:gone()],
+
+    {module, ?M} = erlang:load_module(?M, victim(v2, [])),
+    Reloaded = [erlang:module_loaded(?M), erlang:check_old_code(?M),
+		?M:value(), error(catch ?M:gone()),
+		error(catch erlang:load_module(?M, victim(v3, []))),
+		error(catch erlang:delete_module(?M))],
+
+    Purged = [erlang:purge_module(?M), erlang:check_old_code(?M),
+	      error(catch erlang:purge_module(?M)), ?M:value()],
+
+    Deleted = [erlang:delete_module(?M), erlang:module_loaded(?M),
+	       erlang:check_old_code(?M), error(catch ?M:value()),
+	       erlang:purge_module(?M), erlang:check_old_code(?M),
+	       erlang:delete_module(?M)],
+
+    [Before, Loaded, Reloaded, Purged, Deleted,
+     error(catch erlang:check_old_code("not an atom"))].
+
+error({'EXIT', {Reason, _}}) -> Reason;
+error(Other) -> Other.
+
+%% purge_victim:value() -> Tag, and gone() -> gone if Extra has it
+victim(Tag, Extra) ->
+    Exports = [{value, 0} | [{F, 0} || F <- Extra]],
+    Forms = [{attribute, 1, module, ?M},
+	     {attribute, 2, export, Exports}
+	     | [{function, 3, F, 0, [{clause, 3, [], [], [{atom, 3, R}]}]}
+		|| {F, R} <- [{value, Tag} | [{F, F} || F <- Extra]]]],
+    {ok, ?M, Bin} = compile:forms(Forms, [binary]),
+    Bin.
@@ -0,0 +1,63 @@
+-module(record_update_tests).
+
+-export([test/0]).
+
+%% A setelement/3 on a tuple of known arity with a constant index in
+%% range is compiled to a copy and a field store; anything else calls
+%% the BIF.  Both must behave like setelement.
+
+-record(r, {a, b = 2, c = [], d}).
+
+test() ->
+    R = #r{a = 1, d = four},
+    [update_one(R), R,
+     update_many(R), R,
+     update_twice(R), R,
+     update_read(R), R,
+     count(1000, #r{a = 0, b = 0}),
+     [constant(T) || T <- [{x, y, z}, {1, 2, 3}]],
+     [out_of_range(T) || T <- [{x, y, z}]],
+     [safe(fun() -> variable(I, {x, y, z}) end) || I <- [0, 1, 2, 3, 4, -1, foo]],
+     safe(fun() -> variable(1, not_a_tuple) end),
+     safe(fun() -> update_one(not_a_record) end),
+     safe(fun() -> update_one({r, 1, 2}) end),
+     big(list_to_tuple(lists:seq(1, 20)))].
+
+update_one(R) -> R#r{b = 20}.
+
+update_many(R) -> R#r{a = 10, c = [x], d = 40}.
+
+update_twice(R) ->
+    R1 = R#r{a = 100},
+    R1#r{d = R1#r.a + 1}.
+
+update_read(R) ->
+    R1 = R#r{c = [R#r.a | R#r.c]},
+    {R1#r.a, R1#r.b, R1#r.c, R1#r.d, element(1, R1), tuple_size(R1)}.
+
+count(0, R) -> R;
+count(N, R = #r{a = A, b = B}) -> count(N - 1, R#r{a = A + 1, b = B + N}).
+
+%% errors without their stack traces, which differ from the emulator's
+safe(F) ->
+    try F() catch Class:Reason -> {Class, reason(Reason)} end.
+
+reason({Reason, _Where}) -> Reason;
+reason(Reason) -> Reason.
+
+%% the arity is known from the match; the index is a constant
+constant({_, _, _} = T) ->
+    {setelement(1, T, first), setelement(2, T, second),
+     setelement(3, T, third), T}.
+
+%% caught in the same function, where the arity is still known
+out_of_range({_, _, _} = T) ->
+    Zero = try setelement(0, T, zero) catch error:badarg -> badarg end,
+    Four = try setelement(4, T, four) catch error:badarg -> badarg end,
+    [Zero, Four, T].
+
+variable(I, T) -> setelement(I, T, var).
+
+%% wider than the classes with fields of their own
+big(T) ->
+    {element(20, setelement(20, T, last)), element(1, setelement(1, T, first)), T}.
@@ -17,6 +17,6 @@ test_process(Module, Recvr) ->
     Recvr ! Result.
 
 report(erjang, Result) ->
-    throw(Result);
+    exit(Result);
 report(erlang, Result) ->
     io:format("~s", [term_to_binary(Result)]).
@@ -0,0 +1,95 @@
+-module(split_tests).
+
+-export([test/0]).
+
+%% A function far bigger than the JIT compiles, which the compiler
+%% splits into several methods.  Some arms pause in a receive with
+%% values live on the stack, and one keeps a float in a register.
+
+-define(ARM(K),
+	K ->
+	A1 = step(N, K),
+	A2 = step(A1, N),
+	A3 = step(A2, N),
+	A4 = step(A3, N),
+	A5 = step(A4, N),
+	A6 = step(A5, N),
+	A7 = step(A6, N),
+	A8 = step(A7, N),
+	A9 = step(A8, N),
+	A10 = step(A9, N),
+	A11 = step(A10, N),
+	A12 = step(A11, N),
+	[A1, A2, A3, A4, A5, A6, A7, A8, A9, A10, A11, A12]).
+
+-define(PAUSING_ARM(K),
+	K ->
+	A1 = step(N, K),
+	A2 = step(A1, N),
+	receive after 0 -> ok end,
+	A3 = step(A2, N),
+	A4 = step(A3, A1),
+	receive after 0 -> ok end,
+	[N, A1, A2, A3, A4]).
+
+test() ->
+    [big(K, N) || K <- lists:seq(-1, 50), N <- [0, 7, 123456789012345678901234567890]].
+
+step(X, Y) -> (X * 31 + Y) rem 1000003.
+
+big(K, N) ->
+    case K of
+	0 ->
+	    F = N / 3,
+	    [F * 2.5, trunc(F)];
+	?ARM(1);
+	?ARM(2);
+	?ARM(3);
+	?ARM(4);
+	?ARM(5);
+	?ARM(6);
+	?ARM(7);
+	?PAUSING_ARM(8);
+	?ARM(9);
+	?ARM(10);
+	?ARM(11);
+	?ARM(12);
+	?ARM(13);
+	?ARM(14);
+	?ARM(15);
+	?PAUSING_ARM(16);
+	?ARM(17);
+	?ARM(18);
+	?ARM(19);
+	?ARM(20);
+	?ARM(21);
+	?ARM(22);
+	?ARM(23);
+	?PAUSING_ARM(24);
+	?ARM(25);
+	?ARM(26);
+	?ARM(27);
+	?ARM(28);
+	?ARM(29);
+	?ARM(30);
+	?ARM(31);
+	?PAUSING_ARM(32);
+	?ARM(33);
+	?ARM(34);
+	?ARM(35);
+	?ARM(36);
+	?ARM(37);
+	?ARM(38);
+	?ARM(39);
+	?PAUSING_ARM(40);
+	?ARM(41);
+	?ARM(42);
+	?ARM(43);
+	?ARM(44);
+	?ARM(45);
+	?ARM(46);
+	?ARM(47);
+	?PAUSING_ARM(48);
+	_ ->
+	    {other, K, N}
+    end.
@@ -0,0 +1,51 @@
+-module(superinstruction_tests).
+
+-export([test/0]).
+
+%% The pairs of instructions the interpreter runs as one: moves before
+%% calls and returns, tuple tests before taking elements, list tests
+%% before taking the head and tail.  AllTests runs this, like the
+%% other tests, interpreted as well as compiled.
+
+test() ->
+    [sum([1, 2, 3, 4]),
+     sum([]),
+     lengths([[a], [], [b, c]]),
+     swap({1, 2}),
+     swap({1, 2, 3}),
+     swap(not_a_tuple),
+     pairs([{a, 1}, {b, 2}, {c, 3, extra}, d]),
+     nested({{1, 2}, {3, 4}}),
+     nested({{1, 2}, 3}),
+     count(10, 0),
+     last_call(5, []),
+     keep(x, y)].
+
+sum([H | T]) -> H + sum(T);
+sum([]) -> 0.
+
+lengths([L | Ls]) -> [length(L) | lengths(Ls)];
+lengths([]) -> [].
+
+swap({A, B}) -> {B, A};
+swap({A, B, C}) -> {C, B, A};
+swap(Other) -> {not_swapped, Other}.
+
+pairs([{K, V} | T]) -> [{V, K} | pairs(T)];
+pairs([Other | T]) -> [{other, Other} | pairs(T)];
+pairs([]) -> [].
+
+nested({{A, B}, {C, D}}) -> A + B + C + D;
+nested({{A, B}, C}) -> {A, B, C}.
+
+count(0, Acc) -> Acc;
+count(N, Acc) -> count(N - 1, Acc + N).
+
+last_call(0, Acc) -> lists:reverse(Acc);
+last_call(N, Acc) ->
+    X = {N, Acc},
+    last_call(N - 1, [element(1, X) | Acc]).
+
+keep(A, B) ->
+    C = sum([1]),
+    {B, A, C}.
@@ -0,0 +1,40 @@
+-module(throw_tests).
+
+-export([test/0]).
+
+%% Throws inside catches and trys are caught the same however deeply
+%% they nest, and a throw outside all of them ends the process with
+%% {{nocatch, Reason}, Stack}.
+
+test() ->
+    [catch thrower(a),
+     (catch nested(c)),
+     try_of(d),
+     after_try(e),
+     uncaught(f)].
+
+thrower(X) -> throw(X).
+
+nested(X) ->
+    case catch thrower({inner, X}) of
+        {inner, X} -> thrower({outer, X})
+    end.
+
+try_of(X) ->
+    try thrower(X) of
+        _ -> not_thrown
+    catch
+        throw:Y -> {caught, Y}
+    end.
+
+after_try(X) ->
+    ok = try ok after ok end,
+    catch thrower(X).
+
+uncaught(X) ->
+    process_flag(trap_exit, true),
+    Pid = spawn_link(fun() -> ok = (catch ok), thrower(X) end),
+    receive
+        {'EXIT', Pid, {{nocatch, Y}, Stack}} when is_list(Stack) -> {nocatch, Y}
+    after 1000 -> timeout
+    end.
@@ -34,6 +34,37 @@ public class AllTests {
 	public static Test suite() {
 		TestSuite suite = new TestSuite("Test for erjang");
 
+		TestSuite etsSuite = new TestSuite("ETS tables");
+		//$JUnit-BEGIN$
+		etsSuite.addTestSuite(erjang.m.ets.ETableSetTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.ETableOrderedSetTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.EMatchSpecTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.ESelectContinuationTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.EUpdateCounterTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.ETableIndexTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.EOffHeapMapTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.EDiskMapTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.ETableFileTest.class);
+		etsSuite.addTestSuite(erjang.m.ets.ETableStatsTest.class);
+		//$JUnit-END$
+		suite.addTest(etsSuite);
+
+		TestSuite runtimeSuite = new TestSuite("Runtime");
+		//$JUnit-BEGIN$
+		runtimeSuite.addTestSuite(EModuleClassLoaderTest.class);
+		runtimeSuite.addTestSuite(EBitStringBuilderTest.class);
+		runtimeSuite.addTestSuite(EBinMatchStateTest.class);
+		runtimeSuite.addTestSuite(LiteralPoolTest.class);
+		runtimeSuite.addTestSuite(EFunTest.class);
+		//$JUnit-END$
+		suite.addTest(runtimeSuite);
+
+		TestSuite compilerSuite = new TestSuite("Compiler");
+		//$JUnit-BEGIN$
+		compilerSuite.addTestSuite(erjang.beam.analysis.ParallelAnalysisTest.class);
+		//$JUnit-END$
+		suite.addTest(compilerSuite);
+
 		TestSuite otpCompileSuite = new TestSuite("Compiling OTP");
 		//$JUnit-BEGIN$
 		find_beam_files(otpCompileSuite, new File(OTP_HOME));
@@ -42,11 +73,21 @@ public class AllTests {
 		
 		TestSuite coverageRunSuite = new TestSuite("Coverage run tests");
 		//$JUnit-BEGIN$
-		find_erl_files(coverageRunSuite, new File("src/test/erl"));
+		find_erl_files(coverageRunSuite, new File("src/test/erl"), false);
 		//$JUnit-END$
 
 		suite.addTest(coverageRunSuite);
 
+		TestSuite interpretedRunSuite = new TestSuite("Interpreted run tests");
+		find_erl_files(interpretedRunSuite, new File("src/test/erl"), true);
+		suite.addTest(interpretedRunSuite);
+
+		// run after the coverage tests, which compile the beam
+		TestSuite splitSuite = new TestSuite("Splitting huge functions");
+		splitSuite.addTest(new TestCompileFile(
+				new File(TestRunFile.BEAM_DIR, "split_tests.beam"), true));
+		suite.addTest(splitSuite);
+
 		return suite;
 	}
 
@@ -73,13 +114,13 @@ public class AllTests {
 		}
 	}
 
-	static void find_erl_files(TestSuite suite, File dir) {
+	static void find_erl_files(TestSuite suite, File dir, boolean interpret) {
 		if (! dir.isDirectory()) throw new IllegalArgumentException("not a directory: "+dir);
 		TestSuite ts = null;
 
 		for (File file : dir.listFiles()) {
 			if (file.isDirectory()) {
-				find_erl_files(suite, file);
+				find_erl_files(suite, file, interpret);
 			} else if (file.getName().endsWith(".erl")) {
 				if (ts == null) {
 					System.err.println("added.. " + dir);
@@ -87,7 +128,7 @@ public class AllTests {
 					suite.addTest(ts);
 				}
 
-				ts.addTest(new TestRunFile(file));
+				ts.addTest(new TestRunFile(file, interpret));
 			}
 		}
 	}
@@ -0,0 +1,86 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import junit.framework.TestCase;
+
+/**
+ * Both tables of {@link AtomSwitch} find each of their atoms, and
+ * nothing else.
+ */
+public class AtomSwitchTest extends TestCase {
+
+	static EAtom[] atoms(String prefix, int n) {
+		EAtom[] res = new EAtom[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = EAtom.intern(prefix + i);
+		}
+		return res;
+	}
+
+	static void check(EAtom[] atoms) {
+		AtomSwitch sw = new AtomSwitch(atoms);
+		for (int i = 0; i < atoms.length; i++) {
+			assertEquals(atoms[i].toString(), i + 1, sw.select(atoms[i]));
+			assertEquals(i + 1, sw.select((EObject) atoms[i]));
+		}
+
+		assertEquals(0, sw.select(EAtom.intern("atom_switch_test_other")));
+		assertEquals(0, sw.select(ERT.box(atoms.length == 0 ? 0 : atoms[0].index)));
+		assertEquals(0, sw.select(ERT.NIL));
+		assertEquals(0, sw.select(ETuple.make(atoms)));
+	}
+
+	public void testInternedTogether() {
+		check(atoms("atom_switch_test_close_", 40));
+	}
+
+	public void testSpreadOut() {
+		EAtom[] first = atoms("atom_switch_test_far_a_", 3);
+		atoms("atom_switch_test_filler_", 1000);
+		EAtom[] last = atoms("atom_switch_test_far_b_", 3);
+
+		EAtom[] both = new EAtom[first.length + last.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(last, 0, both, first.length, last.length);
+		check(both);
+	}
+
+	public void testCollisions() {
+		// every 64th atom, so many fall in the same slot of a small table
+		EAtom[] all = atoms("atom_switch_test_step_", 64 * 20);
+		EAtom[] some = new EAtom[20];
+		for (int i = 0; i < some.length; i++) {
+			some[i] = all[64 * i];
+		}
+		check(some);
+	}
+
+	public void testNone() {
+		check(new EAtom[0]);
+	}
+
+	public void testIndexesAreUnique() {
+		EAtom[] atoms = atoms("atom_switch_test_unique_", 100);
+		for (int i = 1; i < atoms.length; i++) {
+			assertTrue(atoms[i].index != atoms[i - 1].index);
+			assertSame(atoms[i], EAtom.intern("atom_switch_test_unique_" + i));
+		}
+	}
+}
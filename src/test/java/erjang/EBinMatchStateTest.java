@@ -0,0 +1,135 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Integer fields read the same checked and unchecked, aligned or not,
+ * big or little endian, signed or not, up to 64 bits.
+ */
+public class EBinMatchStateTest extends TestCase {
+
+	static final int[] FLAGS = { 0, EBinMatchState.BSF_SIGNED,
+		EBinMatchState.BSF_LITTLE,
+		EBinMatchState.BSF_LITTLE | EBinMatchState.BSF_SIGNED };
+
+	byte[] data = new byte[32];
+
+	@Override
+	protected void setUp() {
+		new Random(30).nextBytes(data);
+		// and the extremes, with the top bit set and clear
+		data[0] = (byte) 0xff;
+		data[1] = (byte) 0x80;
+		for (int i = 2; i < 10; i++) {
+			data[i] = (byte) 0xff;
+		}
+		data[10] = 0x7f;
+	}
+
+	/** @return the field of <code>size</code> bits at bit <code>off</code>, as Erlang reads it */
+	BigInteger expected(int off, int size, int flags) {
+		BigInteger all = new BigInteger(1, data);
+		BigInteger value = all.shiftRight(data.length * 8 - off - size)
+			.and(BigInteger.ONE.shiftLeft(size).subtract(BigInteger.ONE));
+
+		if ((flags & EBinMatchState.BSF_LITTLE) != 0) {
+			BigInteger le = BigInteger.ZERO;
+			for (int i = 0; i < size / 8; i++) {
+				le = le.shiftLeft(8).or(value.shiftRight(8 * i).and(BigInteger.valueOf(0xff)));
+			}
+			value = le;
+		}
+		if ((flags & EBinMatchState.BSF_SIGNED) != 0 && value.testBit(size - 1)) {
+			value = value.subtract(BigInteger.ONE.shiftLeft(size));
+		}
+		return value;
+	}
+
+	EBinMatchState at(int off) {
+		EBinMatchState ms = new EBinMatchState(new EBinary(data), 1);
+		ms.bs_skip_bits2_unchecked(off);
+		return ms;
+	}
+
+	public void testIntegers() {
+		for (int off = 0; off < 24; off++) {
+			for (int size = 8; size <= 64; size += 8) {
+				for (int flags : FLAGS) {
+					String what = "off=" + off + " size=" + size + " flags=" + flags;
+					EInteger want = ERT.box(expected(off, size, flags));
+
+					EBinMatchState checked = at(off);
+					assertEquals(what, want, checked.bs_get_integer2(size, flags));
+					assertEquals(what, off + size, checked.offset);
+
+					EBinMatchState unchecked = at(off);
+					assertTrue(unchecked.bs_need(size));
+					assertEquals(what, want, unchecked.bs_get_integer2_unchecked(size, flags));
+					assertEquals(what, off + size, unchecked.offset);
+				}
+			}
+
+			// and sizes that are not whole bytes, big endian
+			for (int size = 1; size <= 64; size += 5) {
+				for (int flags : new int[] { 0, EBinMatchState.BSF_SIGNED }) {
+					String what = "off=" + off + " size=" + size + " flags=" + flags;
+					EInteger want = ERT.box(expected(off, size, flags));
+					assertEquals(what, want, at(off).bs_get_integer2(size, flags));
+					assertEquals(what, want, at(off).bs_get_integer2_unchecked(size, flags));
+				}
+			}
+		}
+	}
+
+	public void testBoxesWholeLongs() {
+		assertEquals(BigInteger.valueOf(Long.MAX_VALUE), ERT.box(Long.MAX_VALUE).bigintValue());
+		assertEquals(BigInteger.valueOf(Long.MIN_VALUE), ERT.box(Long.MIN_VALUE).bigintValue());
+		assertTrue(ERT.box(Integer.MAX_VALUE + 1L) instanceof EBig);
+		assertTrue(ERT.box((long) Integer.MIN_VALUE) instanceof ESmall);
+	}
+
+	public void testNeed() {
+		EBinMatchState ms = at(8 * 30 + 3);
+		assertTrue(ms.bs_need(13));
+		assertFalse(ms.bs_need(14));
+		assertNull(ms.bs_get_integer2(16, 0));
+	}
+
+	public void testRunOfFields() {
+		// <<A:8, B:16/little, "xy", Rest:3/binary, _/bitstring>>, checked once
+		byte[] bytes = { 1, 2, 3, 'x', 'y', 7, 8, 9, 10 };
+		EBinMatchState ms = new EBinMatchState(new EBinary(bytes), 1);
+		assertTrue(ms.bs_need(8 + 16 + 16 + 24));
+		assertEquals(ERT.box(1), ms.bs_get_integer2_unchecked(8, 0));
+		assertEquals(ERT.box(3 * 256 + 2),
+				ms.bs_get_integer2_unchecked(16, EBinMatchState.BSF_LITTLE));
+		assertTrue(ms.bs_match_string_unchecked(new EBinary(new byte[] { 'x', 'y' })));
+		assertEquals(new EBinary(new byte[] { 7, 8, 9 }), ms.bs_get_binary2_unchecked(24));
+		assertEquals(8, ms.bitsLeft());
+
+		ms = new EBinMatchState(new EBinary(bytes), 1);
+		ms.bs_skip_bits2_unchecked(24);
+		assertFalse(ms.bs_match_string_unchecked(new EBinary(new byte[] { 'x', 'z' })));
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Binaries that bs_append makes share their buffer, and none of them
+ * sees what is appended to another.
+ */
+public class EBitStringBuilderTest extends TestCase {
+
+	/** @return <code>&lt;&lt;bin/binary, bytes...&gt;&gt;</code> */
+	static EBitString append(EObject bin, int... bytes) {
+		EBitStringBuilder b = EBitStringBuilder.bs_append(bin, bytes.length * 8, 0);
+		for (int x : bytes) {
+			b.put_integer(ERT.box(x), 8, 0);
+		}
+		return b.bitstring();
+	}
+
+	static void assertBytes(EBitString bin, int... bytes) {
+		byte[] expected = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			expected[i] = (byte) bytes[i];
+		}
+		assertEquals(0, bin.extra_bits);
+		assertTrue(Arrays.toString(bin.toByteArray()), Arrays.equals(expected, bin.toByteArray()));
+	}
+
+	public void testAppendsInPlace() {
+		EBitString x = append(new EBinary(new byte[0]), 1, 2, 3);
+		EBitString y = append(x, 4);
+		assertTrue(y instanceof EBitStringBuilder.WritableBinary);
+		assertSame(x.data, y.data);
+		assertBytes(y, 1, 2, 3, 4);
+	}
+
+	public void testSharedPrefix() {
+		EBitString x = append(new EBinary(new byte[0]), 1, 2, 3);
+		EBitString a = append(x, 10);
+		EBitString b = append(x, 20);
+
+		assertBytes(x, 1, 2, 3);
+		assertBytes(a, 1, 2, 3, 10);
+		assertBytes(b, 1, 2, 3, 20);
+
+		// each goes on growing, and the others stay as they were
+		EBitString a2 = append(a, 11, 12);
+		EBitString b2 = append(b, 21);
+		EBitString x2 = append(x, 30);
+		assertBytes(x, 1, 2, 3);
+		assertBytes(a, 1, 2, 3, 10);
+		assertBytes(b, 1, 2, 3, 20);
+		assertBytes(a2, 1, 2, 3, 10, 11, 12);
+		assertBytes(b2, 1, 2, 3, 20, 21);
+		assertBytes(x2, 1, 2, 3, 30);
+	}
+
+	public void testGrowsPastItsBuffer() {
+		EObject acc = new EBinary(new byte[0]);
+		EBitString half = null;
+		for (int i = 0; i < 1000; i++) {
+			acc = append(acc, i & 0xff);
+			if (i == 499) {
+				half = (EBitString) acc;
+			}
+		}
+		EBitString fork = append(half, 7);
+
+		EBitString all = (EBitString) acc;
+		assertEquals(1000, all.byteSize());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals((byte) i, all.toByteArray()[i]);
+		}
+		assertEquals(500, half.byteSize());
+		assertEquals(501, fork.byteSize());
+		assertEquals(7, fork.toByteArray()[500]);
+		assertEquals((byte) 500, all.toByteArray()[500]);
+	}
+
+	public void testIsAnOrdinaryBinary() {
+		EBitString x = append(new EBinary(new byte[0]), 1, 2, 3);
+		append(x, 4);
+		EBinary plain = new EBinary(new byte[] { 1, 2, 3 });
+
+		assertNotNull(x.testBinary());
+		assertEquals(plain, x);
+		assertEquals(0, plain.compareTo(x));
+
+		// its external form holds only its own bytes
+		EBinary ext = erjang.m.erlang.ErlConvert.term_to_binary(x);
+		assertEquals(plain, erjang.m.erlang.ErlConvert.binary_to_term(ext));
+
+		// and so does a sub binary of it
+		EBitString tail = x.substring(8);
+		assertBytes(tail, 2, 3);
+	}
+
+	public void testBitsCopy() {
+		EBitString x = append(new EBinary(new byte[0]), 1, 2);
+		EBitString y = EBitStringBuilder.bs_append(x, 3, 0).bitstring();
+		assertFalse(y instanceof EBitStringBuilder.WritableBinary);
+		assertBytes(append(x, 5), 1, 2, 5);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import kilim.Pausable;
+
+import junit.framework.TestCase;
+
+/**
+ * Threads that need the fun classes for a new arity at the same time
+ * all get the same classes, and none of them fails to define one.
+ */
+public class EFunTest extends TestCase {
+
+	static final int THREADS = 8;
+
+	/** arities that nothing else in the tests uses */
+	static final int FIRST_ARITY = 40;
+	static final int ARITIES = 4;
+
+	static final EFunHandler HANDLER = new EFunHandler() {
+		public EObject invoke(EProc proc, EObject[] args) throws Pausable {
+			return ERT.NIL;
+		}
+	};
+
+	public static EObject some_bif(EObject a, EObject b) {
+		return a;
+	}
+
+	/** what one thread saw, for each arity */
+	static class Seen {
+		List<Class<?>> fun_classes = new ArrayList<Class<?>>();
+		List<Class<?>> handler_classes = new ArrayList<Class<?>>();
+		EFun made;
+	}
+
+	public void testConcurrentDefinition() throws Exception {
+		final CyclicBarrier start = new CyclicBarrier(THREADS);
+		final Method bif = EFunTest.class.getMethod("some_bif",
+				EObject.class, EObject.class);
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<Seen>> results = new ArrayList<Future<Seen>>();
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				final boolean handler_first = (t % 2) == 0;
+				results.add(pool.submit(new Callable<Seen>() {
+					public Seen call() throws Exception {
+						Seen seen = new Seen();
+						start.await();
+						for (int i = 0; i < ARITIES; i++) {
+							int arity = FIRST_ARITY + i;
+							EFun fun;
+							if (handler_first) {
+								fun = EFun.get_fun_with_handler(arity, HANDLER, null);
+								seen.fun_classes.add(EFun.get_fun_class(arity));
+							} else {
+								seen.fun_classes.add(EFun.get_fun_class(arity));
+								fun = EFun.get_fun_with_handler(arity, HANDLER, null);
+							}
+							assertEquals(arity, fun.arity());
+							seen.handler_classes.add(fun.getClass());
+						}
+						seen.made = EFun.make(bif);
+						return seen;
+					}
+				}));
+			}
+
+			Seen first = results.get(0).get();
+			for (Future<Seen> result : results) {
+				Seen seen = result.get();
+				for (int i = 0; i < ARITIES; i++) {
+					assertSame(first.fun_classes.get(i), seen.fun_classes.get(i));
+					assertSame(first.handler_classes.get(i), seen.handler_classes.get(i));
+					assertSame(first.fun_classes.get(i),
+							seen.handler_classes.get(i).getSuperclass());
+				}
+				assertSame(first.made, seen.made);
+			}
+			assertEquals(2, first.made.arity());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
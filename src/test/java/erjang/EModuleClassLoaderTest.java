@@ -0,0 +1,132 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import junit.framework.TestCase;
+
+/**
+ * A loader counts the classes of each module as it defines them, and
+ * closes its jars once all of its modules have been purged.
+ */
+public class EModuleClassLoaderTest extends TestCase {
+
+	static final String MOD = "loader_test_module";
+	static final String PKG = "erjang/m/" + MOD + "/";
+
+	File jar;
+	int class_bytes;
+
+	@Override
+	protected void setUp() throws Exception {
+		jar = File.createTempFile("loader_test", ".jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (String name : new String[] { "A", "B" }) {
+				byte[] data = empty_class(PKG + name);
+				class_bytes += data.length;
+				out.putNextEntry(new JarEntry(PKG + name + ".class"));
+				out.write(data);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		jar.delete();
+	}
+
+	static byte[] empty_class(String internal_name) {
+		ClassWriter cw = new ClassWriter(true);
+		cw.visit(Opcodes.V1_4, Opcodes.ACC_PUBLIC, internal_name, null,
+				"java/lang/Object", null);
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	public void testCountsAndCloses() throws Exception {
+		EModuleClassLoader loader = EModuleLoader.loader_for("loader_test",
+				MOD, jar.toURI().toURL());
+
+		String pkg = PKG.replace('/', '.');
+		loader.loadClass(pkg + "A");
+		loader.loadClass(pkg + "B");
+		assertTrue(open_count(jar) > 0 || !has_proc_fds());
+
+		ETuple info = find(EModuleClassLoader.module_classes());
+		assertNotNull(info);
+		assertEquals(ERT.box(2), info.elm(3));
+		assertEquals(ERT.box(class_bytes), info.elm(4));
+
+		assertTrue(loader.release(MOD));
+		assertEquals(0, open_count(jar));
+
+		// purged modules go into a fresh loader
+		EModuleClassLoader next = EModuleLoader.loader_for("loader_test",
+				MOD, jar.toURI().toURL());
+		assertNotSame(loader, next);
+		next.release(MOD);
+	}
+
+	private static ETuple find(ESeq infos) {
+		for (; !infos.isNil(); infos = infos.tail()) {
+			ETuple t = infos.head().testTuple();
+			if (t.elm(1) == EAtom.intern(MOD)
+					&& t.elm(5) == EAtom.intern("loaded"))
+				return t;
+		}
+		return null;
+	}
+
+	private static boolean has_proc_fds() {
+		return new File("/proc/self/fd").isDirectory();
+	}
+
+	/** @return how many file descriptors this process has open on <code>file</code> */
+	private static int open_count(File file) throws IOException {
+		if (!has_proc_fds())
+			return 0;
+
+		String path = file.getCanonicalPath();
+		int n = 0;
+		File[] fds = new File("/proc/self/fd").listFiles();
+		if (fds == null)
+			return 0;
+		for (File fd : fds) {
+			try {
+				if (fd.getCanonicalPath().equals(path))
+					n += 1;
+			} catch (IOException e) {
+				// closed while we looked
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import erjang.m.erlang.ErlBif;
+
+import junit.framework.TestCase;
+
+/**
+ * Throws only capture a stack trace when nothing will catch them.
+ */
+public class ErlangThrowTest extends TestCase {
+
+	static final EAtom am_foo = EAtom.intern("foo");
+
+	public void testCaughtThrowHasNoTrace() {
+		if (ErlangThrow.THROW_TRACES)
+			return;
+
+		assertEquals(0, new ErlangThrow(am_foo).getStackTrace().length);
+		assertEquals(0, new ErlangThrow(am_foo, false).getStackTrace().length);
+	}
+
+	public void testUncaughtThrowHasTrace() {
+		StackTraceElement[] st = new ErlangThrow(am_foo, true).getStackTrace();
+		assertTrue(st.length > 0);
+		assertTrue(has_frame(st, "testUncaughtThrowHasTrace"));
+	}
+
+	public void testThrowBifLooksAtCatches() {
+		if (ErlangThrow.THROW_TRACES)
+			return;
+
+		EProc proc = new EProc(null, am_foo, am_foo, ERT.NIL);
+
+		proc.catches = 1;
+		assertEquals(0, throw_trace(proc).length);
+
+		proc.catches = 0;
+		assertTrue(has_frame(throw_trace(proc), "throw_trace"));
+	}
+
+	public void testUncaughtThrowExitReason() {
+		ETuple reason = new ErlangThrow(am_foo, true).exitReason().testTuple();
+		assertNotNull(reason);
+		assertEquals(2, reason.arity());
+
+		ETuple nocatch = reason.elm(1).testTuple();
+		assertNotNull(nocatch);
+		assertEquals(2, nocatch.arity());
+		assertSame(EAtom.intern("nocatch"), nocatch.elm(1));
+		assertSame(am_foo, nocatch.elm(2));
+
+		assertNotNull(reason.elm(2).testSeq());
+	}
+
+	private static StackTraceElement[] throw_trace(EProc proc) {
+		try {
+			ErlBif.throw_ex(proc, am_foo);
+		} catch (ErlangThrow e) {
+			assertSame(am_foo, e.reason());
+			return e.getStackTrace();
+		}
+		fail("no throw");
+		return null;
+	}
+
+	private static boolean has_frame(StackTraceElement[] st, String method) {
+		for (StackTraceElement e : st) {
+			if (e.getMethodName().equals(method))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package erjang;
+
+import java.io.File;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * The tests of exports made on first use; the <code>testlazy</code>
+ * target runs these with <code>-Derj.lazy_load=true</code>.
+ */
+public class LazyLoadTests {
+
+	public static Test suite() {
+		TestSuite suite = new TestSuite("Lazy exports");
+		//$JUnit-BEGIN$
+		suite.addTestSuite(erjang.beam.LazyExportTest.class);
+		suite.addTest(new TestRunFile(new File("src/test/erl/lazy_export_tests.erl")));
+		//$JUnit-END$
+		return suite;
+	}
+
+}
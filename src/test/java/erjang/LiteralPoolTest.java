@@ -0,0 +1,154 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import erjang.beam.ClassRepo;
+import erjang.beam.Compiler;
+import erjang.beam.EUtil;
+import erjang.beam.loader.ErjangBeamDisLoader;
+
+/**
+ * Equal literals of different modules are one object, and the pool
+ * forgets literals that no module uses any more.
+ */
+public class LiteralPoolTest extends TestCase {
+
+	static final File PRELOADED = new File("src/main/erl/preloaded/ebin");
+
+	/** the classes of one compiled module, each loader defining its own copy */
+	static class ModuleClasses implements ClassRepo {
+		final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+		@Override
+		public void store(String internal_name, byte[] data) throws IOException {
+			classes.put(internal_name.replace('/', '.'), data);
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		ClassLoader loader() {
+			return new ClassLoader(LiteralPoolTest.class.getClassLoader()) {
+				@Override
+				protected Class<?> findClass(String name) throws ClassNotFoundException {
+					byte[] data = classes.get(name);
+					if (data == null)
+						throw new ClassNotFoundException(name);
+					return defineClass(name, data, 0, data.length);
+				}
+			};
+		}
+	}
+
+	static ModuleClasses compile(String module) throws Exception {
+		ModuleClasses out = new ModuleClasses();
+		EBinary beam = EUtil.readFile(new File(PRELOADED, module + ".beam"));
+		Compiler.compile(new ErjangBeamDisLoader().load(beam.getByteArray()), out);
+		return out;
+	}
+
+	/** @return the compound literals of <code>name</code>, by field name */
+	static Map<String, Object> literals(ClassLoader loader, String name) throws Exception {
+		Class<?> c = Class.forName(name, true, loader);
+		Map<String, Object> res = new HashMap<String, Object>();
+		for (Field f : c.getDeclaredFields()) {
+			if (Modifier.isStatic(f.getModifiers())
+					&& (f.getName().startsWith("cst_") || f.getName().startsWith("str_"))) {
+				f.setAccessible(true);
+				res.put(f.getName(), f.get(null));
+			}
+		}
+		return res;
+	}
+
+	public void testSharedBetweenModules() throws Exception {
+		ModuleClasses init = compile("init");
+		String name = "erjang.m.init.init";
+
+		// two loads of one module are two modules with the same literals
+		Map<String, Object> first = literals(init.loader(), name);
+		Map<String, Object> second = literals(init.loader(), name);
+
+		assertFalse(first.isEmpty());
+		assertEquals(first.keySet(), second.keySet());
+		for (String field : first.keySet()) {
+			assertSame(field, first.get(field), second.get(field));
+		}
+	}
+
+	public void testDefineKeepsTheFirst() {
+		EObject a = ETuple.make(EAtom.intern("pool_test"), ERT.box(1));
+		EObject b = ETuple.make(EAtom.intern("pool_test"), ERT.box(1));
+		String key = LiteralPool.key(a);
+
+		assertNotNull(key);
+		assertEquals(key, LiteralPool.key(b));
+		assertSame(a, LiteralPool.define(key, a));
+		assertSame(a, LiteralPool.define(key, b));
+		assertSame(a, LiteralPool.get(key));
+	}
+
+	public void testUnencodableIsNotPooled() {
+		EObject odd = new ETuple2(EAtom.intern("x"), EAtom.intern("y")) {
+			@Override
+			public void encode(EOutputStream eos) {
+				throw new IllegalStateException("cannot encode");
+			}
+		};
+		assertNull(LiteralPool.key(odd));
+		assertNull(LiteralPool.key(EAtom.intern("x")));
+		assertNull(LiteralPool.key(ERT.box(17)));
+	}
+
+	public void testExpungesCollected() throws Exception {
+		int before = LiteralPool.size();
+		String key = define_garbage();
+		assertEquals(before + 1, LiteralPool.size());
+
+		for (int i = 0; i < 100 && LiteralPool.get(key) != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(LiteralPool.get(key));
+
+		// dropped from the pool too, not only cleared; literals of
+		// modules that other tests loaded may go as well
+		for (int i = 0; i < 100 && LiteralPool.size() > before; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertTrue(LiteralPool.size() <= before);
+	}
+
+	private static String define_garbage() {
+		EObject t = ETuple.make(EAtom.intern("pool_garbage"), ERT.box(System.nanoTime()));
+		String key = LiteralPool.key(t);
+		LiteralPool.define(key, t);
+		return key;
+	}
+}
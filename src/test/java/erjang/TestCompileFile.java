@@ -20,9 +20,15 @@
 package erjang;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 
+import erjang.beam.ClassRepo;
 import erjang.beam.Compiler;
+import erjang.beam.CompilerStats;
+import erjang.beam.loader.ErjangBeamDisLoader;
 
+import junit.framework.AssertionFailedError;
 import junit.framework.Test;
 import junit.framework.TestResult;
 
@@ -32,12 +38,23 @@ import junit.framework.TestResult;
 public class TestCompileFile implements Test {
 
 	private final File file;
+	private final boolean must_fit;
 
 	/**
 	 * @param file
 	 */
 	public TestCompileFile(File file) {
+		this(file, false);
+	}
+
+	/**
+	 * @param file
+	 * @param must_fit if no generated method may be over the size the
+	 *        JIT compiles; that is, big functions must have been split
+	 */
+	public TestCompileFile(File file, boolean must_fit) {
 		this.file = file;
+		this.must_fit = must_fit;
 	}
 
 	/* (non-Javadoc)
@@ -63,11 +80,36 @@ public class TestCompileFile implements Test {
 	public void run(TestResult result) {
 		result.startTest(this);
 		try {
-			Compiler.main(new String[] { file.getAbsolutePath() });
+			if (must_fit) {
+				new Compiler(new SizeCheckingRepo()).compile(file, new ErjangBeamDisLoader());
+			} else {
+				Compiler.main(new String[] { file.getAbsolutePath() });
+			}
+		} catch (AssertionFailedError e) {
+			result.addFailure(this, e);
 		} catch (Throwable e) {
 			result.addError(this, e);
 		}
 		result.endTest(this);
 	}
 
+	/** fails on a class with a method over the JIT's limit; but
+	 *  initializers, which run only once, may be */
+	static class SizeCheckingRepo implements ClassRepo {
+		@Override
+		public void store(String internal_name, byte[] data) throws IOException {
+			for (Map.Entry<String, Integer> ent : CompilerStats.method_sizes(data).entrySet()) {
+				if (ent.getValue() > CompilerStats.HUGE_METHOD_LIMIT
+						&& !ent.getKey().startsWith("<")) {
+					throw new AssertionFailedError(internal_name + "." + ent.getKey()
+							+ " is " + ent.getValue() + " bytes");
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+
 }
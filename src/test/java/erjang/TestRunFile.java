@@ -31,6 +31,8 @@ import erjang.ETuple;
 import erjang.EBinary;
 import erjang.beam.DirClassRepo;
 import erjang.beam.BeamLoader;
+import erjang.beam.EUtil;
+import erjang.beam.interpreter.Interpreter;
 import erjang.beam.loader.ErjangBeamDisLoader;
 
 import erjang.m.erlang.ErlConvert;
@@ -58,6 +60,7 @@ public class TestRunFile implements Test {
 	static final String BEAM_DIR = "target/test-beam";
 
 	private final File file;
+	private final boolean interpret;
 
 	final static File repoDir = new File("target/compiled");
 	final static DirClassRepo repo = new DirClassRepo(repoDir);
@@ -68,10 +71,22 @@ public class TestRunFile implements Test {
 	 * @param file
 	 */
 	public TestRunFile(File file) {
+		this(file, false);
+	}
+
+	/**
+	 * @param file
+	 * @param interpret if the test module is to be run by the interpreter,
+	 *        rather than compiled
+	 */
+	public TestRunFile(File file, boolean interpret) {
 		this.file = file;
+		this.interpret = interpret;
 		
+		// the compiler, for tests that compile modules as they run
 		System.setProperty("erjpath", OTP_HOME + "/erts/preloaded/ebin"
-							+ ":" + OTP_HOME + "/lib/stdlib/ebin");
+							+ ":" + OTP_HOME + "/lib/stdlib/ebin"
+							+ ":" + OTP_HOME + "/lib/compiler/ebin");
 	}
 
 
@@ -80,7 +95,7 @@ public class TestRunFile implements Test {
 	 */
 	@Override
 	public String toString() {
-		return "compiling and running " + file.getName();
+		return (interpret ? "interpreting " : "compiling and running ") + file.getName();
 	}
 	
 	/* (non-Javadoc)
@@ -108,7 +123,11 @@ public class TestRunFile implements Test {
 
 			if (! EModuleManager.module_loaded(ERLANG_ATOM)) load("erlang");
 			if (! EModuleManager.module_loaded(RUN_WRAPPER_ATOM)) load(wrapperBeamFile);
-			load(beamFile);
+			if (interpret) {
+				interpret(beamFile);
+			} else {
+				load(beamFile);
+			}
 
 			String moduleName = trimExtension(file.getName());
 			EAtom module = EAtom.intern(moduleName);
@@ -142,6 +161,10 @@ public class TestRunFile implements Test {
 		EModuleLoader.load_compiled_module(moduleName, repoDir.toURL());
 	}
 
+	private static void interpret(File file) throws Exception {
+		Interpreter.beamFileToEModule(beamParser.load(EUtil.readFile(file).toByteArray()));
+	}
+
 	private EObject erl_run(File file) throws Exception {
 		String moduleName = trimExtension(file.getName());
 		String[] cmd = new String[] {ERL_PRG, "-noinput",
@@ -0,0 +1,164 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import erjang.EAtom;
+import erjang.EBinary;
+import erjang.Inlined;
+import erjang.beam.loader.ErjangBeamDisLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Calls inlined from another module are guarded by the version of that
+ * module, and the guard is off once another version is loaded.
+ */
+public class InlinerTest extends TestCase {
+
+	static final File PRELOADED = new File("src/main/erl/preloaded/ebin");
+
+	static EBinary beam(String module) throws IOException {
+		return EUtil.readFile(new File(PRELOADED, module + ".beam"));
+	}
+
+	/** make all the preloaded modules the current versions */
+	static void add_preloaded() throws IOException {
+		for (File file : PRELOADED.listFiles()) {
+			String name = file.getName();
+			if (name.endsWith(".beam")) {
+				Inliner.add(EAtom.intern(name.substring(0, name.length() - 5)),
+						EUtil.readFile(file));
+			}
+		}
+	}
+
+	/** What the {@link Inlined} annotation of a guard says */
+	static class Guard {
+		String module;
+		long version;
+	}
+
+	static final String INLINED_DESC = Type.getDescriptor(Inlined.class);
+
+	/** @return the guards in the class compiled from <code>module</code> */
+	static List<Guard> compile_guards(String module) throws Exception {
+		final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		Compiler.compile(new ErjangBeamDisLoader().load(beam(module).toByteArray()),
+				new ClassRepo() {
+					public void store(String internal_name, byte[] data) {
+						classes.put(internal_name, data);
+					}
+
+					public void close() {
+					}
+				});
+
+		final List<Guard> res = new ArrayList<Guard>();
+		byte[] data = classes.get("erjang/m/" + module + "/" + module);
+		new ClassReader(data).accept(new EmptyVisitor() {
+			@Override
+			public FieldVisitor visitField(int access, String name, final String desc,
+					String signature, Object value) {
+				return new EmptyVisitor() {
+					@Override
+					public AnnotationVisitor visitAnnotation(String adesc, boolean visible) {
+						if (!adesc.equals(INLINED_DESC))
+							return new EmptyVisitor();
+						assertEquals("Z", desc);
+
+						final Guard guard = new Guard();
+						res.add(guard);
+						return new EmptyVisitor() {
+							@Override
+							public void visit(String name, Object value) {
+								if (name.equals("module")) {
+									guard.module = (String) value;
+								} else if (name.equals("version")) {
+									guard.version = (Long) value;
+								}
+							}
+						};
+					}
+				};
+			}
+		}, false);
+		return res;
+	}
+
+	public void testVersions() throws IOException {
+		EAtom mod = EAtom.intern("inliner_test_module");
+		EBinary v1 = beam("otp_ring0");
+		EBinary v2 = beam("zlib");
+
+		assertFalse(Inliner.is_current(mod, v1.crc()));
+		Inliner.add(mod, v1);
+		assertTrue(Inliner.is_current(mod, v1.crc()));
+
+		Inliner.add(mod, v2);
+		assertFalse(Inliner.is_current(mod, v1.crc()));
+		assertTrue(Inliner.is_current(mod, v2.crc()));
+
+		Inliner.remove(mod);
+		assertFalse(Inliner.is_current(mod, v2.crc()));
+	}
+
+	public void testInlinedCallsAreGuarded() throws Exception {
+		add_preloaded();
+
+		List<Guard> guards = compile_guards("erl_prim_loader");
+		assertFalse(guards.isEmpty());
+
+		for (Guard guard : guards) {
+			EAtom callee = EAtom.intern(guard.module);
+			EBinary current = beam(guard.module);
+			assertEquals(current.crc(), guard.version);
+			assertTrue(Inliner.is_current(callee, guard.version));
+
+			// a reload of the callee with other code turns the guard off
+			Inliner.add(callee, beam("otp_ring0"));
+			assertFalse(Inliner.is_current(callee, guard.version));
+			Inliner.add(callee, current);
+		}
+	}
+
+	public void testNothingToInlineFrom() throws Exception {
+		add_preloaded();
+		for (File file : PRELOADED.listFiles()) {
+			String name = file.getName();
+			if (name.endsWith(".beam")) {
+				Inliner.remove(EAtom.intern(name.substring(0, name.length() - 5)));
+			}
+		}
+
+		assertTrue(compile_guards("erl_prim_loader").isEmpty());
+	}
+}
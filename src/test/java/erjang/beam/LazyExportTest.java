@@ -0,0 +1,88 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam;
+
+import java.lang.reflect.Field;
+
+import erjang.EAtom;
+import erjang.EFun;
+import erjang.EFunHandler;
+import erjang.EModuleManager;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.Export;
+import erjang.FunID;
+
+import junit.framework.TestCase;
+
+/**
+ * An export stub is the exported fun before and after its first call.
+ */
+public class LazyExportTest extends TestCase {
+
+	static final EAtom am_value = EAtom.intern("value");
+
+	/** how many times the real fun has been made */
+	static int made;
+
+	public static class LazyModule extends ECompiledModule {
+		@Export(module = "lazy_export_test", fun = "value", arity = 0)
+		static EFun value;
+
+		static EFun value$fun() {
+			made += 1;
+			return EFun.get_fun_with_handler(0, new EFunHandler() {
+				public EObject invoke(EProc proc, EObject[] args) {
+					return am_value;
+				}
+			}, LazyModule.class.getClassLoader());
+		}
+
+		public String module_name() {
+			return "lazy_export_test";
+		}
+	}
+
+	public void testStubStaysExported() throws Exception {
+		LazyModule module = new LazyModule();
+		Field field = LazyModule.class.getDeclaredField("value");
+		FunID fun = new FunID(field.getAnnotation(Export.class));
+
+		ECompiledModule.LazyExport lazy = new ECompiledModule.LazyExport(module, fun, field);
+		EModuleManager.add_export(module, fun, lazy.stub);
+		int made_before = made;
+
+		EFun before = EModuleManager.resolve(fun);
+		assertSame(lazy.stub, before);
+		assertEquals(made_before, made);
+
+		// what the first call does; calls through the stub need woven code
+		EFun real = lazy.resolve();
+		assertNotSame(before, real);
+		assertEquals(made_before + 1, made);
+
+		EFun after = EModuleManager.resolve(fun);
+		assertSame(before, after);
+		assertTrue(before.equals(after));
+		assertEquals(0, before.compareTo(after));
+
+		assertSame(real, lazy.resolve());
+		assertEquals(made_before + 1, made);
+	}
+}
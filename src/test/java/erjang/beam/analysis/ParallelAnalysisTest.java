@@ -0,0 +1,91 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.beam.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import erjang.beam.ClassRepo;
+import erjang.beam.Compiler;
+import erjang.beam.EUtil;
+import erjang.beam.loader.ErjangBeamDisLoader;
+
+import junit.framework.TestCase;
+
+/**
+ * Analyzing the functions of a module in parallel generates the same
+ * classes, byte for byte, as analyzing them one at a time.
+ */
+public class ParallelAnalysisTest extends TestCase {
+
+	static final File PRELOADED = new File("src/main/erl/preloaded/ebin");
+
+	static class Classes implements ClassRepo {
+		final Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+
+		@Override
+		public void store(String internal_name, byte[] data) throws IOException {
+			// the weaver's state classes come with whichever module
+			// needs them first, so only the module's own are compared
+			if (internal_name.startsWith("erjang/m/"))
+				classes.put(internal_name, data);
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+
+	static Map<String, byte[]> compile(File beam, int threads) throws IOException {
+		int saved = BeamTypeAnalysis.THREADS;
+		BeamTypeAnalysis.THREADS = threads;
+		try {
+			Classes out = new Classes();
+			Compiler.compile(new ErjangBeamDisLoader().load(
+					EUtil.readFile(beam).getByteArray()), out);
+			return out.classes;
+		} finally {
+			BeamTypeAnalysis.THREADS = saved;
+		}
+	}
+
+	public void testSameAsSingleThreaded() throws IOException {
+		int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+		int compared = 0;
+		for (File beam : PRELOADED.listFiles()) {
+			if (!beam.getName().endsWith(".beam"))
+				continue;
+
+			Map<String, byte[]> serial = compile(beam, 1);
+			Map<String, byte[]> parallel = compile(beam, threads);
+
+			assertEquals(beam.getName(), serial.keySet(), parallel.keySet());
+			for (String name : serial.keySet()) {
+				assertTrue(name + " differs",
+						Arrays.equals(serial.get(name), parallel.get(name)));
+				compared += 1;
+			}
+		}
+		assertTrue(compared > 0);
+	}
+}
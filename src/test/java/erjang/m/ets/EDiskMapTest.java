@@ -0,0 +1,202 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ErlangError;
+
+/**
+ * Tables on a file: reopening the file gives back what was in the
+ * table, and a log whose tail was cut off or garbled gives back the
+ * records before it.
+ */
+public class EDiskMapTest extends ETableTestCase {
+
+	File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = temp_file("recover");
+	}
+
+	EObject open(EObject... options) {
+		ESeq opts = l(options).cons(a("public")).cons(a("set"))
+			.cons(t(Native.am_storage, t(am_file, EString.fromString(file.getPath()))));
+		return new_table(opts);
+	}
+
+	/** the same random writes to both tables */
+	void work(EObject tab, EObject mirror, int n, int seed) {
+		Random r = new Random(seed);
+		for (int i = 0; i < n; i++) {
+			int k = r.nextInt(2000);
+			EObject obj = t(b(k), b(i % 10), EString.fromString("v" + i));
+			if (r.nextInt(3) == 0) {
+				Native.delete(proc, tab, b(k));
+				Native.delete(proc, mirror, b(k));
+			} else {
+				Native.insert(proc, tab, obj);
+				Native.insert(proc, mirror, obj);
+			}
+		}
+	}
+
+	void assert_same(String what, EObject expected, EObject tab) {
+		assertEquals(what, table(expected).size(), table(tab).size());
+		assertEquals(what, sorted(Native.select(proc, expected, ALL)),
+				sorted(Native.select(proc, tab, ALL)));
+	}
+
+	/** @return where the log ends: the segments after it are zero */
+	long log_end() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			int end = bytes.length;
+			while (end > 0 && bytes[end - 1] == 0) {
+				end--;
+			}
+			return end;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void testReopenRestores() {
+		EObject tab = open();
+		EObject mirror = new_set(am_heap);
+		work(tab, mirror, 20000, 1);
+
+		try {
+			open();
+			fail("the file is in use");
+		} catch (ErlangError e) {
+			// badarg
+		}
+
+		Native.delete(proc, tab);
+		assert_same("reopened", mirror, open());
+	}
+
+	public void testOverwritesSurviveCompaction() {
+		EObject tab = open();
+		EObject mirror = new_set(am_heap);
+		for (int i = 0; i < 200000; i++) {
+			EObject obj = t(b(i % 100), b(i), EString.fromString("overwritten"));
+			Native.insert(proc, tab, obj);
+			Native.insert(proc, mirror, obj);
+		}
+		assertFalse(new File(file.getPath() + ".compact").exists());
+
+		Native.delete(proc, tab);
+		assert_same("compacted", mirror, open());
+	}
+
+	public void testDeleteAllObjectsIsLogged() {
+		EObject tab = open();
+		work(tab, new_set(am_heap), 1000, 2);
+		Native.delete_all_objects(proc, tab);
+		Native.insert(proc, tab, t(a("only"), b(1)));
+
+		Native.delete(proc, tab);
+		assertEquals(l(t(a("only"), b(1))), Native.select(proc, open(), ALL));
+	}
+
+	public void testCutTail() throws IOException {
+		EObject tab = open();
+		EObject mirror = new_set(am_heap);
+		work(tab, mirror, 5000, 3);
+		Native.insert(proc, tab, t(a("last"), a("written")));
+		Native.delete(proc, tab);
+
+		// cut the last record short, as a crash in the middle of writing it would
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(log_end() - 3);
+		} finally {
+			raf.close();
+		}
+
+		tab = open();
+		assert_same("cut", mirror, tab);
+
+		// and the log goes on after what was recovered
+		Native.insert(proc, tab, t(a("after"), a("cut")));
+		Native.delete(proc, tab);
+		tab = open();
+		assertEquals(l(t(a("after"), a("cut"))), Native.lookup(proc, tab, a("after")));
+		assertEquals(table(mirror).size() + 1, table(tab).size());
+	}
+
+	public void testCorruptTail() throws IOException {
+		EObject tab = open();
+		EObject mirror = new_set(am_heap);
+		work(tab, mirror, 5000, 4);
+		Native.insert(proc, tab, t(a("last"), a("written")));
+		Native.delete(proc, tab);
+
+		// garble a byte of the last record, which its checksum catches
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long pos = log_end() - 3;
+			raf.seek(pos);
+			int old = raf.read();
+			raf.seek(pos);
+			raf.write(old ^ 0x55);
+		} finally {
+			raf.close();
+		}
+
+		tab = open();
+		assert_same("corrupt", mirror, tab);
+
+		Native.insert(proc, tab, t(a("after"), a("corrupt")));
+		Native.delete(proc, tab);
+		tab = open();
+		assertEquals(l(t(a("after"), a("corrupt"))), Native.lookup(proc, tab, a("after")));
+		assertEquals(ERT.NIL, Native.lookup(proc, tab, a("last")));
+	}
+
+	public void testIndexIsRebuilt() {
+		EObject index = t(Native.am_index, l(b(2)));
+		EObject tab = open(index);
+		EObject mirror = new_set(am_heap);
+		work(tab, mirror, 5000, 5);
+		Native.delete(proc, tab);
+
+		tab = open(index);
+		for (int v = 0; v < 10; v++) {
+			ESeq spec = l(t(t(a("_"), b(v), a("_")), ERT.NIL, l(a("$_"))));
+			EObject scans = Native.info(tab, Native.am_scans);
+			assertEquals(sorted(Native.select(proc, mirror, spec)),
+					sorted(Native.select(proc, tab, spec)));
+			assertEquals(scans, Native.info(tab, Native.am_scans));
+		}
+	}
+}
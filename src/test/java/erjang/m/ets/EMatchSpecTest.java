@@ -0,0 +1,145 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ETuple;
+
+/**
+ * Compiled match specs give what interpreting them gives.
+ */
+public class EMatchSpecTest extends ETableTestCase {
+
+	/** specs that compile */
+	static final ESeq[] SPECS = {
+		l(t(t(a("$1"), a("$2"), a("_"), a("_")), l(t(a("<"), a("$2"), b(1))), l(a("$1")))),
+		l(t(t(a("$1"), a("$2"), a("odd"), a("_")), ERT.NIL, l(a("$$")))),
+		l(t(t(a("$1"), a("$1"), a("_"), a("_")), ERT.NIL, l(a("$1")))),
+		l(t(t(a("_"), a("_"), a("_"), l(a("$3"), a("$3"))), ERT.NIL, l(a("$3")))),
+		l(t(t(a("$1"), a("$2"), a("$3"), a("_")),
+			l(t(a("andalso"), t(a("=:="), a("$3"), a("even")), t(a(">"), a("$1"), b(4)))),
+			l(t(t(a("$3"), t(a("+"), a("$1"), b(1))))))),
+		// a guard that fails with badarith is false
+		l(t(t(a("$1"), a("_"), a("$3"), a("_")),
+			l(t(a(">"), t(a("+"), a("$3"), b(1)), b(0))), l(a("$1")))),
+		// a body that fails gives 'EXIT'
+		l(t(t(a("$1"), a("_"), a("odd"), a("_")), ERT.NIL, l(t(a("+"), a("$1"), a("odd"))))),
+		l(t(t(a("$1"), a("_"), a("_"), a("$4")), l(t(a("is_list"), a("$4"))), l(t(a("hd"), a("$4"))))),
+		l(t(a("$1"), l(t(a("=="), t(a("element"), b(2), a("$1")), b(2))),
+			l(t(a("element"), b(1), a("$1"))))),
+		l(t(t(a("$1"), b(0), a("_"), a("_")), ERT.NIL, l(t(t(a("zero"), a("$1"))))),
+		  t(t(a("$1"), b(1), a("_"), a("_")), ERT.NIL, l(t(t(a("one"), a("$1")))))),
+		l(t(t(b(3), a("_"), a("_"), a("_")), ERT.NIL, l(t(a("const"), t(a("a"), a("b")))))),
+		l(t(t(b(3), a("_"), a("_"), a("_")), ERT.NIL, ERT.NIL)),
+		l(t(t(a("$1"), a("_"), a("_"), a("_")),
+			l(t(a("orelse"), t(a("=="), a("$1"), b(1)), t(a("=="), a("$1"), b(2)))), l(a("$_")))),
+		l(t(t(a("$1"), a("_"), a("_"), a("_")), l(t(a("not"), t(a("<"), a("$1"), b(8)))), l(a("$1")))),
+		l(t(t(ERT.box(3.0), a("_"), a("_"), a("_")), ERT.NIL, l(ERT.TRUE))),
+		l(t(a("_"), ERT.NIL, l(a("$_")))),
+	};
+
+	static List<ETuple> rows() {
+		List<ETuple> res = new ArrayList<ETuple>();
+		for (int i = 0; i < 10; i++) {
+			res.add(t(b(i), b(i % 3), a(i % 2 == 0 ? "even" : "odd"), l(b(i), b(i))));
+		}
+		res.add(t(b(100), b(100), a("x"), a("notalist")));
+		res.add(t(ERT.box(3.0), b(1), a("odd"), ERT.NIL));
+		res.add(t(EString.fromString("str"), b(2), a("even"), l(b(1), b(2))));
+		res.add(t(b(200), b(2)));
+		return res;
+	}
+
+	public void testCompiledIsInterpreted() {
+		for (ESeq spec : SPECS) {
+			EMatchSpec ms = EMatchSpec.compile(spec);
+			EMatchSpecCompiler.Compiled compiled = ms.compiled();
+			assertNotNull(spec.toString(), compiled);
+
+			for (ETuple row : rows()) {
+				assertEquals(spec + " on " + row, ms.interpret(row), compiled.run(row));
+			}
+		}
+	}
+
+	public void testNotCompilableIsInterpreted() {
+		// self() depends on who runs the spec
+		ESeq spec = l(t(t(b(3), a("_")), l(t(a("=:="), t(a("self")), b(1))), l(ERT.TRUE)));
+		EMatchSpec ms = EMatchSpec.compile(spec);
+		assertNull(ms.compiled());
+		assertNull(ms.run(t(b(3), b(4))));
+	}
+
+	public void testCompilingInParallel() throws Exception {
+		// one shape, with other constants each time, so the threads
+		// share the class and race to put it in the cache
+		in_parallel(4, new Work() {
+			public void run(int id) {
+				for (int i = 0; i < 400; i++) {
+					int n = (i * 7 + id) % 300;
+					ESeq spec = l(t(t(a("$1"), b(n), a("_")),
+							l(t(a(">"), a("$1"), b(n % 5))), l(t(t(a("$1"), b(n))))));
+					EMatchSpec ms = EMatchSpec.compile(spec);
+					EMatchSpecCompiler.Compiled compiled = ms.compiled();
+					ETuple row = t(b(10), b(n), l(b(n)));
+					assertEquals(t(b(10), b(n)), compiled.run(row));
+					assertNull(compiled.run(t(b(0), b(n), ERT.NIL)));
+				}
+			}
+		});
+	}
+
+	public void testSelectIsTheSameOnceCompiled() {
+		List<ETuple> rows = rows();
+		EObject tab = new_table(l(a("set"), a("public")));
+		for (ETuple row : rows) {
+			Native.insert(proc, tab, row);
+		}
+
+		for (ESeq spec : SPECS) {
+			EMatchSpec ms = EMatchSpec.compile(spec);
+			if (ms.getTupleKey(1) != null) {
+				// a bound key is looked up exactly, where patterns
+				// compare with ==, so 3 does not find 3.0
+				continue;
+			}
+
+			List<String> interpreted = new ArrayList<String>();
+			for (ETuple row : rows) {
+				EObject val = ms.interpret(row);
+				if (val != null) {
+					interpreted.add(val.toString());
+				}
+			}
+			Collections.sort(interpreted);
+
+			// enough runs that the table's spec gets compiled
+			for (int i = 0; i < 3; i++) {
+				assertEquals(spec.toString(), interpreted, sorted(Native.select(proc, tab, spec)));
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import erjang.EBinary;
+import erjang.EFun;
+import erjang.EFunHandler;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.EString;
+import erjang.ETuple;
+import erjang.ErlangError;
+
+/**
+ * Objects kept off the heap: they read back as they were written, and
+ * the space of the ones overwritten or deleted is reclaimed.
+ */
+public class EOffHeapMapTest extends ETableTestCase {
+
+	static ETuple row(int key, int value) {
+		return t(b(key), b(value), EString.fromString("value " + value));
+	}
+
+	public void testReadsBackAllKindsOfTerms() {
+		EObject[] terms = { a("x"), ERT.box(3.5), new EBinary(new byte[] { 1, 2, 3 }),
+				EString.fromString("str"), l(b(1), a("y")), ERT.NIL, t(),
+				ERT.box(new BigInteger("123456789012345678901234567890")) };
+
+		EOffHeapMap map = new EOffHeapMap();
+		for (int i = 0; i < terms.length; i++) {
+			map.put(terms[i], t(terms[i], b(i)));
+		}
+		map.put(b(-1), t(b(-1), proc.self_handle()));
+
+		assertEquals(terms.length + 1, map.size());
+		for (int i = 0; i < terms.length; i++) {
+			assertEquals(t(terms[i], b(i)), map.get(terms[i]));
+		}
+		assertSame(proc.self_handle(), map.get(b(-1)).elm(2));
+	}
+
+	public void testFunsAreBadarg() {
+		EFun fun = EFun.get_fun_with_handler(1, new EFunHandler() {
+			public EObject invoke(EProc proc, EObject[] args) {
+				return args[0];
+			}
+		}, getClass().getClassLoader());
+
+		for (EObject tab : new EObject[] { new_set(am_off_heap), new_set(am_striped) }) {
+			Native.insert(proc, tab, t(a("k"), b(1)));
+			try {
+				Native.insert(proc, tab, t(a("k"), fun));
+				fail();
+			} catch (ErlangError e) {
+				// badarg
+			}
+			assertEquals(l(t(a("k"), b(1))), Native.lookup(proc, tab, a("k")));
+		}
+	}
+
+	public void testFirstSegmentIsSmall() {
+		EOffHeapMap map = new EOffHeapMap();
+		map.put(b(1), row(1, 1));
+		assertTrue(map.memory() <= 2 * EOffHeapMap.FIRST_SEGMENT_SIZE);
+	}
+
+	public void testOverwritesAreCompacted() {
+		EOffHeapMap map = new EOffHeapMap();
+		for (int k = 0; k < 20000; k++) {
+			map.put(b(k), row(k, 0));
+		}
+		long full = map.memory();
+
+		// ten times the table in garbage, were it not reclaimed
+		for (int round = 1; round <= 10; round++) {
+			for (int k = 0; k < 20000; k++) {
+				map.put(b(k), row(k, round));
+			}
+		}
+		assertTrue(map.memory() + " " + full, map.memory() < 4 * full);
+
+		for (int k = 0; k < 20000; k++) {
+			assertEquals(row(k, 10), map.get(b(k)));
+		}
+	}
+
+	public void testDeletesAreCompacted() {
+		EOffHeapMap map = new EOffHeapMap();
+		for (int k = 0; k < 50000; k++) {
+			map.put(b(k), row(k, k));
+		}
+		long full = map.memory();
+
+		for (int k = 0; k < 50000; k++) {
+			if (k % 10 != 0) {
+				map.remove(b(k));
+			}
+		}
+		assertTrue(map.memory() + " " + full, map.memory() < full);
+
+		assertEquals(5000, map.size());
+		for (int k = 0; k < 50000; k += 10) {
+			assertEquals(row(k, k), map.get(b(k)));
+		}
+	}
+
+	public void testSameAsOnTheHeap() {
+		for (EObject tab : new EObject[] { new_set(am_off_heap), new_set(am_striped) }) {
+			EObject heap = new_set(am_heap);
+			Random r = new Random(2);
+			for (int i = 0; i < 50000; i++) {
+				int k = r.nextInt(5000);
+				ETuple obj = t(b(k), b(i), a("g" + r.nextInt(20)));
+				switch (r.nextInt(4)) {
+				case 0:
+				case 1:
+					Native.insert(proc, tab, obj);
+					Native.insert(proc, heap, obj);
+					break;
+				case 2:
+					Native.delete(proc, tab, b(k));
+					Native.delete(proc, heap, b(k));
+					break;
+				default:
+					assertEquals(Native.insert_new(proc, heap, obj),
+							Native.insert_new(proc, tab, obj));
+				}
+			}
+
+			assertEquals(table(heap).size(), table(tab).size());
+			assertEquals(sorted(Native.select(proc, heap, ALL)),
+					sorted(Native.select(proc, tab, ALL)));
+			for (int k = 0; k < 5000; k += 7) {
+				assertEquals(Native.lookup(proc, heap, b(k)), Native.lookup(proc, tab, b(k)));
+			}
+
+			Native.delete_all_objects(proc, tab);
+			assertEquals(0, table(tab).size());
+			assertEquals(ERT.NIL, Native.select(proc, tab, ALL));
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ETuple2;
+import erjang.ErlangError;
+
+/**
+ * select/3, match/3 and match_object/3 in chunks, and going on with
+ * their continuations.
+ */
+public class ESelectContinuationTest extends ETableTestCase {
+
+	static final EObject END = Native.am_$end_of_table;
+
+	static final ESeq KEYS = l(t(t(a("$1"), a("_")), ERT.NIL, l(a("$1"))));
+
+	/** fill with keys 0..999, and for bags ten of them twice */
+	void fill(EObject tab, boolean bag) {
+		for (int i = 0; i < 1000; i++) {
+			Native.insert(proc, tab, t(b(i), b(i % 7)));
+		}
+		if (bag) {
+			for (int i = 0; i < 10; i++) {
+				Native.insert(proc, tab, t(b(i), b(99)));
+			}
+		}
+	}
+
+	/** @return all the chunks of a select with <code>limit</code>, until '$end_of_table' */
+	List<ESeq> chunks(EObject tab, ESeq spec, int limit) {
+		List<ESeq> res = new ArrayList<ESeq>();
+		EObject r = Native.select(proc, tab, spec, b(limit));
+		while (r != END) {
+			ETuple2 chunk = (ETuple2) r;
+			ESeq objs = (ESeq) chunk.elem1;
+			assertTrue(objs.length() <= limit);
+			res.add(objs);
+			r = Native.select(proc, chunk.elem2);
+		}
+		return res;
+	}
+
+	static List<Integer> ints(List<ESeq> chunks) {
+		List<Integer> res = new ArrayList<Integer>();
+		for (ESeq chunk : chunks) {
+			for (ESeq s = chunk; !s.isNil(); s = s.tail()) {
+				res.add(((ESmall) s.head()).value);
+			}
+		}
+		return res;
+	}
+
+	void check_chunks(String what, EObject tab, int expected, boolean ordered) {
+		List<Integer> all = ints(chunks(tab, KEYS, 100));
+		assertEquals(what, expected, all.size());
+
+		List<Integer> sorted = new ArrayList<Integer>(all);
+		Collections.sort(sorted);
+		if (ordered) {
+			assertEquals(what, sorted, all);
+		}
+
+		// and the same as in one go
+		List<Integer> whole = ints(Collections.singletonList((ESeq) Native.select(proc, tab, KEYS)));
+		Collections.sort(whole);
+		assertEquals(what, whole, sorted);
+	}
+
+	public void testChunksCoverTheTable() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+			fill(tab, false);
+			check_chunks(storage.toString(), tab, 1000, false);
+		}
+
+		EObject tab = new_table(l(a("ordered_set"), a("public")));
+		fill(tab, false);
+		check_chunks("ordered_set", tab, 1000, true);
+
+		for (String type : new String[] { "bag", "duplicate_bag" }) {
+			tab = new_table(l(a(type), a("public")));
+			fill(tab, true);
+			check_chunks(type, tab, 1010, false);
+		}
+	}
+
+	public void testContinuationMayBeUsedAgain() {
+		for (String type : new String[] { "set", "ordered_set", "bag" }) {
+			EObject tab = new_table(l(a(type), a("public")));
+			fill(tab, type.equals("bag"));
+
+			ETuple2 first = (ETuple2) Native.select(proc, tab, KEYS, b(100));
+			EObject second = ((ETuple2) Native.select(proc, first.elem2)).elem1;
+			EObject again = ((ETuple2) Native.select(proc, first.elem2)).elem1;
+			assertEquals(type, second, again);
+		}
+	}
+
+	public void testMatchInChunks() {
+		for (String type : new String[] { "set", "ordered_set", "bag" }) {
+			EObject tab = new_table(l(a(type), a("public")));
+			fill(tab, type.equals("bag"));
+
+			int n = 0;
+			EObject r = Native.match(proc, tab, t(a("$1"), b(3)), b(5));
+			while (r != END) {
+				ETuple2 chunk = (ETuple2) r;
+				for (ESeq s = (ESeq) chunk.elem1; !s.isNil(); s = s.tail()) {
+					ESeq bindings = (ESeq) s.head();
+					assertEquals(3, ((ESmall) bindings.head()).value % 7);
+					n++;
+				}
+				r = Native.match(proc, chunk.elem2);
+			}
+			assertEquals(type, 143, n);
+
+			ETuple2 objs = (ETuple2) Native.match_object(proc, tab, t(a("_"), b(3)), b(2));
+			assertEquals(type, 2, ((ESeq) objs.elem1).length());
+		}
+	}
+
+	public void testBoundKeyAndNoMatch() {
+		EObject tab = new_table(l(a("set"), a("public")));
+		fill(tab, false);
+
+		ETuple2 one = (ETuple2) Native.select(proc, tab,
+				l(t(t(b(5), a("$2")), ERT.NIL, l(a("$2")))), b(1));
+		assertEquals(l(b(5)), one.elem1);
+		assertEquals(END, Native.select(proc, one.elem2));
+
+		assertEquals(END, Native.select(proc, tab,
+				l(t(t(a("_"), b(42)), ERT.NIL, l(a("$_")))), b(10)));
+		assertEquals(END, Native.select(proc, END));
+	}
+
+	public void testBadLimit() {
+		EObject tab = new_table(l(a("set"), a("public")));
+		try {
+			Native.select(proc, tab, KEYS, b(0));
+			fail();
+		} catch (ErlangError e) {
+			// badarg
+		}
+	}
+}
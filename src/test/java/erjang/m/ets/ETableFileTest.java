@@ -0,0 +1,241 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Random;
+
+import erjang.EBinary;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ETuple;
+import erjang.ETuple2;
+
+/**
+ * tab2file and file2tab: a table read back is the table written, and a
+ * file that is not one, or not all of one, is an error.
+ */
+public class ETableFileTest extends ETableTestCase {
+
+	File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = temp_file("tab2file");
+	}
+
+	static EObject name(File f) {
+		return EString.fromString(f.getPath());
+	}
+
+	/** the tables to write: each type, off the heap and indexed, keyed on the second element */
+	static ESeq[] KINDS = {
+		l(a("set")),
+		l(a("ordered_set")),
+		l(a("bag")),
+		l(a("duplicate_bag")),
+		l(a("set"), t(Native.am_storage, Native.am_off_heap)),
+		l(a("set"), t(Native.am_index, l(b(3)))),
+	};
+
+	EObject fill(ESeq kind, int n) {
+		EObject tab = new_table(kind.cons(a("public")).cons(t(Native.am_keypos, b(2))));
+		EObject[] terms = { a("x"), ERT.box(3.5), new EBinary(new byte[] { 1, 2, 3 }),
+				EString.fromString("str"), l(b(1), a("y")), proc.self_handle(),
+				ERT.box(new BigInteger("123456789012345678901234567890")) };
+		Random r = new Random(4);
+		for (int i = 0; i < n; i++) {
+			Native.insert(proc, tab, t(terms[r.nextInt(terms.length)], b(r.nextInt(n)),
+					a("g" + r.nextInt(10)), EString.fromString("row " + i)));
+		}
+		return tab;
+	}
+
+	/** @return the table file2tab made of <code>f</code> */
+	EObject load(File f, EObject... options) {
+		EObject res = Native.file2tab(proc, name(f), l(options));
+		assertEquals(res.toString(), ERT.am_ok, ((ETuple) res).elm(1));
+		return keep(((ETuple2) res).elem2);
+	}
+
+	EObject info(EObject tab, String item) {
+		return Native.info(tab, a(item));
+	}
+
+	public void testRoundTrip() {
+		for (ESeq kind : KINDS) {
+			EObject tab = fill(kind, 20000);
+			assertEquals(ERT.am_ok, Native.tab2file(proc, tab, name(file)));
+
+			EObject copy = load(file, t(Native.am_verify, ERT.TRUE));
+			assertEquals(kind.toString(), sorted(Native.select(proc, tab, ALL)),
+					sorted(Native.select(proc, copy, ALL)));
+			for (String item : new String[] { "type", "keypos", "protection", "size", "name" }) {
+				assertEquals(kind + " " + item, info(tab, item), info(copy, item));
+			}
+		}
+	}
+
+	public void testIndexIsKept() {
+		EObject tab = fill(KINDS[5], 1000);
+		Native.tab2file(proc, tab, name(file));
+
+		EObject copy = load(file);
+		ESeq spec = l(t(t(a("_"), a("_"), a("g3"), a("_")), ERT.NIL, l(a("$_"))));
+		EObject scans = info(copy, "scans");
+		assertEquals(sorted(Native.select(proc, tab, spec)), sorted(Native.select(proc, copy, spec)));
+		assertEquals(scans, info(copy, "scans"));
+	}
+
+	public void testNamedTable() {
+		EObject tab = new_table(l(a("set"), a("public"), a("named_table")));
+		Native.insert(proc, tab, t(a("k"), b(1)));
+		Native.tab2file(proc, tab, name(file));
+
+		// the name is taken while the table is there
+		assertEquals(t(ERT.am_error, a("cannot_create_table")),
+				Native.file2tab(proc, name(file)));
+
+		Native.delete(proc, tab);
+		assertEquals(a("test"), load(file));
+		assertEquals(l(t(a("k"), b(1))), Native.lookup(proc, a("test"), a("k")));
+	}
+
+	public void testMissingFile() {
+		assertEquals(t(ERT.am_error, t(a("file_error"), name(file), a("enoent"))),
+				Native.file2tab(proc, name(file)));
+
+		File dir = new File(file.getPath() + ".nodir", "tab");
+		assertEquals(t(ERT.am_error, t(a("file_error"), name(dir), a("enoent"))),
+				Native.tab2file(proc, new_set(am_heap), name(dir)));
+	}
+
+	public void testNotATableFile() throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("hello world, not a table".getBytes());
+		} finally {
+			out.close();
+		}
+		assertEquals(t(ERT.am_error, a("badfile")), Native.file2tab(proc, name(file)));
+	}
+
+	public void testCutShort() throws IOException {
+		EObject tab = new_table(l(a("set"), a("public"), a("named_table")));
+		for (int i = 0; i < 20000; i++) {
+			Native.insert(proc, tab, t(b(i), EString.fromString("row " + i)));
+		}
+		Native.tab2file(proc, tab, name(file));
+		Native.delete(proc, tab);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() / 2);
+		} finally {
+			raf.close();
+		}
+		assertEquals(t(ERT.am_error, a("badfile")), Native.file2tab(proc, name(file)));
+
+		// and the table half read is gone again
+		assertEquals(ERT.am_undefined, Native.info(a("test")));
+	}
+
+	public void testObjectsBiggerThanABlock() {
+		EObject tab = new_table(l(a("set"), a("public")));
+		Random r = new Random(7);
+		for (int size : new int[] { 10, 70000, 300000, 20 }) {
+			byte[] data = new byte[size];
+			r.nextBytes(data);
+			Native.insert(proc, tab, t(b(size), new EBinary(data)));
+		}
+		Native.tab2file(proc, tab, name(file));
+
+		EObject copy = load(file, t(Native.am_verify, ERT.TRUE));
+		assertEquals(sorted(Native.select(proc, tab, ALL)), sorted(Native.select(proc, copy, ALL)));
+	}
+
+	public void testBadBlockLengths() throws IOException {
+		EObject tab = fill(KINDS[0], 100);
+		Native.tab2file(proc, tab, name(file));
+
+		// the first block follows the magic, the header length and the header
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long block;
+		byte[] good;
+		try {
+			raf.seek(8);
+			block = 12 + raf.readInt();
+			good = new byte[8];
+			raf.seek(block);
+			raf.readFully(good);
+		} finally {
+			raf.close();
+		}
+
+		int[][] bad = { { Integer.MAX_VALUE, 100 }, { -5, 100 },
+				{ 1000, Integer.MAX_VALUE }, { 1000, -1 } };
+		for (int[] lengths : bad) {
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(block);
+				raf.writeInt(lengths[0]);
+				raf.writeInt(lengths[1]);
+			} finally {
+				raf.close();
+			}
+			assertEquals(t(ERT.am_error, a("badfile")), Native.file2tab(proc, name(file)));
+		}
+
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(block);
+			raf.write(good);
+		} finally {
+			raf.close();
+		}
+		load(file);
+	}
+
+	public void testVerifyChecksTheCount() throws IOException {
+		EObject tab = fill(KINDS[0], 100);
+		Native.tab2file(proc, tab, name(file));
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 8);
+			long count = raf.readLong();
+			raf.seek(raf.length() - 8);
+			raf.writeLong(count + 1);
+		} finally {
+			raf.close();
+		}
+
+		// which only verifying looks at
+		load(file);
+		assertEquals(t(ERT.am_error, a("badfile")),
+				Native.file2tab(proc, name(file), l(t(Native.am_verify, ERT.TRUE))));
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import erjang.EAtom;
+import erjang.EInteger;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ETuple2;
+import erjang.ErlangError;
+
+/**
+ * Selects that bind an indexed position find, through the index, what
+ * a scan of the whole table finds; however the table was written to.
+ */
+public class ETableIndexTest extends ETableTestCase {
+
+	static final EObject INDEX = t(Native.am_index, l(b(2)));
+
+	/** the indexed tables: sets in each storage, and an ordered_set */
+	List<EObject> indexed_tables() {
+		List<EObject> res = new ArrayList<EObject>();
+		for (EAtom storage : STORAGES) {
+			res.add(new_set(storage, INDEX));
+		}
+		res.add(new_table(l(a("ordered_set"), a("public"), INDEX)));
+		res.add(new_table(l(a("set"), a("public"), INDEX,
+				t(Native.am_write_concurrency, ERT.TRUE))));
+		return res;
+	}
+
+	/** objects whose second element is <code>value</code>, through the index */
+	List<String> by_index(EObject tab, int value) {
+		return sorted(Native.select(proc, tab,
+				l(t(t(a("_"), b(value)), ERT.NIL, l(a("$_"))))));
+	}
+
+	/** the same, by a guard, which scans */
+	List<String> by_scan(EObject tab, int value) {
+		return sorted(Native.select(proc, tab,
+				l(t(t(a("_"), a("$1")), l(t(a("=:="), a("$1"), b(value))), l(a("$_"))))));
+	}
+
+	long scans(EObject tab) {
+		return ((EInteger) Native.info(tab, Native.am_scans)).longValue();
+	}
+
+	void check(String what, EObject tab) {
+		for (int v = 0; v < 10; v++) {
+			long before = scans(tab);
+			List<String> indexed = by_index(tab, v);
+			assertEquals(what, before, scans(tab));
+			assertEquals(what + " " + v, by_scan(tab, v), indexed);
+		}
+	}
+
+	public void testWritesKeepTheIndex() {
+		for (EObject tab : indexed_tables()) {
+			for (int k = 0; k < 100; k++) {
+				Native.insert(proc, tab, t(b(k), b(k % 10)));
+			}
+			check("insert", tab);
+
+			// move objects to other values
+			for (int k = 0; k < 100; k += 3) {
+				Native.insert(proc, tab, t(b(k), b((k + 1) % 10)));
+			}
+			check("overwrite", tab);
+
+			for (int k = 0; k < 100; k += 5) {
+				Native.delete(proc, tab, b(k));
+			}
+			check("delete", tab);
+
+			Native.update_counter(proc, tab, b(1), t(b(2), b(1)));
+			check("update_counter", tab);
+
+			Native.select_delete(proc, tab,
+					l(t(t(a("_"), b(4)), ERT.NIL, l(ERT.TRUE))));
+			assertEquals(0, by_index(tab, 4).size());
+			check("select_delete", tab);
+
+			Native.delete_all_objects(proc, tab);
+			for (int v = 0; v < 10; v++) {
+				assertEquals(0, by_index(tab, v).size());
+			}
+		}
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		for (final EObject tab : indexed_tables()) {
+			in_parallel(4, new Work() {
+				public void run(int id) {
+					Random r = new Random(id);
+					for (int j = 0; j < 5000; j++) {
+						int k = r.nextInt(200);
+						if (r.nextInt(5) == 0) {
+							Native.delete(proc, tab, b(k));
+						} else {
+							Native.insert(proc, tab, t(b(k), b(r.nextInt(10))));
+						}
+					}
+				}
+			});
+
+			check("concurrent", tab);
+			int total = 0;
+			for (int v = 0; v < 10; v++) {
+				total += by_index(tab, v).size();
+			}
+			assertEquals(table(tab).size(), total);
+		}
+	}
+
+	public void testChunksThroughTheIndex() {
+		for (EObject tab : indexed_tables()) {
+			for (int k = 0; k < 1000; k++) {
+				Native.insert(proc, tab, t(b(k), b(k % 10)));
+			}
+
+			List<String> found = new ArrayList<String>();
+			EObject r = Native.select(proc, tab,
+					l(t(t(a("$1"), b(3)), ERT.NIL, l(a("$_")))), b(7));
+			while (r != Native.am_$end_of_table) {
+				ETuple2 chunk = (ETuple2) r;
+				assertTrue(((ESeq) chunk.elem1).length() <= 7);
+				found.addAll(sorted(chunk.elem1));
+				r = Native.select(proc, chunk.elem2);
+			}
+			Collections.sort(found);
+			assertEquals(by_scan(tab, 3), found);
+		}
+	}
+
+	public void testOnlyOtherPositions() {
+		try {
+			new_table(l(a("set"), t(Native.am_index, l(b(1)))));
+			fail("the key");
+		} catch (ErlangError e) {
+			// badarg
+		}
+		try {
+			new_table(l(a("bag"), INDEX));
+			fail("a bag");
+		} catch (ErlangError e) {
+			// badarg
+		}
+	}
+}
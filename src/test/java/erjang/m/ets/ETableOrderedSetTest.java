@@ -0,0 +1,140 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ErlangError;
+
+/**
+ * Walking tables with first/next and last/prev: in term order for
+ * ordered_set, and once over every key for the others.
+ */
+public class ETableOrderedSetTest extends ETableTestCase {
+
+	static final EObject END = Native.am_$end_of_table;
+
+	public void testTermOrder() {
+		EObject tab = new_table(l(a("ordered_set"), a("public")));
+		EObject[] keys = { b(1), ERT.box(2.5), b(3), a("a"), a("b"),
+				t(b(1)), t(b(1), b(2)), t(b(2), b(0)), ERT.NIL, l(b(1)) };
+		for (int i = keys.length - 1; i >= 0; i--) {
+			Native.insert(proc, tab, t(keys[i], b(i)));
+		}
+
+		EObject key = Native.first(proc, tab);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(keys[i], key);
+			key = Native.next(proc, tab, key);
+		}
+		assertEquals(END, key);
+
+		key = Native.last(proc, tab);
+		for (int i = keys.length - 1; i >= 0; i--) {
+			assertEquals(keys[i], key);
+			key = Native.prev(proc, tab, key);
+		}
+		assertEquals(END, key);
+	}
+
+	public void testNextOfMissingKey() {
+		EObject tab = new_table(l(a("ordered_set"), a("public")));
+		for (int i = 0; i < 10; i += 2) {
+			Native.insert(proc, tab, t(b(i)));
+		}
+		assertEquals(b(4), Native.next(proc, tab, b(3)));
+		assertEquals(b(2), Native.prev(proc, tab, b(3)));
+		assertEquals(END, Native.next(proc, tab, b(8)));
+		assertEquals(END, Native.prev(proc, tab, b(0)));
+	}
+
+	public void testSelectInOrder() {
+		EObject tab = new_table(l(a("ordered_set"), a("public")));
+		for (int d = 9; d >= 0; d--) {
+			for (int s = 0; s < 10; s++) {
+				Native.insert(proc, tab, t(t(b(d), b(s)), b(d * 10 + s)));
+			}
+		}
+
+		// a range of keys with the same first element
+		ESeq res = (ESeq) Native.select(proc, tab,
+				l(t(t(t(b(5), a("$1")), a("$2")), l(t(a("<"), a("$1"), b(3))), l(a("$2")))));
+		assertEquals(l(b(50), b(51), b(52)), res);
+
+		res = (ESeq) Native.select(proc, tab, l(t(t(a("_"), a("$1")), ERT.NIL, l(a("$1")))));
+		int prev = -1;
+		for (; !res.isNil(); res = res.tail()) {
+			int value = ((ESmall) res.head()).value;
+			assertTrue(value > prev);
+			prev = value;
+		}
+		assertEquals(99, prev);
+
+		Native.select_delete(proc, tab,
+				l(t(t(t(b(5), a("_")), a("_")), ERT.NIL, l(ERT.TRUE))));
+		assertEquals(90, table(tab).size());
+		assertEquals(t(b(6), b(0)), Native.next(proc, tab, t(b(4), b(9))));
+	}
+
+	public void testWalkEachStorage() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+			for (int i = 0; i < 1000; i++) {
+				Native.insert(proc, tab, t(b(i)));
+			}
+
+			// two walks at once, one of which deletes as it goes
+			Set<EObject> seen = new HashSet<EObject>();
+			Set<EObject> deleted = new HashSet<EObject>();
+			EObject key = Native.first(proc, tab);
+			EObject other = Native.first(proc, tab);
+			while (key != END) {
+				assertTrue(storage + " twice " + key, seen.add(key));
+				if (other != END) {
+					deleted.add(other);
+					EObject next = Native.next(proc, tab, other);
+					Native.delete(proc, tab, other);
+					other = next;
+				}
+				key = Native.next(proc, tab, key);
+			}
+			assertEquals(storage.toString(), 1000, seen.size());
+			assertEquals(1000 - deleted.size(), table(tab).size());
+		}
+	}
+
+	public void testNextOfKeyNotThere() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+			Native.insert(proc, tab, t(b(1)));
+			try {
+				Native.next(proc, tab, b(9));
+				fail(storage.toString());
+			} catch (ErlangError e) {
+				// badarg
+			}
+		}
+	}
+}
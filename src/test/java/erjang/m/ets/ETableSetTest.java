@@ -0,0 +1,151 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ETuple;
+
+/**
+ * Set tables, in each storage and with each way of locking.
+ */
+public class ETableSetTest extends ETableTestCase {
+
+	/** the options that choose how writers lock */
+	static final ESeq[] LOCK_MODES = {
+		ERT.NIL,
+		l(t(Native.am_write_concurrency, ERT.TRUE)),
+		l(t(Native.am_write_concurrency, ERT.TRUE),
+		  t(Native.am_decentralized_counters, ERT.TRUE)),
+		l(t(Native.am_read_concurrency, ERT.TRUE)),
+		l(t(Native.am_write_concurrency, ERT.TRUE),
+		  t(Native.am_index, l(b(3)))),
+	};
+
+	public void testInsertLookupDelete() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+
+			Native.insert(proc, tab, t(a("k"), b(1)));
+			Native.insert(proc, tab, l(t(a("k"), b(2)), t(a("j"), b(3))));
+			assertEquals(storage.toString(), l(t(a("k"), b(2))), Native.lookup(proc, tab, a("k")));
+			assertEquals(2, table(tab).size());
+
+			Native.delete(proc, tab, a("k"));
+			assertEquals(ERT.NIL, Native.lookup(proc, tab, a("k")));
+			assertEquals(l(t(a("j"), b(3))), Native.select(proc, tab, ALL));
+		}
+	}
+
+	public void testConcurrentWriters() throws Exception {
+		for (EAtom storage : STORAGES) {
+			for (ESeq mode : LOCK_MODES) {
+				if (storage == am_striped && mode.isNil())
+					continue;
+
+				final EObject tab = new_set(storage, mode.toArray());
+				in_parallel(4, new Work() {
+					public void run(int id) {
+						for (int i = 0; i < 2000; i++) {
+							EObject key = b(id * 2000 + i);
+							Native.insert(proc, tab, t(key, b(i), b(i % 10)));
+							if (i % 2 == 1) {
+								Native.delete(proc, tab, key);
+							}
+						}
+					}
+				});
+
+				String what = storage + " " + mode;
+				assertEquals(what, 4000, table(tab).size());
+				for (int id = 0; id < 4; id++) {
+					assertEquals(what, l(t(b(id * 2000 + 10), b(10), b(0))),
+							Native.lookup(proc, tab, b(id * 2000 + 10)));
+				}
+			}
+		}
+	}
+
+	public void testInsertNewIsAllOrNothing() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+			Native.insert(proc, tab, t(b(2), a("old")));
+
+			assertEquals(ERT.FALSE, Native.insert_new(proc, tab,
+					l(t(b(1), a("new")), t(b(2), a("new")), t(b(3), a("new")))));
+			assertEquals(1, table(tab).size());
+			assertEquals(l(t(b(2), a("old"))), Native.lookup(proc, tab, b(2)));
+
+			assertEquals(ERT.TRUE, Native.insert_new(proc, tab,
+					l(t(b(1), a("new")), t(b(3), a("new")))));
+			assertEquals(3, table(tab).size());
+		}
+	}
+
+	public void testRacingInsertNew() throws Exception {
+		for (EAtom storage : STORAGES) {
+			for (ESeq mode : LOCK_MODES) {
+				if (storage == am_striped && mode.isNil())
+					continue;
+
+				final EObject tab = new_set(storage, mode.toArray());
+				in_parallel(2, new Work() {
+					public void run(int id) {
+						for (int round = 0; round < 200; round++) {
+							ESeq objs = ERT.NIL;
+							for (int i = 0; i < 10; i++) {
+								// the two threads list the keys in opposite orders
+								int key = round * 10 + (id == 0 ? i : 9 - i);
+								objs = objs.cons(t(b(key), b(id)));
+							}
+							Native.insert_new(proc, tab, objs);
+						}
+					}
+				});
+
+				// each round's objects all come from the same thread
+				for (int round = 0; round < 200; round++) {
+					EObject winner = null;
+					for (int i = 0; i < 10; i++) {
+						ETuple obj = (ETuple) ((ESeq) Native.lookup(proc, tab, b(round * 10 + i))).head();
+						if (winner == null) {
+							winner = obj.elm(2);
+						}
+						assertEquals(storage + " " + mode, winner, obj.elm(2));
+					}
+				}
+			}
+		}
+	}
+
+	public void testBagInsertNew() {
+		EObject tab = new_table(l(a("bag"), a("public")));
+		Native.insert(proc, tab, t(b(2), a("old")));
+
+		assertEquals(ERT.FALSE, Native.insert_new(proc, tab,
+				l(t(b(1), a("new")), t(b(2), a("new")))));
+		assertEquals(ERT.NIL, Native.lookup(proc, tab, b(1)));
+
+		assertEquals(ERT.TRUE, Native.insert_new(proc, tab,
+				l(t(b(1), a("new")), t(b(1), a("newer")))));
+		assertEquals(2, ((ESeq) Native.lookup(proc, tab, b(1))).length());
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import erjang.EAtom;
+import erjang.EBinary;
+import erjang.EInteger;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ETuple;
+import erjang.ETuple2;
+import erjang.ErlangError;
+
+/**
+ * What info/1,2 tell of a table: its counters, and about the memory
+ * its objects take.
+ */
+public class ETableStatsTest extends ETableTestCase {
+
+	long count(EObject tab, EAtom item) {
+		return ((EInteger) Native.info(tab, item)).longValue();
+	}
+
+	public void testCounters() {
+		for (EAtom storage : STORAGES) {
+			EObject tab = new_set(storage);
+			for (int i = 0; i < 100; i++) {
+				Native.insert(proc, tab, t(b(i), a("v")));
+			}
+			Native.insert_new(proc, tab, t(b(1000), a("v")));
+			Native.update_counter(proc, tab, b(2000), b(1), t(b(2000), b(0)));
+			for (int i = 0; i < 30; i++) {
+				Native.lookup(proc, tab, b(i));
+			}
+			for (int i = 0; i < 10; i++) {
+				Native.delete(proc, tab, b(i));
+			}
+			Native.select_delete(proc, tab, l(t(t(b(50), a("_")), ERT.NIL, l(ERT.TRUE))));
+
+			String what = storage.toString();
+			assertEquals(what, 102, count(tab, Native.am_inserts));
+			assertEquals(what, 30, count(tab, Native.am_lookups));
+			assertEquals(what, 11, count(tab, Native.am_deletes));
+			assertEquals(what, 0, count(tab, Native.am_scans));
+			assertEquals(what, 0, count(tab, Native.am_contention));
+
+			// only what binds no key walks the table
+			Native.select(proc, tab, l(t(t(b(5), a("_")), ERT.NIL, l(a("$_")))));
+			assertEquals(what, 0, count(tab, Native.am_scans));
+			Native.select(proc, tab, ALL);
+			Native.match_object(proc, tab, t(a("_"), a("v")));
+			assertEquals(what, 2, count(tab, Native.am_scans));
+
+			Native.delete_all_objects(proc, tab);
+			assertEquals(what, 12, count(tab, Native.am_deletes));
+		}
+	}
+
+	public void testContention() throws Exception {
+		final EObject tab = new_table(l(a("set"), a("public")));
+		Native.insert(proc, tab, t(a("c"), b(0)));
+
+		// eight writers on one lock wait for each other, sooner or later
+		for (int round = 0; round < 10 && count(tab, Native.am_contention) == 0; round++) {
+			in_parallel(8, new Work() {
+				public void run(int id) {
+					for (int i = 0; i < 20000; i++) {
+						Native.update_counter(proc, tab, a("c"), b(1));
+					}
+				}
+			});
+		}
+		assertTrue(count(tab, Native.am_contention) > 0);
+	}
+
+	public void testInfoItems() {
+		EObject tab = new_set(am_heap);
+		Native.insert(proc, tab, t(a("k"), b(1)));
+		Native.lookup(proc, tab, a("k"));
+
+		ESeq all = (ESeq) Native.info(tab);
+		for (ESeq s = all; !s.isNil(); s = s.tail()) {
+			ETuple2 item = (ETuple2) s.head();
+			assertEquals(item.elem1.toString(), item.elem2, Native.info(tab, item.elem1));
+		}
+		assertEquals(b(1), Native.info(tab, Native.am_size));
+		assertEquals(b(1), Native.info(tab, Native.am_lookups));
+
+		for (EObject item : new EObject[] { a("bogus"), b(1) }) {
+			try {
+				Native.info(tab, item);
+				fail(item.toString());
+			} catch (ErlangError e) {
+				// badarg
+			}
+		}
+
+		Native.delete(proc, tab);
+		assertEquals(ERT.am_undefined, Native.info(tab));
+		assertEquals(ERT.am_undefined, Native.info(tab, Native.am_size));
+	}
+
+	public void testMemory() {
+		ETuple row = t(b(0), EString.fromString("a row"), l(b(1), ERT.box(2.5)));
+		long words = ETableStats.ENTRY_WORDS + ETableStats.words(row);
+
+		for (String type : new String[] { "set", "ordered_set", "bag" }) {
+			EObject tab = new_table(l(a(type), a("public")));
+			assertEquals(type, 0, count(tab, Native.am_memory));
+
+			for (int i = 0; i < 1000; i++) {
+				Native.insert(proc, tab, t(b(i), row.elm(2), row.elm(3)));
+			}
+			assertEquals(type, 1000 * words, count(tab, Native.am_memory));
+
+			Native.delete_all_objects(proc, tab);
+			assertEquals(type, 0, count(tab, Native.am_memory));
+		}
+
+		// off the heap, it is the room the storage takes, in words
+		for (EAtom storage : new EAtom[] { am_off_heap, am_striped, am_file }) {
+			EObject tab = new_set(storage);
+			long empty = count(tab, Native.am_memory);
+			for (int i = 0; i < 100000; i++) {
+				Native.insert(proc, tab, t(b(i), row.elm(2), row.elm(3)));
+			}
+			long full = count(tab, Native.am_memory);
+			EStorageMap map = (EStorageMap) ((ETableSet) table(tab)).map;
+			assertEquals(storage.toString(), map.memory() / 8, full);
+			assertTrue(storage + " " + empty + " " + full, full > empty);
+		}
+
+		// a binary counts with its bytes
+		assertTrue(ETableStats.words(new EBinary(new byte[1000])) > 1000 / 8);
+	}
+
+	/** @return the memory of the objects in <code>tab</code>, one by one */
+	long walk(EObject tab) {
+		long res = 0;
+		for (ESeq s = ((ESeq) Native.select(proc, tab, ALL)); !s.isNil(); s = s.tail()) {
+			res += ETableStats.ENTRY_WORDS + ETableStats.words((ETuple) s.head());
+		}
+		return res;
+	}
+
+	/** rows that grow with their key, as in a time series, are counted as they are */
+	public void testMemoryOfRowsThatGrow() {
+		for (String type : new String[] { "set", "ordered_set", "bag" }) {
+			EObject tab = new_table(l(a(type), a("public")));
+			for (int i = 0; i < 500; i++) {
+				Native.insert(proc, tab, t(b(i), new EBinary(new byte[i * 16]), b(0)));
+			}
+			assertEquals(type, walk(tab), count(tab, Native.am_memory));
+
+			// replaced, updated, new, deleted one at a time and by a select
+			Native.insert(proc, tab, t(b(10), new EBinary(new byte[5000]), b(0)));
+			Native.insert_new(proc, tab, t(b(1000), new EBinary(new byte[3000]), b(0)));
+			Native.delete(proc, tab, b(499));
+			Native.select_delete(proc, tab, l(t(t(a("$1"), a("_"), a("_")),
+					l(t(a(">"), a("$1"), b(400))), l(ERT.TRUE))));
+			if (!type.equals("bag")) {
+				Native.update_counter(proc, tab, b(20), t(b(3), b(100000000)));
+			}
+			assertEquals(type, walk(tab), count(tab, Native.am_memory));
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.EProc;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.EString;
+import erjang.ETuple;
+
+import junit.framework.TestCase;
+
+/**
+ * Tables made through the BIFs, as Erlang code would, by one process;
+ * and thrown away after each test.
+ */
+public abstract class ETableTestCase extends TestCase {
+
+	static final EAtom am_heap = Native.am_heap;
+	static final EAtom am_off_heap = Native.am_off_heap;
+	static final EAtom am_striped = EAtom.intern("striped");
+	static final EAtom am_file = Native.am_file;
+
+	/** the ways a set table can keep its objects */
+	static final EAtom[] STORAGES = { am_heap, am_off_heap, am_striped, am_file };
+
+	/** the process that owns the tables */
+	EProc proc;
+
+	private final List<EObject> tables = new ArrayList<EObject>();
+	private final List<File> files = new ArrayList<File>();
+
+	@Override
+	protected void setUp() throws Exception {
+		proc = new EProc(null, a("ets_test"), a("run"), ERT.NIL);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (EObject tab : tables) {
+			if (Native.info(tab) != ERT.am_undefined) {
+				Native.delete(proc, tab);
+			}
+		}
+		tables.clear();
+
+		for (File file : files) {
+			file.delete();
+		}
+		files.clear();
+	}
+
+	static EAtom a(String name) {
+		return EAtom.intern(name);
+	}
+
+	static EObject b(int value) {
+		return ERT.box(value);
+	}
+
+	static ETuple t(EObject... elems) {
+		return ETuple.make(elems);
+	}
+
+	static ESeq l(EObject... elems) {
+		ESeq res = ERT.NIL;
+		for (int i = elems.length - 1; i >= 0; i--) {
+			res = res.cons(elems[i]);
+		}
+		return res;
+	}
+
+	/** a match spec that returns all of every object */
+	static final ESeq ALL = l(t(a("_"), ERT.NIL, l(a("$_"))));
+
+	/** @return a new table, deleted again after the test */
+	EObject new_table(ESeq options) {
+		return keep(Native.new$(proc, a("test"), options));
+	}
+
+	/** @return <code>tab</code>, made some other way, to be deleted after the test too */
+	EObject keep(EObject tab) {
+		tables.add(tab);
+		return tab;
+	}
+
+	/** @return a new public set table that keeps its objects as <code>storage</code> says */
+	EObject new_set(EAtom storage, EObject... options) {
+		ESeq opts = l(options).cons(a("public")).cons(a("set"));
+		if (storage == am_off_heap) {
+			opts = opts.cons(t(Native.am_storage, am_off_heap));
+		} else if (storage == am_striped) {
+			opts = opts.cons(t(Native.am_storage, am_off_heap))
+				.cons(t(Native.am_write_concurrency, ERT.TRUE));
+		} else if (storage == am_file) {
+			opts = opts.cons(t(Native.am_storage,
+					t(am_file, EString.fromString(temp_file("disk").getPath()))));
+		}
+		return new_table(opts);
+	}
+
+	/** @return a file that does not exist yet, and is deleted after the test */
+	File temp_file(String prefix) {
+		try {
+			File file = File.createTempFile("ets_" + prefix, ".dat");
+			file.delete();
+			files.add(file);
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	ETable table(EObject tab) {
+		return Native.resolve(proc, tab, false);
+	}
+
+	/** @return the elements of <code>seq</code>, printed and sorted, to compare regardless of order */
+	static List<String> sorted(EObject seq) {
+		List<String> res = new ArrayList<String>();
+		for (ESeq s = (ESeq) seq; !s.isNil(); s = s.tail()) {
+			res.add(s.head().toString());
+		}
+		Collections.sort(res);
+		return res;
+	}
+
+	/** run <code>work</code> in <code>n</code> threads at once, and wait for all of them */
+	static void in_parallel(int n, final Work work) throws InterruptedException {
+		final Throwable[] failed = new Throwable[1];
+		Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						work.run(id);
+					} catch (Throwable e) {
+						synchronized (failed) {
+							failed[0] = e;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failed[0] != null) {
+			throw new AssertionError(failed[0]);
+		}
+	}
+
+	interface Work {
+		void run(int id) throws Exception;
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of Erjang - A JVM-based Erlang VM
+ *
+ * Copyright (c) 2010 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package erjang.m.ets;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import erjang.EAtom;
+import erjang.EObject;
+import erjang.ERT;
+import erjang.ESeq;
+import erjang.ESmall;
+import erjang.ETuple;
+import erjang.ErlangError;
+
+/**
+ * update_counter/3,4: increments, thresholds, defaults, and many
+ * processes counting on the same keys at once.
+ */
+public class EUpdateCounterTest extends ETableTestCase {
+
+	/** the tables to count in: sets in each storage, and an ordered_set */
+	List<EObject> counter_tables(EObject... options) {
+		List<EObject> res = new ArrayList<EObject>();
+		for (EAtom storage : STORAGES) {
+			res.add(new_set(storage, options));
+		}
+		res.add(new_table(l(options).cons(a("public")).cons(a("ordered_set"))));
+		return res;
+	}
+
+	void assert_badarg(EObject tab, EObject key, EObject op) {
+		try {
+			Native.update_counter(proc, tab, key, op);
+			fail(key + " " + op);
+		} catch (ErlangError e) {
+			// badarg
+		}
+	}
+
+	public void testIncrementsAndThresholds() {
+		for (EObject tab : counter_tables()) {
+			Native.insert(proc, tab, t(a("k"), b(0), b(10), a("x")));
+
+			assertEquals(b(5), Native.update_counter(proc, tab, a("k"), b(5)));
+			assertEquals(b(11), Native.update_counter(proc, tab, a("k"), t(b(3), b(1))));
+
+			// over the threshold going up, and under it going down
+			assertEquals(b(1), Native.update_counter(proc, tab, a("k"), t(b(2), b(10), b(12), b(1))));
+			assertEquals(b(100), Native.update_counter(proc, tab, a("k"), t(b(2), b(-5), b(0), b(100))));
+			assertEquals(b(95), Native.update_counter(proc, tab, a("k"), t(b(2), b(-5), b(0), b(100))));
+
+			// several ops apply in order, to the same position too
+			assertEquals(l(b(96), b(10), b(97)), Native.update_counter(proc, tab, a("k"),
+					l(t(b(2), b(1)), t(b(3), b(-1)), t(b(2), b(1)))));
+
+			BigInteger big = new BigInteger("100000000000000000000");
+			assertEquals(ERT.box(big.add(BigInteger.TEN)),
+					Native.update_counter(proc, tab, a("k"), t(b(3), ERT.box(big))));
+
+			assertEquals(l(t(a("k"), b(97), ERT.box(big.add(BigInteger.TEN)), a("x"))),
+					Native.lookup(proc, tab, a("k")));
+		}
+	}
+
+	public void testBadUpdatesChangeNothing() {
+		for (EObject tab : counter_tables()) {
+			ETuple obj = t(a("k"), b(0), b(10), a("x"));
+			Native.insert(proc, tab, obj);
+
+			assert_badarg(tab, a("k"), t(b(1), b(1)));   // the key
+			assert_badarg(tab, a("k"), t(b(4), b(1)));   // not an integer
+			assert_badarg(tab, a("k"), t(b(5), b(1)));   // no such position
+			assert_badarg(tab, a("nokey"), b(1));
+			assert_badarg(tab, a("k"), l(t(b(2), b(1)), t(b(4), b(1))));
+
+			assertEquals(l(obj), Native.lookup(proc, tab, a("k")));
+		}
+	}
+
+	public void testDefault() {
+		for (EObject tab : counter_tables()) {
+			assertEquals(b(42), Native.update_counter(proc, tab, a("new"), b(1),
+					t(a("ignored"), b(41))));
+			assertEquals(l(t(a("new"), b(42))), Native.lookup(proc, tab, a("new")));
+			assertEquals(b(43), Native.update_counter(proc, tab, a("new"), b(1),
+					t(a("ignored"), b(0))));
+		}
+	}
+
+	public void testNotOnBags() {
+		EObject tab = new_table(l(a("bag"), a("public")));
+		Native.insert(proc, tab, t(a("k"), b(0)));
+		assert_badarg(tab, a("k"), b(1));
+	}
+
+	public void testConcurrentIncrements() throws Exception {
+		ESeq[] modes = {
+			ERT.NIL,
+			l(t(Native.am_write_concurrency, ERT.TRUE)),
+			l(t(Native.am_write_concurrency, ERT.TRUE),
+			  t(Native.am_decentralized_counters, ERT.TRUE)),
+		};
+
+		for (ESeq mode : modes) {
+			for (final EObject tab : counter_tables(mode.toArray())) {
+				for (int k = 0; k < 16; k++) {
+					Native.insert(proc, tab, t(b(k), b(0), b(0)));
+				}
+
+				// a quarter of the updates go to key 0, so they race
+				in_parallel(4, new Work() {
+					public void run(int id) {
+						for (int j = 0; j < 5000; j++) {
+							int key = (j + id) % 4 == 0 ? 0 : j % 16;
+							Native.update_counter(proc, tab, b(key),
+									l(t(b(2), b(1)), t(b(3), b(1), b(99), b(0))));
+						}
+					}
+				});
+
+				long sum = 0;
+				for (int k = 0; k < 16; k++) {
+					ETuple obj = (ETuple) ((ESeq) Native.lookup(proc, tab, b(k))).head();
+					sum += ((ESmall) obj.elm(2)).value;
+					assertTrue(((ESmall) obj.elm(3)).value < 100);
+				}
+				assertEquals(mode.toString(), 20000, sum);
+			}
+		}
+	}
+}